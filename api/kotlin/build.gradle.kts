@@ -21,6 +21,13 @@ kotlin {
     jvmToolchain(8)
 }
 
+tasks.withType<org.jetbrains.kotlin.gradle.tasks.KotlinCompile>().configureEach {
+    compilerOptions {
+        // Interface members with a body compile to Java default methods, so Java implementations can rely on them
+        freeCompilerArgs.add("-Xjvm-default=all")
+    }
+}
+
 tasks.withType<Jar> {
     duplicatesStrategy = DuplicatesStrategy.EXCLUDE
 
@@ -1,19 +1,27 @@
 package codes.nibby.callsign.api
 
+import kotlinx.serialization.KSerializer
 import kotlinx.serialization.Serializable
+import kotlinx.serialization.descriptors.SerialDescriptor
+import kotlinx.serialization.encoding.Decoder
+import kotlinx.serialization.encoding.Encoder
+import kotlinx.serialization.json.*
 import java.util.*
 
 // TODO: Version serialized data?
 
-@Serializable
-internal data class AttributeData(val map: MutableMap<String, String>) {
+/**
+ * Attribute values of an event by attribute name. Values are [String], [Long], [Double] or [Boolean].
+ */
+@Serializable(with = AttributeDataSerializer::class)
+internal data class AttributeData(val map: MutableMap<String, Any>) {
 
-    internal fun get(name: String): String? {
+    internal fun get(name: String): Any? {
         return map[name]
     }
 
     internal fun getUserDefinedNames(): Set<String> {
-        return map.filter { entry -> !entry.key.startsWith(Event.SPECIAL_NAME_ATTRIBUTE) }.keys
+        return map.filter { entry -> !entry.key.startsWith(Event.SPECIAL_ATTRIBUTE_NAME_PREFIX) }.keys
     }
 
 
@@ -58,4 +66,54 @@ internal data class AttributeData(val map: MutableMap<String, String>) {
 
         return builder.toString()
     }
-}
\ No newline at end of file
+}
+
+/**
+ * Writes typed attribute values as JSON numbers and booleans, and string values as JSON strings. Only works
+ * with the JSON format.
+ */
+internal object AttributeDataSerializer : KSerializer<AttributeData> {
+
+    @Serializable
+    private class Surrogate(val map: Map<String, JsonPrimitive>)
+
+    override val descriptor: SerialDescriptor = Surrogate.serializer().descriptor
+
+    override fun serialize(encoder: Encoder, value: AttributeData) {
+        val map = LinkedHashMap<String, JsonPrimitive>(value.map.size)
+
+        for ((name, attributeValue) in value.map) {
+            map[name] = when (attributeValue) {
+                is String -> JsonPrimitive(attributeValue)
+                is Long -> JsonPrimitive(attributeValue)
+                is Double -> JsonPrimitive(attributeValue)
+                is Boolean -> JsonPrimitive(attributeValue)
+                else -> throw IllegalStateException("Unsupported attribute value type: ${attributeValue.javaClass.name}")
+            }
+        }
+
+        encoder.encodeSerializableValue(Surrogate.serializer(), Surrogate(map))
+    }
+
+    override fun deserialize(decoder: Decoder): AttributeData {
+        val surrogate = decoder.decodeSerializableValue(Surrogate.serializer())
+        val map = HashMap<String, Any>(surrogate.map.size)
+
+        for ((name, primitive) in surrogate.map) {
+            map[name] = decodeValue(primitive)
+        }
+
+        return AttributeData(map)
+    }
+
+    private fun decodeValue(primitive: JsonPrimitive): Any {
+        if (primitive.isString) {
+            return primitive.content
+        }
+
+        return primitive.booleanOrNull
+            ?: primitive.longOrNull
+            ?: primitive.doubleOrNull
+            ?: throw IllegalArgumentException("Unsupported attribute value: ${primitive.content}")
+    }
+}
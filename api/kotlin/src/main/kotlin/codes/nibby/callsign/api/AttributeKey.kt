@@ -0,0 +1,34 @@
+package codes.nibby.callsign.api
+
+/**
+ * A pre-validated user attribute name. Create one up front for attributes that are stored frequently, and
+ * pass it to [Event.putAttribute] to avoid validating the name every time the attribute is stored.
+ *
+ * @see EventName
+ */
+class AttributeKey private constructor(val name: String) {
+
+    override fun equals(other: Any?): Boolean {
+        return other is AttributeKey && other.name == name
+    }
+
+    override fun hashCode(): Int {
+        return name.hashCode()
+    }
+
+    override fun toString(): String {
+        return name
+    }
+
+    companion object {
+
+        /**
+         * @throws IllegalArgumentException If [name] is not a valid user attribute name
+         */
+        @JvmStatic
+        fun of(name: String): AttributeKey {
+            Event.assertValidName(name, Event.MAX_ATTRIBUTE_NAME_LENGTH, isForSpecialAttribute = false)
+            return AttributeKey(name)
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package codes.nibby.callsign.api
+
+/**
+ * Determines which attributes a [TimelineLogger] stores on the [IntervalEndEvent] it publishes when an
+ * interval completes.
+ */
+enum class EndEventAttributeMode {
+
+    /**
+     * The end event only holds the attributes that were added or changed after the start event was
+     * recorded, and is marked with [Event.SPECIAL_ATTRIBUTES_DELTA_ATTRIBUTE]. Any attribute missing from
+     * it has the same value as on the start event. Readers rebuild the full set of attributes with
+     * [IntervalEndEvent.restoreAttributesFrom].
+     *
+     * This roughly halves the size of interval data, but the attributes of an interval are lost if its
+     * start event is filtered out of the raw trace data.
+     */
+    DELTA,
+
+    /**
+     * The end event holds a complete copy of the attributes of the start event. Every end event can be
+     * interpreted on its own, which is useful when raw trace files are filtered or split before import.
+     */
+    FULL
+}
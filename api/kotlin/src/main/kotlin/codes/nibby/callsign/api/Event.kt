@@ -3,6 +3,8 @@
 package codes.nibby.callsign.api
 
 import java.util.*
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater
 import kotlin.collections.HashMap
 
 /**
@@ -18,13 +20,19 @@ import kotlin.collections.HashMap
  * attributes are those submitted from the [putAttribute] method. It is not possible to modify
  * reserved attributes.
  *
+ * User-defined attribute values are strings, or typed [Long], [Double] and [Boolean] values. Typed values
+ * are stored as they are, so recording them does not format them as text, and they are kept as numbers in
+ * trace files and documents. [getAttribute] returns any value as text, [getAttributeValue] returns it with
+ * its type.
+ *
  * A [TimelineLogger] records events during the lifetime of a program. The logger has a pre-configured
  * [TimelineLogSink] to store the event data into. Once an event has been logged, it is considered
  * "saved". Attempting to modify saved events will result in an exception.
  *
- * @param existingId Unique identifier for this event. If null, a new ID will be generated for this event.
- *                   This value should only be filled if the event is being loaded from a persisted source.
- *                   All new events should have new generated IDs.
+ * @param existingId Unique identifier for this event. If null, a new ID will be generated for this event
+ *                   by the [EventIdGenerator] of the [TimelineLogger] that records it. This value should only
+ *                   be filled if the event is being loaded from a persisted source. All new events should
+ *                   have new generated IDs.
  *
  * @param correlationId Optional parameter. If this event is associated with another event, this is the
  *                      [eventId] of the other event it is related to. Otherwise, leave null.
@@ -38,12 +46,33 @@ import kotlin.collections.HashMap
  * @see IntervalEndEvent
  * @see TimelineLogger
  */
-abstract class Event(existingId: UUID?, val correlationId: UUID?, val type: String, name: String, val timeMs: Long) {
+abstract class Event(existingId: UUID?, correlationId: UUID?, val type: String, name: String, timeMs: Long) {
+
+    /**
+     * If this event is associated with another event, the [id] of that event. Otherwise null.
+     */
+    var correlationId: UUID? = correlationId
+        internal set
+
+    /**
+     * The approximate time (in milliseconds) this event occurred on
+     */
+    var timeMs: Long = timeMs
+        internal set
 
     /**
      * A unique identifier for this event. May be referenced by other events [correlationId].
+     *
+     * Unless the event was created with an existing ID, the ID is generated when the event is recorded
+     * by a [TimelineLogger]. Reading the ID before that generates one from [EventIdGenerator.DEFAULT].
      */
     val id: UUID
+        get() = assignedId ?: assignIdIfAbsent(EventIdGenerator.DEFAULT)
+
+    // Not private so that the field updater can access it
+    @Volatile
+    @JvmField
+    internal var assignedId: UUID? = existingId
 
     /**
      * The name of this event
@@ -51,19 +80,44 @@ abstract class Event(existingId: UUID?, val correlationId: UUID?, val type: Stri
     val name: String
         get() = getSpecialAttribute(SPECIAL_NAME_ATTRIBUTE)!!
 
-    internal var published: Boolean = false
-    internal val lock = Object()
+    // One of the STATE_ constants, only moves forward through compare-and-set (except when recycled)
+    @Volatile
+    @JvmField
+    internal var state: Int = STATE_NEW
+
+    /**
+     * True once the event is saved by a [TimelineLogger], after which it can no longer be modified.
+     */
+    internal val published: Boolean
+        get() = state == STATE_PUBLISHED
+
+    /**
+     * True if this event was obtained from a [TimelineLogger] event pool, and may be reused once recorded.
+     */
+    internal var pooled: Boolean = false
 
     private val attributeData = AttributeData(HashMap())
 
     init {
-        if (name.isBlank() || name.startsWith(" ") || name.endsWith(" ")) {
-            throw IllegalArgumentException("Name must not contain leading or trailing whitespace, or be blank")
+        assertValidEventName(name)
+        putSpecialAttribute(SPECIAL_NAME_ATTRIBUTE, name)
+    }
+
+    /**
+     * Generates an ID for this event from [generator], unless it already has one.
+     *
+     * @return The ID of this event
+     */
+    internal fun assignIdIfAbsent(generator: EventIdGenerator): UUID {
+        val currentId = assignedId
+
+        if (currentId != null) {
+            return currentId
         }
 
-        putSpecialAttribute(SPECIAL_NAME_ATTRIBUTE, name)
+        ASSIGNED_ID_UPDATER.compareAndSet(this, null, generator.generateId())
 
-        id = existingId ?: UUID.randomUUID()
+        return assignedId!!
     }
 
     /**
@@ -85,15 +139,110 @@ abstract class Event(existingId: UUID?, val correlationId: UUID?, val type: Stri
         assertNotSaved()
         assertValidName(name, MAX_ATTRIBUTE_NAME_LENGTH, isForSpecialAttribute = false)
 
-        attributeData.map[name] = value
+        storeAttribute(name, value)
+    }
+
+    /**
+     * Stores a user-defined attribute for this event using a pre-validated [AttributeKey]. This is
+     * equivalent to [putAttribute] with the key name, but skips validating the name on every call.
+     *
+     * @param key Name of the attribute
+     * @param value Value for this attribute
+     */
+    fun putAttribute(key: AttributeKey, value: String) {
+        assertNotSaved()
+
+        storeAttribute(key.name, value)
+    }
+
+    /**
+     * Stores a user-defined attribute with a whole number value, see [putAttribute].
+     */
+    fun putAttribute(name: String, value: Long) {
+        assertNotSaved()
+        assertValidName(name, MAX_ATTRIBUTE_NAME_LENGTH, isForSpecialAttribute = false)
+
+        storeAttribute(name, value)
+    }
+
+    /**
+     * Stores a user-defined attribute with a whole number value, see [putAttribute].
+     */
+    fun putAttribute(key: AttributeKey, value: Long) {
+        assertNotSaved()
+
+        storeAttribute(key.name, value)
+    }
+
+    /**
+     * Stores a user-defined attribute with a decimal number value, see [putAttribute].
+     */
+    fun putAttribute(name: String, value: Double) {
+        assertNotSaved()
+        assertValidName(name, MAX_ATTRIBUTE_NAME_LENGTH, isForSpecialAttribute = false)
+
+        storeAttribute(name, value)
+    }
+
+    /**
+     * Stores a user-defined attribute with a decimal number value, see [putAttribute].
+     */
+    fun putAttribute(key: AttributeKey, value: Double) {
+        assertNotSaved()
+
+        storeAttribute(key.name, value)
+    }
+
+    /**
+     * Stores a user-defined attribute with a boolean value, see [putAttribute].
+     */
+    fun putAttribute(name: String, value: Boolean) {
+        assertNotSaved()
+        assertValidName(name, MAX_ATTRIBUTE_NAME_LENGTH, isForSpecialAttribute = false)
+
+        storeAttribute(name, value)
+    }
+
+    /**
+     * Stores a user-defined attribute with a boolean value, see [putAttribute].
+     */
+    fun putAttribute(key: AttributeKey, value: Boolean) {
+        assertNotSaved()
+
+        storeAttribute(key.name, value)
+    }
+
+    private fun storeAttribute(name: String, value: Any) {
+        val previousValue = attributeData.map.put(name, value)
+
+        if (previousValue != value) {
+            onAttributeChanged(name)
+        }
     }
 
     /**
-     * @return The value of a previously stored user attribute, or null if none exists with that name
+     * Called after the value of a user-defined attribute is added or changed.
+     */
+    internal open fun onAttributeChanged(name: String) {
+    }
+
+    /**
+     * @return The value of a previously stored user attribute as text, or null if none exists with that name
      *
      * @see putAttribute
+     * @see getAttributeValue
      */
     fun getAttribute(name: String) : String? {
+        return attributeData.get(name)?.toString()
+    }
+
+    /**
+     * @return The value of a previously stored user attribute as it was stored: a [String], [Long], [Double]
+     *         or [Boolean]. Null if none exists with that name.
+     *
+     * @see putAttribute
+     */
+    fun getAttributeValue(name: String) : Any? {
         return attributeData.get(name)
     }
 
@@ -119,7 +268,7 @@ abstract class Event(existingId: UUID?, val correlationId: UUID?, val type: Stri
      * @see putSpecialAttribute
      */
     internal fun getSpecialAttribute(name: String) : String? {
-        return attributeData.get(name)
+        return attributeData.get(name)?.toString()
     }
 
     /**
@@ -142,42 +291,62 @@ abstract class Event(existingId: UUID?, val correlationId: UUID?, val type: Stri
 
     internal fun loadAttributeData(data: AttributeData, includeSpecialAttributes: Boolean) {
         for (entry in data.map.entries) {
-            val name = entry.key
-            val value = entry.value
-
-            if (name.startsWith(SPECIAL_ATTRIBUTE_NAME_PREFIX)) {
-                if (includeSpecialAttributes) {
-                    putSpecialAttribute(name, value)
-                }
-            } else {
-                putAttribute(name, value)
-            }
+            loadAttribute(entry.key, entry.value, includeSpecialAttributes)
         }
     }
 
-    private fun assertNotSaved() {
-        synchronized(lock) {
-            if (published) {
-                throw IllegalStateException("Attempting to modify event after it has been saved: $name")
+    internal fun loadAttribute(name: String, value: Any, includeSpecialAttributes: Boolean) {
+        if (name.startsWith(SPECIAL_ATTRIBUTE_NAME_PREFIX)) {
+            if (includeSpecialAttributes) {
+                putSpecialAttribute(name, value.toString())
+            }
+        } else {
+            when (value) {
+                is String -> putAttribute(name, value)
+                is Long -> putAttribute(name, value)
+                is Double -> putAttribute(name, value)
+                is Boolean -> putAttribute(name, value)
+                else -> throw IllegalArgumentException("Unsupported attribute value type: ${value.javaClass.name}")
             }
         }
     }
 
-    private fun assertValidName(name: String, maxLength: Int, isForSpecialAttribute: Boolean) {
-        if (name.isBlank() || name.startsWith(" ") || name.endsWith(" ")) {
-            throw IllegalArgumentException("Name must not contain leading or trailing whitespace, or be blank")
-        }
+    /**
+     * Copies all attributes of [other] to this event without validating them again, which is safe because
+     * they were validated when they were stored on [other]. Both events must have the same name.
+     */
+    internal fun copyAttributesFrom(other: Event) {
+        attributeData.map.putAll(other.attributeData.map)
+    }
 
-        if (name.length > maxLength) {
-            throw IllegalArgumentException("Name exceeds maximum length of $maxLength")
-        }
+    /**
+     * Resets a pooled event so that it can be recorded again as a new event. The attribute map is cleared
+     * in place, so its storage is reused.
+     */
+    internal fun recycle(name: String, timeMs: Long, correlationId: UUID?) {
+        val map = attributeData.map
+        map.clear()
+        map[SPECIAL_NAME_ATTRIBUTE] = name
 
-        if (isForSpecialAttribute && !name.startsWith(SPECIAL_ATTRIBUTE_NAME_PREFIX)) {
-            throw IllegalArgumentException("Special attribute names must always begin with $SPECIAL_ATTRIBUTE_NAME_PREFIX")
-        }
+        this.timeMs = timeMs
+        this.correlationId = correlationId
+
+        assignedId = null
+        state = STATE_NEW
+    }
 
-        if (!isForSpecialAttribute && name.startsWith(SPECIAL_NAME_ATTRIBUTE)) {
-            throw IllegalArgumentException("Name cannot begin with $SPECIAL_ATTRIBUTE_NAME_PREFIX")
+    /**
+     * Atomically moves this event from the [expected] state to [newState].
+     *
+     * @return True if the event was in the [expected] state, false if it was not and nothing changed
+     */
+    internal fun transitionState(expected: Int, newState: Int): Boolean {
+        return STATE_UPDATER.compareAndSet(this, expected, newState)
+    }
+
+    private fun assertNotSaved() {
+        if (state == STATE_PUBLISHED) {
+            throw IllegalStateException("Attempting to modify event after it has been saved: $name")
         }
     }
 
@@ -192,5 +361,48 @@ abstract class Event(existingId: UUID?, val correlationId: UUID?, val type: Stri
         internal const val SPECIAL_ATTRIBUTE_NAME_PREFIX = "$"
 
         const val SPECIAL_NAME_ATTRIBUTE = SPECIAL_ATTRIBUTE_NAME_PREFIX + "event_name"
+
+        /**
+         * Marks an [IntervalEndEvent] that only holds the attributes changed since its start event, see
+         * [EndEventAttributeMode.DELTA].
+         */
+        const val SPECIAL_ATTRIBUTES_DELTA_ATTRIBUTE = SPECIAL_ATTRIBUTE_NAME_PREFIX + "attributes_delta"
+
+        internal fun assertValidEventName(name: String) {
+            if (name.isBlank() || name.startsWith(" ") || name.endsWith(" ")) {
+                throw IllegalArgumentException("Name must not contain leading or trailing whitespace, or be blank")
+            }
+        }
+
+        internal fun assertValidName(name: String, maxLength: Int, isForSpecialAttribute: Boolean) {
+            assertValidEventName(name)
+
+            if (name.length > maxLength) {
+                throw IllegalArgumentException("Name exceeds maximum length of $maxLength")
+            }
+
+            if (isForSpecialAttribute && !name.startsWith(SPECIAL_ATTRIBUTE_NAME_PREFIX)) {
+                throw IllegalArgumentException("Special attribute names must always begin with $SPECIAL_ATTRIBUTE_NAME_PREFIX")
+            }
+
+            if (!isForSpecialAttribute && name.startsWith(SPECIAL_ATTRIBUTE_NAME_PREFIX)) {
+                throw IllegalArgumentException("Name cannot begin with $SPECIAL_ATTRIBUTE_NAME_PREFIX")
+            }
+        }
+
+        /** Not yet recorded by a [TimelineLogger] */
+        internal const val STATE_NEW = 0
+
+        /** An [IntervalStartEvent] that is recorded but not yet ended. Its attributes may still change. */
+        internal const val STATE_RECORDED = 1
+
+        /** Saved by a [TimelineLogger], no further changes are allowed */
+        internal const val STATE_PUBLISHED = 2
+
+        private val STATE_UPDATER: AtomicIntegerFieldUpdater<Event> =
+            AtomicIntegerFieldUpdater.newUpdater(Event::class.java, "state")
+
+        private val ASSIGNED_ID_UPDATER: AtomicReferenceFieldUpdater<Event, UUID> =
+            AtomicReferenceFieldUpdater.newUpdater(Event::class.java, UUID::class.java, "assignedId")
     }
 }
\ No newline at end of file
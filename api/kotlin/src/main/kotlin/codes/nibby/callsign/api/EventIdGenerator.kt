@@ -0,0 +1,30 @@
+package codes.nibby.callsign.api
+
+import codes.nibby.callsign.api.ids.RandomEventIdGenerator
+import java.util.*
+
+/**
+ * Generates the unique [Event.id] for newly recorded events.
+ *
+ * A [TimelineLogger] assigns IDs from its configured generator at the time an event is recorded,
+ * unless the event was created with an existing ID or its ID has already been read. Implementations
+ * must be thread safe, and should be cheap since they are called on the recording thread.
+ *
+ * @see codes.nibby.callsign.api.ids.RandomEventIdGenerator
+ * @see codes.nibby.callsign.api.ids.TimeOrderedEventIdGenerator
+ */
+fun interface EventIdGenerator {
+
+    /**
+     * @return A new identifier, unique among all events generated by this instance
+     */
+    fun generateId(): UUID
+
+    companion object {
+
+        /**
+         * Generator used when no other generator has been configured.
+         */
+        val DEFAULT: EventIdGenerator = RandomEventIdGenerator
+    }
+}
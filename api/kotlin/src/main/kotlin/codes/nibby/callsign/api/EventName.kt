@@ -0,0 +1,35 @@
+package codes.nibby.callsign.api
+
+/**
+ * A pre-validated event name. Create one up front for events that are recorded frequently, and pass it to
+ * [TimelineLogger.obtainIntervalStart] or [TimelineLogger.obtainInstant] to avoid validating the name for
+ * every recorded event.
+ *
+ * @see AttributeKey
+ */
+class EventName private constructor(val name: String) {
+
+    override fun equals(other: Any?): Boolean {
+        return other is EventName && other.name == name
+    }
+
+    override fun hashCode(): Int {
+        return name.hashCode()
+    }
+
+    override fun toString(): String {
+        return name
+    }
+
+    companion object {
+
+        /**
+         * @throws IllegalArgumentException If [name] is not a valid event name
+         */
+        @JvmStatic
+        fun of(name: String): EventName {
+            Event.assertValidEventName(name)
+            return EventName(name)
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package codes.nibby.callsign.api
+
+import java.util.*
+
+/**
+ * Per-thread store of event objects that a [TimelineLogger] reuses once they have been published to a
+ * sink that does not retain events. Not thread safe.
+ */
+internal class EventPool {
+
+    private val intervalStartEvents = ArrayList<IntervalStartEvent>()
+    private val intervalEndEvents = ArrayList<IntervalEndEvent>()
+    private val instantEvents = ArrayList<InstantEvent>()
+
+    fun takeIntervalStart(name: String, timeMs: Long): IntervalStartEvent {
+        val event = intervalStartEvents.removeLastOrNull()
+            ?: return IntervalStartEvent(name, timeMs).also { it.pooled = true }
+
+        event.recycle(name, timeMs, null)
+        event.attributesChangedSinceRecorded?.clear()
+
+        return event
+    }
+
+    fun takeIntervalEnd(correlationId: UUID, name: String, timeMs: Long): IntervalEndEvent {
+        val event = intervalEndEvents.removeLastOrNull()
+            ?: return IntervalEndEvent(correlationId, name, timeMs).also { it.pooled = true }
+
+        event.recycle(name, timeMs, correlationId)
+
+        return event
+    }
+
+    fun takeInstant(name: String, timeMs: Long): InstantEvent {
+        val event = instantEvents.removeLastOrNull()
+            ?: return InstantEvent(name, timeMs).also { it.pooled = true }
+
+        event.recycle(name, timeMs, null)
+
+        return event
+    }
+
+    fun release(event: IntervalStartEvent) {
+        if (intervalStartEvents.size < MAX_POOLED_EVENTS_PER_TYPE) {
+            intervalStartEvents.add(event)
+        }
+    }
+
+    fun release(event: IntervalEndEvent) {
+        if (intervalEndEvents.size < MAX_POOLED_EVENTS_PER_TYPE) {
+            intervalEndEvents.add(event)
+        }
+    }
+
+    fun release(event: InstantEvent) {
+        if (instantEvents.size < MAX_POOLED_EVENTS_PER_TYPE) {
+            instantEvents.add(event)
+        }
+    }
+
+    companion object {
+        // Enough for deeply nested intervals on one thread, without holding on to a large amount of memory
+        private const val MAX_POOLED_EVENTS_PER_TYPE = 64
+    }
+}
@@ -16,11 +16,12 @@ import java.util.UUID
  *    it complements. This is stored as a first-class property rather than a special attribute.
  *
  * 2. Calling [TimelineLogger.recordEventEnd] with the interval start event creates an event of
- *    this type, and copies all attributes (including special attributes) set on the start event
- *    to this event. In other words, in the log sink, the start event contain a set of attributes
- *    recorded at start-time, and the end event either contains an exact copy of the attributes
- *    or a modified set of attributes at end-time. This redundancy prevents attribute data being
- *    lost if users took a snapshot of log data and either the start or end event was filtered out.
+ *    this type. By default ([EndEventAttributeMode.DELTA]) it only holds the attributes that were
+ *    added or changed after the start event was recorded, and readers restore the rest from the
+ *    start event with [restoreAttributesFrom]. With [EndEventAttributeMode.FULL], all attributes
+ *    (including special attributes) set on the start event are copied to this event instead. This
+ *    redundancy prevents attribute data being lost if users took a snapshot of log data and either
+ *    the start or end event was filtered out.
  *
  * 3. As a consequence of #2, it is not possible for API consumer code to instantiate this event
  *    type and modify its attributes. The name of this event is also copied from the start event.
@@ -43,8 +44,57 @@ class IntervalEndEvent internal constructor(
 
     companion object {
         const val TYPE = "t-e"
+
+        private const val DELTA_MARKER_VALUE = "1"
     }
 
     internal constructor(correlationId: UUID, name: String, timeMs: Long) : this(null, correlationId, name, timeMs)
 
+    /**
+     * @return true if this event only holds the attributes that changed since its start event
+     *
+     * @see EndEventAttributeMode.DELTA
+     */
+    fun isAttributeDelta(): Boolean {
+        return getSpecialAttribute(SPECIAL_ATTRIBUTES_DELTA_ATTRIBUTE) != null
+    }
+
+    /**
+     * Rebuilds the full set of attributes of an event recorded with [EndEventAttributeMode.DELTA], by
+     * adding every attribute of [startEvent] that this event does not override. Intended for readers of
+     * raw trace data. Has no effect if this event already holds the full set of attributes.
+     *
+     * @param startEvent The start event this event complements, as read from the raw trace data
+     */
+    fun restoreAttributesFrom(startEvent: IntervalStartEvent) {
+        if (!isAttributeDelta()) {
+            return
+        }
+
+        val attributes = getAttributeData().map
+
+        for ((name, value) in startEvent.getAttributeData().map) {
+            if (name !in attributes) {
+                attributes[name] = value
+            }
+        }
+
+        attributes.remove(SPECIAL_ATTRIBUTES_DELTA_ATTRIBUTE)
+    }
+
+    /**
+     * Stores the attributes of [startEvent] that were added or changed after it was recorded, and marks
+     * this event as a delta.
+     */
+    internal fun loadAttributeDelta(startEvent: IntervalStartEvent) {
+        val attributes = getAttributeData().map
+        val startAttributes = startEvent.getAttributeData().map
+
+        attributes[SPECIAL_ATTRIBUTES_DELTA_ATTRIBUTE] = DELTA_MARKER_VALUE
+
+        startEvent.attributesChangedSinceRecorded?.forEach { name ->
+            attributes[name] = startAttributes[name]!!
+        }
+    }
+
 }
\ No newline at end of file
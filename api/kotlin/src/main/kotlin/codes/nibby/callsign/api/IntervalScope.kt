@@ -0,0 +1,141 @@
+package codes.nibby.callsign.api
+
+/**
+ * An interval event that is recorded from the moment the scope is opened until it is closed. Obtained from
+ * [TimelineLogger.openInterval], or passed to the block of [TimelineLogger.interval].
+ *
+ * Attributes put on the scope are stored on the interval, and are published with its end event as
+ * described in [TimelineLogger.recordEventStart]. While the logger is [disabled][TimelineLogger.enabled],
+ * a shared scope that ignores all calls is handed out instead, so code using a scope does not need to
+ * check whether tracing is switched on. A scope is meant to be used by one thread only.
+ *
+ * In Java, use a scope with try-with-resources:
+ *
+ * ```
+ * try (IntervalScope scope = logger.openInterval("Load")) {
+ *     scope.putAttribute("file", fileName);
+ *     load(fileName);
+ * }
+ * ```
+ */
+class IntervalScope private constructor(
+    private val logger: TimelineLogger?,
+    private val startEvent: IntervalStartEvent?
+) : AutoCloseable {
+
+    private var closed = false
+
+    /**
+     * False if the logger was disabled when this scope was opened, in which case nothing is recorded.
+     */
+    val enabled: Boolean
+        get() = startEvent != null
+
+    /**
+     * Stores an attribute on the interval. Does nothing if the scope is not [enabled].
+     *
+     * @see Event.putAttribute
+     */
+    fun putAttribute(name: String, value: String) {
+        startEvent?.putAttribute(name, value)
+    }
+
+    /**
+     * Stores an attribute on the interval. Does nothing if the scope is not [enabled].
+     *
+     * @see Event.putAttribute
+     */
+    fun putAttribute(key: AttributeKey, value: String) {
+        startEvent?.putAttribute(key, value)
+    }
+
+    /**
+     * Stores a typed attribute on the interval. Does nothing if the scope is not [enabled].
+     */
+    fun putAttribute(name: String, value: Long) {
+        startEvent?.putAttribute(name, value)
+    }
+
+    /**
+     * Stores a typed attribute on the interval. Does nothing if the scope is not [enabled].
+     */
+    fun putAttribute(key: AttributeKey, value: Long) {
+        startEvent?.putAttribute(key, value)
+    }
+
+    /**
+     * Stores a typed attribute on the interval. Does nothing if the scope is not [enabled].
+     */
+    fun putAttribute(name: String, value: Double) {
+        startEvent?.putAttribute(name, value)
+    }
+
+    /**
+     * Stores a typed attribute on the interval. Does nothing if the scope is not [enabled].
+     */
+    fun putAttribute(key: AttributeKey, value: Double) {
+        startEvent?.putAttribute(key, value)
+    }
+
+    /**
+     * Stores a typed attribute on the interval. Does nothing if the scope is not [enabled].
+     */
+    fun putAttribute(name: String, value: Boolean) {
+        startEvent?.putAttribute(name, value)
+    }
+
+    /**
+     * Stores a typed attribute on the interval. Does nothing if the scope is not [enabled].
+     */
+    fun putAttribute(key: AttributeKey, value: Boolean) {
+        startEvent?.putAttribute(key, value)
+    }
+
+    /**
+     * Stores an attribute on the interval. The [value] is only computed if the scope is [enabled].
+     */
+    inline fun attribute(name: String, value: () -> String) {
+        if (enabled) {
+            putAttribute(name, value())
+        }
+    }
+
+    /**
+     * Stores an attribute on the interval. The [value] is only computed if the scope is [enabled].
+     */
+    inline fun attribute(key: AttributeKey, value: () -> String) {
+        if (enabled) {
+            putAttribute(key, value())
+        }
+    }
+
+    /**
+     * Records the end of the interval. Closing a scope more than once has no further effect.
+     */
+    override fun close() {
+        if (closed || startEvent == null) {
+            return
+        }
+
+        closed = true
+        logger!!.recordEventEnd(startEvent, System.currentTimeMillis())
+    }
+
+    companion object {
+
+        /**
+         * Scope handed out while the logger is disabled. Holds no state, so it is shared by all threads.
+         */
+        @PublishedApi
+        internal val DISABLED = IntervalScope(null, null)
+
+        /**
+         * Records [startEvent] as started and returns a scope that ends it when closed.
+         */
+        @PublishedApi
+        internal fun open(logger: TimelineLogger, startEvent: IntervalStartEvent): IntervalScope {
+            logger.recordEventStart(startEvent)
+            return IntervalScope(logger, startEvent)
+        }
+    }
+}
@@ -20,7 +20,22 @@ class IntervalStartEvent internal constructor(
     timeMs: Long
 ) : Event(existingId, null, TYPE, name, timeMs) {
 
-    internal var recorded: Boolean = false
+    /**
+     * True once the event is recorded by [TimelineLogger.recordEventStart]
+     */
+    internal val recorded: Boolean
+        get() = state != STATE_NEW
+
+    // Set by TimelineLogger.recordEventStart, null if the logger was disabled at the time
+    internal var samplingDecision: SamplingPolicy.Decision? = SamplingPolicy.Decision.KEEP
+
+    // The event as it was recorded, kept while the sampling decision is deferred so that it can be published
+    // with its original attributes once the interval ends
+    internal var deferredSnapshot: IntervalStartEvent? = null
+
+    // Names of the user attributes added or changed after the event was recorded. Only allocated once
+    // that happens, which is the uncommon case.
+    internal var attributesChangedSinceRecorded: MutableSet<String>? = null
 
     companion object {
         const val TYPE = "t-s"
@@ -28,4 +43,26 @@ class IntervalStartEvent internal constructor(
 
     constructor(name: String, timeMs: Long) : this(null, name, timeMs)
 
+    override fun onAttributeChanged(name: String) {
+        if (!recorded) {
+            return
+        }
+
+        val changedNames = attributesChangedSinceRecorded ?: HashSet<String>().also { attributesChangedSinceRecorded = it }
+        changedNames.add(name)
+    }
+
+    /**
+     * Creates a detached copy of this event holding the attributes as they are at the time of the
+     * call. Sinks that publish asynchronously must use this, because the attributes of a start event
+     * may still be modified after [TimelineLogger.recordEventStart] returns.
+     */
+    internal fun snapshot(): IntervalStartEvent {
+        val copy = IntervalStartEvent(id, name, timeMs)
+        copy.getAttributeData().map.putAll(getAttributeData().map)
+        copy.state = STATE_RECORDED
+
+        return copy
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,56 @@
+package codes.nibby.callsign.api
+
+import codes.nibby.callsign.api.sampling.KeepAllSampling
+
+/**
+ * Decides which events a [TimelineLogger] records, so that high frequency events do not swamp the
+ * sink and the viewer.
+ *
+ * An interval is always kept or dropped as a whole. The decision is made when its start event is
+ * recorded, unless the policy [defers][Decision.DEFER] it until the interval ends and its duration is
+ * known. The start event of a deferred interval is held back until then.
+ *
+ * Implementations must be thread safe, and should be cheap since they are called on the recording thread.
+ *
+ * @see codes.nibby.callsign.api.sampling.FixedRateSampling
+ * @see codes.nibby.callsign.api.sampling.TokenBucketSampling
+ * @see codes.nibby.callsign.api.sampling.SlowIntervalSampling
+ * @see codes.nibby.callsign.api.sampling.PerNameSampling
+ */
+interface SamplingPolicy {
+
+    /**
+     * @param name Name of the instant event being recorded
+     * @return True to record the event, false to drop it
+     */
+    fun sampleInstant(name: String): Boolean
+
+    /**
+     * @param name Name of the interval being started
+     * @return Whether to keep or drop the interval, or to decide once it ends
+     */
+    fun sampleIntervalStart(name: String): Decision
+
+    /**
+     * Called when an interval that was [deferred][Decision.DEFER] by [sampleIntervalStart] ends.
+     *
+     * @param name Name of the interval
+     * @param durationMs Time between the start and end events of the interval
+     * @return True to record the interval, false to drop it
+     */
+    fun sampleIntervalEnd(name: String, durationMs: Long): Boolean
+
+    enum class Decision {
+        KEEP,
+        DROP,
+        DEFER
+    }
+
+    companion object {
+
+        /**
+         * Records every event. Used when no other policy has been configured.
+         */
+        val ALWAYS: SamplingPolicy = KeepAllSampling
+    }
+}
@@ -1,5 +1,7 @@
 package codes.nibby.callsign.api
 
+import codes.nibby.callsign.api.stats.SinkStats
+
 /**
  * Publishes recorded event data from a [TimelineLogger] to some destination.
  */
@@ -12,4 +14,42 @@ interface TimelineLogSink {
      */
     fun publishEvent(event: Event)
 
+    /**
+     * Publishes a batch of recorded events to the destination, in order. Sinks that write to a file or
+     * socket override this to encode the whole batch and write it at once, rather than once per event.
+     * The list itself belongs to the caller and must not be kept after this returns.
+     *
+     * @param events Events to publish
+     */
+    fun publishEvents(events: List<Event>) {
+        for (event in events) {
+            publishEvent(event)
+        }
+    }
+
+    /**
+     * Whether this sink may keep a reference to a published event after [publishEvent] returns, for example
+     * to write it out later on another thread. Sinks that are done with an event once [publishEvent] returns
+     * should return false, which allows the [TimelineLogger] to reuse pooled event objects.
+     */
+    val retainsEvents: Boolean
+        get() = true
+
+    /**
+     * Whether the end events published to this sink must hold all attributes of their interval, because they
+     * may be read back without the start event, for example from an output split into separately imported
+     * segments. If true, the [TimelineLogger] records end events in [EndEventAttributeMode.FULL] whichever
+     * mode it was created with. Sinks that wrap another sink return the value of the wrapped sink.
+     */
+    val requiresFullEndEvents: Boolean
+        get() = false
+
+    /**
+     * Statistics of this sink, reported by [TimelineLogger.getStats]. Sinks that wrap another sink list
+     * the statistics of the wrapped sink after their own. Must be safe to call from any thread.
+     */
+    fun getStats(): List<SinkStats> {
+        return emptyList()
+    }
+
 }
\ No newline at end of file
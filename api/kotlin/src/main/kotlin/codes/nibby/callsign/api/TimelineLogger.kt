@@ -1,19 +1,217 @@
 package codes.nibby.callsign.api
 
+import codes.nibby.callsign.api.stats.LatencyHistogram
+import codes.nibby.callsign.api.stats.TimelineLoggerStats
+import java.util.concurrent.atomic.LongAdder
+
 /**
  * Main logging handler used to records time-based events to a [destination][TimelineLogSink].
  *
  * To record a one-off event, use [recordEvent]. For interval-based event logging, use [recordEventStart]
  * and [recordEventEnd].
  *
+ * Code that records events in a tight loop can obtain events from [obtainIntervalStart] and [obtainInstant]
+ * instead of creating them. Combined with [EventName] and [AttributeKey], this avoids most of the per-event
+ * allocation and validation work, provided the sink does not [retain events][TimelineLogSink.retainsEvents].
+ *
+ * For code that only records events while tracing is switched on, [interval] and [instant] (or
+ * [openInterval] from Java) take care of timing and naming the events. Their attribute blocks are only run
+ * while the logger is [enabled], so with tracing switched off these calls cost a single volatile read and
+ * do not allocate.
+ *
+ * The logger keeps count of the events it publishes and of the time the sink takes to publish them. Use
+ * [getStats] to read these along with the statistics of the sink, or a
+ * [StatsReporter][codes.nibby.callsign.api.stats.StatsReporter] to record them in the trace.
+ *
  * @param sink Destination to store all recorded events
+ * @param endEventAttributeMode Determines which attributes are stored on the end event of an interval.
+ *                              Always [EndEventAttributeMode.FULL] if the sink
+ *                              [requires it][TimelineLogSink.requiresFullEndEvents].
+ * @param idGenerator Generates the IDs of recorded events that have not been assigned one yet
+ * @param samplingPolicy Decides which events are recorded, see [SamplingPolicy]
  *
  * @see Event
  * @see InstantEvent
  * @see IntervalStartEvent
  * @see IntervalEndEvent
  */
-class TimelineLogger(private val sink: TimelineLogSink) {
+class TimelineLogger @JvmOverloads constructor(
+    private val sink: TimelineLogSink,
+    endEventAttributeMode: EndEventAttributeMode,
+    private val idGenerator: EventIdGenerator = EventIdGenerator.DEFAULT,
+    private val samplingPolicy: SamplingPolicy = SamplingPolicy.ALWAYS
+) {
+
+    /**
+     * Creates a logger that records the end events of intervals in [EndEventAttributeMode.DELTA] mode, unless
+     * the sink [requires full end events][TimelineLogSink.requiresFullEndEvents].
+     */
+    @JvmOverloads
+    constructor(
+        sink: TimelineLogSink,
+        idGenerator: EventIdGenerator = EventIdGenerator.DEFAULT
+    ) : this(sink, EndEventAttributeMode.DELTA, idGenerator)
+
+    private val endEventAttributeMode =
+        if (sink.requiresFullEndEvents) EndEventAttributeMode.FULL else endEventAttributeMode
+
+    private val eventPools = ThreadLocal.withInitial { EventPool() }
+
+    private val createdAtNanos = System.nanoTime()
+    private val instantEventCount = LongAdder()
+    private val intervalStartEventCount = LongAdder()
+    private val intervalEndEventCount = LongAdder()
+    private val sampledOutEventCount = LongAdder()
+    private val publishLatency = LatencyHistogram()
+
+    /**
+     * Whether events are recorded. While false, the record methods discard the events passed to them, and
+     * the scoped helpers do no work beyond checking this flag. Intervals that were started while the logger
+     * was disabled are not recorded when they end, and intervals started while it was enabled still have
+     * their end recorded. Can be changed at any time, from any thread.
+     */
+    @Volatile
+    var enabled: Boolean = true
+
+    /**
+     * Runs [block] as an interval event named [name], which starts when this is called and ends when
+     * [block] returns or throws. [attributes] are stored on the start event. While the logger is disabled,
+     * [attributes] is not run and [block] is run with a scope that ignores all calls.
+     *
+     * ```
+     * val result = logger.interval("Query", { putAttribute("table", table) }) { scope ->
+     *     val rows = runQuery()
+     *     scope.attribute("rows") { rows.size.toString() }
+     *     rows
+     * }
+     * ```
+     *
+     * @param name Name of the interval event
+     * @param attributes Stores attributes on the start event
+     * @param block Code to measure, given the scope of the interval
+     * @return Result of [block]
+     */
+    inline fun <T> interval(name: String, attributes: Event.() -> Unit = {}, block: (IntervalScope) -> T): T {
+        if (!enabled) {
+            return block(IntervalScope.DISABLED)
+        }
+
+        val startEvent = IntervalStartEvent(name, System.currentTimeMillis())
+        startEvent.attributes()
+
+        return IntervalScope.open(this, startEvent).use(block)
+    }
+
+    /**
+     * Same as the [interval] that takes a [String] name, but uses pooled events where the sink allows it,
+     * see [obtainIntervalStart].
+     */
+    inline fun <T> interval(name: EventName, attributes: Event.() -> Unit = {}, block: (IntervalScope) -> T): T {
+        if (!enabled) {
+            return block(IntervalScope.DISABLED)
+        }
+
+        val startEvent = obtainIntervalStart(name, System.currentTimeMillis())
+        startEvent.attributes()
+
+        return IntervalScope.open(this, startEvent).use(block)
+    }
+
+    /**
+     * Records an instant event named [name] at the current time, with the attributes stored by
+     * [attributes]. Does nothing while the logger is disabled, without running [attributes].
+     *
+     * @param name Name of the event
+     * @param attributes Stores attributes on the event
+     */
+    inline fun instant(name: String, attributes: Event.() -> Unit = {}) {
+        if (!enabled) {
+            return
+        }
+
+        val event = InstantEvent(name, System.currentTimeMillis())
+        event.attributes()
+
+        recordEvent(event)
+    }
+
+    /**
+     * Same as the [instant] that takes a [String] name, but uses pooled events where the sink allows it,
+     * see [obtainInstant].
+     */
+    inline fun instant(name: EventName, attributes: Event.() -> Unit = {}) {
+        if (!enabled) {
+            return
+        }
+
+        val event = obtainInstant(name, System.currentTimeMillis())
+        event.attributes()
+
+        recordEvent(event)
+    }
+
+    /**
+     * Starts an interval event named [name] and returns a scope that ends it when closed. Intended for Java,
+     * where it is used with try-with-resources. While the logger is disabled, a shared scope that ignores all
+     * calls is returned, see [IntervalScope].
+     *
+     * @param name Name of the interval event
+     */
+    fun openInterval(name: String): IntervalScope {
+        if (!enabled) {
+            return IntervalScope.DISABLED
+        }
+
+        return IntervalScope.open(this, IntervalStartEvent(name, System.currentTimeMillis()))
+    }
+
+    /**
+     * Same as the [openInterval] that takes a [String] name, but uses pooled events where the sink allows
+     * it, see [obtainIntervalStart].
+     *
+     * @param name Name of the interval event
+     */
+    fun openInterval(name: EventName): IntervalScope {
+        if (!enabled) {
+            return IntervalScope.DISABLED
+        }
+
+        return IntervalScope.open(this, obtainIntervalStart(name, System.currentTimeMillis()))
+    }
+
+    /**
+     * Obtains an interval start event to be recorded with [recordEventStart] and [recordEventEnd].
+     *
+     * If the sink does not [retain events][TimelineLogSink.retainsEvents], the event comes from a per-thread
+     * pool and is returned to it by [recordEventEnd]. The event must not be used in any way once
+     * [recordEventEnd] has been called, because it may already have been handed out again. Otherwise, this
+     * is equivalent to creating a new [IntervalStartEvent].
+     *
+     * @param name Name of the event
+     * @param timeMs Approximate time (in milliseconds) the interval event started on
+     */
+    fun obtainIntervalStart(name: EventName, timeMs: Long): IntervalStartEvent {
+        if (sink.retainsEvents) {
+            return IntervalStartEvent(name.name, timeMs)
+        }
+
+        return eventPools.get().takeIntervalStart(name.name, timeMs)
+    }
+
+    /**
+     * Obtains an instant event to be recorded with [recordEvent]. Pooling works the same way as for
+     * [obtainIntervalStart]: the event must not be used in any way once [recordEvent] has been called.
+     *
+     * @param name Name of the event
+     * @param timeMs Approximate time (in milliseconds) the event occurred on
+     */
+    fun obtainInstant(name: EventName, timeMs: Long): InstantEvent {
+        if (sink.retainsEvents) {
+            return InstantEvent(name.name, timeMs)
+        }
+
+        return eventPools.get().takeInstant(name.name, timeMs)
+    }
 
     /**
      * Records the start of an interval-based event. Calling this method records a start event and
@@ -25,29 +223,45 @@ class TimelineLogger(private val sink: TimelineLogSink) {
      *
      * The logger publishes the attributes set on the event at the time of method invocation. After
      * the event start is recorded, the event attributes can still be modified until [recordEventEnd]
-     * is called. The latest set of attributes will be transferred to the [IntervalEndEvent] generated
-     * as part of that method call and published to the sink.
+     * is called. Attributes modified in the meantime will be transferred to the [IntervalEndEvent]
+     * generated as part of that method call and published to the sink (see [EndEventAttributeMode]).
+     *
+     * The [SamplingPolicy] decides here whether the interval is recorded. If it defers the decision
+     * until the interval ends, a copy of the start event is taken here, and only published by
+     * [recordEventEnd] if the interval is kept.
      *
      * @param startEvent Interval start event to log
      *
      * @see recordEventEnd
      */
     fun recordEventStart(startEvent: IntervalStartEvent) {
-        synchronized(startEvent.lock) {
-            if (startEvent.recorded) {
-                throw IllegalStateException("$startEvent is already recorded")
-            }
+        if (!startEvent.transitionState(Event.STATE_NEW, Event.STATE_RECORDED)) {
+            throw IllegalStateException("$startEvent is already recorded")
+        }
 
-            startEvent.recorded = true
+        if (!enabled) {
+            // Not counted as sampled out, and recordEventEnd discards the interval
+            startEvent.samplingDecision = null
+            return
         }
 
-        sink.publishEvent(startEvent)
+        val decision = samplingPolicy.sampleIntervalStart(startEvent.name)
+        startEvent.samplingDecision = decision
+
+        startEvent.assignIdIfAbsent(idGenerator)
+
+        // Start events of deferred intervals are published by recordEventEnd if the interval is kept
+        when (decision) {
+            SamplingPolicy.Decision.KEEP -> publish(startEvent, intervalStartEventCount)
+            SamplingPolicy.Decision.DEFER -> startEvent.deferredSnapshot = startEvent.snapshot()
+            SamplingPolicy.Decision.DROP -> sampledOutEventCount.increment()
+        }
     }
 
     /**
      * Records the completion of an interval event. [recordEventStart] must have been called on
      * [startEvent] before calling this method. An [IntervalEndEvent] will be published to the
-     * sink, with attributes cloned from the start event.
+     * sink, with attributes taken from the start event according to the [EndEventAttributeMode].
      *
      * After this method, the event reference should be discarded. Any attempt to modify it will
      * throw [IllegalStateException].
@@ -59,23 +273,66 @@ class TimelineLogger(private val sink: TimelineLogSink) {
      *                                  method is called twice for the same event.
      */
     fun recordEventEnd(startEvent: IntervalStartEvent, endTimeMs: Long) {
-        val endEvent: IntervalEndEvent
-
-        synchronized(startEvent.lock) {
+        // Only one caller can win this transition, and once it is made the start event rejects further changes
+        if (!startEvent.transitionState(Event.STATE_RECORDED, Event.STATE_PUBLISHED)) {
             if (!startEvent.recorded) {
                 throw IllegalStateException("Must first call recordEventStart() for event: $startEvent")
             }
-            if (startEvent.published) {
-                throw IllegalStateException("recordEventEnd() cannot be called twice for event: $startEvent")
+
+            throw IllegalStateException("recordEventEnd() cannot be called twice for event: $startEvent")
+        }
+
+        val deferredSnapshot = startEvent.deferredSnapshot
+        startEvent.deferredSnapshot = null
+
+        val kept = when (startEvent.samplingDecision) {
+            null -> {
+                // Started while the logger was disabled
+                if (startEvent.pooled) {
+                    eventPools.get().release(startEvent)
+                }
+
+                return
+            }
+            SamplingPolicy.Decision.KEEP -> true
+            SamplingPolicy.Decision.DROP -> false
+            SamplingPolicy.Decision.DEFER -> samplingPolicy.sampleIntervalEnd(startEvent.name, endTimeMs - startEvent.timeMs)
+        }
+
+        if (!kept) {
+            sampledOutEventCount.increment()
+
+            if (startEvent.pooled) {
+                eventPools.get().release(startEvent)
             }
 
-            startEvent.published = true
+            return
+        }
+
+        if (deferredSnapshot != null) {
+            publish(deferredSnapshot, intervalStartEventCount)
+        }
+
+        val endEvent = if (startEvent.pooled) {
+            eventPools.get().takeIntervalEnd(startEvent.id, startEvent.name, endTimeMs)
+        } else {
+            IntervalEndEvent(startEvent.id, startEvent.name, endTimeMs)
+        }
+
+        endEvent.assignIdIfAbsent(idGenerator)
 
-            endEvent = IntervalEndEvent(null, startEvent.id, startEvent.name, endTimeMs)
-            endEvent.loadAttributeData(startEvent.getAttributeData(), includeSpecialAttributes = false)
+        when (endEventAttributeMode) {
+            EndEventAttributeMode.DELTA -> endEvent.loadAttributeDelta(startEvent)
+            EndEventAttributeMode.FULL -> endEvent.copyAttributesFrom(startEvent)
         }
 
-        sink.publishEvent(endEvent)
+        publish(endEvent, intervalEndEventCount)
+
+        if (startEvent.pooled) {
+            val pool = eventPools.get()
+            pool.release(startEvent)
+            pool.release(endEvent)
+        }
     }
 
     /**
@@ -85,14 +342,63 @@ class TimelineLogger(private val sink: TimelineLogSink) {
      * @param event The event to record.
      */
     fun recordEvent(event: InstantEvent) {
-        synchronized(event.lock) {
-            if (event.published) {
-                throw IllegalStateException("recordEvent() cannot be called twice for event: " + event.name)
+        if (!event.transitionState(Event.STATE_NEW, Event.STATE_PUBLISHED)) {
+            throw IllegalStateException("recordEvent() cannot be called twice for event: " + event.name)
+        }
+
+        if (!enabled) {
+            if (event.pooled) {
+                eventPools.get().release(event)
             }
 
-            event.published = true
+            return
         }
 
+        if (!samplingPolicy.sampleInstant(event.name)) {
+            sampledOutEventCount.increment()
+
+            if (event.pooled) {
+                eventPools.get().release(event)
+            }
+
+            return
+        }
+
+        event.assignIdIfAbsent(idGenerator)
+        publish(event, instantEventCount)
+
+        if (event.pooled) {
+            eventPools.get().release(event)
+        }
+    }
+
+    private fun publish(event: Event, typeCount: LongAdder) {
+        val startNanos = System.nanoTime()
+
         sink.publishEvent(event)
+
+        publishLatency.record(System.nanoTime() - startNanos)
+        typeCount.increment()
+    }
+
+    /**
+     * @return Statistics of this logger and its sink since the logger was created
+     */
+    fun getStats(): TimelineLoggerStats {
+        val eventCounts = HashMap<String, Long>()
+        eventCounts[InstantEvent.TYPE] = instantEventCount.sum()
+        eventCounts[IntervalStartEvent.TYPE] = intervalStartEventCount.sum()
+        eventCounts[IntervalEndEvent.TYPE] = intervalEndEventCount.sum()
+
+        val nowNanos = System.nanoTime()
+
+        return TimelineLoggerStats(
+            nowNanos,
+            nowNanos - createdAtNanos,
+            eventCounts,
+            sampledOutEventCount.sum(),
+            publishLatency.snapshot(),
+            sink.getStats()
+        )
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,367 @@
+package codes.nibby.callsign.api.formats
+
+/**
+ * Hand-written encoder and decoder for the attribute data column of the CSV format.
+ *
+ * The output is identical to what kotlinx.serialization produces for [codes.nibby.callsign.api.AttributeData],
+ * `{"map":{"name":"value",...}}`, so files written before and after this encoder existed read the same. Both
+ * directions work on the text directly rather than through an intermediate JSON tree.
+ *
+ * String values are JSON strings. Typed values are bare JSON tokens: [Long] values as integers, [Double]
+ * values as numbers that always have a fraction or exponent (or `NaN` and `Infinity`, which are not strictly
+ * JSON), and [Boolean] values as `true` or `false`.
+ */
+internal object AttributeJson {
+
+    private const val PREFIX = "{\"map\":{"
+    private const val SUFFIX = "}}"
+    private const val CSV_QUOTED_PREFIX = "\"{\"\"map\"\":{"
+    private const val CSV_QUOTED_SUFFIX = "}}\""
+
+    private const val HEX_DIGITS = "0123456789abcdef"
+
+    /**
+     * Appends the JSON encoding of [attributes] to [output].
+     *
+     * @param csvQuoted If true, the JSON is written as a quoted CSV field: it is enclosed in double quotes,
+     *                  and every double quote in the JSON text is doubled.
+     */
+    fun encode(attributes: Map<String, Any>, output: StringBuilder, csvQuoted: Boolean) {
+        output.append(if (csvQuoted) CSV_QUOTED_PREFIX else PREFIX)
+
+        var first = true
+
+        for ((name, value) in attributes) {
+            if (!first) {
+                output.append(',')
+            }
+
+            appendString(name, output, csvQuoted)
+            output.append(':')
+
+            when (value) {
+                is String -> appendString(value, output, csvQuoted)
+                is Long -> output.append(value)
+                is Double -> output.append(value)
+                is Boolean -> output.append(value)
+                else -> throw IllegalArgumentException("Unsupported attribute value type: ${value.javaClass.name}")
+            }
+
+            first = false
+        }
+
+        output.append(if (csvQuoted) CSV_QUOTED_SUFFIX else SUFFIX)
+    }
+
+    private fun appendQuote(c: Char, output: StringBuilder, csvQuoted: Boolean) {
+        output.append(c)
+
+        if (csvQuoted && c == '"') {
+            output.append('"')
+        }
+    }
+
+    private fun appendString(value: String, output: StringBuilder, csvQuoted: Boolean) {
+        appendQuote('"', output, csvQuoted)
+
+        var firstEscape = 0
+
+        while (firstEscape < value.length && !requiresEscape(value[firstEscape])) {
+            firstEscape++
+        }
+
+        // Most values need no escaping at all, appending them whole is much faster than char by char
+        if (firstEscape == value.length) {
+            output.append(value)
+            appendQuote('"', output, csvQuoted)
+            return
+        }
+
+        output.append(value, 0, firstEscape)
+
+        for (i in firstEscape until value.length) {
+            val c = value[i]
+
+            if (!requiresEscape(c)) {
+                output.append(c)
+                continue
+            }
+
+            when (c) {
+                '"' -> {
+                    output.append('\\')
+                    appendQuote('"', output, csvQuoted)
+                }
+                '\\' -> output.append("\\\\")
+                '\n' -> output.append("\\n")
+                '\r' -> output.append("\\r")
+                '\t' -> output.append("\\t")
+                '\b' -> output.append("\\b")
+                '\u000C' -> output.append("\\f")
+                else -> {
+                    output.append("\\u00")
+                    output.append(HEX_DIGITS[c.code shr 4])
+                    output.append(HEX_DIGITS[c.code and 0xF])
+                }
+            }
+        }
+
+        appendQuote('"', output, csvQuoted)
+    }
+
+    private fun requiresEscape(c: Char): Boolean {
+        return c < ' ' || c == '"' || c == '\\'
+    }
+
+    /**
+     * Parses attribute data previously written by [encode] (without CSV quoting, as returned by the CSV
+     * reader) and passes each attribute to [consumer] in the order it appears.
+     *
+     * @throws IllegalArgumentException If [text] is not in the expected layout
+     */
+    inline fun decode(text: String, consumer: (name: String, value: Any) -> Unit) {
+        val parser = Parser(text)
+
+        parser.expectStructure(PREFIX)
+
+        if (!parser.tryConsume('}')) {
+            do {
+                val name = parser.readString()
+                parser.expect(':')
+                val value = parser.readValue()
+
+                consumer(name, value)
+            } while (parser.tryConsume(','))
+
+            parser.expect('}')
+        }
+
+        parser.expect('}')
+        parser.expectEnd()
+    }
+
+    /**
+     * Passes the name of each attribute in attribute data previously written by [encode] to [consumer], with the
+     * class of its value, without creating the values.
+     *
+     * @throws IllegalArgumentException If [text] is not in the expected layout
+     */
+    inline fun decodeTypes(text: String, consumer: (name: String, type: Class<*>) -> Unit) {
+        val parser = Parser(text)
+
+        parser.expectStructure(PREFIX)
+
+        if (!parser.tryConsume('}')) {
+            do {
+                val name = parser.readString()
+                parser.expect(':')
+                val type = parser.skipValue()
+
+                consumer(name, type)
+            } while (parser.tryConsume(','))
+
+            parser.expect('}')
+        }
+
+        parser.expect('}')
+        parser.expectEnd()
+    }
+
+    class Parser(private val text: String) {
+
+        private var position = 0
+
+        // Reused for strings containing escape sequences
+        private val unescaped = StringBuilder()
+
+        fun expectStructure(structure: String) {
+            for (c in structure) {
+                expect(c)
+            }
+        }
+
+        fun expect(c: Char) {
+            skipWhitespace()
+
+            if (position >= text.length || text[position] != c) {
+                throw malformed("Expected '$c'")
+            }
+
+            position++
+        }
+
+        fun tryConsume(c: Char): Boolean {
+            skipWhitespace()
+
+            if (position < text.length && text[position] == c) {
+                position++
+                return true
+            }
+
+            return false
+        }
+
+        fun expectEnd() {
+            skipWhitespace()
+
+            if (position != text.length) {
+                throw malformed("Unexpected trailing data")
+            }
+        }
+
+        /**
+         * @return A string, or a [Long], [Double] or [Boolean] for a bare token
+         */
+        fun readValue(): Any {
+            skipWhitespace()
+
+            if (position < text.length && text[position] == '"') {
+                return readString()
+            }
+
+            val start = position
+            var decimal = false
+
+            while (position < text.length && text[position].let { it != ',' && it != '}' && it > ' ' }) {
+                val c = text[position++]
+
+                if (c == '.' || c == 'e' || c == 'E' || c == 'N' || c == 'I') {
+                    decimal = true
+                }
+            }
+
+            val token = text.substring(start, position)
+
+            return when {
+                token == "true" -> true
+                token == "false" -> false
+                decimal -> token.toDoubleOrNull()
+                else -> token.toLongOrNull()
+            } ?: throw malformed("Invalid value '$token'")
+        }
+
+        /**
+         * Moves past the next value, a string or a bare token, without creating it. The token is not validated.
+         *
+         * @return Class of the value that [readValue] would have returned
+         */
+        fun skipValue(): Class<*> {
+            skipWhitespace()
+
+            if (position < text.length && text[position] == '"') {
+                position++
+
+                while (position < text.length) {
+                    when (text[position++]) {
+                        '"' -> return String::class.java
+                        '\\' -> position++
+                    }
+                }
+
+                throw malformed("Unterminated string")
+            }
+
+            val start = position
+            var decimal = false
+
+            while (position < text.length && text[position].let { it != ',' && it != '}' && it > ' ' }) {
+                val c = text[position++]
+
+                if (c == '.' || c == 'e' || c == 'E' || c == 'N' || c == 'I') {
+                    decimal = true
+                }
+            }
+
+            return when {
+                position == start -> throw malformed("Expected a value")
+                text[start] == 't' || text[start] == 'f' -> Boolean::class.javaObjectType
+                decimal -> Double::class.javaObjectType
+                else -> Long::class.javaObjectType
+            }
+        }
+
+        fun readString(): String {
+            expect('"')
+
+            val start = position
+
+            // Fast path: no escape sequences, the value is a plain substring
+            while (position < text.length) {
+                val c = text[position]
+
+                if (c == '"') {
+                    return text.substring(start, position++)
+                }
+
+                if (c == '\\') {
+                    break
+                }
+
+                position++
+            }
+
+            unescaped.setLength(0)
+            unescaped.append(text, start, position)
+
+            while (position < text.length) {
+                val c = text[position++]
+
+                if (c == '"') {
+                    return unescaped.toString()
+                }
+
+                if (c != '\\') {
+                    unescaped.append(c)
+                    continue
+                }
+
+                if (position >= text.length) {
+                    break
+                }
+
+                when (val escaped = text[position++]) {
+                    '"', '\\', '/' -> unescaped.append(escaped)
+                    'n' -> unescaped.append('\n')
+                    'r' -> unescaped.append('\r')
+                    't' -> unescaped.append('\t')
+                    'b' -> unescaped.append('\b')
+                    'f' -> unescaped.append('\u000C')
+                    'u' -> unescaped.append(readHexChar())
+                    else -> throw malformed("Invalid escape sequence '\\$escaped'")
+                }
+            }
+
+            throw malformed("Unterminated string")
+        }
+
+        private fun readHexChar(): Char {
+            if (position + 4 > text.length) {
+                throw malformed("Truncated unicode escape")
+            }
+
+            var value = 0
+
+            for (i in 0 until 4) {
+                val digit = Character.digit(text[position++], 16)
+
+                if (digit < 0) {
+                    throw malformed("Invalid unicode escape")
+                }
+
+                value = (value shl 4) or digit
+            }
+
+            return value.toChar()
+        }
+
+        private fun skipWhitespace() {
+            while (position < text.length && text[position].let { it == ' ' || it == '\n' || it == '\r' || it == '\t' }) {
+                position++
+            }
+        }
+
+        private fun malformed(reason: String): IllegalArgumentException {
+            return IllegalArgumentException("Malformed attribute data at index $position: $reason")
+        }
+    }
+}
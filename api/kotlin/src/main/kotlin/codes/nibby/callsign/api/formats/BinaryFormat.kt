@@ -0,0 +1,476 @@
+package codes.nibby.callsign.api.formats
+
+import codes.nibby.callsign.api.*
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.*
+
+/**
+ * Compact binary raw trace format.
+ *
+ * A file starts with the [MAGIC] bytes followed by a format version byte. The rest of the file is a
+ * sequence of records, each prefixed with its payload length as a varint. The first payload byte is
+ * the record type:
+ *
+ * - [RECORD_SESSION_START]: Resets the string tables and the timestamp baseline. Written once every
+ *   time a writer opens the file, so that a file can be appended to by several sessions.
+ * - [RECORD_DEFINE_EVENT_NAME] / [RECORD_DEFINE_ATTRIBUTE_NAME]: Adds a string to the event name or
+ *   attribute name table of the current session. Always written before the first record using it.
+ * - [RECORD_EVENT]: A single event. Event and attribute names are references into the string tables,
+ *   IDs are stored as 16 raw bytes and timestamps as a zig-zag varint delta from the previous event.
+ * - [RECORD_TYPED_EVENT]: Same as [RECORD_EVENT], except that each attribute value is preceded by a type
+ *   tag, and numbers and booleans are stored in binary rather than as text. Only written for events
+ *   that have such values, so that files without them can still be read by older readers.
+ *
+ * Readers skip record types they do not recognise, and treat a truncated final record (for example
+ * left behind by a crash) as the end of the data.
+ */
+class BinaryFormat {
+
+    /**
+     * Stateful encoder for one writing session. Not thread safe.
+     */
+    class Encoder internal constructor(private val output: OutputStream) {
+
+        private val eventNameIds = HashMap<String, Int>()
+        private val attributeNameIds = HashMap<String, Int>()
+        private var previousTimeMs = 0L
+
+        private val record = RecordBuffer()
+        private val frame = RecordBuffer()
+
+        /**
+         * Writes the file header. Only call this when starting a new, empty file.
+         */
+        fun writeHeader() {
+            output.write(MAGIC)
+            output.write(VERSION)
+        }
+
+        /**
+         * Starts a new session, resetting all string tables. Must be called before the first event is
+         * written by this encoder.
+         */
+        fun writeSessionStart() {
+            eventNameIds.clear()
+            attributeNameIds.clear()
+            previousTimeMs = 0L
+
+            record.clear()
+            record.writeByte(RECORD_SESSION_START)
+            writeRecord()
+        }
+
+        fun writeEvent(event: Event) {
+            val nameId = resolveId(eventNameIds, event.name, RECORD_DEFINE_EVENT_NAME)
+            val attributes = event.getAttributeData().map
+
+            // Define any new attribute names before the event record refers to them
+            for (name in attributes.keys) {
+                if (name != Event.SPECIAL_NAME_ATTRIBUTE) {
+                    resolveId(attributeNameIds, name, RECORD_DEFINE_ATTRIBUTE_NAME)
+                }
+            }
+
+            val typed = hasTypedValues(attributes)
+
+            record.clear()
+            record.writeByte(if (typed) RECORD_TYPED_EVENT else RECORD_EVENT)
+            record.writeByte(encodeEventType(event.type))
+
+            val correlationId = event.correlationId
+            record.writeByte(if (correlationId != null) FLAG_HAS_CORRELATION_ID else 0)
+
+            writeUuid(event.id)
+
+            if (correlationId != null) {
+                writeUuid(correlationId)
+            }
+
+            record.writeVarLong(nameId.toLong())
+            record.writeZigZagVarLong(event.timeMs - previousTimeMs)
+            previousTimeMs = event.timeMs
+
+            record.writeVarLong((attributes.size - 1).toLong())
+
+            for ((name, value) in attributes) {
+                if (name == Event.SPECIAL_NAME_ATTRIBUTE) {
+                    continue
+                }
+
+                record.writeVarLong(attributeNameIds[name]!!.toLong())
+
+                if (typed) {
+                    record.writeAttributeValue(value)
+                } else {
+                    record.writeString(value as String)
+                }
+            }
+
+            writeRecord()
+        }
+
+        private fun hasTypedValues(attributes: Map<String, Any>): Boolean {
+            for (value in attributes.values) {
+                if (value !is String) {
+                    return true
+                }
+            }
+
+            return false
+        }
+
+        private fun resolveId(table: MutableMap<String, Int>, value: String, definitionRecordType: Int): Int {
+            val existingId = table[value]
+
+            if (existingId != null) {
+                return existingId
+            }
+
+            val id = table.size
+            table[value] = id
+
+            record.clear()
+            record.writeByte(definitionRecordType)
+            record.writeVarLong(id.toLong())
+            record.writeUtf8(value)
+            writeRecord()
+
+            return id
+        }
+
+        private fun writeUuid(uuid: UUID) {
+            record.writeLong(uuid.mostSignificantBits)
+            record.writeLong(uuid.leastSignificantBits)
+        }
+
+        private fun writeRecord() {
+            frame.clear()
+            frame.writeVarLong(record.size.toLong())
+            frame.writeBytes(record.bytes, 0, record.size)
+            frame.writeTo(output)
+        }
+
+        fun flush() {
+            output.flush()
+        }
+    }
+
+    /**
+     * Stateful decoder for a complete binary raw trace file. Not thread safe.
+     */
+    class Decoder internal constructor(private val input: InputStream) {
+
+        private val eventNames = ArrayList<String>()
+        private val attributeNames = ArrayList<String>()
+        private var previousTimeMs = 0L
+
+        private var payload = ByteArray(256)
+        private val reader = RecordReader(payload, 0, 0)
+
+        private var headerRead = false
+
+        // Bytes consumed from the input so far
+        private var position = 0L
+
+        /**
+         * @return The next event in the file, or null once the end of the data is reached
+         */
+        fun readEvent(): Event? {
+            if (!headerRead) {
+                if (!readHeader()) {
+                    return null
+                }
+
+                headerRead = true
+            }
+
+            while (true) {
+                if (!readNextRecord()) {
+                    return null
+                }
+
+                when (reader.readByte()) {
+                    RECORD_SESSION_START -> {
+                        eventNames.clear()
+                        attributeNames.clear()
+                        previousTimeMs = 0L
+                    }
+                    RECORD_DEFINE_EVENT_NAME -> defineString(eventNames)
+                    RECORD_DEFINE_ATTRIBUTE_NAME -> defineString(attributeNames)
+                    RECORD_EVENT -> return decodeEvent(typed = false)
+                    RECORD_TYPED_EVENT -> return decodeEvent(typed = true)
+                    else -> {
+                        // Unknown record type from a newer writer, skip it
+                    }
+                }
+            }
+        }
+
+        /**
+         * Reads the rest of the file, only collecting the attribute names and value types of its events, which is
+         * much faster than decoding them. Values are skipped rather than created, only their type tags are read.
+         *
+         * @return Class of the first value of each attribute in the rest of the file, by attribute name, in the
+         *         order the attributes first appear. Attributes of untyped event records are strings.
+         */
+        fun readAttributeTypes(): Map<String, Class<*>> {
+            val types = LinkedHashMap<String, Class<*>>()
+
+            if (!headerRead) {
+                if (!readHeader()) {
+                    return types
+                }
+
+                headerRead = true
+            }
+
+            while (readNextRecord()) {
+                when (reader.readByte()) {
+                    RECORD_SESSION_START -> {
+                        eventNames.clear()
+                        attributeNames.clear()
+                        previousTimeMs = 0L
+                    }
+                    RECORD_DEFINE_ATTRIBUTE_NAME -> defineString(attributeNames)
+                    RECORD_EVENT -> collectAttributeTypes(types, typed = false)
+                    RECORD_TYPED_EVENT -> collectAttributeTypes(types, typed = true)
+                    else -> {
+                        // Event names are not needed
+                    }
+                }
+            }
+
+            return types
+        }
+
+        /**
+         * Reads the rest of the file without decoding it, to find where the last complete record ends. A final
+         * record cut short by a crash is not counted, so new sessions can be appended right after the complete
+         * data instead of after the torn record.
+         *
+         * @return Number of bytes from the start of the file to the end of the last complete record, or 0 if
+         *         not even the header is complete
+         */
+        fun findEndOfCompleteRecords(): Long {
+            if (!headerRead) {
+                val headerComplete = try {
+                    readHeader()
+                } catch (e: IOException) {
+                    // A header cut short is not worth keeping, anything else is not a file to write to
+                    if (position < MAGIC.size + 1) false else throw e
+                }
+
+                if (!headerComplete) {
+                    return 0L
+                }
+
+                headerRead = true
+            }
+
+            var end = position
+
+            while (readNextRecord()) {
+                end = position
+            }
+
+            return end
+        }
+
+        private fun readHeader(): Boolean {
+            val header = ByteArray(MAGIC.size + 1)
+            val headerBytesRead = readFully(header, header.size)
+
+            if (headerBytesRead == 0) {
+                return false // Empty file
+            }
+
+            if (headerBytesRead != header.size) {
+                throw IOException("Not a binary raw trace file: header is incomplete")
+            }
+
+            for (i in MAGIC.indices) {
+                if (header[i] != MAGIC[i]) {
+                    throw IOException("Not a binary raw trace file: bad magic bytes")
+                }
+            }
+
+            val version = header[MAGIC.size].toInt()
+
+            if (version > VERSION) {
+                throw IOException("Unsupported binary raw trace file version: $version")
+            }
+
+            return true
+        }
+
+        private fun readNextRecord(): Boolean {
+            val length = readRecordLength() ?: return false
+
+            if (length > payload.size) {
+                payload = ByteArray(maxOf(length, payload.size * 2))
+                reader.bytes = payload
+            }
+
+            if (readFully(payload, length) != length) {
+                return false // Truncated final record
+            }
+
+            reader.position = 0
+            reader.limit = length
+
+            return true
+        }
+
+        private fun readRecordLength(): Int? {
+            var value = 0L
+            var shift = 0
+
+            while (shift < 35) {
+                val b = input.read()
+
+                if (b == -1) {
+                    return null
+                }
+
+                position++
+
+                value = value or ((b and 0x7F).toLong() shl shift)
+
+                if (b and 0x80 == 0) {
+                    if (value > Int.MAX_VALUE) {
+                        throw IOException("Record length out of range: $value")
+                    }
+
+                    return value.toInt()
+                }
+
+                shift += 7
+            }
+
+            throw IOException("Malformed record length")
+        }
+
+        private fun readFully(target: ByteArray, length: Int): Int {
+            var read = 0
+
+            while (read < length) {
+                val count = input.read(target, read, length - read)
+
+                if (count == -1) {
+                    break
+                }
+
+                read += count
+            }
+
+            position += read
+
+            return read
+        }
+
+        private fun defineString(table: MutableList<String>) {
+            val id = reader.readVarInt()
+            val value = reader.readUtf8(reader.limit - reader.position)
+
+            if (id != table.size) {
+                throw IOException("Out of order string definition, expected ID ${table.size} but got $id")
+            }
+
+            table.add(value)
+        }
+
+        private fun decodeEvent(typed: Boolean): Event {
+            val eventType = reader.readByte()
+            val flags = reader.readByte()
+
+            val id = UUID(reader.readLong(), reader.readLong())
+            val correlationId = if (flags and FLAG_HAS_CORRELATION_ID != 0) UUID(reader.readLong(), reader.readLong()) else null
+
+            val name = eventNames[reader.readVarInt()]
+            val timeMs = previousTimeMs + reader.readZigZagVarLong()
+            previousTimeMs = timeMs
+
+            val event: Event = when (eventType) {
+                EVENT_TYPE_INSTANT -> InstantEvent(id, name, timeMs)
+                EVENT_TYPE_INTERVAL_START -> IntervalStartEvent(id, name, timeMs)
+                EVENT_TYPE_INTERVAL_END -> IntervalEndEvent(id, correlationId!!, name, timeMs)
+                else -> throw IOException("Unknown event type: $eventType")
+            }
+
+            val attributeCount = reader.readVarInt()
+            val attributes = event.getAttributeData().map
+
+            for (i in 0 until attributeCount) {
+                val attributeName = attributeNames[reader.readVarInt()]
+                attributes[attributeName] = if (typed) reader.readAttributeValue() else reader.readString()
+            }
+
+            return event
+        }
+
+        private fun collectAttributeTypes(types: MutableMap<String, Class<*>>, typed: Boolean) {
+            reader.readByte() // Event type
+            val flags = reader.readByte()
+
+            // Event ID and correlation ID
+            reader.skip(if (flags and FLAG_HAS_CORRELATION_ID != 0) 32 else 16)
+            reader.readVarInt() // Event name
+            reader.readVarLong() // Time delta
+
+            types.putIfAbsent(Event.SPECIAL_NAME_ATTRIBUTE, String::class.java)
+
+            val attributeCount = reader.readVarInt()
+
+            for (i in 0 until attributeCount) {
+                val attributeName = attributeNames[reader.readVarInt()]
+
+                if (typed) {
+                    types.putIfAbsent(attributeName, reader.skipAttributeValue())
+                } else {
+                    reader.skipString()
+                    types.putIfAbsent(attributeName, String::class.java)
+                }
+            }
+        }
+    }
+
+    companion object {
+
+        /** Callsign Raw Trace (file format) 2 */
+        const val EXTENSION = "crt2"
+
+        internal val MAGIC = byteArrayOf('C'.code.toByte(), 'R'.code.toByte(), 'T'.code.toByte(), '2'.code.toByte())
+        internal const val VERSION = 1
+
+        internal const val RECORD_SESSION_START = 0
+        internal const val RECORD_DEFINE_EVENT_NAME = 1
+        internal const val RECORD_DEFINE_ATTRIBUTE_NAME = 2
+        internal const val RECORD_EVENT = 3
+        internal const val RECORD_TYPED_EVENT = 4
+
+        internal const val EVENT_TYPE_INSTANT = 0
+        internal const val EVENT_TYPE_INTERVAL_START = 1
+        internal const val EVENT_TYPE_INTERVAL_END = 2
+
+        internal const val FLAG_HAS_CORRELATION_ID = 1
+
+        fun createEncoder(output: OutputStream): Encoder {
+            return Encoder(output)
+        }
+
+        fun createDecoder(input: InputStream): Decoder {
+            return Decoder(input)
+        }
+
+        internal fun encodeEventType(type: String): Int {
+            return when (type) {
+                InstantEvent.TYPE -> EVENT_TYPE_INSTANT
+                IntervalStartEvent.TYPE -> EVENT_TYPE_INTERVAL_START
+                IntervalEndEvent.TYPE -> EVENT_TYPE_INTERVAL_END
+                else -> throw IllegalArgumentException("Unsupported event type: $type")
+            }
+        }
+    }
+}
@@ -20,6 +20,14 @@ class CsvFormat {
 
         val CHARSET: Charset = StandardCharsets.UTF_8
 
+        private const val FIELD_SEPARATOR = ','
+        private const val QUOTE = '"'
+        private const val COMMENT = '#'
+        private const val LINE_DELIMITER = "\r\n"
+
+        private const val FIELD_COUNT = 6
+        private const val ATTRIBUTE_DATA_FIELD_INDEX = 5
+
         fun createWriter(writer: Writer): CsvWriter {
             return CsvWriter.builder().build(writer)
         }
@@ -29,8 +37,8 @@ class CsvFormat {
         }
 
         fun serialize(event: Event): List<String> {
-            val data = event.getAttributeData()
-            val attributeData = Json.encodeToString(AttributeData.serializer(), data)
+            val attributeData = StringBuilder()
+            AttributeJson.encode(event.getAttributeData().map, attributeData, csvQuoted = false)
 
             return listOf(
                 event.id.toString(),
@@ -38,14 +46,81 @@ class CsvFormat {
                 event.type,
                 event.name,
                 event.timeMs.toString(),
-                attributeData
+                attributeData.toString()
             )
         }
 
+        /**
+         * Appends [event] to [output] as one complete CSV row, including the line delimiter. The row is
+         * identical to writing [serialize] with a writer from [createWriter], but no intermediate field
+         * strings are created.
+         */
+        fun writeRow(event: Event, output: StringBuilder) {
+            appendField(event.id.toString(), output, firstField = true)
+            output.append(FIELD_SEPARATOR)
+
+            event.correlationId?.let { output.append(it.toString()) }
+            output.append(FIELD_SEPARATOR)
+
+            appendField(event.type, output, firstField = false)
+            output.append(FIELD_SEPARATOR)
+
+            appendField(event.name, output, firstField = false)
+            output.append(FIELD_SEPARATOR)
+
+            output.append(event.timeMs)
+            output.append(FIELD_SEPARATOR)
+
+            // Attribute data always contains quotes, so the field is always quoted
+            AttributeJson.encode(event.getAttributeData().map, output, csvQuoted = true)
+            output.append(LINE_DELIMITER)
+        }
+
+        private fun appendField(value: String, output: StringBuilder, firstField: Boolean) {
+            var needsQuotes = firstField && value.isNotEmpty() && value[0] == COMMENT
+
+            if (!needsQuotes) {
+                for (c in value) {
+                    if (c == QUOTE || c == FIELD_SEPARATOR || c == '\r' || c == '\n') {
+                        needsQuotes = true
+                        break
+                    }
+                }
+            }
+
+            if (!needsQuotes) {
+                output.append(value)
+                return
+            }
+
+            output.append(QUOTE)
+
+            for (c in value) {
+                if (c == QUOTE) {
+                    output.append(QUOTE)
+                }
+
+                output.append(c)
+            }
+
+            output.append(QUOTE)
+        }
+
         fun deserialize(fields: List<String>): Event? {
-            val expectedFields = 6
+            return deserialize(fields, trusted = false)
+        }
 
-            if (fields.size != expectedFields) {
+        /**
+         * Same as [deserialize], but attributes are stored on the event as they are, without validating their
+         * names or going through [Event.putAttribute]. Only use this for rows written by this library, such as
+         * raw trace files being imported, where the names were validated when the events were recorded.
+         */
+        fun deserializeTrusted(fields: List<String>): Event? {
+            return deserialize(fields, trusted = true)
+        }
+
+        private fun deserialize(fields: List<String>, trusted: Boolean): Event? {
+            if (fields.size != FIELD_COUNT) {
                 return null
             }
 
@@ -60,21 +135,78 @@ class CsvFormat {
 
             val correlationId: UUID? = if (correlationIdString.isBlank()) null else UUID.fromString(correlationIdString)
 
-            val event: Event = if (IntervalStartEvent.TYPE == eventType) {
-                IntervalStartEvent(eventId, name, timeMs)
-            } else if (IntervalEndEvent.TYPE == eventType) {
-                IntervalEndEvent(eventId, correlationId!!, name, timeMs)
-            } else if (InstantEvent.TYPE == eventType) {
-                InstantEvent(eventId, name, timeMs)
-            } else {
-                return null
+            val createEvent = {
+                if (IntervalStartEvent.TYPE == eventType) {
+                    IntervalStartEvent(eventId, name, timeMs)
+                } else if (IntervalEndEvent.TYPE == eventType) {
+                    IntervalEndEvent(eventId, correlationId!!, name, timeMs)
+                } else if (InstantEvent.TYPE == eventType) {
+                    InstantEvent(eventId, name, timeMs)
+                } else {
+                    null
+                }
             }
 
-            val attributeData = Json.decodeFromString<AttributeData>(attributeDataRaw)
-            event.loadAttributeData(attributeData, includeSpecialAttributes = true)
+            val event: Event = createEvent() ?: return null
+
+            if (trusted) {
+                loadTrustedAttributes(event, attributeDataRaw)
+                return event
+            }
+
+            try {
+                AttributeJson.decode(attributeDataRaw) { attributeName, value ->
+                    event.loadAttribute(attributeName, value, includeSpecialAttributes = true)
+                }
+            } catch (e: IllegalArgumentException) {
+                // Not in the layout this format writes, fall back to a general JSON parser. Attributes that
+                // fail validation are rejected again there.
+                val fallbackEvent = createEvent()!!
+                val attributeData = Json.decodeFromString<AttributeData>(attributeDataRaw)
+                fallbackEvent.loadAttributeData(attributeData, includeSpecialAttributes = true)
+
+                return fallbackEvent
+            }
 
             return event
         }
+
+        /**
+         * Adds the names of the attributes in a row to [types], with the class of their values, without creating an
+         * event or the attribute values. Attributes already in [types] keep their class. Rows that [deserialize]
+         * would skip are skipped here too.
+         */
+        fun collectAttributeTypes(fields: List<String>, types: MutableMap<String, Class<*>>) {
+            if (fields.size != FIELD_COUNT) {
+                return
+            }
+
+            val attributeDataRaw = fields[ATTRIBUTE_DATA_FIELD_INDEX]
+
+            try {
+                AttributeJson.decodeTypes(attributeDataRaw) { attributeName, type ->
+                    types.putIfAbsent(attributeName, type)
+                }
+            } catch (e: IllegalArgumentException) {
+                // Not in the layout this format writes, see deserialize
+                for ((attributeName, value) in Json.decodeFromString<AttributeData>(attributeDataRaw).map) {
+                    types.putIfAbsent(attributeName, value.javaClass)
+                }
+            }
+        }
+
+        private fun loadTrustedAttributes(event: Event, attributeDataRaw: String) {
+            val attributes = event.getAttributeData().map
+
+            try {
+                AttributeJson.decode(attributeDataRaw) { attributeName, value ->
+                    attributes[attributeName] = value
+                }
+            } catch (e: IllegalArgumentException) {
+                // Not in the layout this format writes, see deserialize
+                attributes.putAll(Json.decodeFromString<AttributeData>(attributeDataRaw).map)
+            }
+        }
     }
 
-}
\ No newline at end of file
+}
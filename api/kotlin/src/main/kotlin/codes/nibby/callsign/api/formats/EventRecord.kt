@@ -0,0 +1,95 @@
+package codes.nibby.callsign.api.formats
+
+import codes.nibby.callsign.api.*
+import java.util.*
+import java.util.function.BiConsumer
+
+/**
+ * Encodes events into self-contained binary records: unlike [BinaryFormat] records, they do not refer
+ * to string tables, so each can be decoded on its own, in any order. Used where records are written
+ * concurrently or overwritten, such as in memory rings and memory-mapped files.
+ *
+ * One encoder should be kept per thread, and reused for every event. Encoding does not allocate once
+ * the record buffer has grown to fit the largest event.
+ */
+internal class EventRecordEncoder : BiConsumer<String, Any> {
+
+    private val record = RecordBuffer()
+
+    /**
+     * @return The encoded event, valid until the next call
+     */
+    fun encode(event: Event): RecordBuffer {
+        val correlationId = event.correlationId
+        val attributes = event.getAttributeData().map
+
+        record.clear()
+        record.writeByte(BinaryFormat.encodeEventType(event.type))
+        record.writeByte(if (correlationId != null) BinaryFormat.FLAG_HAS_CORRELATION_ID else 0)
+
+        val id = event.id
+        record.writeLong(id.mostSignificantBits)
+        record.writeLong(id.leastSignificantBits)
+
+        if (correlationId != null) {
+            record.writeLong(correlationId.mostSignificantBits)
+            record.writeLong(correlationId.leastSignificantBits)
+        }
+
+        record.writeLong(event.timeMs)
+        record.writeString(event.name)
+
+        // The name is stored separately above
+        record.writeVarLong((attributes.size - 1).toLong())
+        attributes.forEach(this)
+
+        return record
+    }
+
+    override fun accept(name: String, value: Any) {
+        if (name == Event.SPECIAL_NAME_ATTRIBUTE) {
+            return
+        }
+
+        record.writeString(name)
+        record.writeAttributeValue(value)
+    }
+
+    companion object {
+
+        /**
+         * Decodes a record written by [encode].
+         *
+         * @param typedValues False for records written before attribute values had type tags, where every
+         *                    value is a string
+         * @throws IllegalStateException If the record is malformed
+         */
+        fun decode(reader: RecordReader, typedValues: Boolean = true): Event {
+            val eventType = reader.readByte()
+            val flags = reader.readByte()
+
+            val id = UUID(reader.readLong(), reader.readLong())
+            val correlationId = if (flags and BinaryFormat.FLAG_HAS_CORRELATION_ID != 0) UUID(reader.readLong(), reader.readLong()) else null
+
+            val timeMs = reader.readLong()
+            val name = reader.readString()
+
+            val event: Event = when (eventType) {
+                BinaryFormat.EVENT_TYPE_INSTANT -> InstantEvent(id, name, timeMs)
+                BinaryFormat.EVENT_TYPE_INTERVAL_START -> IntervalStartEvent(id, name, timeMs)
+                BinaryFormat.EVENT_TYPE_INTERVAL_END -> IntervalEndEvent(id, correlationId!!, name, timeMs)
+                else -> throw IllegalStateException("Unknown event type: $eventType")
+            }
+
+            val attributeCount = reader.readVarInt()
+            val attributes = event.getAttributeData().map
+
+            for (i in 0 until attributeCount) {
+                val attributeName = reader.readString()
+                attributes[attributeName] = if (typedValues) reader.readAttributeValue() else reader.readString()
+            }
+
+            return event
+        }
+    }
+}
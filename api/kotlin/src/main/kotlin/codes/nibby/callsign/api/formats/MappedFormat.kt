@@ -0,0 +1,260 @@
+package codes.nibby.callsign.api.formats
+
+import codes.nibby.callsign.api.*
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Raw trace format written in place by many threads at once through a memory mapping, see
+ * [MappedFileSink][codes.nibby.callsign.api.sinks.MappedFileSink].
+ *
+ * A file starts with a header of [HEADER_SIZE] bytes: the [MAGIC] bytes, a format version byte, the
+ * chunk size as a 4 byte integer at [HEADER_CHUNK_SIZE_OFFSET], and at [HEADER_DATA_END_OFFSET] the
+ * position after the last record as an 8 byte integer. The data end is only set once the writer is
+ * closed, and is zero while it is writing or if it died.
+ *
+ * The rest of the file is a sequence of records, each aligned to [RECORD_ALIGNMENT] bytes. A record has
+ * an 8 byte header, made of the payload length and a commit marker, followed by the payload. Payloads are
+ * self-contained [EventRecordEncoder] records. Writers store the length and the payload first, and then
+ * the commit marker, which is derived from the length. A record without its commit marker was torn by a
+ * crash and is skipped by readers. Space that was reserved, but whose header was never written, is all
+ * zeros, and readers step over it one alignment unit at a time.
+ *
+ * The file is divided into chunks of the chunk size, which are mapped one at a time. Records never span
+ * two chunks: the end of a chunk that cannot fit the next record is filled with a padding record.
+ */
+class MappedFormat {
+
+    /**
+     * Reads the events of a mapped raw trace file, skipping torn records. Not thread safe.
+     */
+    class Reader internal constructor(private val channel: FileChannel) {
+
+        private val fileSize = channel.size()
+
+        /**
+         * Format version the file was written with.
+         */
+        internal val version: Int
+
+        private val chunkSize: Int
+        private val dataEnd: Long
+
+        private var chunk: ByteBuffer? = null
+        private var chunkStart = 0L
+
+        // Position of the next record header, relative to chunkStart
+        private var offset = HEADER_SIZE
+
+        private var payload = ByteArray(256)
+        private val reader = RecordReader(payload, 0, 0)
+
+        // Position after the last non-zero data seen so far
+        private var scannedEnd = HEADER_SIZE.toLong()
+
+        /**
+         * Position in the file up to which records have been read.
+         */
+        val position: Long
+            get() = chunkStart + offset
+
+        /**
+         * Number of records skipped because they were never committed, or could not be decoded.
+         */
+        var tornRecordCount = 0L
+            private set
+
+        init {
+            if (fileSize < HEADER_SIZE) {
+                throw IOException("Not a mapped raw trace file: header is incomplete")
+            }
+
+            val header = ByteBuffer.allocate(HEADER_SIZE)
+
+            while (header.hasRemaining() && channel.read(header, header.position().toLong()) != -1) {
+                // Read until the header is complete
+            }
+
+            for (i in MAGIC.indices) {
+                if (header.get(i) != MAGIC[i]) {
+                    throw IOException("Not a mapped raw trace file: bad magic bytes")
+                }
+            }
+
+            version = header.get(MAGIC.size).toInt()
+
+            if (version > VERSION) {
+                throw IOException("Unsupported mapped raw trace file version: $version")
+            }
+
+            chunkSize = header.getInt(HEADER_CHUNK_SIZE_OFFSET)
+            dataEnd = header.getLong(HEADER_DATA_END_OFFSET)
+
+            if (chunkSize !in MIN_CHUNK_SIZE..MAX_CHUNK_SIZE || chunkSize % RECORD_ALIGNMENT != 0) {
+                throw IOException("Invalid chunk size: $chunkSize")
+            }
+        }
+
+        /**
+         * @return The next committed event in the file, or null once the end of the data is reached
+         */
+        fun readEvent(): Event? {
+            while (true) {
+                val length = nextRecord() ?: return null
+
+                if (length > payload.size) {
+                    payload = ByteArray(maxOf(length, payload.size * 2))
+                    reader.bytes = payload
+                }
+
+                val currentChunk = chunk!!
+                currentChunk.position(offset + RECORD_HEADER_SIZE)
+                currentChunk.get(payload, 0, length)
+
+                offset += alignedRecordSize(length)
+                scannedEnd = chunkStart + offset
+
+                reader.position = 0
+                reader.limit = length
+
+                try {
+                    return EventRecordEncoder.decode(reader, typedValues = version >= TYPED_VALUES_VERSION)
+                } catch (e: RuntimeException) {
+                    // Committed, but overwritten by something else since. Nothing to recover from it.
+                    tornRecordCount++
+                }
+            }
+        }
+
+        /**
+         * Skips all remaining records.
+         *
+         * @return The position in the file after the last record, where a writer may continue
+         */
+        internal fun skipToEnd(): Long {
+            while (true) {
+                val length = nextRecord() ?: return scannedEnd
+
+                offset += alignedRecordSize(length)
+                scannedEnd = chunkStart + offset
+            }
+        }
+
+        /**
+         * Moves to the header of the next committed record, skipping padding and torn records.
+         *
+         * @return Payload length of the record, or null if there are no more records
+         */
+        private fun nextRecord(): Int? {
+            while (true) {
+                val currentChunk = currentChunk() ?: return null
+
+                if (dataEnd > 0 && chunkStart + offset >= dataEnd) {
+                    return null
+                }
+
+                val length = currentChunk.getInt(offset)
+                val marker = currentChunk.getInt(offset + 4)
+                val fits = length >= 0 && length <= currentChunk.limit() - offset - RECORD_HEADER_SIZE
+
+                when {
+                    fits && length > 0 && marker == commitMarker(length) -> return length
+                    fits && marker == paddingMarker(length) -> offset += alignedRecordSize(length)
+                    fits && length > 0 && marker == 0 -> {
+                        // Reserved and written, but the writer died before committing it
+                        tornRecordCount++
+                        offset += alignedRecordSize(length)
+                    }
+                    length == 0 && marker == 0 -> {
+                        // Reserved space the writer never got to, or the end of the written data
+                        offset += RECORD_ALIGNMENT
+                        continue
+                    }
+                    else -> {
+                        // Not a valid header, should only happen if the file was damaged
+                        offset += RECORD_ALIGNMENT
+                    }
+                }
+
+                scannedEnd = chunkStart + offset
+            }
+        }
+
+        /**
+         * @return The chunk holding the next record header, mapping the next chunk if the current one is used up
+         */
+        private fun currentChunk(): ByteBuffer? {
+            var currentChunk = chunk
+
+            if (currentChunk != null && offset + RECORD_HEADER_SIZE <= currentChunk.limit()) {
+                return currentChunk
+            }
+
+            if (currentChunk != null) {
+                chunkStart += chunkSize
+                offset = 0
+            }
+
+            if (chunkStart + RECORD_HEADER_SIZE > fileSize) {
+                chunk = null
+                return null
+            }
+
+            val mappedSize = minOf(chunkSize.toLong(), fileSize - chunkStart)
+            currentChunk = channel.map(FileChannel.MapMode.READ_ONLY, chunkStart, mappedSize)
+            chunk = currentChunk
+
+            return currentChunk
+        }
+    }
+
+    companion object {
+
+        /** Callsign Raw Trace (file format) 3 */
+        const val EXTENSION = "crt3"
+
+        internal val MAGIC = byteArrayOf('C'.code.toByte(), 'R'.code.toByte(), 'T'.code.toByte(), '3'.code.toByte())
+        internal const val VERSION = 2
+
+        // First version with type tags on attribute values
+        internal const val TYPED_VALUES_VERSION = 2
+
+        internal const val HEADER_SIZE = 64
+        internal const val HEADER_CHUNK_SIZE_OFFSET = 8
+        internal const val HEADER_DATA_END_OFFSET = 16
+
+        internal const val RECORD_HEADER_SIZE = 8
+        internal const val RECORD_ALIGNMENT = 8
+
+        internal const val MIN_CHUNK_SIZE = 4096
+
+        // Keeps lengths below the commit markers, so that a commit marker is never zero
+        internal const val MAX_CHUNK_SIZE = 1 shl 30
+
+        private const val COMMIT_MARKER = 0x43524D31 // "CRM1"
+        private const val PADDING_MARKER = 0x43525031 // "CRP1"
+
+        fun createReader(channel: FileChannel): Reader {
+            return Reader(channel)
+        }
+
+        /**
+         * The commit marker depends on the length, so that a stray length is unlikely to look committed.
+         */
+        internal fun commitMarker(length: Int): Int {
+            return COMMIT_MARKER xor length
+        }
+
+        internal fun paddingMarker(length: Int): Int {
+            return PADDING_MARKER xor length
+        }
+
+        /**
+         * @return Space taken up by a record with a payload of [length] bytes, including its header and alignment
+         */
+        internal fun alignedRecordSize(length: Int): Int {
+            return (RECORD_HEADER_SIZE + length + RECORD_ALIGNMENT - 1) and (RECORD_ALIGNMENT - 1).inv()
+        }
+    }
+}
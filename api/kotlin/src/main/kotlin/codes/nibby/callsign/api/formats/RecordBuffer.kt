@@ -0,0 +1,315 @@
+package codes.nibby.callsign.api.formats
+
+import java.io.OutputStream
+
+/**
+ * A growable byte array used to assemble binary records before they are written out. Provides the
+ * primitive encodings shared by the binary formats: fixed width big-endian longs, LEB128 varints,
+ * zig-zag varints, UTF-8 strings and tagged attribute values.
+ *
+ * Strings are encoded by hand rather than through [String.toByteArray] so that writing a record
+ * does not allocate once the buffer has grown to its working size.
+ */
+internal class RecordBuffer(initialCapacity: Int = 256) {
+
+    var bytes: ByteArray = ByteArray(initialCapacity)
+        private set
+
+    var size: Int = 0
+        private set
+
+    fun clear() {
+        size = 0
+    }
+
+    fun writeByte(value: Int) {
+        ensureCapacity(1)
+        bytes[size++] = value.toByte()
+    }
+
+    fun writeLong(value: Long) {
+        ensureCapacity(8)
+
+        for (shift in 56 downTo 0 step 8) {
+            bytes[size++] = (value ushr shift).toByte()
+        }
+    }
+
+    fun writeVarLong(value: Long) {
+        ensureCapacity(MAX_VAR_LONG_BYTES)
+
+        var remaining = value
+
+        while (remaining and 0x7FL.inv() != 0L) {
+            bytes[size++] = ((remaining and 0x7F) or 0x80).toByte()
+            remaining = remaining ushr 7
+        }
+
+        bytes[size++] = remaining.toByte()
+    }
+
+    fun writeZigZagVarLong(value: Long) {
+        writeVarLong((value shl 1) xor (value shr 63))
+    }
+
+    /**
+     * Writes the UTF-8 encoded length of [value] as a varint, followed by the encoded bytes.
+     */
+    fun writeString(value: String) {
+        writeVarLong(encodedLength(value).toLong())
+        writeUtf8(value)
+    }
+
+    /**
+     * Writes a type tag followed by an attribute value, see [RecordReader.readAttributeValue].
+     */
+    fun writeAttributeValue(value: Any) {
+        when (value) {
+            is String -> {
+                writeByte(VALUE_STRING)
+                writeString(value)
+            }
+            is Long -> {
+                writeByte(VALUE_LONG)
+                writeZigZagVarLong(value)
+            }
+            is Double -> {
+                writeByte(VALUE_DOUBLE)
+                writeLong(java.lang.Double.doubleToRawLongBits(value))
+            }
+            is Boolean -> writeByte(if (value) VALUE_TRUE else VALUE_FALSE)
+            else -> throw IllegalArgumentException("Unsupported attribute value type: ${value.javaClass.name}")
+        }
+    }
+
+    fun writeUtf8(value: String) {
+        ensureCapacity(value.length * 3)
+
+        var i = 0
+
+        while (i < value.length) {
+            val c = value[i]
+
+            when {
+                c.code < 0x80 -> {
+                    bytes[size++] = c.code.toByte()
+                }
+                c.code < 0x800 -> {
+                    bytes[size++] = (0xC0 or (c.code shr 6)).toByte()
+                    bytes[size++] = (0x80 or (c.code and 0x3F)).toByte()
+                }
+                Character.isHighSurrogate(c) && i + 1 < value.length && Character.isLowSurrogate(value[i + 1]) -> {
+                    val codePoint = Character.toCodePoint(c, value[++i])
+
+                    bytes[size++] = (0xF0 or (codePoint shr 18)).toByte()
+                    bytes[size++] = (0x80 or ((codePoint shr 12) and 0x3F)).toByte()
+                    bytes[size++] = (0x80 or ((codePoint shr 6) and 0x3F)).toByte()
+                    bytes[size++] = (0x80 or (codePoint and 0x3F)).toByte()
+                }
+                Character.isSurrogate(c) -> {
+                    // Unpaired surrogate, same replacement String.getBytes() would use
+                    bytes[size++] = '?'.code.toByte()
+                }
+                else -> {
+                    bytes[size++] = (0xE0 or (c.code shr 12)).toByte()
+                    bytes[size++] = (0x80 or ((c.code shr 6) and 0x3F)).toByte()
+                    bytes[size++] = (0x80 or (c.code and 0x3F)).toByte()
+                }
+            }
+
+            i++
+        }
+    }
+
+    fun writeBytes(source: ByteArray, offset: Int, length: Int) {
+        ensureCapacity(length)
+        System.arraycopy(source, offset, bytes, size, length)
+        size += length
+    }
+
+    fun writeTo(output: OutputStream) {
+        output.write(bytes, 0, size)
+    }
+
+    private fun ensureCapacity(additionalBytes: Int) {
+        val required = size + additionalBytes
+
+        if (required > bytes.size) {
+            bytes = bytes.copyOf(maxOf(required, bytes.size * 2))
+        }
+    }
+
+    companion object {
+        const val MAX_VAR_LONG_BYTES = 10
+
+        // Type tags of attribute values
+        const val VALUE_STRING = 0
+        const val VALUE_LONG = 1
+        const val VALUE_DOUBLE = 2
+        const val VALUE_FALSE = 3
+        const val VALUE_TRUE = 4
+
+        fun encodedLength(value: String): Int {
+            var length = 0
+            var i = 0
+
+            while (i < value.length) {
+                val c = value[i]
+
+                length += when {
+                    c.code < 0x80 -> 1
+                    c.code < 0x800 -> 2
+                    Character.isHighSurrogate(c) && i + 1 < value.length && Character.isLowSurrogate(value[i + 1]) -> {
+                        i++
+                        4
+                    }
+                    Character.isSurrogate(c) -> 1
+                    else -> 3
+                }
+
+                i++
+            }
+
+            return length
+        }
+
+        fun varLongLength(value: Long): Int {
+            var remaining = value
+            var length = 1
+
+            while (remaining and 0x7FL.inv() != 0L) {
+                remaining = remaining ushr 7
+                length++
+            }
+
+            return length
+        }
+    }
+}
+
+/**
+ * Reads the primitive encodings written by [RecordBuffer] from a byte array.
+ */
+internal class RecordReader(var bytes: ByteArray, var position: Int, var limit: Int) {
+
+    fun hasRemaining(): Boolean {
+        return position < limit
+    }
+
+    fun readByte(): Int {
+        assertAvailable(1)
+        return bytes[position++].toInt() and 0xFF
+    }
+
+    fun readLong(): Long {
+        assertAvailable(8)
+
+        var value = 0L
+
+        for (i in 0 until 8) {
+            value = (value shl 8) or (bytes[position++].toLong() and 0xFF)
+        }
+
+        return value
+    }
+
+    fun readVarLong(): Long {
+        var value = 0L
+        var shift = 0
+
+        while (shift < 64) {
+            val b = readByte()
+            value = value or ((b and 0x7F).toLong() shl shift)
+
+            if (b and 0x80 == 0) {
+                return value
+            }
+
+            shift += 7
+        }
+
+        throw IllegalStateException("Malformed varint")
+    }
+
+    fun readVarInt(): Int {
+        val value = readVarLong()
+
+        if (value < 0 || value > Int.MAX_VALUE) {
+            throw IllegalStateException("Varint out of int range: $value")
+        }
+
+        return value.toInt()
+    }
+
+    fun readZigZagVarLong(): Long {
+        val value = readVarLong()
+        return (value ushr 1) xor -(value and 1)
+    }
+
+    fun readString(): String {
+        val length = readVarInt()
+        return readUtf8(length)
+    }
+
+    /**
+     * Reads an attribute value written by [RecordBuffer.writeAttributeValue].
+     */
+    fun readAttributeValue(): Any {
+        return when (val type = readByte()) {
+            RecordBuffer.VALUE_STRING -> readString()
+            RecordBuffer.VALUE_LONG -> readZigZagVarLong()
+            RecordBuffer.VALUE_DOUBLE -> java.lang.Double.longBitsToDouble(readLong())
+            RecordBuffer.VALUE_FALSE -> false
+            RecordBuffer.VALUE_TRUE -> true
+            else -> throw IllegalStateException("Unknown attribute value type: $type")
+        }
+    }
+
+    /**
+     * Moves past an attribute value written by [RecordBuffer.writeAttributeValue] without creating it.
+     *
+     * @return Class of the value that [readAttributeValue] would have returned
+     */
+    fun skipAttributeValue(): Class<*> {
+        return when (val type = readByte()) {
+            RecordBuffer.VALUE_STRING -> {
+                skipString()
+                String::class.java
+            }
+            RecordBuffer.VALUE_LONG -> {
+                readVarLong()
+                Long::class.javaObjectType
+            }
+            RecordBuffer.VALUE_DOUBLE -> {
+                skip(8)
+                Double::class.javaObjectType
+            }
+            RecordBuffer.VALUE_FALSE, RecordBuffer.VALUE_TRUE -> Boolean::class.javaObjectType
+            else -> throw IllegalStateException("Unknown attribute value type: $type")
+        }
+    }
+
+    fun skipString() {
+        skip(readVarInt())
+    }
+
+    fun readUtf8(length: Int): String {
+        assertAvailable(length)
+
+        val value = String(bytes, position, length, Charsets.UTF_8)
+        position += length
+
+        return value
+    }
+
+    fun skip(length: Int) {
+        assertAvailable(length)
+        position += length
+    }
+
+    private fun assertAvailable(length: Int) {
+        if (length < 0 || position + length > limit) {
+            throw IllegalStateException("Record is truncated")
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package codes.nibby.callsign.api.formats
+
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+
+/**
+ * Index of the segment files that make up one rolling raw trace output (see
+ * [codes.nibby.callsign.api.sinks.RollingFileSink]).
+ *
+ * Each entry records the time range covered by the events of a segment, so that a reader can pick out
+ * the segments relevant to a time window without opening any of them. The manifest is stored next to
+ * the segments as a small CSV file with the [EXTENSION] extension, one row per segment in the order
+ * the segments were written.
+ *
+ * @param entries Segments in the order they were written, oldest first
+ */
+class SegmentManifest(val entries: List<Entry>) {
+
+    /**
+     * @param fileName Name of the segment file, relative to the folder containing the manifest
+     * @param earliestTimeMs Time of the earliest event in the segment, or [NO_TIME] if it has no events yet
+     * @param latestTimeMs Time of the latest event in the segment, or [NO_TIME] if it has no events yet
+     * @param sizeBytes Size of the segment file when the manifest was written
+     * @param active True if the segment was still being written to when the manifest was written. The
+     *               time range of an active segment is not final.
+     * @param damaged True if the time range had to be rebuilt from the content of the segment, but the segment
+     *                could not be read in full. The time range only covers the rows that could be read, so a
+     *                damaged segment is considered to overlap any time window.
+     */
+    class Entry @JvmOverloads constructor(
+        val fileName: String,
+        val earliestTimeMs: Long,
+        val latestTimeMs: Long,
+        val sizeBytes: Long,
+        val active: Boolean,
+        val damaged: Boolean = false
+    ) {
+
+        fun hasEvents(): Boolean {
+            return earliestTimeMs != NO_TIME
+        }
+
+        /**
+         * @return true if this segment may contain events between [fromTimeMs] and [toTimeMs] (inclusive).
+         *         Active segments are considered open-ended, and damaged segments to overlap everything.
+         */
+        fun overlaps(fromTimeMs: Long, toTimeMs: Long): Boolean {
+            if (damaged) {
+                return true
+            }
+
+            if (active) {
+                return !hasEvents() || earliestTimeMs <= toTimeMs
+            }
+
+            return hasEvents() && earliestTimeMs <= toTimeMs && latestTimeMs >= fromTimeMs
+        }
+
+        override fun toString(): String {
+            return "Entry(fileName=$fileName, earliestTimeMs=$earliestTimeMs, latestTimeMs=$latestTimeMs, " +
+                "sizeBytes=$sizeBytes, active=$active, damaged=$damaged)"
+        }
+    }
+
+    /**
+     * @return Segments that may contain events between [fromTimeMs] and [toTimeMs] (inclusive), oldest first
+     */
+    fun selectOverlapping(fromTimeMs: Long, toTimeMs: Long): List<Entry> {
+        return entries.filter { it.overlaps(fromTimeMs, toTimeMs) }
+    }
+
+    /**
+     * @return Time of the earliest event across all segments, or [NO_TIME] if there are no events
+     */
+    fun getEarliestTimeMs(): Long {
+        return entries.filter { it.hasEvents() }.minOfOrNull { it.earliestTimeMs } ?: NO_TIME
+    }
+
+    /**
+     * @return Time of the latest event across all segments, or [NO_TIME] if there are no events
+     */
+    fun getLatestTimeMs(): Long {
+        return entries.filter { it.hasEvents() }.maxOfOrNull { it.latestTimeMs } ?: NO_TIME
+    }
+
+    /**
+     * Writes the manifest to [file]. The content is first written to a temporary file which then
+     * replaces [file], so readers never observe a partially written manifest.
+     */
+    fun write(file: Path) {
+        val temporaryFile = file.resolveSibling("${file.fileName}.tmp")
+
+        Files.newBufferedWriter(temporaryFile, CsvFormat.CHARSET).use { writer ->
+            val csvWriter = CsvFormat.createWriter(writer)
+
+            for (entry in entries) {
+                csvWriter.writeRow(
+                    entry.fileName,
+                    formatTime(entry.earliestTimeMs),
+                    formatTime(entry.latestTimeMs),
+                    entry.sizeBytes.toString(),
+                    formatState(entry)
+                )
+            }
+        }
+
+        try {
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        } catch (e: IOException) {
+            // Some file systems do not support atomic moves
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING)
+        }
+    }
+
+    companion object {
+
+        /** Callsign Raw Trace Segments */
+        const val EXTENSION = "crts"
+
+        const val NO_TIME = Long.MIN_VALUE
+
+        private const val STATE_ACTIVE = "active"
+        private const val STATE_CLOSED = "closed"
+        private const val STATE_DAMAGED = "damaged"
+
+        private const val FIELD_COUNT = 5
+
+        fun read(file: Path): SegmentManifest {
+            val entries = ArrayList<Entry>()
+
+            Files.newBufferedReader(file, CsvFormat.CHARSET).use { reader ->
+                for (row in CsvFormat.createReader(reader)) {
+                    val fields = row.fields
+
+                    if (fields.size != FIELD_COUNT) {
+                        throw IOException("Malformed segment manifest row ${row.originalLineNumber} in $file")
+                    }
+
+                    entries.add(
+                        Entry(
+                            fileName = fields[0],
+                            earliestTimeMs = parseTime(fields[1]),
+                            latestTimeMs = parseTime(fields[2]),
+                            sizeBytes = fields[3].toLong(),
+                            active = fields[4] == STATE_ACTIVE,
+                            damaged = fields[4] == STATE_DAMAGED
+                        )
+                    )
+                }
+            }
+
+            return SegmentManifest(entries)
+        }
+
+        private fun formatState(entry: Entry): String {
+            return when {
+                entry.active -> STATE_ACTIVE
+                entry.damaged -> STATE_DAMAGED
+                else -> STATE_CLOSED
+            }
+        }
+
+        private fun formatTime(timeMs: Long): String {
+            return if (timeMs == NO_TIME) "" else timeMs.toString()
+        }
+
+        private fun parseTime(value: String): Long {
+            return if (value.isEmpty()) NO_TIME else value.toLong()
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package codes.nibby.callsign.api.ids
+
+import codes.nibby.callsign.api.EventIdGenerator
+import java.util.*
+import java.util.concurrent.ThreadLocalRandom
+
+/**
+ * Generates random (version 4) UUIDs from a [ThreadLocalRandom].
+ *
+ * Unlike [UUID.randomUUID], this does not draw from a shared [java.security.SecureRandom], so
+ * threads generating IDs concurrently do not contend with each other. The IDs are not suitable
+ * for anything that requires unpredictability.
+ */
+object RandomEventIdGenerator : EventIdGenerator {
+
+    override fun generateId(): UUID {
+        val random = ThreadLocalRandom.current()
+
+        val mostSignificantBits = (random.nextLong() and VERSION_MASK.inv()) or VERSION_4
+        val leastSignificantBits = (random.nextLong() and VARIANT_MASK.inv()) or VARIANT_IETF
+
+        return UUID(mostSignificantBits, leastSignificantBits)
+    }
+
+    private const val VERSION_MASK = 0xF000L
+    private const val VERSION_4 = 0x4000L
+
+    private const val VARIANT_MASK = Long.MIN_VALUE shr 1 // Top two bits
+    private const val VARIANT_IETF = Long.MIN_VALUE
+}
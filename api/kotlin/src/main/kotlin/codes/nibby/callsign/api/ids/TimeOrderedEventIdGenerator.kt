@@ -0,0 +1,57 @@
+package codes.nibby.callsign.api.ids
+
+import codes.nibby.callsign.api.EventIdGenerator
+import java.util.*
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.atomic.AtomicLong
+import java.util.function.LongSupplier
+
+/**
+ * Generates time-ordered, version 7 style UUIDs.
+ *
+ * The first 48 bits hold the Unix time in milliseconds, followed by a 12-bit counter that keeps IDs
+ * strictly increasing within the same millisecond (and if the clock goes backwards). The remaining
+ * bits are random. IDs generated by one instance sort in generation order, both as numbers and in
+ * their string form, which keeps inserts into an index on the ID close together.
+ *
+ * If more than 4096 IDs are requested within one millisecond, the counter carries over into the
+ * timestamp, so the embedded time may run slightly ahead of the clock.
+ *
+ * @param clock Source of the current time in milliseconds
+ */
+class TimeOrderedEventIdGenerator(private val clock: LongSupplier) : EventIdGenerator {
+
+    constructor() : this(LongSupplier { System.currentTimeMillis() })
+
+    private val lastTimestampAndCounter = AtomicLong(0)
+
+    override fun generateId(): UUID {
+        val candidate = clock.asLong shl COUNTER_BITS
+        var next: Long
+
+        while (true) {
+            val last = lastTimestampAndCounter.get()
+            next = if (candidate > last) candidate else last + 1
+
+            if (lastTimestampAndCounter.compareAndSet(last, next)) {
+                break
+            }
+        }
+
+        val timestampMs = next ushr COUNTER_BITS
+        val counter = next and COUNTER_MASK
+
+        val mostSignificantBits = (timestampMs shl 16) or VERSION_7 or counter
+        val leastSignificantBits = (ThreadLocalRandom.current().nextLong() ushr 2) or VARIANT_IETF
+
+        return UUID(mostSignificantBits, leastSignificantBits)
+    }
+
+    private companion object {
+        const val COUNTER_BITS = 12
+        const val COUNTER_MASK = (1L shl COUNTER_BITS) - 1
+
+        const val VERSION_7 = 0x7000L
+        const val VARIANT_IETF = Long.MIN_VALUE
+    }
+}
@@ -0,0 +1,38 @@
+package codes.nibby.callsign.api.sampling
+
+import codes.nibby.callsign.api.SamplingPolicy
+import java.util.concurrent.ThreadLocalRandom
+
+/**
+ * Keeps a random fraction of all events and intervals, independently of each other.
+ *
+ * @param rate Fraction of events to keep, between 0 (none) and 1 (all)
+ */
+class FixedRateSampling(val rate: Double) : SamplingPolicy {
+
+    init {
+        if (rate < 0.0 || rate > 1.0) {
+            throw IllegalArgumentException("rate must be between 0 and 1, got $rate")
+        }
+    }
+
+    override fun sampleInstant(name: String): Boolean {
+        return isSampled()
+    }
+
+    override fun sampleIntervalStart(name: String): SamplingPolicy.Decision {
+        return if (isSampled()) SamplingPolicy.Decision.KEEP else SamplingPolicy.Decision.DROP
+    }
+
+    override fun sampleIntervalEnd(name: String, durationMs: Long): Boolean {
+        return isSampled()
+    }
+
+    private fun isSampled(): Boolean {
+        return rate >= 1.0 || ThreadLocalRandom.current().nextDouble() < rate
+    }
+
+    override fun toString(): String {
+        return "FixedRateSampling(rate=$rate)"
+    }
+}
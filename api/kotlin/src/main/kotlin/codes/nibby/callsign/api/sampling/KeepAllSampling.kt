@@ -0,0 +1,21 @@
+package codes.nibby.callsign.api.sampling
+
+import codes.nibby.callsign.api.SamplingPolicy
+
+/**
+ * Records every event.
+ */
+object KeepAllSampling : SamplingPolicy {
+
+    override fun sampleInstant(name: String): Boolean {
+        return true
+    }
+
+    override fun sampleIntervalStart(name: String): SamplingPolicy.Decision {
+        return SamplingPolicy.Decision.KEEP
+    }
+
+    override fun sampleIntervalEnd(name: String, durationMs: Long): Boolean {
+        return true
+    }
+}
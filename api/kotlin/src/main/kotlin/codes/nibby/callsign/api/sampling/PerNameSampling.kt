@@ -0,0 +1,38 @@
+package codes.nibby.callsign.api.sampling
+
+import codes.nibby.callsign.api.SamplingPolicy
+
+/**
+ * Applies a different policy to each event name, for example to sample only a few high frequency
+ * events while recording all others.
+ *
+ * @param policies Policy to use for each event name
+ * @param defaultPolicy Policy for event names not in [policies]
+ */
+class PerNameSampling @JvmOverloads constructor(
+    policies: Map<String, SamplingPolicy>,
+    val defaultPolicy: SamplingPolicy = SamplingPolicy.ALWAYS
+) : SamplingPolicy {
+
+    val policies: Map<String, SamplingPolicy> = HashMap(policies)
+
+    private fun policyFor(name: String): SamplingPolicy {
+        return policies[name] ?: defaultPolicy
+    }
+
+    override fun sampleInstant(name: String): Boolean {
+        return policyFor(name).sampleInstant(name)
+    }
+
+    override fun sampleIntervalStart(name: String): SamplingPolicy.Decision {
+        return policyFor(name).sampleIntervalStart(name)
+    }
+
+    override fun sampleIntervalEnd(name: String, durationMs: Long): Boolean {
+        return policyFor(name).sampleIntervalEnd(name, durationMs)
+    }
+
+    override fun toString(): String {
+        return "PerNameSampling(policies=$policies, defaultPolicy=$defaultPolicy)"
+    }
+}
@@ -0,0 +1,44 @@
+package codes.nibby.callsign.api.sampling
+
+import codes.nibby.callsign.api.SamplingPolicy
+
+/**
+ * Keeps every interval that takes at least [thresholdMs], and samples everything else with the
+ * [otherwise] policy. Useful for keeping the slow outliers of a high frequency interval, which are
+ * usually the interesting ones.
+ *
+ * Intervals kept by [otherwise] when they start are published right away. The start events of all other
+ * intervals are held back until the interval ends and its duration is known. If [otherwise] defers
+ * a decision itself, the interval is treated as dropped by it.
+ *
+ * @param thresholdMs Intervals at least this long are always kept
+ * @param otherwise Samples instant events and intervals shorter than [thresholdMs]
+ */
+class SlowIntervalSampling(val thresholdMs: Long, val otherwise: SamplingPolicy) : SamplingPolicy {
+
+    init {
+        if (thresholdMs < 0) {
+            throw IllegalArgumentException("thresholdMs must not be negative")
+        }
+    }
+
+    override fun sampleInstant(name: String): Boolean {
+        return otherwise.sampleInstant(name)
+    }
+
+    override fun sampleIntervalStart(name: String): SamplingPolicy.Decision {
+        return when (otherwise.sampleIntervalStart(name)) {
+            SamplingPolicy.Decision.KEEP -> SamplingPolicy.Decision.KEEP
+            else -> SamplingPolicy.Decision.DEFER
+        }
+    }
+
+    override fun sampleIntervalEnd(name: String, durationMs: Long): Boolean {
+        // Intervals not kept by the other policy when they started, so only slow ones remain
+        return durationMs >= thresholdMs
+    }
+
+    override fun toString(): String {
+        return "SlowIntervalSampling(thresholdMs=$thresholdMs, otherwise=$otherwise)"
+    }
+}
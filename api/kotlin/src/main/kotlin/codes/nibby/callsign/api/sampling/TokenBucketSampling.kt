@@ -0,0 +1,83 @@
+package codes.nibby.callsign.api.sampling
+
+import codes.nibby.callsign.api.SamplingPolicy
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.function.LongSupplier
+
+/**
+ * Keeps at most [eventsPerSecond] events of each event name on average, with bursts of up to
+ * [burstSize] events. Every event name has a bucket of its own, so a noisy event does not use up
+ * the budget of quiet ones.
+ *
+ * Buckets are implemented as a single atomic timestamp each (the "virtual scheduling" form of a token
+ * bucket), so a decision is one map lookup and usually one compare-and-set.
+ *
+ * @param eventsPerSecond Rate at which each bucket refills
+ * @param burstSize Number of events a full bucket allows in quick succession
+ * @param nanoClock Source of the current time in nanoseconds
+ */
+class TokenBucketSampling internal constructor(
+    val eventsPerSecond: Double,
+    val burstSize: Int,
+    private val nanoClock: LongSupplier
+) : SamplingPolicy {
+
+    @JvmOverloads
+    constructor(eventsPerSecond: Double, burstSize: Int = 1) : this(eventsPerSecond, burstSize, LongSupplier { System.nanoTime() })
+
+    private val intervalNanos: Long
+    private val burstNanos: Long
+
+    // Earliest time at which a bucket would be completely full again, by event name
+    private val buckets = ConcurrentHashMap<String, AtomicLong>()
+
+    init {
+        if (eventsPerSecond <= 0.0) {
+            throw IllegalArgumentException("eventsPerSecond must be positive, got $eventsPerSecond")
+        }
+
+        if (burstSize < 1) {
+            throw IllegalArgumentException("burstSize must be at least 1, got $burstSize")
+        }
+
+        intervalNanos = maxOf(1L, (TimeUnit.SECONDS.toNanos(1) / eventsPerSecond).toLong())
+        burstNanos = intervalNanos * (burstSize - 1)
+    }
+
+    override fun sampleInstant(name: String): Boolean {
+        return tryAcquire(name)
+    }
+
+    override fun sampleIntervalStart(name: String): SamplingPolicy.Decision {
+        return if (tryAcquire(name)) SamplingPolicy.Decision.KEEP else SamplingPolicy.Decision.DROP
+    }
+
+    override fun sampleIntervalEnd(name: String, durationMs: Long): Boolean {
+        return tryAcquire(name)
+    }
+
+    private fun tryAcquire(name: String): Boolean {
+        val bucket = buckets[name] ?: buckets.computeIfAbsent(name) { AtomicLong(Long.MIN_VALUE) }
+        val nowNanos = nanoClock.asLong
+
+        while (true) {
+            val fullAtNanos = bucket.get()
+            val startNanos = if (fullAtNanos == Long.MIN_VALUE || fullAtNanos < nowNanos) nowNanos else fullAtNanos
+
+            // Taking a token pushes the time the bucket is full again back by one interval
+            if (startNanos - nowNanos > burstNanos) {
+                return false
+            }
+
+            if (bucket.compareAndSet(fullAtNanos, startNanos + intervalNanos)) {
+                return true
+            }
+        }
+    }
+
+    override fun toString(): String {
+        return "TokenBucketSampling(eventsPerSecond=$eventsPerSecond, burstSize=$burstSize)"
+    }
+}
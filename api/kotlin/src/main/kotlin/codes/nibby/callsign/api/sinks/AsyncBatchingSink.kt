@@ -0,0 +1,278 @@
+package codes.nibby.callsign.api.sinks
+
+import codes.nibby.callsign.api.*
+import codes.nibby.callsign.api.stats.SinkStats
+import codes.nibby.callsign.api.stats.SinkStatsRecorder
+import java.io.Closeable
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * A [TimelineLogger] sink that moves the cost of publishing events off the recording thread.
+ *
+ * Recorded events are placed into a bounded, lock-free ring buffer that any number of threads may
+ * write to concurrently. A single background writer thread drains the buffer in batches and
+ * publishes each batch to the wrapped [delegate] sink with one [publishEvents] call, so disk (or any other) latency in the delegate no
+ * longer affects the callers of [TimelineLogger].
+ *
+ * What happens when the buffer is full is decided by the [overloadPolicy]. By default, the recording
+ * thread waits until the writer has made room. Size the buffer to absorb the expected bursts of events.
+ * Policies that drop events keep a count of dropped events per event name (see [droppedEventCounts]),
+ * and the writer publishes a marker event for them to the delegate, see [OverloadPolicy]. Events of a
+ * batch that the delegate fails to publish are counted as dropped in the same way.
+ *
+ * Because attributes on an [IntervalStartEvent] can still be modified after it has been recorded, a
+ * snapshot of the start event is queued rather than the event itself.
+ *
+ * Call [close] to stop the writer thread. All events queued before [close] are published to the
+ * delegate before it returns. If the delegate is [Closeable], it is closed afterwards. Events that
+ * were still being queued by other threads when the writer finished are counted as dropped.
+ *
+ * @param delegate The sink that receives batches of events on the writer thread
+ * @param capacity Number of events the buffer can hold, rounded up to the next power of two
+ * @param maxBatchSize Maximum number of events drained from the buffer in one go
+ * @param overloadPolicy Determines what happens to new events while the buffer is full
+ */
+class AsyncBatchingSink @JvmOverloads constructor(
+    private val delegate: TimelineLogSink,
+    capacity: Int = DEFAULT_CAPACITY,
+    private val maxBatchSize: Int = DEFAULT_MAX_BATCH_SIZE,
+    val overloadPolicy: OverloadPolicy = OverloadPolicy.BLOCK
+) : TimelineLogSink, Closeable {
+
+    private val buffer = MpmcRingBuffer<Event>(capacity)
+    private val writerWakeup = IdleWakeup(buffer)
+    private val writerThread: Thread
+
+    private val droppedEvents = DroppedEventLedger()
+
+    // Only counts failures, the bytes written and the flushes are those of the delegate
+    private val statsRecorder = SinkStatsRecorder()
+
+    // Queue depth from which events are sampled under the SAMPLE strategy
+    private val sampleThresholdDepth = maxOf(1, (buffer.capacity * overloadPolicy.sampleThreshold).toInt())
+    private val sampleCounter = AtomicLong()
+
+    @Volatile
+    private var running = true
+
+    init {
+        if (maxBatchSize < 1) {
+            throw IllegalArgumentException("Batch size must be at least 1")
+        }
+
+        writerThread = Thread(this::runWriter, WRITER_THREAD_NAME)
+        writerThread.isDaemon = true
+        writerThread.start()
+    }
+
+    /**
+     * Number of events waiting to be published to the delegate.
+     */
+    val queueDepth: Int
+        get() = buffer.size()
+
+    /**
+     * Total number of events dropped so far, by the [overloadPolicy] or because the delegate failed.
+     */
+    val droppedEventCount: Long
+        get() = droppedEvents.totalCount
+
+    /**
+     * Number of events dropped so far, by event name.
+     */
+    val droppedEventCounts: Map<String, Long>
+        get() = droppedEvents.getCounts()
+
+    override val requiresFullEndEvents: Boolean
+        get() = delegate.requiresFullEndEvents
+
+    override fun getStats(): List<SinkStats> {
+        val stats = statsRecorder.snapshot(
+            "AsyncBatchingSink",
+            queueDepth = queueDepth,
+            droppedEventCount = droppedEventCount,
+            droppedEventCounts = droppedEventCounts
+        )
+
+        return listOf(stats) + delegate.getStats()
+    }
+
+    override fun publishEvent(event: Event) {
+        if (!running) {
+            throw IllegalStateException("Sink is closed")
+        }
+
+        // Nothing would be left of an interval whose start was dropped, so its end goes too
+        if (droppedEvents.isEndOfDroppedInterval(event)) {
+            droppedEvents.recordDrop(event)
+            return
+        }
+
+        val queuedEvent = if (event is IntervalStartEvent) event.snapshot() else event
+
+        if (overloadPolicy.strategy == OverloadPolicy.Strategy.SAMPLE && isSampledOut(queuedEvent)) {
+            droppedEvents.recordDrop(queuedEvent)
+            return
+        }
+
+        val queued = buffer.offer(queuedEvent) || when (overloadPolicy.strategy) {
+            OverloadPolicy.Strategy.BLOCK -> offerBlocking(queuedEvent)
+            OverloadPolicy.Strategy.DROP_OLDEST -> offerDroppingOldest(queuedEvent)
+            OverloadPolicy.Strategy.DROP_NEWEST, OverloadPolicy.Strategy.SAMPLE -> {
+                droppedEvents.recordDrop(queuedEvent)
+                false
+            }
+        }
+
+        if (!queued) {
+            return
+        }
+
+        if (running) {
+            writerWakeup.signal()
+        } else {
+            // Closed while the event was being queued, the writer may already have finished its final drain
+            dropStrandedEvents()
+        }
+    }
+
+    /*
+        Called when an event was queued after close. Once the writer has exited, nothing will publish what is left
+        in the buffer, so it is counted as dropped instead of silently lost.
+     */
+    private fun dropStrandedEvents() {
+        if (Thread.currentThread() == writerThread) {
+            return
+        }
+
+        writerThread.join()
+
+        while (true) {
+            val event = buffer.poll() ?: break
+            droppedEvents.recordDrop(event)
+        }
+    }
+
+    private fun isSampledOut(event: Event): Boolean {
+        // End events of kept intervals are always kept, so that the interval is complete
+        if (event is IntervalEndEvent || buffer.size() < sampleThresholdDepth) {
+            return false
+        }
+
+        return sampleCounter.getAndIncrement() % overloadPolicy.sampleOneIn != 0L
+    }
+
+    private fun offerBlocking(event: Event): Boolean {
+        val timeoutNanos = TimeUnit.MILLISECONDS.toNanos(overloadPolicy.blockTimeoutMs)
+        val startNanos = System.nanoTime()
+
+        while (!buffer.offer(event)) {
+            if (!running) {
+                throw IllegalStateException("Sink is closed")
+            }
+
+            if (timeoutNanos > 0 && System.nanoTime() - startNanos >= timeoutNanos) {
+                droppedEvents.recordDrop(event)
+                return false
+            }
+
+            LockSupport.parkNanos(FULL_BUFFER_PARK_NANOS)
+        }
+
+        return true
+    }
+
+    private fun offerDroppingOldest(event: Event): Boolean {
+        while (!buffer.offer(event)) {
+            val oldestEvent = buffer.poll()
+
+            if (oldestEvent != null) {
+                droppedEvents.recordDrop(oldestEvent)
+            }
+        }
+
+        return true
+    }
+
+    private fun runWriter() {
+        val batch = ArrayList<Event>(maxBatchSize)
+
+        while (running) {
+            if (buffer.drainTo(batch, maxBatchSize) > 0) {
+                publishBatch(batch)
+            } else {
+                writerWakeup.awaitElement()
+            }
+
+            publishDroppedEventMarkers(batch)
+        }
+
+        // Publish everything that made it into the buffer before the sink was closed
+        while (buffer.drainTo(batch, maxBatchSize) > 0) {
+            publishBatch(batch)
+        }
+
+        publishDroppedEventMarkers(batch)
+    }
+
+    private fun publishDroppedEventMarkers(batch: MutableList<Event>) {
+        val markers = droppedEvents.takeMarkers()
+
+        if (markers.isNotEmpty()) {
+            batch.addAll(markers)
+            publishBatch(batch)
+        }
+    }
+
+    /*
+        The writer is kept alive when the delegate fails, so that later events still get published. The events of
+        the failed batch are counted as dropped, except for drop markers, whose drops are already counted.
+     */
+    private fun publishBatch(batch: MutableList<Event>) {
+        try {
+            delegate.publishEvents(batch)
+        } catch (e: Exception) {
+            statsRecorder.recordFailure(e)
+
+            for (event in batch) {
+                if (event.name != OverloadPolicy.DROPPED_EVENTS_EVENT_NAME) {
+                    droppedEvents.recordDrop(event)
+                }
+            }
+        } finally {
+            batch.clear()
+        }
+    }
+
+    /**
+     * Stops accepting events, publishes all queued events to the delegate and waits for the writer
+     * thread to finish.
+     */
+    override fun close() {
+        if (!running) {
+            return
+        }
+
+        running = false
+        LockSupport.unpark(writerThread)
+
+        if (Thread.currentThread() != writerThread) {
+            writerThread.join()
+        }
+
+        if (delegate is Closeable) {
+            delegate.close()
+        }
+    }
+
+    companion object {
+        const val DEFAULT_CAPACITY = 1 shl 16
+        const val DEFAULT_MAX_BATCH_SIZE = 1024
+
+        private const val WRITER_THREAD_NAME = "callsign-async-sink-writer"
+
+        private val FULL_BUFFER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(10)
+    }
+}
@@ -0,0 +1,227 @@
+package codes.nibby.callsign.api.sinks
+
+import codes.nibby.callsign.api.*
+import codes.nibby.callsign.api.formats.BinaryFormat
+import codes.nibby.callsign.api.stats.SinkStats
+import codes.nibby.callsign.api.stats.SinkStatsRecorder
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.Closeable
+import java.io.IOException
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+
+/**
+ * A [TimelineLogger] sink that persists events to a [BinaryFormat] file on disk.
+ *
+ * Every time the sink is opened, a new session is started in the output file so that existing
+ * content is preserved. If the last record in the file is incomplete, for example because the process
+ * writing it crashed, it is cut off first. Rows are committed to the file according to the [flushPolicy].
+ *
+ * @param outputFileWithoutExtension Path of the output file, the [BinaryFormat.EXTENSION] is appended to it
+ * @param flushPolicy Determines when buffered events are flushed to disk
+ */
+class BinaryFileSink @JvmOverloads constructor(
+    outputFileWithoutExtension: Path,
+    val flushPolicy: FlushPolicy = FlushPolicy.EVERY_EVENT
+) : TimelineLogSink, Closeable {
+
+    internal val outputFile: Path
+
+    private val outputStream: BufferedOutputStream
+    private val countingStream: ByteCountingOutputStream
+    private val encoder: BinaryFormat.Encoder
+
+    private val writeLock = Object()
+    private var bufferedEventCount = 0
+    private var closed = false
+
+    // First failure of a flush on the scheduler thread, thrown by close() since there is no caller to throw it to
+    @Volatile
+    private var scheduledFlushFailure: Exception? = null
+
+    private val flushScheduler: FlushScheduler
+
+    private val statsRecorder = SinkStatsRecorder()
+
+    init {
+        val parentFolder = outputFileWithoutExtension.parent
+
+        if (!Files.isDirectory(parentFolder)) {
+            Files.createDirectories(parentFolder)
+        }
+
+        val fileName = outputFileWithoutExtension.fileName.toString()
+        outputFile = parentFolder.resolve("$fileName.${BinaryFormat.EXTENSION}")
+
+        val channel = FileChannel.open(outputFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+        val dataEnd: Long
+
+        try {
+            dataEnd = truncateIncompleteRecords(channel)
+        } catch (e: IOException) {
+            channel.close()
+            throw e
+        }
+
+        outputStream = BufferedOutputStream(Channels.newOutputStream(channel), OUTPUT_BUFFER_SIZE)
+        countingStream = ByteCountingOutputStream(outputStream)
+        encoder = BinaryFormat.createEncoder(countingStream)
+
+        if (dataEnd == 0L) {
+            encoder.writeHeader()
+        }
+
+        encoder.writeSessionStart()
+        outputStream.flush()
+
+        flushScheduler = FlushScheduler(flushPolicy, "callsign-binary-sink", this::flushScheduled)
+    }
+
+    /*
+        Otherwise the decoder would take the session start written next as the rest of the torn record. Leaves the
+        channel positioned at the end of the data, and returns that position.
+     */
+    private fun truncateIncompleteRecords(channel: FileChannel): Long {
+        if (channel.size() == 0L) {
+            return 0L
+        }
+
+        // Not closed, that would close the channel too
+        val input = BufferedInputStream(Channels.newInputStream(channel.position(0)), OUTPUT_BUFFER_SIZE)
+        val dataEnd = BinaryFormat.createDecoder(input).findEndOfCompleteRecords()
+
+        if (dataEnd < channel.size()) {
+            channel.truncate(dataEnd)
+        }
+
+        channel.position(dataEnd)
+
+        return dataEnd
+    }
+
+    // Events are encoded into the output buffer before publishEvent returns
+    override val retainsEvents: Boolean
+        get() = false
+
+    override fun publishEvent(event: Event) {
+        synchronized(writeLock) {
+            assertNotClosed()
+
+            encoder.writeEvent(event)
+            bufferedEventCount++
+
+            if (isFlushThresholdReached()) {
+                flushImpl()
+            }
+        }
+    }
+
+    /**
+     * Encodes all [events] into the output buffer, and commits them to the file at once if the
+     * [flushPolicy] calls for it.
+     */
+    override fun publishEvents(events: List<Event>) {
+        synchronized(writeLock) {
+            assertNotClosed()
+
+            for (event in events) {
+                encoder.writeEvent(event)
+            }
+
+            bufferedEventCount += events.size
+
+            if (isFlushThresholdReached()) {
+                flushImpl()
+            }
+        }
+    }
+
+    private fun isFlushThresholdReached(): Boolean {
+        if (flushPolicy.maxBufferedEvents in 1..bufferedEventCount) {
+            return true
+        }
+
+        return flushPolicy.maxBufferedBytes in 1..countingStream.bytesWritten
+    }
+
+    override fun getStats(): List<SinkStats> {
+        return listOf(statsRecorder.snapshot("BinaryFileSink($outputFile)"))
+    }
+
+    /**
+     * Commits all buffered events to the output file.
+     */
+    fun flush() {
+        synchronized(writeLock) {
+            assertNotClosed()
+            flushImpl()
+        }
+    }
+
+    private fun flushScheduled() {
+        synchronized(writeLock) {
+            if (closed || bufferedEventCount == 0) {
+                return
+            }
+
+            try {
+                flushImpl()
+            } catch (e: Exception) {
+                statsRecorder.recordFailure(e)
+
+                if (scheduledFlushFailure == null) {
+                    scheduledFlushFailure = e
+                }
+            }
+        }
+    }
+
+    private fun flushImpl() {
+        val startNanos = System.nanoTime()
+
+        outputStream.flush()
+        statsRecorder.recordFlush(countingStream.bytesWritten, startNanos)
+
+        bufferedEventCount = 0
+        countingStream.bytesWritten = 0
+    }
+
+    /**
+     * Flushes all buffered events and closes the output file. The sink cannot be used afterwards.
+     *
+     * @throws IOException If a flush made by the [flushPolicy] on its background thread failed earlier. Every
+     *                     such failure is also counted in [getStats].
+     */
+    override fun close() {
+        synchronized(writeLock) {
+            if (closed) {
+                return
+            }
+
+            closed = true
+
+            val startNanos = System.nanoTime()
+
+            outputStream.close()
+            statsRecorder.recordFlush(countingStream.bytesWritten, startNanos)
+        }
+
+        flushScheduler.close()
+
+        scheduledFlushFailure?.let { throw IOException("Failed to flush $outputFile in the background", it) }
+    }
+
+    private fun assertNotClosed() {
+        if (closed) {
+            throw IllegalStateException("Sink is closed: $outputFile")
+        }
+    }
+
+    companion object {
+        private const val OUTPUT_BUFFER_SIZE = 64 * 1024
+    }
+}
@@ -0,0 +1,22 @@
+package codes.nibby.callsign.api.sinks
+
+import java.io.FilterOutputStream
+import java.io.OutputStream
+
+/**
+ * Counts the bytes passed on to [output] since [bytesWritten] was last reset. Not thread safe.
+ */
+internal class ByteCountingOutputStream(output: OutputStream) : FilterOutputStream(output) {
+
+    var bytesWritten = 0L
+
+    override fun write(b: Int) {
+        bytesWritten++
+        out.write(b)
+    }
+
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        bytesWritten += len
+        out.write(b, off, len)
+    }
+}
@@ -2,21 +2,69 @@ package codes.nibby.callsign.api.sinks
 
 import codes.nibby.callsign.api.*
 import codes.nibby.callsign.api.formats.CsvFormat
-import de.siegmar.fastcsv.writer.CsvWriter
-import java.io.BufferedWriter
+import codes.nibby.callsign.api.stats.SinkStats
+import codes.nibby.callsign.api.stats.SinkStatsRecorder
+import java.io.Closeable
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.CharBuffer
+import java.nio.channels.FileChannel
+import java.nio.charset.CharsetEncoder
+import java.nio.charset.CoderResult
+import java.nio.charset.CodingErrorAction
 import java.nio.file.Files
 import java.nio.file.Path
 import java.nio.file.StandardOpenOption
+import java.util.concurrent.atomic.AtomicLong
 
 /**
  * A [TimelineLogger] sink that persists events to a CSV format file on disk.
+ *
+ * The sink is safe to use from many threads at once. Publishing threads encode rows into one of a
+ * fixed number of buffers ("stripes"), picked by thread ID, so threads rarely wait on each other
+ * while serializing events. Completed rows are appended to the file in whole-row chunks, which means
+ * rows from different threads never interleave, although rows from different threads may appear in
+ * any order relative to each other. Rows from one thread are always written in order.
+ *
+ * Buffered rows are committed to the file according to the [flushPolicy]. Event and byte thresholds
+ * apply to each buffer separately. By default, every event is written as soon as it is
+ * published. Call [close] when the sink is no longer needed so that buffered rows are not lost.
+ *
+ * @param outputFileWithoutExtension Path of the output file, the [CsvFormat.EXTENSION] is appended to it
+ * @param flushPolicy Determines when buffered rows are flushed to disk
  */
-class CsvFileSink(outputFileWithoutExtension: Path) : TimelineLogSink {
+class CsvFileSink @JvmOverloads constructor(
+    outputFileWithoutExtension: Path,
+    val flushPolicy: FlushPolicy = FlushPolicy.EVERY_EVENT
+) : TimelineLogSink, Closeable {
 
     internal val outputFile: Path
 
-    private val csvWriter: CsvWriter
-    private val bufferedWriter: BufferedWriter
+    /**
+     * Number of bytes in the output file, including rows written by this sink so far. Excludes rows
+     * that are still buffered.
+     */
+    internal val committedBytes = AtomicLong()
+
+    internal val statsRecorder = SinkStatsRecorder()
+
+    private val channel: FileChannel
+
+    // Only held for the duration of the write call, which the channel serializes anyway. This just
+    // guarantees a chunk is never split if the channel happens to perform a partial write.
+    private val appendLock = Object()
+
+    // A fixed set rather than one per thread, so that threads which have exited leave nothing behind
+    private val stripes = Array(STRIPE_COUNT) { Stripe() }
+
+    @Volatile
+    private var closed = false
+
+    // First failure of a flush on the scheduler thread, thrown by close() since there is no caller to throw it to
+    @Volatile
+    private var scheduledFlushFailure: Exception? = null
+
+    private val flushScheduler: FlushScheduler
 
     init {
         val parentFolder = outputFileWithoutExtension.parent
@@ -33,14 +81,232 @@ class CsvFileSink(outputFileWithoutExtension: Path) : TimelineLogSink {
             Files.createFile(outputFile)
         }
 
-        bufferedWriter = Files.newBufferedWriter(outputFile, CsvFormat.CHARSET, StandardOpenOption.APPEND)
-        csvWriter = CsvFormat.createWriter(bufferedWriter)
+        channel = FileChannel.open(outputFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND)
+        committedBytes.set(channel.size())
+
+        flushScheduler = FlushScheduler(flushPolicy, "callsign-csv-sink", this::flushScheduled)
     }
 
+    // Events are fully serialized before publishEvent returns
+    override val retainsEvents: Boolean
+        get() = false
+
     override fun publishEvent(event: Event) {
-        val data = CsvFormat.serialize(event)
-        csvWriter.writeRow(data)
-        bufferedWriter.flush()
+        val stripe = currentStripe()
+
+        synchronized(stripe) {
+            assertNotClosed()
+
+            stripe.append(event)
+
+            if (isFlushThresholdReached(stripe)) {
+                writeStripe(stripe)
+            }
+        }
+    }
+
+    /**
+     * Encodes all [events] into the calling thread's buffer, and writes them to the file with a single
+     * write if the [flushPolicy] calls for it.
+     */
+    override fun publishEvents(events: List<Event>) {
+        val stripe = currentStripe()
+
+        synchronized(stripe) {
+            assertNotClosed()
+
+            for (event in events) {
+                stripe.append(event)
+            }
+
+            if (isFlushThresholdReached(stripe)) {
+                writeStripe(stripe)
+            }
+        }
+    }
+
+    private fun currentStripe(): Stripe {
+        val threadId = Thread.currentThread().id
+        return stripes[(threadId and (STRIPE_COUNT - 1).toLong()).toInt()]
+    }
+
+    private fun isFlushThresholdReached(stripe: Stripe): Boolean {
+        if (flushPolicy.maxBufferedEvents in 1..stripe.bufferedEventCount) {
+            return true
+        }
+
+        return flushPolicy.maxBufferedBytes in 1..stripe.bufferedBytes
+    }
+
+    override fun getStats(): List<SinkStats> {
+        return listOf(statsRecorder.snapshot("CsvFileSink($outputFile)"))
+    }
+
+    /**
+     * Commits all buffered rows from every thread to the output file.
+     */
+    fun flush() {
+        assertNotClosed()
+
+        for (stripe in stripes) {
+            synchronized(stripe) {
+                writeStripe(stripe)
+            }
+        }
+    }
+
+    private fun flushScheduled() {
+        if (closed) {
+            return
+        }
+
+        try {
+            for (stripe in stripes) {
+                synchronized(stripe) {
+                    if (!closed) {
+                        writeStripe(stripe)
+                    }
+                }
+            }
+        } catch (e: Exception) {
+            statsRecorder.recordFailure(e)
+
+            if (scheduledFlushFailure == null) {
+                scheduledFlushFailure = e
+            }
+        }
+    }
+
+    /**
+     * Must be called while holding the lock on [stripe].
+     */
+    private fun writeStripe(stripe: Stripe) {
+        if (stripe.bufferedEventCount == 0) {
+            return
+        }
+
+        val bytes = stripe.bytes
+        bytes.flip()
+
+        val length = bytes.remaining().toLong()
+        val startNanos = System.nanoTime()
+
+        try {
+            synchronized(appendLock) {
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes)
+                }
+            }
+
+            committedBytes.addAndGet(length)
+            statsRecorder.recordFlush(length, startNanos)
+        } finally {
+            stripe.clear()
+        }
+    }
+
+    /**
+     * Flushes all buffered rows and closes the output file. The sink cannot be used afterwards.
+     *
+     * @throws IOException If a flush made by the [flushPolicy] on its background thread failed earlier, in which
+     *                     case the rows of that flush are lost. Every such failure is also counted in [getStats].
+     */
+    override fun close() {
+        synchronized(appendLock) {
+            if (closed) {
+                return
+            }
+
+            // Publishing threads check this flag while holding their stripe lock, so once a stripe
+            // has been written below no more rows can be added to it
+            closed = true
+        }
+
+        try {
+            for (stripe in stripes) {
+                synchronized(stripe) {
+                    writeStripe(stripe)
+                }
+            }
+        } finally {
+            channel.close()
+            flushScheduler.close()
+        }
+
+        scheduledFlushFailure?.let { throw IOException("Failed to flush $outputFile in the background", it) }
+    }
+
+    private fun assertNotClosed() {
+        if (closed) {
+            throw IllegalStateException("Sink is closed: $outputFile")
+        }
+    }
+
+    /**
+     * Encode buffer shared by the threads whose IDs map to it. Holds complete, UTF-8 encoded rows until
+     * they are appended to the file.
+     */
+    private class Stripe {
+
+        private val rowText = StringBuilder()
+
+        private val encoder: CharsetEncoder = CsvFormat.CHARSET.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE)
+
+        var bytes: ByteBuffer = ByteBuffer.allocate(INITIAL_STRIPE_BUFFER_SIZE)
+            private set
+
+        var bufferedEventCount = 0
+            private set
+
+        val bufferedBytes: Long
+            get() = bytes.position().toLong()
+
+        fun append(event: Event) {
+            CsvFormat.writeRow(event, rowText)
+
+            val chars = CharBuffer.wrap(rowText)
+
+            encoder.reset()
+
+            while (true) {
+                val result = encoder.encode(chars, bytes, true)
+
+                if (result.isOverflow) {
+                    grow()
+                } else if (result.isUnderflow) {
+                    break
+                } else {
+                    result.throwException()
+                }
+            }
+
+            while (encoder.flush(bytes) == CoderResult.OVERFLOW) {
+                grow()
+            }
+
+            rowText.setLength(0)
+            bufferedEventCount++
+        }
+
+        private fun grow() {
+            val grown = ByteBuffer.allocate(bytes.capacity() * 2)
+            bytes.flip()
+            grown.put(bytes)
+            bytes = grown
+        }
+
+        fun clear() {
+            bytes.clear()
+            bufferedEventCount = 0
+        }
     }
 
-}
\ No newline at end of file
+    companion object {
+        private const val INITIAL_STRIPE_BUFFER_SIZE = 8 * 1024
+
+        // Next power of two from twice the processor count, so that threads running at the same time rarely share
+        private val STRIPE_COUNT = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) shl 1
+    }
+}
@@ -0,0 +1,139 @@
+package codes.nibby.callsign.api.sinks
+
+import codes.nibby.callsign.api.*
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Keeps count of the events a sink has dropped, per event name, and produces the marker events that
+ * report them in the trace.
+ *
+ * Any thread may record drops. Markers must only be taken by one thread at a time.
+ */
+internal class DroppedEventLedger {
+
+    private val entries = ConcurrentHashMap<String, Entry>()
+
+    // Interval start events that were dropped, so that their end events can be dropped as well
+    private val droppedIntervalIds: MutableSet<UUID> = ConcurrentHashMap.newKeySet()
+
+    private val totalDropped = AtomicLong()
+    private val unreportedDrops = AtomicLong()
+
+    val totalCount: Long
+        get() = totalDropped.get()
+
+    fun recordDrop(event: Event) {
+        // An evicted start event may have its end event queued already, so the set is bounded in case those pile up
+        if (event is IntervalStartEvent && droppedIntervalIds.size < MAX_TRACKED_DROPPED_INTERVALS) {
+            droppedIntervalIds.add(event.id)
+        }
+
+        val entry = entries.computeIfAbsent(event.name) { Entry() }
+        entry.record(event.timeMs)
+
+        totalDropped.incrementAndGet()
+        unreportedDrops.incrementAndGet()
+    }
+
+    /**
+     * Checks whether [event] completes an interval whose start event was dropped. Each interval is only
+     * reported once, since it cannot end twice.
+     */
+    fun isEndOfDroppedInterval(event: Event): Boolean {
+        if (event !is IntervalEndEvent || droppedIntervalIds.isEmpty()) {
+            return false
+        }
+
+        return droppedIntervalIds.remove(event.correlationId)
+    }
+
+    /**
+     * @return Total number of dropped events by event name
+     */
+    fun getCounts(): Map<String, Long> {
+        val counts = HashMap<String, Long>()
+
+        for ((name, entry) in entries) {
+            counts[name] = entry.total.get()
+        }
+
+        return counts
+    }
+
+    /**
+     * Creates one marker event for every event name with drops not yet reported by a previous marker.
+     */
+    fun takeMarkers(): List<InstantEvent> {
+        if (unreportedDrops.get() == 0L) {
+            return emptyList()
+        }
+
+        val markers = ArrayList<InstantEvent>()
+
+        for ((name, entry) in entries) {
+            val count = entry.unreported.getAndSet(0)
+
+            if (count == 0L) {
+                continue
+            }
+
+            // The range may be a little off from the counted drops if drops race with this, which is fine
+            val fromTimeMs = entry.fromTimeMs.getAndSet(Long.MAX_VALUE)
+            val toTimeMs = entry.toTimeMs.getAndSet(Long.MIN_VALUE)
+
+            if (fromTimeMs > toTimeMs) {
+                // Counted drops whose time is not recorded yet, report them with the next marker
+                entry.unreported.addAndGet(count)
+                continue
+            }
+
+            unreportedDrops.addAndGet(-count)
+
+            val marker = InstantEvent(OverloadPolicy.DROPPED_EVENTS_EVENT_NAME, fromTimeMs)
+            marker.putAttribute(OverloadPolicy.DROPPED_EVENT_NAME_ATTRIBUTE, name)
+            marker.putAttribute(OverloadPolicy.DROPPED_COUNT_ATTRIBUTE, count)
+            marker.putAttribute(OverloadPolicy.DROPPED_FROM_TIME_ATTRIBUTE, fromTimeMs)
+            marker.putAttribute(OverloadPolicy.DROPPED_TO_TIME_ATTRIBUTE, toTimeMs)
+
+            markers.add(marker)
+        }
+
+        return markers
+    }
+
+    companion object {
+        private const val MAX_TRACKED_DROPPED_INTERVALS = 1 shl 16
+    }
+
+    private class Entry {
+
+        val total = AtomicLong()
+        val unreported = AtomicLong()
+
+        val fromTimeMs = AtomicLong(Long.MAX_VALUE)
+        val toTimeMs = AtomicLong(Long.MIN_VALUE)
+
+        fun record(timeMs: Long) {
+            while (true) {
+                val from = fromTimeMs.get()
+
+                if (timeMs >= from || fromTimeMs.compareAndSet(from, timeMs)) {
+                    break
+                }
+            }
+
+            while (true) {
+                val to = toTimeMs.get()
+
+                if (timeMs <= to || toTimeMs.compareAndSet(to, timeMs)) {
+                    break
+                }
+            }
+
+            total.incrementAndGet()
+            unreported.incrementAndGet()
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package codes.nibby.callsign.api.sinks
+
+import codes.nibby.callsign.api.Event
+
+/**
+ * Describes an event that makes a [FlightRecorderSink] dump its recent events to disk, such as an
+ * error event.
+ *
+ * @param eventName Name of the triggering event
+ * @param attributeName If set, the event must also have this attribute
+ * @param attributeValue If set, the [attributeName] attribute must also have this value
+ */
+class DumpTrigger @JvmOverloads constructor(
+    val eventName: String,
+    val attributeName: String? = null,
+    val attributeValue: String? = null
+) {
+
+    init {
+        if (attributeValue != null && attributeName == null) {
+            throw IllegalArgumentException("attributeValue requires an attributeName")
+        }
+    }
+
+    fun matches(event: Event): Boolean {
+        if (event.name != eventName) {
+            return false
+        }
+
+        if (attributeName == null) {
+            return true
+        }
+
+        val value = event.getAttribute(attributeName) ?: return false
+
+        return attributeValue == null || attributeValue == value
+    }
+
+    override fun toString(): String {
+        return "DumpTrigger(eventName=$eventName, attributeName=$attributeName, attributeValue=$attributeValue)"
+    }
+}
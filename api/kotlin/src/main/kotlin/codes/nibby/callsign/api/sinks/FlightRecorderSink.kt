@@ -0,0 +1,328 @@
+package codes.nibby.callsign.api.sinks
+
+import codes.nibby.callsign.api.*
+import codes.nibby.callsign.api.formats.BinaryFormat
+import codes.nibby.callsign.api.formats.EventRecordEncoder
+import codes.nibby.callsign.api.formats.RecordBuffer
+import codes.nibby.callsign.api.formats.RecordReader
+import codes.nibby.callsign.api.stats.SinkStats
+import codes.nibby.callsign.api.stats.SinkStatsRecorder
+import java.io.BufferedOutputStream
+import java.io.Closeable
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.text.SimpleDateFormat
+import java.util.*
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantLock
+
+/**
+ * A [TimelineLogger] sink that keeps only the most recent events in memory, and writes them to a
+ * [BinaryFormat] raw trace file when asked to. Use it in place of a file sink where persisting every
+ * event is too costly, but the events leading up to a problem are still wanted.
+ *
+ * Events are encoded into a compact binary form and stored in a ring of [maxBytes] bytes that is
+ * allocated up front. Once the ring is full (or holds [maxEvents] events), the oldest events are
+ * overwritten, so memory use never grows. Recording an event does not allocate once the per-thread
+ * encode buffers have grown to fit the largest event.
+ *
+ * The ring is written to a new file in [dumpDirectory] when [dump] or [requestDump] is called, or
+ * when a published event matches one of the [triggers]. Triggered dumps are written on a background
+ * thread, and at most one is started every [minTriggerIntervalMs].
+ *
+ * @param dumpDirectory Folder dump files are written to. Created if it does not exist.
+ * @param baseName Prefix of the dump file names
+ * @param maxBytes Size of the ring in bytes. Events larger than this cannot be recorded.
+ * @param maxEvents Maximum number of events kept, in addition to the byte limit. Zero keeps as many as fit.
+ * @param triggers Events that cause a dump when they are published
+ * @param minTriggerIntervalMs Minimum time between two triggered dumps
+ */
+class FlightRecorderSink @JvmOverloads constructor(
+    val dumpDirectory: Path,
+    val baseName: String = "flight",
+    val maxBytes: Int = DEFAULT_MAX_BYTES,
+    val maxEvents: Int = 0,
+    triggers: List<DumpTrigger> = emptyList(),
+    val minTriggerIntervalMs: Long = 1000
+) : TimelineLogSink, Closeable {
+
+    val triggers: List<DumpTrigger> = Collections.unmodifiableList(ArrayList(triggers))
+
+    // Checked for every event, an array avoids allocating an iterator each time
+    private val triggerArray: Array<DumpTrigger> = triggers.toTypedArray()
+
+    private val ring: ByteArray
+    private val ringLock = ReentrantLock()
+
+    // Guarded by ringLock. Records are stored as a 4 byte length followed by the payload, and wrap
+    // around the end of the ring.
+    private var head = 0
+    private var tail = 0
+    private var usedBytes = 0
+    private var eventCount = 0
+
+    private val encoders = ThreadLocal.withInitial { EventRecordEncoder() }
+
+    private val dumpExecutor: ExecutorService
+    private val dumpSequence = AtomicInteger()
+    private val lastTriggeredDumpMs = AtomicLong(Long.MIN_VALUE)
+
+    private val oversizedEvents = AtomicLong()
+
+    // Each dump counts as a flush
+    private val statsRecorder = SinkStatsRecorder()
+
+    @Volatile
+    private var closed = false
+
+    init {
+        if (maxBytes < MIN_BYTES) {
+            throw IllegalArgumentException("maxBytes must be at least $MIN_BYTES")
+        }
+
+        if (maxEvents < 0) {
+            throw IllegalArgumentException("maxEvents must not be negative")
+        }
+
+        if (minTriggerIntervalMs < 0) {
+            throw IllegalArgumentException("minTriggerIntervalMs must not be negative")
+        }
+
+        ring = ByteArray(maxBytes)
+
+        dumpExecutor = Executors.newSingleThreadExecutor { runnable ->
+            val thread = Thread(runnable, "callsign-flight-recorder-dump")
+            thread.isDaemon = true
+            thread
+        }
+    }
+
+    /**
+     * Number of events currently held in memory.
+     */
+    val bufferedEventCount: Int
+        get() = withRingLock { eventCount }
+
+    /**
+     * Number of events that were not recorded because they did not fit into the ring on their own.
+     */
+    val oversizedEventCount: Long
+        get() = oversizedEvents.get()
+
+    override fun getStats(): List<SinkStats> {
+        return listOf(statsRecorder.snapshot("FlightRecorderSink($dumpDirectory)", droppedEventCount = oversizedEventCount))
+    }
+
+    // Events are encoded into the ring before publishEvent returns
+    override val retainsEvents: Boolean
+        get() = false
+
+    override fun publishEvent(event: Event) {
+        if (closed) {
+            throw IllegalStateException("Sink is closed")
+        }
+
+        val record = encoders.get().encode(event)
+
+        if (record.size + LENGTH_BYTES > ring.size) {
+            oversizedEvents.incrementAndGet()
+        } else {
+            append(record)
+        }
+
+        for (trigger in triggerArray) {
+            if (trigger.matches(event)) {
+                onTriggered()
+                break
+            }
+        }
+    }
+
+    private fun append(record: RecordBuffer) {
+        val recordBytes = record.size + LENGTH_BYTES
+
+        withRingLock {
+            while (usedBytes + recordBytes > ring.size || (maxEvents > 0 && eventCount >= maxEvents)) {
+                evictOldest()
+            }
+
+            writeLength(tail, record.size)
+            copyIntoRing(record.bytes, 0, (tail + LENGTH_BYTES) % ring.size, record.size)
+
+            tail = (tail + recordBytes) % ring.size
+            usedBytes += recordBytes
+            eventCount++
+        }
+    }
+
+    private fun evictOldest() {
+        val recordBytes = readLength(head) + LENGTH_BYTES
+
+        head = (head + recordBytes) % ring.size
+        usedBytes -= recordBytes
+        eventCount--
+    }
+
+    private fun writeLength(position: Int, length: Int) {
+        for (i in 0 until LENGTH_BYTES) {
+            ring[(position + i) % ring.size] = (length ushr (24 - i * 8)).toByte()
+        }
+    }
+
+    private fun readLength(position: Int): Int {
+        var length = 0
+
+        for (i in 0 until LENGTH_BYTES) {
+            length = (length shl 8) or (ring[(position + i) % ring.size].toInt() and 0xFF)
+        }
+
+        return length
+    }
+
+    private fun readLength(bytes: ByteArray, position: Int): Int {
+        var length = 0
+
+        for (i in 0 until LENGTH_BYTES) {
+            length = (length shl 8) or (bytes[position + i].toInt() and 0xFF)
+        }
+
+        return length
+    }
+
+    private fun copyIntoRing(source: ByteArray, offset: Int, position: Int, length: Int) {
+        val untilEnd = minOf(length, ring.size - position)
+
+        System.arraycopy(source, offset, ring, position, untilEnd)
+        System.arraycopy(source, offset + untilEnd, ring, 0, length - untilEnd)
+    }
+
+    private fun onTriggered() {
+        val nowMs = System.currentTimeMillis()
+        val lastMs = lastTriggeredDumpMs.get()
+
+        if (lastMs != Long.MIN_VALUE && nowMs - lastMs < minTriggerIntervalMs) {
+            return
+        }
+
+        // Only one of the threads seeing a trigger at the same time starts a dump
+        if (lastTriggeredDumpMs.compareAndSet(lastMs, nowMs)) {
+            requestDump()
+        }
+    }
+
+    /**
+     * Writes all events currently in memory to a new dump file on a background thread. Events stay in
+     * memory afterwards.
+     *
+     * A dump that fails completes the returned future with the failure. Since nothing waits for the dumps
+     * started by a [DumpTrigger], failed dumps are also counted in [getStats].
+     *
+     * @return The path of the dump file once it is written
+     */
+    fun requestDump(): Future<Path> {
+        return dumpExecutor.submit<Path> {
+            try {
+                dump()
+            } catch (e: Exception) {
+                statsRecorder.recordFailure(e)
+
+                throw e
+            }
+        }
+    }
+
+    /**
+     * Writes all events currently in memory to a new dump file. Events stay in memory afterwards.
+     *
+     * @return Path of the dump file
+     */
+    fun dump(): Path {
+        val startNanos = System.nanoTime()
+        val snapshot = withRingLock { copyRing() }
+
+        if (!Files.isDirectory(dumpDirectory)) {
+            Files.createDirectories(dumpDirectory)
+        }
+
+        val timestamp = SimpleDateFormat(DUMP_TIMESTAMP_FORMAT).format(Date())
+        val outputFile = dumpDirectory.resolve(
+            "%s-%s-%d.%s".format(baseName, timestamp, dumpSequence.incrementAndGet(), BinaryFormat.EXTENSION)
+        )
+
+        val output = BufferedOutputStream(Files.newOutputStream(outputFile, StandardOpenOption.CREATE_NEW))
+
+        output.use {
+            val encoder = BinaryFormat.createEncoder(output)
+            encoder.writeHeader()
+            encoder.writeSessionStart()
+
+            var position = 0
+
+            while (position < snapshot.size) {
+                val length = readLength(snapshot, position)
+                position += LENGTH_BYTES
+
+                encoder.writeEvent(EventRecordEncoder.decode(RecordReader(snapshot, position, position + length)))
+                position += length
+            }
+        }
+
+        statsRecorder.recordFlush(Files.size(outputFile), startNanos)
+
+        return outputFile
+    }
+
+    /**
+     * Copies the used part of the ring into a new array, oldest record first. Must hold the ring lock.
+     */
+    private fun copyRing(): ByteArray {
+        val copy = ByteArray(usedBytes)
+        val untilEnd = minOf(usedBytes, ring.size - head)
+
+        System.arraycopy(ring, head, copy, 0, untilEnd)
+        System.arraycopy(ring, 0, copy, untilEnd, usedBytes - untilEnd)
+
+        return copy
+    }
+
+    private inline fun <T> withRingLock(action: () -> T): T {
+        ringLock.lock()
+
+        try {
+            return action()
+        } finally {
+            ringLock.unlock()
+        }
+    }
+
+    /**
+     * Stops accepting events and waits for pending dumps to finish. Events still in memory are discarded,
+     * call [dump] first to keep them.
+     */
+    override fun close() {
+        if (closed) {
+            return
+        }
+
+        closed = true
+
+        dumpExecutor.shutdown()
+        dumpExecutor.awaitTermination(DUMP_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+    }
+
+    companion object {
+        const val DEFAULT_MAX_BYTES = 4 * 1024 * 1024
+
+        private const val MIN_BYTES = 1024
+        private const val LENGTH_BYTES = 4
+
+        private const val DUMP_TIMESTAMP_FORMAT = "yyyyMMdd-HHmmss-SSS"
+        private const val DUMP_SHUTDOWN_TIMEOUT_SECONDS = 30L
+    }
+}
@@ -0,0 +1,62 @@
+package codes.nibby.callsign.api.sinks
+
+/**
+ * Controls how often a file sink commits buffered event data to disk.
+ *
+ * Buffered data is flushed as soon as any of the enabled thresholds is reached. Flushing less often
+ * is considerably cheaper at high event rates, at the cost of losing the unflushed events if the
+ * process dies abruptly.
+ *
+ * @param maxBufferedEvents Flush after this many events have been buffered. Zero disables this threshold.
+ * @param maxBufferedBytes Flush once the buffered rows reach this many bytes. Zero disables this threshold.
+ * @param flushIntervalMs Flush periodically on a background timer at this interval. Zero disables the timer.
+ * @param flushOnShutdown If true, buffered data is flushed by a JVM shutdown hook when the sink was not
+ *                        closed explicitly.
+ */
+class FlushPolicy @JvmOverloads constructor(
+    val maxBufferedEvents: Int = 0,
+    val maxBufferedBytes: Long = 0,
+    val flushIntervalMs: Long = 0,
+    val flushOnShutdown: Boolean = true
+) {
+
+    init {
+        if (maxBufferedEvents < 0) {
+            throw IllegalArgumentException("maxBufferedEvents must not be negative")
+        }
+
+        if (maxBufferedBytes < 0) {
+            throw IllegalArgumentException("maxBufferedBytes must not be negative")
+        }
+
+        if (flushIntervalMs < 0) {
+            throw IllegalArgumentException("flushIntervalMs must not be negative")
+        }
+    }
+
+    override fun toString(): String {
+        return "FlushPolicy(maxBufferedEvents=$maxBufferedEvents, maxBufferedBytes=$maxBufferedBytes, " +
+            "flushIntervalMs=$flushIntervalMs, flushOnShutdown=$flushOnShutdown)"
+    }
+
+    companion object {
+
+        /**
+         * Flushes after every event. Nothing is lost if the process dies, but every event costs a write
+         * to the underlying file.
+         */
+        val EVERY_EVENT = FlushPolicy(maxBufferedEvents = 1)
+
+        /**
+         * Group-commit policy: flushes whenever [maxBufferedEvents] or [maxBufferedBytes] is reached, and
+         * at least once every [flushIntervalMs] so that a quiet period does not leave events unflushed.
+         */
+        fun groupCommit(
+            maxBufferedEvents: Int = 1024,
+            maxBufferedBytes: Long = 256L * 1024,
+            flushIntervalMs: Long = 1000
+        ): FlushPolicy {
+            return FlushPolicy(maxBufferedEvents, maxBufferedBytes, flushIntervalMs, flushOnShutdown = true)
+        }
+    }
+}
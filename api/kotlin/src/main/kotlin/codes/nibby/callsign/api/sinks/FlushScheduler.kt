@@ -0,0 +1,58 @@
+package codes.nibby.callsign.api.sinks
+
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+
+/**
+ * Runs the time-based parts of a [FlushPolicy] for a file sink: the periodic flush timer and the
+ * JVM shutdown hook. Threshold-based flushes are checked by the sink itself as events are written.
+ *
+ * @param policy Flush policy of the sink
+ * @param name Name used for the background threads
+ * @param flushAction Flushes the sink. Must be safe to call from any thread, and must not throw
+ *                    once the sink has been closed.
+ */
+internal class FlushScheduler(policy: FlushPolicy, name: String, flushAction: Runnable) {
+
+    private val timer: ScheduledExecutorService?
+    private val shutdownHook: Thread?
+
+    init {
+        timer = if (policy.flushIntervalMs > 0) {
+            val executor = Executors.newSingleThreadScheduledExecutor { runnable ->
+                val thread = Thread(runnable, "$name-flush")
+                thread.isDaemon = true
+                thread
+            }
+
+            executor.scheduleAtFixedRate(flushAction, policy.flushIntervalMs, policy.flushIntervalMs, TimeUnit.MILLISECONDS)
+            executor
+        } else {
+            null
+        }
+
+        shutdownHook = if (policy.flushOnShutdown) {
+            val hook = Thread(flushAction, "$name-shutdown")
+            Runtime.getRuntime().addShutdownHook(hook)
+            hook
+        } else {
+            null
+        }
+    }
+
+    /**
+     * Stops the flush timer and removes the shutdown hook.
+     */
+    fun close() {
+        timer?.shutdownNow()
+
+        if (shutdownHook != null) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook)
+            } catch (e: IllegalStateException) {
+                // JVM is already shutting down
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package codes.nibby.callsign.api.sinks
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicReference
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Lets the single thread draining a [MpmcRingBuffer] sleep while the buffer is empty, instead of polling it.
+ * Producers call [signal] after adding to the buffer, which wakes the thread up if it is waiting.
+ *
+ * The waiting thread registers itself before it checks the buffer for the last time, and producers look for
+ * it after their element is counted in the buffer, so a producer either sees the waiting thread or the
+ * thread sees the element. The wait is still bounded by [maxWaitNanos], so that work that does not go
+ * through the buffer, such as dropped event markers, is picked up eventually.
+ */
+internal class IdleWakeup(private val buffer: MpmcRingBuffer<*>, private val maxWaitNanos: Long = DEFAULT_MAX_WAIT_NANOS) {
+
+    private val waitingThread = AtomicReference<Thread?>()
+
+    /**
+     * Waits until an element is added to the buffer, for at most [maxWaitNanos]. Returns immediately if the
+     * buffer is not empty.
+     */
+    fun awaitElement() {
+        waitingThread.set(Thread.currentThread())
+
+        if (buffer.isEmpty()) {
+            LockSupport.parkNanos(this, maxWaitNanos)
+        }
+
+        waitingThread.set(null)
+    }
+
+    /**
+     * Wakes up the thread waiting in [awaitElement], if any. Cheap when nobody is waiting.
+     */
+    fun signal() {
+        val thread = waitingThread.get() ?: return
+
+        if (waitingThread.compareAndSet(thread, null)) {
+            LockSupport.unpark(thread)
+        }
+    }
+
+    companion object {
+        val DEFAULT_MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(10)
+    }
+}
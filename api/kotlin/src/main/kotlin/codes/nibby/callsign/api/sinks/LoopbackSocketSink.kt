@@ -0,0 +1,294 @@
+package codes.nibby.callsign.api.sinks
+
+import codes.nibby.callsign.api.*
+import codes.nibby.callsign.api.formats.BinaryFormat
+import codes.nibby.callsign.api.stats.SinkStats
+import codes.nibby.callsign.api.stats.SinkStatsRecorder
+import java.io.BufferedOutputStream
+import java.io.Closeable
+import java.io.IOException
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.Socket
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * A [TimelineLogger] sink that streams events to a collector process on the same machine over a loopback
+ * TCP connection, so that many processes can contribute to one trace.
+ *
+ * The connection carries a [BinaryFormat] stream, exactly as it would be written to a file. Events are
+ * queued in a bounded, lock-free buffer and sent in batches by a background thread, with one write to
+ * the socket per batch.
+ *
+ * Recording threads never wait for the collector. While the collector is slow or unreachable, events
+ * are kept in the buffer, and once it is full new events are dropped. Dropped events are counted per
+ * event name and reported with a marker event, as for [OverloadPolicy.Strategy.DROP_NEWEST]. The sink
+ * reconnects every [reconnectDelayMs] while there is no connection, and each new connection starts a
+ * new session in the stream.
+ *
+ * @param port Port the collector listens on, on the loopback address
+ * @param capacity Number of events the buffer can hold, rounded up to the next power of two
+ * @param maxBatchSize Maximum number of events sent in one write
+ * @param reconnectDelayMs Time between two connection attempts
+ */
+class LoopbackSocketSink @JvmOverloads constructor(
+    val port: Int,
+    capacity: Int = DEFAULT_CAPACITY,
+    private val maxBatchSize: Int = DEFAULT_MAX_BATCH_SIZE,
+    val reconnectDelayMs: Long = DEFAULT_RECONNECT_DELAY_MS
+) : TimelineLogSink, Closeable {
+
+    private val buffer = MpmcRingBuffer<Event>(capacity)
+    private val senderWakeup = IdleWakeup(buffer)
+    private val senderThread: Thread
+
+    private val droppedEvents = DroppedEventLedger()
+    private val statsRecorder = SinkStatsRecorder()
+
+    // Only changed by the sender thread
+    @Volatile
+    private var connection: Connection? = null
+
+    @Volatile
+    private var running = true
+
+    /**
+     * Whether the sink is currently connected to the collector.
+     */
+    @Volatile
+    var connected = false
+        private set
+
+    init {
+        if (port !in 1..0xFFFF) {
+            throw IllegalArgumentException("Invalid port: $port")
+        }
+
+        if (maxBatchSize < 1) {
+            throw IllegalArgumentException("Batch size must be at least 1")
+        }
+
+        if (reconnectDelayMs < 1) {
+            throw IllegalArgumentException("reconnectDelayMs must be positive")
+        }
+
+        senderThread = Thread(this::runSender, SENDER_THREAD_NAME)
+        senderThread.isDaemon = true
+        senderThread.start()
+    }
+
+    /**
+     * Number of events waiting to be sent to the collector.
+     */
+    val queueDepth: Int
+        get() = buffer.size()
+
+    /**
+     * Total number of events dropped so far.
+     */
+    val droppedEventCount: Long
+        get() = droppedEvents.totalCount
+
+    override fun getStats(): List<SinkStats> {
+        return listOf(
+            statsRecorder.snapshot(
+                "LoopbackSocketSink($port)",
+                queueDepth = queueDepth,
+                droppedEventCount = droppedEventCount,
+                droppedEventCounts = droppedEvents.getCounts()
+            )
+        )
+    }
+
+    override fun publishEvent(event: Event) {
+        if (!running) {
+            throw IllegalStateException("Sink is closed")
+        }
+
+        if (droppedEvents.isEndOfDroppedInterval(event)) {
+            droppedEvents.recordDrop(event)
+            return
+        }
+
+        val queuedEvent = if (event is IntervalStartEvent) event.snapshot() else event
+
+        if (!buffer.offer(queuedEvent)) {
+            droppedEvents.recordDrop(queuedEvent)
+        } else if (running) {
+            senderWakeup.signal()
+        } else {
+            // Closed while the event was being queued, the sender may already have finished its final drain
+            dropStrandedEvents()
+        }
+    }
+
+    /*
+        Called when an event was queued after close. Once the sender has exited, nothing will send what is left
+        in the buffer, so it is counted as dropped instead of silently lost.
+     */
+    private fun dropStrandedEvents() {
+        if (Thread.currentThread() == senderThread) {
+            return
+        }
+
+        senderThread.join()
+
+        while (true) {
+            val event = buffer.poll() ?: break
+            droppedEvents.recordDrop(event)
+        }
+    }
+
+    private fun runSender() {
+        val batch = ArrayList<Event>(maxBatchSize)
+
+        while (running) {
+            if (connection == null && !connect()) {
+                // Events stay buffered until the collector is back, or are dropped once the buffer is full
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(reconnectDelayMs))
+                continue
+            }
+
+            if (buffer.drainTo(batch, maxBatchSize) > 0) {
+                sendBatch(batch)
+            } else {
+                senderWakeup.awaitElement()
+            }
+
+            sendDroppedEventMarkers(batch)
+        }
+
+        // Send everything that made it into the buffer before the sink was closed, if the collector is there
+        if (connection != null || connect()) {
+            while (connection != null && buffer.drainTo(batch, maxBatchSize) > 0) {
+                sendBatch(batch)
+            }
+
+            sendDroppedEventMarkers(batch)
+        }
+
+        disconnect()
+    }
+
+    private fun connect(): Boolean {
+        try {
+            val socket = Socket()
+
+            try {
+                socket.tcpNoDelay = true
+                socket.connect(InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT_MS)
+
+                connection = Connection(socket)
+            } catch (e: IOException) {
+                socket.close()
+                throw e
+            }
+        } catch (e: IOException) {
+            // The collector is not running (yet), which is expected, so this is not reported
+            return false
+        }
+
+        connected = true
+
+        return true
+    }
+
+    private fun disconnect() {
+        val currentConnection = connection ?: return
+
+        connection = null
+        connected = false
+
+        try {
+            currentConnection.socket.close()
+        } catch (e: IOException) {
+            // Nothing left to do with it
+        }
+    }
+
+    private fun sendDroppedEventMarkers(batch: MutableList<Event>) {
+        if (connection == null) {
+            return
+        }
+
+        val markers = droppedEvents.takeMarkers()
+
+        if (markers.isNotEmpty()) {
+            batch.addAll(markers)
+            sendBatch(batch)
+        }
+    }
+
+    private fun sendBatch(batch: MutableList<Event>) {
+        val currentConnection = connection!!
+        val startNanos = System.nanoTime()
+
+        try {
+            for (event in batch) {
+                currentConnection.encoder.writeEvent(event)
+            }
+
+            currentConnection.encoder.flush()
+            statsRecorder.recordFlush(currentConnection.countingStream.bytesWritten, startNanos)
+            currentConnection.countingStream.bytesWritten = 0
+        } catch (e: IOException) {
+            // The collector went away. The batch may have been partially received, but is counted as dropped.
+            for (event in batch) {
+                droppedEvents.recordDrop(event)
+            }
+
+            disconnect()
+        } finally {
+            batch.clear()
+        }
+    }
+
+    /**
+     * Stops accepting events, sends all queued events to the collector if it is reachable, and closes the
+     * connection. Gives up on sending after a few seconds if the collector stops reading.
+     */
+    override fun close() {
+        if (!running) {
+            return
+        }
+
+        running = false
+        LockSupport.unpark(senderThread)
+
+        if (Thread.currentThread() == senderThread) {
+            return
+        }
+
+        senderThread.join(CLOSE_TIMEOUT_MS)
+
+        if (senderThread.isAlive) {
+            // Stuck writing to a collector that stopped reading, give up on the remaining events
+            connection?.socket?.close()
+            senderThread.join()
+        }
+    }
+
+    private class Connection(val socket: Socket) {
+
+        val countingStream = ByteCountingOutputStream(BufferedOutputStream(socket.getOutputStream(), OUTPUT_BUFFER_SIZE))
+        val encoder: BinaryFormat.Encoder = BinaryFormat.createEncoder(countingStream)
+
+        init {
+            encoder.writeHeader()
+            encoder.writeSessionStart()
+        }
+    }
+
+    companion object {
+        const val DEFAULT_CAPACITY = 1 shl 16
+        const val DEFAULT_MAX_BATCH_SIZE = 1024
+        const val DEFAULT_RECONNECT_DELAY_MS = 1000L
+
+        private const val SENDER_THREAD_NAME = "callsign-socket-sink-sender"
+
+        private const val CONNECT_TIMEOUT_MS = 1000
+        private const val CLOSE_TIMEOUT_MS = 5000L
+        private const val OUTPUT_BUFFER_SIZE = 64 * 1024
+    }
+}
@@ -0,0 +1,443 @@
+package codes.nibby.callsign.api.sinks
+
+import codes.nibby.callsign.api.*
+import codes.nibby.callsign.api.formats.EventRecordEncoder
+import codes.nibby.callsign.api.formats.MappedFormat
+import codes.nibby.callsign.api.stats.SinkStats
+import codes.nibby.callsign.api.stats.SinkStatsRecorder
+import java.io.Closeable
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * A [TimelineLogger] sink that writes events straight into a memory-mapped [MappedFormat] file, for
+ * services where recording an event must cost as little as possible.
+ *
+ * Publishing threads never wait on each other or on the disk. Each thread encodes the event into its own
+ * buffer, reserves room for it in the file with a single compare-and-set on the shared write position, and
+ * copies the record into the mapping. The record only counts as written once its commit marker is stored
+ * after the copy, so that a crash in the middle of a write leaves a torn record that readers skip rather
+ * than corrupt data. The operating system writes the mapped pages to disk in the background, and they
+ * survive the process dying. Call [flush] to force them to disk, to survive the machine failing as well.
+ *
+ * The file grows by [chunkSize] bytes at a time, and each chunk is mapped separately. Events that do not
+ * fit into a chunk on their own are dropped. When the sink is reopened on an existing file, it continues
+ * after the last record in it.
+ *
+ * @param outputFileWithoutExtension Path of the output file, the [MappedFormat.EXTENSION] is appended to it
+ * @param chunkSize Size of each mapped chunk of the file. Must be a multiple of 8.
+ */
+class MappedFileSink @JvmOverloads constructor(
+    outputFileWithoutExtension: Path,
+    val chunkSize: Int = DEFAULT_CHUNK_SIZE
+) : TimelineLogSink, Closeable {
+
+    internal val outputFile: Path
+
+    private val channel: FileChannel
+
+    // Copy-on-write, only replaced while holding mapLock
+    @Volatile
+    private var chunks: Array<MappedByteBuffer?> = arrayOfNulls(0)
+    private val mapLock = Object()
+
+    private val writePosition: AtomicLong
+    private val startPosition: Long
+    private var flushedPosition: Long
+
+    private val threadStates = ThreadLocal.withInitial { ThreadState() }
+
+    private val oversizedEvents = AtomicLong()
+    private val statsRecorder = SinkStatsRecorder()
+
+    init {
+        if (chunkSize !in MappedFormat.MIN_CHUNK_SIZE..MappedFormat.MAX_CHUNK_SIZE || chunkSize % MappedFormat.RECORD_ALIGNMENT != 0) {
+            throw IllegalArgumentException(
+                "chunkSize must be a multiple of ${MappedFormat.RECORD_ALIGNMENT} between " +
+                    "${MappedFormat.MIN_CHUNK_SIZE} and ${MappedFormat.MAX_CHUNK_SIZE}"
+            )
+        }
+
+        val parentFolder = outputFileWithoutExtension.parent
+
+        if (!Files.isDirectory(parentFolder)) {
+            Files.createDirectories(parentFolder)
+        }
+
+        val fileName = outputFileWithoutExtension.fileName.toString()
+        outputFile = parentFolder.resolve("$fileName.${MappedFormat.EXTENSION}")
+
+        channel = FileChannel.open(outputFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+
+        try {
+            startPosition = if (channel.size() == 0L) {
+                writeHeader()
+                MappedFormat.HEADER_SIZE.toLong()
+            } else {
+                recoverWritePosition()
+            }
+        } catch (e: Exception) {
+            channel.close()
+            throw e
+        }
+
+        writePosition = AtomicLong(startPosition)
+        flushedPosition = startPosition
+
+        // Open until closed again, so that readers do not stop at the end of an earlier session
+        chunk(0).putLong(MappedFormat.HEADER_DATA_END_OFFSET, 0L)
+    }
+
+    private fun writeHeader() {
+        val header = chunk(0)
+
+        for (i in MappedFormat.MAGIC.indices) {
+            header.put(i, MappedFormat.MAGIC[i])
+        }
+
+        header.put(MappedFormat.MAGIC.size, MappedFormat.VERSION.toByte())
+        header.putInt(MappedFormat.HEADER_CHUNK_SIZE_OFFSET, chunkSize)
+    }
+
+    private fun recoverWritePosition(): Long {
+        val reader = MappedFormat.createReader(channel)
+
+        // Records of one file must all be decoded the same way
+        if (reader.version != MappedFormat.VERSION) {
+            throw IOException("$outputFile was written with format version ${reader.version}, not ${MappedFormat.VERSION}")
+        }
+
+        val existingChunkSize = ByteBuffer.allocate(4).also { channel.read(it, MappedFormat.HEADER_CHUNK_SIZE_OFFSET.toLong()) }.getInt(0)
+
+        if (existingChunkSize != chunkSize) {
+            throw IOException("$outputFile was written with a chunk size of $existingChunkSize, not $chunkSize")
+        }
+
+        return reader.skipToEnd()
+    }
+
+    /**
+     * Number of events that were not written because they did not fit into a chunk.
+     */
+    val oversizedEventCount: Long
+        get() = oversizedEvents.get()
+
+    override fun getStats(): List<SinkStats> {
+        return listOf(statsRecorder.snapshot("MappedFileSink($outputFile)", droppedEventCount = oversizedEventCount))
+    }
+
+    // Events are copied into the mapping before publishEvent returns
+    override val retainsEvents: Boolean
+        get() = false
+
+    override fun publishEvent(event: Event) {
+        val state = threadStates.get()
+        val record = state.encoder.encode(event)
+        val recordSize = MappedFormat.alignedRecordSize(record.size)
+
+        if (recordSize > chunkSize) {
+            oversizedEvents.incrementAndGet()
+            return
+        }
+
+        val position = reserve(recordSize)
+        val chunk = state.viewOf(position / chunkSize)
+        val offset = (position % chunkSize).toInt()
+
+        chunk.putInt(offset, record.size)
+        chunk.position(offset + MappedFormat.RECORD_HEADER_SIZE)
+        chunk.put(record.bytes, 0, record.size)
+
+        // The commit marker must not become visible before the rest of the record
+        state.storeFence()
+
+        chunk.putInt(offset + 4, MappedFormat.commitMarker(record.size))
+    }
+
+    /**
+     * Encodes all [events] into the calling thread's buffer, and copies them into the file with a single
+     * reservation and copy for each chunk the batch spans, which is usually just one.
+     */
+    override fun publishEvents(events: List<Event>) {
+        val state = threadStates.get()
+        val batch = state.batchBuffer(events.size)
+
+        for (event in events) {
+            val record = state.encoder.encode(event)
+            val recordSize = MappedFormat.alignedRecordSize(record.size)
+
+            if (recordSize > chunkSize) {
+                oversizedEvents.incrementAndGet()
+                continue
+            }
+
+            if (batch.size + recordSize > chunkSize) {
+                writeRun(state, batch)
+            }
+
+            batch.append(record.bytes, record.size, recordSize)
+        }
+
+        if (batch.size > 0) {
+            writeRun(state, batch)
+        }
+    }
+
+    /**
+     * Copies the records in [batch] into the file, then commits them and empties the batch.
+     */
+    private fun writeRun(state: ThreadState, batch: BatchBuffer) {
+        val runSize = batch.size
+        val position = reserve(runSize)
+        val chunk = state.viewOf(position / chunkSize)
+        val offset = (position % chunkSize).toInt()
+
+        chunk.position(offset)
+        chunk.put(batch.bytes, 0, runSize)
+
+        state.storeFence()
+
+        var recordOffset = 0
+
+        while (recordOffset < runSize) {
+            val length = batch.lengthAt(recordOffset)
+
+            chunk.putInt(offset + recordOffset + 4, MappedFormat.commitMarker(length))
+            recordOffset += MappedFormat.alignedRecordSize(length)
+        }
+
+        batch.clear()
+    }
+
+    /**
+     * Reserves [size] bytes in the file for a record, moving on to the next chunk if the record does not fit
+     * into the current one.
+     *
+     * @return Position of the reserved space in the file
+     */
+    private fun reserve(size: Int): Long {
+        while (true) {
+            val position = writePosition.get()
+
+            if (position == CLOSED) {
+                throw IllegalStateException("Sink is closed: $outputFile")
+            }
+
+            val chunkEnd = (position / chunkSize + 1) * chunkSize
+
+            if (position + size <= chunkEnd) {
+                if (writePosition.compareAndSet(position, position + size)) {
+                    return position
+                }
+            } else if (writePosition.compareAndSet(position, chunkEnd)) {
+                // Only the thread that wins the move to the next chunk pads the end of the previous one
+                val paddingLength = (chunkEnd - position).toInt() - MappedFormat.RECORD_HEADER_SIZE
+                val chunk = threadStates.get().viewOf(position / chunkSize)
+                val offset = (position % chunkSize).toInt()
+
+                chunk.putInt(offset, paddingLength)
+                chunk.putInt(offset + 4, MappedFormat.paddingMarker(paddingLength))
+            }
+        }
+    }
+
+    /**
+     * @return The mapping of the chunk at [index], mapping it first if needed
+     */
+    private fun chunk(index: Long): MappedByteBuffer {
+        val currentChunks = chunks
+
+        if (index < currentChunks.size) {
+            currentChunks[index.toInt()]?.let { return it }
+        }
+
+        synchronized(mapLock) {
+            if (index >= chunks.size) {
+                chunks = chunks.copyOf(maxOf(index.toInt() + 1, chunks.size * 2))
+            }
+
+            val existingChunk = chunks[index.toInt()]
+
+            if (existingChunk != null) {
+                return existingChunk
+            }
+
+            // Mapping beyond the end of the file grows the file
+            val chunk = channel.map(FileChannel.MapMode.READ_WRITE, index * chunkSize, chunkSize.toLong())
+
+            val grownChunks = chunks.copyOf()
+            grownChunks[index.toInt()] = chunk
+            chunks = grownChunks
+
+            return chunk
+        }
+    }
+
+    /**
+     * Forces all written events to disk. Events still being written by other threads may not be included.
+     */
+    fun flush() {
+        synchronized(mapLock) {
+            val position = writePosition.get()
+
+            if (position == CLOSED) {
+                throw IllegalStateException("Sink is closed: $outputFile")
+            }
+
+            forceChunks(position)
+        }
+    }
+
+    /**
+     * Must be called while holding [mapLock].
+     */
+    private fun forceChunks(position: Long) {
+        val startNanos = System.nanoTime()
+
+        for (chunk in chunks) {
+            chunk?.force()
+        }
+
+        statsRecorder.recordFlush(position - flushedPosition, startNanos)
+        flushedPosition = position
+    }
+
+    /**
+     * Stops accepting events, records the end of the data in the file header and forces the file to disk.
+     * The sink cannot be used afterwards.
+     */
+    override fun close() {
+        synchronized(mapLock) {
+            val endPosition = writePosition.getAndSet(CLOSED)
+
+            if (endPosition == CLOSED) {
+                return
+            }
+
+            chunk(0).putLong(MappedFormat.HEADER_DATA_END_OFFSET, endPosition)
+
+            forceChunks(endPosition)
+
+            // The mappings stay valid until they are garbage collected, which lets threads that reserved
+            // space before the sink was closed finish writing it
+            channel.close()
+        }
+    }
+
+    /**
+     * Per-thread encode buffer and view of the chunk the thread last wrote to.
+     */
+    private inner class ThreadState {
+
+        val encoder = EventRecordEncoder()
+
+        private val batch = BatchBuffer()
+
+        private var viewIndex = -1L
+        private var view: ByteBuffer? = null
+
+        // Written and read again by storeFence()
+        @Volatile
+        private var fence = 0
+
+        /**
+         * @return A view of the chunk at [index] that only this thread uses, so that its position can be changed
+         */
+        fun viewOf(index: Long): ByteBuffer {
+            val currentView = view
+
+            if (currentView != null && viewIndex == index) {
+                return currentView
+            }
+
+            val newView = chunk(index).duplicate()
+            viewIndex = index
+            view = newView
+
+            return newView
+        }
+
+        /**
+         * @return This thread's batch buffer, emptied and roughly sized for [eventCount] events up front
+         */
+        fun batchBuffer(eventCount: Int): BatchBuffer {
+            batch.clear()
+            batch.ensureCapacity(minOf(eventCount * TYPICAL_RECORD_SIZE, MAX_PRESIZED_BATCH_BUFFER_SIZE))
+            return batch
+        }
+
+        /**
+         * Keeps stores made before this call from being reordered with stores made after it. Stores can move
+         * ahead of a volatile write, but not ahead of the volatile read that follows it.
+         */
+        fun storeFence() {
+            fence = 1
+
+            @Suppress("UNUSED_VARIABLE")
+            val unused = fence
+        }
+    }
+
+    /**
+     * Records of a batch laid out exactly as they are written to the file, but with their commit markers
+     * left at zero.
+     */
+    private class BatchBuffer {
+
+        var bytes = ByteArray(INITIAL_BATCH_BUFFER_SIZE)
+            private set
+
+        var size = 0
+            private set
+
+        fun clear() {
+            size = 0
+        }
+
+        fun append(payload: ByteArray, length: Int, recordSize: Int) {
+            ensureCapacity(size + recordSize)
+
+            writeInt(size, length)
+            writeInt(size + 4, 0)
+            System.arraycopy(payload, 0, bytes, size + MappedFormat.RECORD_HEADER_SIZE, length)
+
+            size += recordSize
+        }
+
+        fun lengthAt(offset: Int): Int {
+            return ((bytes[offset].toInt() and 0xFF) shl 24) or
+                ((bytes[offset + 1].toInt() and 0xFF) shl 16) or
+                ((bytes[offset + 2].toInt() and 0xFF) shl 8) or
+                (bytes[offset + 3].toInt() and 0xFF)
+        }
+
+        private fun writeInt(offset: Int, value: Int) {
+            bytes[offset] = (value ushr 24).toByte()
+            bytes[offset + 1] = (value ushr 16).toByte()
+            bytes[offset + 2] = (value ushr 8).toByte()
+            bytes[offset + 3] = value.toByte()
+        }
+
+        fun ensureCapacity(capacity: Int) {
+            if (capacity > bytes.size) {
+                bytes = bytes.copyOf(maxOf(capacity, bytes.size * 2))
+            }
+        }
+    }
+
+    companion object {
+        const val DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024
+
+        private const val CLOSED = Long.MIN_VALUE
+
+        private const val INITIAL_BATCH_BUFFER_SIZE = 8 * 1024
+        private const val TYPICAL_RECORD_SIZE = 128
+        private const val MAX_PRESIZED_BATCH_BUFFER_SIZE = 1024 * 1024
+    }
+}
@@ -0,0 +1,131 @@
+package codes.nibby.callsign.api.sinks
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * A bounded, lock-free, multi-producer / multi-consumer queue backed by a fixed size ring.
+ *
+ * Every slot carries a sequence number that tells producers and consumers whose turn it is to use the
+ * slot. Producers claim a slot by a CAS on the shared producer index, store the element and then
+ * advance the slot sequence to publish it. Consumers do the same on the consumer index, and hand the
+ * slot back to producers once the element is taken. A consumer stops at the first slot that has been
+ * claimed but not yet published, so it never observes a partially published element.
+ *
+ * Usually a single thread drains the buffer with [drainTo], while producers may also [poll] the oldest
+ * element to make room for a newer one.
+ *
+ * @param requestedCapacity Minimum number of elements the buffer can hold. Rounded up to the next
+ *                          power of two.
+ */
+internal class MpmcRingBuffer<E : Any>(requestedCapacity: Int) {
+
+    val capacity: Int
+
+    private val mask: Long
+    private val buffer: AtomicReferenceArray<E?>
+    private val sequences: AtomicLongArray
+
+    private val producerIndex = AtomicLong(0)
+    private val consumerIndex = AtomicLong(0)
+
+    init {
+        if (requestedCapacity < 2 || requestedCapacity > MAX_CAPACITY) {
+            throw IllegalArgumentException("Capacity must be between 2 and $MAX_CAPACITY, got $requestedCapacity")
+        }
+
+        capacity = Integer.highestOneBit(requestedCapacity - 1) shl 1
+        mask = (capacity - 1).toLong()
+        buffer = AtomicReferenceArray(capacity)
+        sequences = AtomicLongArray(capacity)
+
+        for (slot in 0 until capacity) {
+            sequences.lazySet(slot, slot.toLong())
+        }
+    }
+
+    /**
+     * Attempts to enqueue an element without blocking.
+     *
+     * @return true if the element was enqueued, false if the buffer is full
+     */
+    fun offer(element: E): Boolean {
+        while (true) {
+            val index = producerIndex.get()
+            val slot = (index and mask).toInt()
+            val sequence = sequences.get(slot)
+
+            if (sequence < index) {
+                return false // The slot still holds the element from one lap ago
+            }
+
+            if (sequence == index && producerIndex.compareAndSet(index, index + 1)) {
+                buffer.lazySet(slot, element)
+                sequences.lazySet(slot, index + 1)
+                return true
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest element, if one is available.
+     *
+     * @return The removed element, or null if the buffer is empty or the oldest element is not fully
+     *         published yet
+     */
+    fun poll(): E? {
+        while (true) {
+            val index = consumerIndex.get()
+            val slot = (index and mask).toInt()
+            val sequence = sequences.get(slot)
+
+            if (sequence < index + 1) {
+                return null
+            }
+
+            if (sequence == index + 1 && consumerIndex.compareAndSet(index, index + 1)) {
+                val element = buffer.get(slot)
+
+                buffer.lazySet(slot, null)
+                sequences.lazySet(slot, index + capacity)
+
+                return element
+            }
+        }
+    }
+
+    /**
+     * Moves up to [limit] elements in FIFO order into [target].
+     *
+     * @return Number of elements drained
+     */
+    fun drainTo(target: MutableCollection<E>, limit: Int): Int {
+        var drained = 0
+
+        while (drained < limit) {
+            val element = poll() ?: break
+
+            target.add(element)
+            drained++
+        }
+
+        return drained
+    }
+
+    /**
+     * @return Approximate number of elements currently in the buffer
+     */
+    fun size(): Int {
+        val size = producerIndex.get() - consumerIndex.get()
+        return size.coerceIn(0, capacity.toLong()).toInt()
+    }
+
+    fun isEmpty(): Boolean {
+        return size() == 0
+    }
+
+    companion object {
+        const val MAX_CAPACITY = 1 shl 30
+    }
+}
@@ -0,0 +1,112 @@
+package codes.nibby.callsign.api.sinks
+
+/**
+ * Controls what an [AsyncBatchingSink] does when events are recorded faster than its delegate can
+ * publish them, and its buffer fills up.
+ *
+ * Blocking keeps every event but lets a stalled delegate (such as a slow disk) stall the recording
+ * threads. The other strategies keep recording threads running by dropping events. Dropped events are
+ * counted per event name, and a marker event named [DROPPED_EVENTS_EVENT_NAME] is written in their
+ * place, so that the gap is visible in the trace.
+ *
+ * @param strategy What to do when the buffer is full, or under pressure for [Strategy.SAMPLE]
+ * @param blockTimeoutMs For [Strategy.BLOCK], how long to wait for room before dropping the event. Zero
+ *                       waits indefinitely.
+ * @param sampleThreshold For [Strategy.SAMPLE], the fraction of the buffer that must be in use before
+ *                        events are sampled
+ * @param sampleOneIn For [Strategy.SAMPLE], keep one in this many events while under pressure
+ */
+class OverloadPolicy @JvmOverloads constructor(
+    val strategy: Strategy = Strategy.BLOCK,
+    val blockTimeoutMs: Long = 0,
+    val sampleThreshold: Double = 0.75,
+    val sampleOneIn: Int = 10
+) {
+
+    init {
+        if (blockTimeoutMs < 0) {
+            throw IllegalArgumentException("blockTimeoutMs must not be negative")
+        }
+
+        if (sampleThreshold <= 0.0 || sampleThreshold > 1.0) {
+            throw IllegalArgumentException("sampleThreshold must be greater than 0 and at most 1")
+        }
+
+        if (sampleOneIn < 1) {
+            throw IllegalArgumentException("sampleOneIn must be at least 1")
+        }
+    }
+
+    enum class Strategy {
+
+        /**
+         * Wait for the writer to make room, for at most [blockTimeoutMs]. The event is dropped if the
+         * timeout elapses.
+         */
+        BLOCK,
+
+        /**
+         * Drop the event being recorded.
+         */
+        DROP_NEWEST,
+
+        /**
+         * Drop the oldest queued event to make room for the event being recorded.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Once the buffer is filled beyond [sampleThreshold], keep only one in [sampleOneIn] new events.
+         * End events of intervals whose start was kept are never sampled out, so that kept intervals are
+         * complete. Events that do not fit into a full buffer are dropped.
+         */
+        SAMPLE
+    }
+
+    override fun toString(): String {
+        return "OverloadPolicy(strategy=$strategy, blockTimeoutMs=$blockTimeoutMs, " +
+            "sampleThreshold=$sampleThreshold, sampleOneIn=$sampleOneIn)"
+    }
+
+    companion object {
+
+        /**
+         * Name of the marker events written in place of dropped events. Each marker covers the events of
+         * one name dropped since the previous marker for that name.
+         */
+        const val DROPPED_EVENTS_EVENT_NAME = "Dropped events"
+
+        /** Marker attribute: name of the dropped events */
+        const val DROPPED_EVENT_NAME_ATTRIBUTE = "droppedEventName"
+
+        /** Marker attribute: number of events dropped */
+        const val DROPPED_COUNT_ATTRIBUTE = "droppedCount"
+
+        /** Marker attribute: time of the earliest dropped event, the marker event itself is placed at this time */
+        const val DROPPED_FROM_TIME_ATTRIBUTE = "droppedFromTimeMs"
+
+        /** Marker attribute: time of the latest dropped event */
+        const val DROPPED_TO_TIME_ATTRIBUTE = "droppedToTimeMs"
+
+        /**
+         * Waits indefinitely for room in the buffer. Never drops events.
+         */
+        val BLOCK = OverloadPolicy(Strategy.BLOCK)
+
+        val DROP_NEWEST = OverloadPolicy(Strategy.DROP_NEWEST)
+
+        val DROP_OLDEST = OverloadPolicy(Strategy.DROP_OLDEST)
+
+        fun blockWithTimeout(timeoutMs: Long): OverloadPolicy {
+            if (timeoutMs <= 0) {
+                throw IllegalArgumentException("timeoutMs must be positive")
+            }
+
+            return OverloadPolicy(Strategy.BLOCK, blockTimeoutMs = timeoutMs)
+        }
+
+        fun sample(oneIn: Int, threshold: Double = 0.75): OverloadPolicy {
+            return OverloadPolicy(Strategy.SAMPLE, sampleThreshold = threshold, sampleOneIn = oneIn)
+        }
+    }
+}
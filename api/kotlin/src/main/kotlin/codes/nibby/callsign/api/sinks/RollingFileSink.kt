@@ -0,0 +1,404 @@
+package codes.nibby.callsign.api.sinks
+
+import codes.nibby.callsign.api.*
+import codes.nibby.callsign.api.formats.CsvFormat
+import codes.nibby.callsign.api.formats.SegmentManifest
+import codes.nibby.callsign.api.stats.SinkStats
+import codes.nibby.callsign.api.stats.SinkStatsRecorder
+import java.io.Closeable
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantReadWriteLock
+
+/**
+ * A [TimelineLogger] sink that writes events to a sequence of size or time bounded CSV segment files,
+ * rather than to one ever-growing file.
+ *
+ * Segments are named `<baseName>-<sequence number>.crt1` and are written to [directory] along with a
+ * [SegmentManifest] named `<baseName>.crts`. The manifest lists the time range covered by every segment,
+ * which allows the viewer to import only the segments overlapping a time window of interest. When the
+ * sink is reopened on a directory that already contains segments, numbering continues from the last
+ * segment, and a segment left active by a process that died is recovered as a closed segment.
+ *
+ * End events are always recorded with the full attributes of their interval, see
+ * [TimelineLogSink.requiresFullEndEvents].
+ *
+ * Publishing is safe from many threads. Publishing threads only contend with each other inside the
+ * underlying [CsvFileSink], and only wait for a rollover while a segment is being switched.
+ *
+ * @param directory Folder the segments and the manifest are written to. Created if it does not exist.
+ * @param baseName Prefix of the segment and manifest file names
+ * @param rollingPolicy Determines when new segments are started and when old segments are deleted
+ * @param flushPolicy Flush policy of each segment file
+ */
+class RollingFileSink @JvmOverloads constructor(
+    val directory: Path,
+    val baseName: String,
+    val rollingPolicy: RollingPolicy = RollingPolicy(),
+    val flushPolicy: FlushPolicy = FlushPolicy.EVERY_EVENT
+) : TimelineLogSink, Closeable {
+
+    private val manifestFile: Path = directory.resolve("$baseName.${SegmentManifest.EXTENSION}")
+
+    // Held for reading while publishing to the current segment, and for writing while switching segments
+    private val rolloverLock = ReentrantReadWriteLock()
+
+    // Guarded by the write lock
+    private val closedSegments = ArrayList<SegmentManifest.Entry>()
+    private var nextSequenceNumber = 1
+
+    // Statistics of the segments closed so far
+    private val closedSegmentStats = SinkStatsRecorder()
+
+    @Volatile
+    private var currentSegment: Segment
+
+    @Volatile
+    private var closed = false
+
+    init {
+        if (!Files.isDirectory(directory)) {
+            Files.createDirectories(directory)
+        }
+
+        if (Files.exists(manifestFile)) {
+            recoverExistingSegments(SegmentManifest.read(manifestFile))
+        }
+
+        currentSegment = openNextSegment()
+
+        deleteExpiredSegments()
+        writeManifest()
+    }
+
+    private fun recoverExistingSegments(manifest: SegmentManifest) {
+        for (entry in manifest.entries) {
+            val file = directory.resolve(entry.fileName)
+
+            parseSequenceNumber(entry.fileName)?.let {
+                nextSequenceNumber = maxOf(nextSequenceNumber, it + 1)
+            }
+
+            if (!Files.exists(file)) {
+                continue
+            }
+
+            if (entry.active) {
+                // The process writing this segment did not close it, so its recorded time range is stale
+                closedSegments.add(scanSegment(file))
+            } else {
+                closedSegments.add(entry)
+            }
+        }
+    }
+
+    // Segments are CsvFileSinks, which never retain events
+    override val retainsEvents: Boolean
+        get() = false
+
+    // Segments are imported selectively, so the segment holding the start of an interval may not be read
+    override val requiresFullEndEvents: Boolean
+        get() = true
+
+    override fun publishEvent(event: Event) {
+        val segment: Segment
+        val readLock = rolloverLock.readLock()
+
+        readLock.lock()
+
+        try {
+            assertNotClosed()
+
+            segment = currentSegment
+            segment.publish(event)
+        } finally {
+            readLock.unlock()
+        }
+
+        if (isRolloverDue(segment)) {
+            rollover(segment)
+        }
+    }
+
+    /**
+     * Writes all [events] to the current segment at once. The whole batch goes into the same segment, so a
+     * segment may grow past [RollingPolicy.maxSegmentBytes] by up to one batch.
+     */
+    override fun publishEvents(events: List<Event>) {
+        if (events.isEmpty()) {
+            return
+        }
+
+        val segment: Segment
+        val readLock = rolloverLock.readLock()
+
+        readLock.lock()
+
+        try {
+            assertNotClosed()
+
+            segment = currentSegment
+            segment.publishAll(events)
+        } finally {
+            readLock.unlock()
+        }
+
+        if (isRolloverDue(segment)) {
+            rollover(segment)
+        }
+    }
+
+    private fun isRolloverDue(segment: Segment): Boolean {
+        if (rollingPolicy.maxSegmentBytes in 1..segment.sink.committedBytes.get()) {
+            return true
+        }
+
+        return rollingPolicy.maxSegmentAgeMs > 0
+            && System.currentTimeMillis() - segment.openedAtMs >= rollingPolicy.maxSegmentAgeMs
+    }
+
+    private fun rollover(expectedSegment: Segment) {
+        val writeLock = rolloverLock.writeLock()
+
+        writeLock.lock()
+
+        try {
+            if (closed || currentSegment !== expectedSegment) {
+                return // Another thread got here first
+            }
+
+            expectedSegment.sink.close()
+            closedSegmentStats.addAll(expectedSegment.sink.statsRecorder)
+            closedSegments.add(expectedSegment.toManifestEntry(active = false))
+
+            currentSegment = openNextSegment()
+
+            deleteExpiredSegments()
+            writeManifest()
+        } finally {
+            writeLock.unlock()
+        }
+    }
+
+    private fun openNextSegment(): Segment {
+        val fileName = "%s-%06d".format(baseName, nextSequenceNumber++)
+        return Segment(CsvFileSink(directory.resolve(fileName), flushPolicy))
+    }
+
+    private fun deleteExpiredSegments() {
+        if (rollingPolicy.maxTotalBytes <= 0) {
+            return
+        }
+
+        var totalBytes = closedSegments.sumOf { it.sizeBytes } + currentSegment.sink.committedBytes.get()
+
+        while (totalBytes > rollingPolicy.maxTotalBytes && closedSegments.isNotEmpty()) {
+            val oldestSegment = closedSegments.removeAt(0)
+
+            Files.deleteIfExists(directory.resolve(oldestSegment.fileName))
+            totalBytes -= oldestSegment.sizeBytes
+        }
+    }
+
+    private fun writeManifest() {
+        val entries = ArrayList<SegmentManifest.Entry>(closedSegments)
+
+        if (!closed) {
+            entries.add(currentSegment.toManifestEntry(active = true))
+        }
+
+        SegmentManifest(entries).write(manifestFile)
+    }
+
+    override fun getStats(): List<SinkStats> {
+        val stats = SinkStatsRecorder()
+        val readLock = rolloverLock.readLock()
+
+        readLock.lock()
+
+        try {
+            stats.addAll(closedSegmentStats)
+
+            if (!closed) {
+                stats.addAll(currentSegment.sink.statsRecorder)
+            }
+        } finally {
+            readLock.unlock()
+        }
+
+        return listOf(stats.snapshot("RollingFileSink($directory/$baseName)"))
+    }
+
+    /**
+     * Commits all buffered events of the current segment to disk.
+     */
+    fun flush() {
+        val readLock = rolloverLock.readLock()
+
+        readLock.lock()
+
+        try {
+            assertNotClosed()
+            currentSegment.sink.flush()
+        } finally {
+            readLock.unlock()
+        }
+    }
+
+    /**
+     * Closes the current segment and writes the final manifest. The sink cannot be used afterwards.
+     */
+    override fun close() {
+        val writeLock = rolloverLock.writeLock()
+
+        writeLock.lock()
+
+        try {
+            if (closed) {
+                return
+            }
+
+            closed = true
+
+            val segment = currentSegment
+            segment.sink.close()
+            closedSegmentStats.addAll(segment.sink.statsRecorder)
+
+            val entry = segment.toManifestEntry(active = false)
+
+            if (entry.hasEvents() || entry.sizeBytes > 0) {
+                closedSegments.add(entry)
+            } else {
+                // Usually left behind by a rollover right before closing, it is of no use to readers
+                Files.deleteIfExists(segment.sink.outputFile)
+            }
+
+            writeManifest()
+        } finally {
+            writeLock.unlock()
+        }
+    }
+
+    private fun assertNotClosed() {
+        if (closed) {
+            throw IllegalStateException("Sink is closed: $directory")
+        }
+    }
+
+    private fun parseSequenceNumber(fileName: String): Int? {
+        return fileName
+            .removePrefix("$baseName-")
+            .removeSuffix(".${CsvFormat.EXTENSION}")
+            .toIntOrNull()
+    }
+
+    /**
+     * Rebuilds the manifest entry of a segment from its content. A final row that cannot be read is expected
+     * if the process died mid-write and is skipped. Any other failure marks the entry as damaged, since its
+     * time range is then incomplete.
+     */
+    private fun scanSegment(file: Path): SegmentManifest.Entry {
+        var earliestTimeMs = SegmentManifest.NO_TIME
+        var latestTimeMs = SegmentManifest.NO_TIME
+        var damaged = false
+
+        try {
+            Files.newBufferedReader(file, CsvFormat.CHARSET).use { reader ->
+                var previousRowUnreadable = false
+
+                for (row in CsvFormat.createReader(reader)) {
+                    if (previousRowUnreadable) {
+                        damaged = true
+                    }
+
+                    val event = try {
+                        CsvFormat.deserialize(row.fields)
+                    } catch (e: RuntimeException) {
+                        previousRowUnreadable = true
+                        continue
+                    }
+
+                    previousRowUnreadable = false
+
+                    if (event == null) {
+                        continue
+                    }
+
+                    if (earliestTimeMs == SegmentManifest.NO_TIME || event.timeMs < earliestTimeMs) {
+                        earliestTimeMs = event.timeMs
+                    }
+
+                    if (latestTimeMs == SegmentManifest.NO_TIME || event.timeMs > latestTimeMs) {
+                        latestTimeMs = event.timeMs
+                    }
+                }
+            }
+        } catch (e: Exception) {
+            // Keep what was read so far, readers are told not to rely on it
+            damaged = true
+        }
+
+        return SegmentManifest.Entry(file.fileName.toString(), earliestTimeMs, latestTimeMs, Files.size(file), active = false, damaged = damaged)
+    }
+
+    private class Segment(val sink: CsvFileSink) {
+
+        val openedAtMs = System.currentTimeMillis()
+
+        private val earliestTimeMs = AtomicLong(Long.MAX_VALUE)
+        private val latestTimeMs = AtomicLong(Long.MIN_VALUE)
+
+        fun publish(event: Event) {
+            sink.publishEvent(event)
+            includeTime(event.timeMs)
+        }
+
+        fun publishAll(events: List<Event>) {
+            sink.publishEvents(events)
+
+            var batchEarliestMs = Long.MAX_VALUE
+            var batchLatestMs = Long.MIN_VALUE
+
+            for (event in events) {
+                batchEarliestMs = minOf(batchEarliestMs, event.timeMs)
+                batchLatestMs = maxOf(batchLatestMs, event.timeMs)
+            }
+
+            includeTime(batchEarliestMs)
+            includeTime(batchLatestMs)
+        }
+
+        private fun includeTime(timeMs: Long) {
+            // Reading first keeps the common case, where the range does not change, free of writes
+            while (true) {
+                val earliest = earliestTimeMs.get()
+
+                if (timeMs >= earliest || earliestTimeMs.compareAndSet(earliest, timeMs)) {
+                    break
+                }
+            }
+
+            while (true) {
+                val latest = latestTimeMs.get()
+
+                if (timeMs <= latest || latestTimeMs.compareAndSet(latest, timeMs)) {
+                    break
+                }
+            }
+        }
+
+        fun toManifestEntry(active: Boolean): SegmentManifest.Entry {
+            val earliest = earliestTimeMs.get()
+            val hasEvents = earliest != Long.MAX_VALUE
+
+            return SegmentManifest.Entry(
+                fileName = sink.outputFile.fileName.toString(),
+                earliestTimeMs = if (hasEvents) earliest else SegmentManifest.NO_TIME,
+                latestTimeMs = if (hasEvents) latestTimeMs.get() else SegmentManifest.NO_TIME,
+                sizeBytes = sink.committedBytes.get(),
+                active = active
+            )
+        }
+    }
+}
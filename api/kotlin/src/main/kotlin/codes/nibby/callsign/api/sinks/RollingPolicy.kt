@@ -0,0 +1,40 @@
+package codes.nibby.callsign.api.sinks
+
+/**
+ * Controls when a [RollingFileSink] starts a new segment, and how many old segments it keeps.
+ *
+ * A new segment is started as soon as any of the enabled limits is reached by the current segment.
+ * Limits are checked when events are published, so an idle sink does not roll over. The size limit
+ * is checked against the size of the file on disk, which lags behind by whatever the sink's
+ * [FlushPolicy] keeps buffered.
+ *
+ * @param maxSegmentBytes Start a new segment once the current one reaches this many bytes. Zero disables this limit.
+ * @param maxSegmentAgeMs Start a new segment once the current one has been open for this long. Zero disables this limit.
+ * @param maxTotalBytes Delete the oldest segments once all segments together exceed this many bytes. The segment
+ *                      being written is never deleted. Zero keeps every segment.
+ */
+class RollingPolicy @JvmOverloads constructor(
+    val maxSegmentBytes: Long = 64L * 1024 * 1024,
+    val maxSegmentAgeMs: Long = 0,
+    val maxTotalBytes: Long = 0
+) {
+
+    init {
+        if (maxSegmentBytes < 0) {
+            throw IllegalArgumentException("maxSegmentBytes must not be negative")
+        }
+
+        if (maxSegmentAgeMs < 0) {
+            throw IllegalArgumentException("maxSegmentAgeMs must not be negative")
+        }
+
+        if (maxTotalBytes < 0) {
+            throw IllegalArgumentException("maxTotalBytes must not be negative")
+        }
+    }
+
+    override fun toString(): String {
+        return "RollingPolicy(maxSegmentBytes=$maxSegmentBytes, maxSegmentAgeMs=$maxSegmentAgeMs, " +
+            "maxTotalBytes=$maxTotalBytes)"
+    }
+}
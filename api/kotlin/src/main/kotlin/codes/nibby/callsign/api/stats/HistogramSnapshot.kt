@@ -0,0 +1,112 @@
+package codes.nibby.callsign.api.stats
+
+import java.util.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * Counts of a [LatencyHistogram] at one point in time. Reported values are bucket bounds, so they are
+ * accurate to within the bucket precision of the histogram.
+ */
+class HistogramSnapshot internal constructor(private val counts: LongArray) {
+
+    /**
+     * Number of recorded values.
+     */
+    val count: Long = counts.sum()
+
+    /**
+     * Upper bound of the largest recorded value in nanoseconds, or zero if nothing was recorded.
+     */
+    val maxNanos: Long
+        get() {
+            for (i in counts.indices.reversed()) {
+                if (counts[i] > 0) {
+                    return LatencyHistogram.bucketUpperBound(i)
+                }
+            }
+
+            return 0
+        }
+
+    /**
+     * Approximate mean of the recorded values in nanoseconds, or zero if nothing was recorded.
+     */
+    val meanNanos: Double
+        get() {
+            if (count == 0L) {
+                return 0.0
+            }
+
+            var total = 0.0
+
+            for (i in counts.indices) {
+                if (counts[i] > 0) {
+                    val midpoint = (LatencyHistogram.bucketLowerBound(i) + LatencyHistogram.bucketUpperBound(i)) / 2.0
+                    total += midpoint * counts[i]
+                }
+            }
+
+            return total / count
+        }
+
+    /**
+     * @param percentile Percentile to look up, between 0 and 100
+     * @return Upper bound of the value at [percentile] in nanoseconds, or zero if nothing was recorded
+     */
+    fun percentileNanos(percentile: Double): Long {
+        if (percentile < 0.0 || percentile > 100.0) {
+            throw IllegalArgumentException("percentile must be between 0 and 100")
+        }
+
+        if (count == 0L) {
+            return 0
+        }
+
+        val rank = maxOf(1L, Math.ceil(count * percentile / 100.0).toLong())
+        var seen = 0L
+
+        for (i in counts.indices) {
+            seen += counts[i]
+
+            if (seen >= rank) {
+                return LatencyHistogram.bucketUpperBound(i)
+            }
+        }
+
+        return maxNanos
+    }
+
+    /**
+     * @return The values recorded since [previous] was taken from the same histogram
+     */
+    fun since(previous: HistogramSnapshot): HistogramSnapshot {
+        val difference = LongArray(counts.size)
+
+        for (i in counts.indices) {
+            difference[i] = maxOf(0, counts[i] - previous.counts[i])
+        }
+
+        return HistogramSnapshot(difference)
+    }
+
+    override fun toString(): String {
+        return "HistogramSnapshot(count=$count, p50=${formatNanos(percentileNanos(50.0))}, " +
+            "p99=${formatNanos(percentileNanos(99.0))}, max=${formatNanos(maxNanos)})"
+    }
+
+    companion object {
+
+        /**
+         * A snapshot with nothing recorded, for sinks that do not measure a latency.
+         */
+        val EMPTY = HistogramSnapshot(LongArray(LatencyHistogram.BUCKET_COUNT))
+
+        private fun formatNanos(nanos: Long): String {
+            return if (nanos >= TimeUnit.MILLISECONDS.toNanos(1)) {
+                "%.2fms".format(Locale.ROOT, nanos / 1_000_000.0)
+            } else {
+                "%.2fus".format(Locale.ROOT, nanos / 1_000.0)
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package codes.nibby.callsign.api.stats
+
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * A lock-free histogram of durations in nanoseconds, cheap enough to update on every published event.
+ *
+ * Values are counted in log-linear buckets: each power of two range is split into [SUB_BUCKET_COUNT]
+ * equally sized buckets, so any recorded value is known to within 12.5%, whatever its magnitude.
+ * Recording a value is a single atomic increment, and the histogram never allocates after creation.
+ */
+class LatencyHistogram {
+
+    private val counts = AtomicLongArray(BUCKET_COUNT)
+
+    /**
+     * Counts one occurrence of [valueNanos]. Negative values, which a misbehaving clock may produce, are
+     * counted as zero.
+     */
+    fun record(valueNanos: Long) {
+        counts.getAndIncrement(bucketIndex(maxOf(0, valueNanos)))
+    }
+
+    /**
+     * Adds all values counted by [other] to this histogram.
+     */
+    internal fun addAll(other: LatencyHistogram) {
+        for (i in 0 until BUCKET_COUNT) {
+            val count = other.counts.get(i)
+
+            if (count > 0) {
+                counts.addAndGet(i, count)
+            }
+        }
+    }
+
+    /**
+     * @return A copy of the current counts. Values recorded concurrently may or may not be included.
+     */
+    fun snapshot(): HistogramSnapshot {
+        val copy = LongArray(BUCKET_COUNT)
+
+        for (i in copy.indices) {
+            copy[i] = counts.get(i)
+        }
+
+        return HistogramSnapshot(copy)
+    }
+
+    companion object {
+        internal const val SUB_BUCKET_BITS = 3
+        internal const val SUB_BUCKET_COUNT = 1 shl SUB_BUCKET_BITS
+
+        // Values below SUB_BUCKET_COUNT get a bucket each, larger values get SUB_BUCKET_COUNT buckets per
+        // power of two, up to the largest power of two a positive long can hold
+        internal const val BUCKET_COUNT = SUB_BUCKET_COUNT + (62 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT
+
+        internal fun bucketIndex(value: Long): Int {
+            if (value < SUB_BUCKET_COUNT) {
+                return value.toInt()
+            }
+
+            val magnitude = 63 - java.lang.Long.numberOfLeadingZeros(value)
+            val shift = magnitude - SUB_BUCKET_BITS
+            val subBucket = (value ushr shift).toInt() and (SUB_BUCKET_COUNT - 1)
+
+            return SUB_BUCKET_COUNT + shift * SUB_BUCKET_COUNT + subBucket
+        }
+
+        /**
+         * @return The smallest value counted in the bucket at [index]
+         */
+        internal fun bucketLowerBound(index: Int): Long {
+            if (index < SUB_BUCKET_COUNT) {
+                return index.toLong()
+            }
+
+            val shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT
+            val subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT
+
+            return (SUB_BUCKET_COUNT + subBucket).toLong() shl shift
+        }
+
+        /**
+         * @return The largest value counted in the bucket at [index]
+         */
+        internal fun bucketUpperBound(index: Int): Long {
+            if (index == BUCKET_COUNT - 1) {
+                return Long.MAX_VALUE
+            }
+
+            return bucketLowerBound(index + 1) - 1
+        }
+    }
+}
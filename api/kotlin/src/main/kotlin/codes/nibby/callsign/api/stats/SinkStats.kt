@@ -0,0 +1,66 @@
+package codes.nibby.callsign.api.stats
+
+import codes.nibby.callsign.api.TimelineLogSink
+
+/**
+ * Statistics of one [TimelineLogSink] at one point in time, see [TimelineLogSink.getStats]. Counts that
+ * do not apply to a sink are zero.
+ *
+ * @param sinkName Describes the sink, usually its class name
+ * @param bytesWritten Total bytes of event data written to the destination
+ * @param flushCount Number of times buffered data was flushed to the destination
+ * @param flushLatency Time taken by each flush
+ * @param queueDepth Number of events waiting to be written
+ * @param droppedEventCount Total number of events dropped by the sink
+ * @param droppedEventCounts Number of events dropped by the sink, by event name. May be empty for sinks
+ *                           that do not count drops by name.
+ * @param failureCount Number of writes to the destination that failed without a caller to report them to,
+ *                     such as those made on a background thread
+ * @param lastFailure The most recent of those failures, null if there was none
+ */
+class SinkStats @JvmOverloads constructor(
+    val sinkName: String,
+    val bytesWritten: Long = 0,
+    val flushCount: Long = 0,
+    val flushLatency: HistogramSnapshot = HistogramSnapshot.EMPTY,
+    val queueDepth: Int = 0,
+    val droppedEventCount: Long = 0,
+    val droppedEventCounts: Map<String, Long> = emptyMap(),
+    val failureCount: Long = 0,
+    val lastFailure: Throwable? = null
+) {
+
+    /**
+     * @return The activity since [previous] was taken from the same sink. The queue depth and the last failure
+     *         are the current ones.
+     */
+    fun since(previous: SinkStats): SinkStats {
+        val droppedSince = HashMap<String, Long>()
+
+        for ((name, count) in droppedEventCounts) {
+            val countSince = count - (previous.droppedEventCounts[name] ?: 0)
+
+            if (countSince > 0) {
+                droppedSince[name] = countSince
+            }
+        }
+
+        return SinkStats(
+            sinkName,
+            bytesWritten - previous.bytesWritten,
+            flushCount - previous.flushCount,
+            flushLatency.since(previous.flushLatency),
+            queueDepth,
+            droppedEventCount - previous.droppedEventCount,
+            droppedSince,
+            failureCount - previous.failureCount,
+            lastFailure
+        )
+    }
+
+    override fun toString(): String {
+        return "SinkStats(sinkName=$sinkName, bytesWritten=$bytesWritten, flushCount=$flushCount, " +
+            "flushLatency=$flushLatency, queueDepth=$queueDepth, droppedEventCount=$droppedEventCount, " +
+            "failureCount=$failureCount)"
+    }
+}
@@ -0,0 +1,64 @@
+package codes.nibby.callsign.api.stats
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Collects the counters reported by a sink in its [SinkStats]. Safe to update from any thread.
+ */
+internal class SinkStatsRecorder {
+
+    private val bytesWritten = AtomicLong()
+    private val flushCount = AtomicLong()
+    private val flushLatency = LatencyHistogram()
+    private val failureCount = AtomicLong()
+    private val lastFailure = AtomicReference<Throwable?>()
+
+    /**
+     * Counts one flush of [bytes] bytes, which started at [startNanos] as given by [System.nanoTime].
+     */
+    fun recordFlush(bytes: Long, startNanos: Long) {
+        flushLatency.record(System.nanoTime() - startNanos)
+        flushCount.incrementAndGet()
+        bytesWritten.addAndGet(bytes)
+    }
+
+    /**
+     * Counts one write to the destination that failed, in a place where there is no caller to throw [failure] to.
+     */
+    fun recordFailure(failure: Throwable) {
+        lastFailure.set(failure)
+        failureCount.incrementAndGet()
+    }
+
+    /**
+     * Adds everything counted by [other] to this recorder.
+     */
+    fun addAll(other: SinkStatsRecorder) {
+        flushLatency.addAll(other.flushLatency)
+        flushCount.addAndGet(other.flushCount.get())
+        bytesWritten.addAndGet(other.bytesWritten.get())
+        failureCount.addAndGet(other.failureCount.get())
+
+        other.lastFailure.get()?.let { lastFailure.set(it) }
+    }
+
+    fun snapshot(
+        sinkName: String,
+        queueDepth: Int = 0,
+        droppedEventCount: Long = 0,
+        droppedEventCounts: Map<String, Long> = emptyMap()
+    ): SinkStats {
+        return SinkStats(
+            sinkName,
+            bytesWritten.get(),
+            flushCount.get(),
+            flushLatency.snapshot(),
+            queueDepth,
+            droppedEventCount,
+            droppedEventCounts,
+            failureCount.get(),
+            lastFailure.get()
+        )
+    }
+}
@@ -0,0 +1,158 @@
+package codes.nibby.callsign.api.stats
+
+import codes.nibby.callsign.api.*
+import java.io.Closeable
+import java.util.*
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Periodically records the [statistics][TimelineLogger.getStats] of a [TimelineLogger] as events of that
+ * same logger, so that the cost of logging shows up in the trace itself.
+ *
+ * Every [intervalMs], one [STATS_EVENT_NAME] event is recorded for the logger, followed by one
+ * [SINK_STATS_EVENT_NAME] event per sink. Each covers the activity since the previous report. The
+ * events are recorded on a background thread, and are themselves counted in the next report.
+ *
+ * A report that fails does not stop later reports. It is counted in [failedReportCount] and passed to
+ * the [failureHandler].
+ *
+ * @param logger The logger to report on, and to record the events with
+ * @param intervalMs Time between two reports
+ * @param failureHandler Called on the background thread with each report that failed. Must not throw,
+ *                       which would stop all later reports.
+ */
+class StatsReporter @JvmOverloads constructor(
+    private val logger: TimelineLogger,
+    val intervalMs: Long = DEFAULT_INTERVAL_MS,
+    private val failureHandler: FailureHandler = FailureHandler { }
+) : Closeable {
+
+    /**
+     * Receives the failures of reports made on the background thread.
+     */
+    fun interface FailureHandler {
+
+        fun onReportFailed(failure: Exception)
+    }
+
+    private val failedReports = AtomicLong()
+
+    /**
+     * Number of reports that failed so far.
+     */
+    val failedReportCount: Long
+        get() = failedReports.get()
+
+    private val timer: ScheduledExecutorService
+
+    // Only accessed by the timer thread
+    private var previousStats: TimelineLoggerStats
+
+    init {
+        if (intervalMs <= 0) {
+            throw IllegalArgumentException("intervalMs must be positive")
+        }
+
+        previousStats = logger.getStats()
+
+        timer = Executors.newSingleThreadScheduledExecutor { runnable ->
+            val thread = Thread(runnable, "callsign-stats-reporter")
+            thread.isDaemon = true
+            thread
+        }
+
+        timer.scheduleAtFixedRate(this::reportOrHandleFailure, intervalMs, intervalMs, TimeUnit.MILLISECONDS)
+    }
+
+    private fun reportOrHandleFailure() {
+        try {
+            report()
+        } catch (e: Exception) {
+            failedReports.incrementAndGet()
+            failureHandler.onReportFailed(e)
+        }
+    }
+
+    /**
+     * Records the statistics since the previous report. Only called on the timer thread.
+     */
+    private fun report() {
+        val stats = logger.getStats()
+        val statsSince = stats.since(previousStats)
+        previousStats = stats
+
+        val timeMs = System.currentTimeMillis()
+
+        val loggerEvent = InstantEvent(STATS_EVENT_NAME, timeMs)
+        loggerEvent.putAttribute(INTERVAL_MS_ATTRIBUTE, TimeUnit.NANOSECONDS.toMillis(statsSince.elapsedNanos))
+        loggerEvent.putAttribute(EVENTS_PER_SECOND_ATTRIBUTE, roundRate(statsSince.getEventsPerSecond()))
+        loggerEvent.putAttribute(INSTANT_EVENTS_PER_SECOND_ATTRIBUTE, roundRate(statsSince.getEventsPerSecond(InstantEvent.TYPE)))
+        loggerEvent.putAttribute(INTERVAL_START_EVENTS_PER_SECOND_ATTRIBUTE, roundRate(statsSince.getEventsPerSecond(IntervalStartEvent.TYPE)))
+        loggerEvent.putAttribute(INTERVAL_END_EVENTS_PER_SECOND_ATTRIBUTE, roundRate(statsSince.getEventsPerSecond(IntervalEndEvent.TYPE)))
+        loggerEvent.putAttribute(SAMPLED_OUT_COUNT_ATTRIBUTE, statsSince.sampledOutCount)
+        putLatencyAttributes(loggerEvent, PUBLISH_LATENCY_ATTRIBUTE_PREFIX, statsSince.publishLatency)
+
+        logger.recordEvent(loggerEvent)
+
+        for (sinkStats in statsSince.sinks) {
+            val sinkEvent = InstantEvent(SINK_STATS_EVENT_NAME, timeMs)
+            sinkEvent.putAttribute(SINK_NAME_ATTRIBUTE, sinkStats.sinkName)
+            sinkEvent.putAttribute(BYTES_WRITTEN_ATTRIBUTE, sinkStats.bytesWritten)
+            sinkEvent.putAttribute(FLUSH_COUNT_ATTRIBUTE, sinkStats.flushCount)
+            sinkEvent.putAttribute(QUEUE_DEPTH_ATTRIBUTE, sinkStats.queueDepth.toLong())
+            sinkEvent.putAttribute(DROPPED_COUNT_ATTRIBUTE, sinkStats.droppedEventCount)
+            sinkEvent.putAttribute(FAILURE_COUNT_ATTRIBUTE, sinkStats.failureCount)
+            putLatencyAttributes(sinkEvent, FLUSH_LATENCY_ATTRIBUTE_PREFIX, sinkStats.flushLatency)
+
+            logger.recordEvent(sinkEvent)
+        }
+    }
+
+    private fun putLatencyAttributes(event: InstantEvent, prefix: String, latency: HistogramSnapshot) {
+        event.putAttribute("${prefix}P50Ns", latency.percentileNanos(50.0))
+        event.putAttribute("${prefix}P99Ns", latency.percentileNanos(99.0))
+        event.putAttribute("${prefix}MaxNs", latency.maxNanos)
+    }
+
+    private fun roundRate(eventsPerSecond: Double): Double {
+        return Math.round(eventsPerSecond * 10) / 10.0
+    }
+
+    /**
+     * Stops reporting. A report that is in progress is allowed to finish.
+     */
+    override fun close() {
+        timer.shutdown()
+    }
+
+    companion object {
+        const val DEFAULT_INTERVAL_MS = 10_000L
+
+        /** Name of the events reporting on the logger */
+        const val STATS_EVENT_NAME = "Callsign stats"
+
+        /** Name of the events reporting on each sink */
+        const val SINK_STATS_EVENT_NAME = "Callsign sink stats"
+
+        const val INTERVAL_MS_ATTRIBUTE = "intervalMs"
+        const val EVENTS_PER_SECOND_ATTRIBUTE = "eventsPerSecond"
+        const val INSTANT_EVENTS_PER_SECOND_ATTRIBUTE = "instantEventsPerSecond"
+        const val INTERVAL_START_EVENTS_PER_SECOND_ATTRIBUTE = "intervalStartEventsPerSecond"
+        const val INTERVAL_END_EVENTS_PER_SECOND_ATTRIBUTE = "intervalEndEventsPerSecond"
+        const val SAMPLED_OUT_COUNT_ATTRIBUTE = "sampledOutCount"
+
+        // Followed by P50Ns, P99Ns and MaxNs
+        const val PUBLISH_LATENCY_ATTRIBUTE_PREFIX = "publish"
+        const val FLUSH_LATENCY_ATTRIBUTE_PREFIX = "flush"
+
+        const val SINK_NAME_ATTRIBUTE = "sink"
+        const val BYTES_WRITTEN_ATTRIBUTE = "bytesWritten"
+        const val FLUSH_COUNT_ATTRIBUTE = "flushCount"
+        const val QUEUE_DEPTH_ATTRIBUTE = "queueDepth"
+        const val DROPPED_COUNT_ATTRIBUTE = "droppedCount"
+        const val FAILURE_COUNT_ATTRIBUTE = "failureCount"
+    }
+}
@@ -0,0 +1,97 @@
+package codes.nibby.callsign.api.stats
+
+import codes.nibby.callsign.api.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * Statistics of a [TimelineLogger] and its sinks at one point in time, see [TimelineLogger.getStats].
+ *
+ * Counts cover the time since the logger was created, or since a previous snapshot for statistics
+ * obtained from [since].
+ *
+ * @param elapsedNanos Length of the period the counts cover
+ * @param eventCounts Number of events published to the sink, by [event type][Event.type]
+ * @param sampledOutCount Number of events the [SamplingPolicy] of the logger chose not to record
+ * @param publishLatency Time taken to publish each event to the sink
+ * @param sinks Statistics of the sink of the logger, followed by those of any sinks it wraps
+ */
+class TimelineLoggerStats internal constructor(
+    private val takenAtNanos: Long,
+    val elapsedNanos: Long,
+    val eventCounts: Map<String, Long>,
+    val sampledOutCount: Long,
+    val publishLatency: HistogramSnapshot,
+    val sinks: List<SinkStats>
+) {
+
+    /**
+     * Total number of events published to the sink.
+     */
+    val publishedEventCount: Long
+        get() = eventCounts.values.sum()
+
+    /**
+     * Total bytes written by all sinks.
+     */
+    val bytesWritten: Long
+        get() = sinks.sumOf { it.bytesWritten }
+
+    /**
+     * Total number of events dropped by all sinks.
+     */
+    val droppedEventCount: Long
+        get() = sinks.sumOf { it.droppedEventCount }
+
+    /**
+     * @param eventType One of the [Event.type] codes, such as [InstantEvent.TYPE]
+     * @return Average number of events of [eventType] published per second over the covered period
+     */
+    fun getEventsPerSecond(eventType: String): Double {
+        return perSecond(eventCounts[eventType] ?: 0)
+    }
+
+    /**
+     * @return Average number of events published per second over the covered period
+     */
+    fun getEventsPerSecond(): Double {
+        return perSecond(publishedEventCount)
+    }
+
+    private fun perSecond(count: Long): Double {
+        if (elapsedNanos <= 0) {
+            return 0.0
+        }
+
+        return count * TimeUnit.SECONDS.toNanos(1).toDouble() / elapsedNanos
+    }
+
+    /**
+     * @return The activity between [previous] and this snapshot, which must both be taken from the same
+     *         logger. Queue depths are the current ones.
+     */
+    fun since(previous: TimelineLoggerStats): TimelineLoggerStats {
+        if (previous.sinks.size != sinks.size) {
+            throw IllegalArgumentException("Snapshots are not from the same logger")
+        }
+
+        val countsSince = HashMap<String, Long>()
+
+        for ((type, count) in eventCounts) {
+            countsSince[type] = count - (previous.eventCounts[type] ?: 0)
+        }
+
+        return TimelineLoggerStats(
+            takenAtNanos,
+            takenAtNanos - previous.takenAtNanos,
+            countsSince,
+            sampledOutCount - previous.sampledOutCount,
+            publishLatency.since(previous.publishLatency),
+            sinks.indices.map { sinks[it].since(previous.sinks[it]) }
+        )
+    }
+
+    override fun toString(): String {
+        return "TimelineLoggerStats(elapsedMs=${TimeUnit.NANOSECONDS.toMillis(elapsedNanos)}, " +
+            "eventCounts=$eventCounts, sampledOutCount=$sampledOutCount, publishLatency=$publishLatency, sinks=$sinks)"
+    }
+}
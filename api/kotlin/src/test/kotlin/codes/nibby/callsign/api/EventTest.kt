@@ -136,13 +136,34 @@ class EventTest {
 
     fun testPutAttribute_eventIsSaved_fails() {
         val event = TestEvent("event")
-        event.published = true
+        event.state = Event.STATE_PUBLISHED
 
         Assertions.assertThrows(IllegalStateException::class.java) {
             event.putAttribute("name", "")
         }
     }
 
+    @Test
+    fun testPutAttribute_attributeKey_storesValue() {
+        val event = TestEvent("Test")
+        val key = AttributeKey.of("Test")
+
+        event.putAttribute(key, "value")
+
+        Assertions.assertEquals("value", event.getAttribute("Test"))
+    }
+
+    @Test
+    fun testAttributeKeyOf_nameIsInvalid_fails() {
+        Assertions.assertThrows(IllegalArgumentException::class.java) {
+            AttributeKey.of(" Test")
+        }
+
+        Assertions.assertThrows(IllegalArgumentException::class.java) {
+            AttributeKey.of("a".repeat(Event.MAX_ATTRIBUTE_NAME_LENGTH + 1))
+        }
+    }
+
     @Test
     fun testGetAttribute_nameIsNotPut_returnsNull() {
         val event = TestEvent("event")
@@ -165,6 +186,34 @@ class EventTest {
         Assertions.assertEquals(value, retrievedValue)
     }
 
+    @Test
+    fun testPutAttribute_typedValues_storedWithType() {
+        val event = TestEvent("event")
+
+        event.putAttribute("count", 42L)
+        event.putAttribute("ratio", 0.5)
+        event.putAttribute("hit", true)
+        event.putAttribute(AttributeKey.of("keyed"), -7L)
+
+        Assertions.assertEquals(42L, event.getAttributeValue("count"))
+        Assertions.assertEquals(0.5, event.getAttributeValue("ratio"))
+        Assertions.assertEquals(true, event.getAttributeValue("hit"))
+        Assertions.assertEquals(-7L, event.getAttributeValue("keyed"))
+    }
+
+    @Test
+    fun testGetAttribute_typedValue_returnsText() {
+        val event = TestEvent("event")
+
+        event.putAttribute("count", 42L)
+        event.putAttribute("ratio", 1.5)
+        event.putAttribute("hit", false)
+
+        Assertions.assertEquals("42", event.getAttribute("count"))
+        Assertions.assertEquals("1.5", event.getAttribute("ratio"))
+        Assertions.assertEquals("false", event.getAttribute("hit"))
+    }
+
     private class TestEvent(name: String, timeMs: Long? = null)
         : Event(null, null, "test", name, timeMs ?: Instant.now().toEpochMilli())
 }
\ No newline at end of file
@@ -1,8 +1,17 @@
 package codes.nibby.callsign.api
 
+import codes.nibby.callsign.api.sampling.FixedRateSampling
+import codes.nibby.callsign.api.sampling.SlowIntervalSampling
 import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Assumptions
 import org.junit.jupiter.api.Test
+import java.lang.management.ManagementFactory
 import java.time.Instant
+import java.util.*
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 
 class TimelineLoggerTest {
 
@@ -87,9 +96,9 @@ class TimelineLoggerTest {
     }
 
     @Test
-    fun testRecordEventEnd_copiesAttributesFromIntervalStartEvent() {
+    fun testRecordEventEnd_fullMode_copiesAttributesFromIntervalStartEvent() {
         val sink = TestSink()
-        val timeline = TimelineLogger(sink)
+        val timeline = TimelineLogger(sink, EndEventAttributeMode.FULL)
         val timedEvent = IntervalStartEvent("timed event 1", Instant.now().toEpochMilli())
         timedEvent.putAttribute("a1", "v1")
         timedEvent.putAttribute("a2", "v2")
@@ -142,6 +151,545 @@ class TimelineLoggerTest {
         }
     }
 
+    @Test
+    fun testRecordEvent_eventWithoutId_assignsIdFromConfiguredGenerator() {
+        val id = UUID.randomUUID()
+        val timeline = TimelineLogger(TestSink()) { id }
+        val event = InstantEvent("myEvent", Instant.now().toEpochMilli())
+
+        timeline.recordEvent(event)
+
+        assertEquals(id, event.id)
+    }
+
+    @Test
+    fun testRecordEvent_eventWithExistingId_keepsExistingId() {
+        val existingId = UUID.randomUUID()
+        val timeline = TimelineLogger(TestSink()) { UUID.randomUUID() }
+        val event = InstantEvent(existingId, "myEvent", Instant.now().toEpochMilli())
+
+        timeline.recordEvent(event)
+
+        assertEquals(existingId, event.id)
+    }
+
+    @Test
+    fun testRecordEventEnd_endEventIdFromConfiguredGenerator() {
+        val startId = UUID.randomUUID()
+        val endId = UUID.randomUUID()
+        val ids = ArrayDeque(listOf(startId, endId))
+
+        val sink = TestSink()
+        val timeline = TimelineLogger(sink) { ids.removeFirst() }
+        val timedEvent = IntervalStartEvent("timed event 1", Instant.now().toEpochMilli())
+
+        timeline.recordEventStart(timedEvent)
+        timeline.recordEventEnd(timedEvent, Instant.now().toEpochMilli())
+
+        val endEvent = sink.writeEventEndCalled.single()
+
+        assertEquals(startId, timedEvent.id)
+        assertEquals(endId, endEvent.id)
+        assertEquals(startId, endEvent.correlationId)
+    }
+
+    @Test
+    fun testRecordEventEnd_deltaMode_storesOnlyAttributesChangedSinceStart() {
+        val sink = TestSink()
+        val timeline = TimelineLogger(sink)
+        val timedEvent = IntervalStartEvent("timed event 1", Instant.now().toEpochMilli())
+        timedEvent.putAttribute("a1", "v1")
+        timedEvent.putAttribute("a2", "v2")
+
+        timeline.recordEventStart(timedEvent)
+
+        timedEvent.putAttribute("a3", "v3")
+        timedEvent.putAttribute("a1", "modified")
+        timedEvent.putAttribute("a2", "v2")
+
+        timeline.recordEventEnd(timedEvent, Instant.now().toEpochMilli())
+
+        val endEvent = sink.writeEventEndCalled.single()
+
+        assertTrue(endEvent.isAttributeDelta())
+        assertEquals(setOf("a1", "a3"), endEvent.getUserAttributeNames())
+        assertEquals("modified", endEvent.getAttribute("a1"))
+        assertEquals("v3", endEvent.getAttribute("a3"))
+        assertEquals("timed event 1", endEvent.name)
+    }
+
+    @Test
+    fun testRestoreAttributesFrom_deltaEndEvent_rebuildsFullAttributes() {
+        val sink = TestSink()
+        val timeline = TimelineLogger(sink)
+        val timedEvent = IntervalStartEvent("timed event 1", Instant.now().toEpochMilli())
+        timedEvent.putAttribute("a1", "v1")
+        timedEvent.putAttribute("a2", "v2")
+
+        timeline.recordEventStart(timedEvent)
+        val attributesAtStart = HashMap(timedEvent.getAttributeData().map)
+
+        timedEvent.putAttribute("a1", "modified")
+        timeline.recordEventEnd(timedEvent, Instant.now().toEpochMilli())
+
+        // As a reader would see it: the start event with the attributes it was published with
+        val startEvent = IntervalStartEvent(timedEvent.id, timedEvent.name, timedEvent.timeMs)
+        startEvent.getAttributeData().map.putAll(attributesAtStart)
+
+        val endEvent = sink.writeEventEndCalled.single()
+        endEvent.restoreAttributesFrom(startEvent)
+
+        assertFalse(endEvent.isAttributeDelta())
+        assertEquals(timedEvent.getAttributeData(), endEvent.getAttributeData())
+    }
+
+    @Test
+    fun testRecordEventEnd_deltaModeWithPooledEvents_doesNotCarryChangesToNextInterval() {
+        val sink = CopyingSink()
+        val timeline = TimelineLogger(sink)
+        val name = EventName.of("timed event 1")
+
+        val firstEvent = timeline.obtainIntervalStart(name, 1L)
+        timeline.recordEventStart(firstEvent)
+        firstEvent.putAttribute("a1", "changed")
+        timeline.recordEventEnd(firstEvent, 2L)
+
+        val secondEvent = timeline.obtainIntervalStart(name, 3L)
+        timeline.recordEventStart(secondEvent)
+        timeline.recordEventEnd(secondEvent, 4L)
+
+        assertEquals("changed", sink.events[1].attributes["a1"])
+        assertNull(sink.events[3].attributes["a1"])
+    }
+
+    @Test
+    fun testObtainIntervalStart_sinkRetainsEvents_returnsNewEventEachTime() {
+        val timeline = TimelineLogger(TestSink())
+        val name = EventName.of("timed event 1")
+
+        val firstEvent = timeline.obtainIntervalStart(name, 1L)
+        timeline.recordEventStart(firstEvent)
+        timeline.recordEventEnd(firstEvent, 2L)
+
+        val secondEvent = timeline.obtainIntervalStart(name, 3L)
+
+        assertNotSame(firstEvent, secondEvent)
+    }
+
+    @Test
+    fun testObtainIntervalStart_sinkDoesNotRetainEvents_reusesEventsAfterRecordEventEnd() {
+        val sink = CopyingSink()
+        val timeline = TimelineLogger(sink, EndEventAttributeMode.FULL)
+        val name = EventName.of("timed event 1")
+        val key = AttributeKey.of("iteration")
+
+        val firstEvent = timeline.obtainIntervalStart(name, 1L)
+        firstEvent.putAttribute(key, "1")
+        timeline.recordEventStart(firstEvent)
+        timeline.recordEventEnd(firstEvent, 2L)
+
+        val secondEvent = timeline.obtainIntervalStart(name, 3L)
+
+        assertSame(firstEvent, secondEvent)
+        assertFalse(secondEvent.recorded)
+        assertNull(secondEvent.getAttribute("iteration"))
+        assertEquals(3L, secondEvent.timeMs)
+
+        timeline.recordEventStart(secondEvent)
+        timeline.recordEventEnd(secondEvent, 4L)
+
+        assertEquals(4, sink.events.size)
+        assertEquals(4, sink.events.map { it.id }.toSet().size)
+        assertEquals(listOf("1", "1", null, null), sink.events.map { it.attributes["iteration"] })
+        assertEquals(sink.events[0].id, sink.events[1].correlationId)
+        assertEquals(sink.events[2].id, sink.events[3].correlationId)
+        assertEquals(listOf(1L, 2L, 3L, 4L), sink.events.map { it.timeMs })
+    }
+
+    @Test
+    fun testObtainInstant_sinkDoesNotRetainEvents_reusesEventAfterRecordEvent() {
+        val sink = CopyingSink()
+        val timeline = TimelineLogger(sink)
+        val name = EventName.of("myEvent")
+
+        val firstEvent = timeline.obtainInstant(name, 1L)
+        timeline.recordEvent(firstEvent)
+
+        val secondEvent = timeline.obtainInstant(name, 2L)
+        timeline.recordEvent(secondEvent)
+
+        assertSame(firstEvent, secondEvent)
+        assertEquals(2, sink.events.size)
+        assertNotEquals(sink.events[0].id, sink.events[1].id)
+    }
+
+    @Test
+    fun testRecordEventStart_intervalSampledOut_dropsStartAndEnd() {
+        val sink = TestSink()
+        val timeline = TimelineLogger(sink, EndEventAttributeMode.DELTA, samplingPolicy = FixedRateSampling(0.0))
+        val startEvent = IntervalStartEvent("sampled", 0L)
+
+        timeline.recordEventStart(startEvent)
+        timeline.recordEventEnd(startEvent, 10L)
+
+        assertTrue(sink.writeEventStartCalled.isEmpty())
+        assertTrue(sink.writeEventEndCalled.isEmpty())
+
+        assertThrows(IllegalStateException::class.java) {
+            timeline.recordEventEnd(startEvent, 10L)
+        }
+    }
+
+    @Test
+    fun testRecordEventEnd_deferredIntervalIsSlow_publishesStartAndEnd() {
+        val sink = TestSink()
+        val sampling = SlowIntervalSampling(100, FixedRateSampling(0.0))
+        val timeline = TimelineLogger(sink, EndEventAttributeMode.DELTA, samplingPolicy = sampling)
+
+        val fastEvent = IntervalStartEvent("query", 0L)
+        timeline.recordEventStart(fastEvent)
+
+        val slowEvent = IntervalStartEvent("query", 0L)
+        timeline.recordEventStart(slowEvent)
+
+        // Held back until the duration is known
+        assertTrue(sink.writeEventStartCalled.isEmpty())
+
+        timeline.recordEventEnd(fastEvent, 99L)
+        timeline.recordEventEnd(slowEvent, 250L)
+
+        assertEquals(listOf(slowEvent.id), sink.writeEventStartCalled.map { it.id })
+        assertEquals(listOf(slowEvent.id), sink.writeEventEndCalled.map { it.correlationId })
+    }
+
+    @Test
+    fun testRecordEventEnd_deferredIntervalAttributeChanged_publishesStartWithRecordedAttributes() {
+        val sink = TestSink()
+        val sampling = SlowIntervalSampling(100, FixedRateSampling(0.0))
+        val timeline = TimelineLogger(sink, EndEventAttributeMode.DELTA, samplingPolicy = sampling)
+
+        val startEvent = IntervalStartEvent("query", 0L)
+        startEvent.putAttribute("unchanged", "v1")
+        startEvent.putAttribute("changed", "before")
+        timeline.recordEventStart(startEvent)
+
+        startEvent.putAttribute("changed", "after")
+        timeline.recordEventEnd(startEvent, 250L)
+
+        val publishedStart = sink.writeEventStartCalled.single()
+        assertEquals("v1", publishedStart.getAttribute("unchanged"))
+        assertEquals("before", publishedStart.getAttribute("changed"))
+
+        val endEvent = sink.writeEventEndCalled.single()
+        assertTrue(endEvent.isAttributeDelta())
+        assertEquals(setOf("changed"), endEvent.getUserAttributeNames())
+        assertEquals("after", endEvent.getAttribute("changed"))
+    }
+
+    @Test
+    fun testRecordEvent_instantSampledOut_isNotPublished() {
+        val sink = TestSink()
+        val timeline = TimelineLogger(sink, EndEventAttributeMode.DELTA, samplingPolicy = FixedRateSampling(0.0))
+
+        timeline.recordEvent(InstantEvent("sampled", 0L))
+
+        assertTrue(sink.writeEventCalled.isEmpty())
+    }
+
+    @Test
+    fun testRecordEventEnd_pooledIntervalsSampledOut_reusesEvents() {
+        val sink = CopyingSink()
+        val timeline = TimelineLogger(sink, EndEventAttributeMode.DELTA, samplingPolicy = FixedRateSampling(0.0))
+        val name = EventName.of("sampled")
+
+        val firstEvent = timeline.obtainIntervalStart(name, 0L)
+        timeline.recordEventStart(firstEvent)
+        timeline.recordEventEnd(firstEvent, 1L)
+
+        val secondEvent = timeline.obtainIntervalStart(name, 2L)
+
+        assertSame(firstEvent, secondEvent)
+        assertTrue(sink.events.isEmpty())
+    }
+
+    @Test
+    fun testGetStats_countsPublishedEventsByType() {
+        val sink = TestSink()
+        val timeline = TimelineLogger(sink, EndEventAttributeMode.DELTA, samplingPolicy = SlowIntervalSampling(100, FixedRateSampling(0.0)))
+
+        timeline.recordEvent(InstantEvent("instant", 0L))
+
+        val slowEvent = IntervalStartEvent("slow", 0L)
+        timeline.recordEventStart(slowEvent)
+        timeline.recordEventEnd(slowEvent, 500L)
+
+        val fastEvent = IntervalStartEvent("fast", 0L)
+        timeline.recordEventStart(fastEvent)
+        timeline.recordEventEnd(fastEvent, 1L)
+
+        val stats = timeline.getStats()
+
+        assertEquals(0, stats.eventCounts[InstantEvent.TYPE])
+        assertEquals(1, stats.eventCounts[IntervalStartEvent.TYPE])
+        assertEquals(1, stats.eventCounts[IntervalEndEvent.TYPE])
+        assertEquals(2, stats.sampledOutCount)
+        assertEquals(2, stats.publishLatency.count)
+        assertTrue(stats.getEventsPerSecond() > 0.0)
+    }
+
+    @Test
+    fun testGetStats_since_coversOnlyLaterEvents() {
+        val timeline = TimelineLogger(TestSink())
+
+        timeline.recordEvent(InstantEvent("first", 0L))
+        val previous = timeline.getStats()
+
+        timeline.recordEvent(InstantEvent("second", 0L))
+        timeline.recordEvent(InstantEvent("third", 0L))
+        val since = timeline.getStats().since(previous)
+
+        assertEquals(2, since.eventCounts[InstantEvent.TYPE])
+        assertEquals(2, since.publishLatency.count)
+    }
+
+    @Test
+    fun testRecordEvent_loggerDisabled_isNotPublished() {
+        val sink = TestSink()
+        val timeline = TimelineLogger(sink)
+        timeline.enabled = false
+
+        timeline.recordEvent(InstantEvent("disabled", 0L))
+
+        assertTrue(sink.writeEventCalled.isEmpty())
+        assertEquals(0L, timeline.getStats().sampledOutCount)
+    }
+
+    @Test
+    fun testRecordEventEnd_loggerToggledDuringIntervals_recordsOnlyIntervalsStartedWhileEnabled() {
+        val sink = TestSink()
+        val timeline = TimelineLogger(sink)
+
+        val enabledEvent = IntervalStartEvent("enabled", 0L)
+        timeline.recordEventStart(enabledEvent)
+
+        timeline.enabled = false
+
+        val disabledEvent = IntervalStartEvent("disabled", 1L)
+        timeline.recordEventStart(disabledEvent)
+        timeline.recordEventEnd(enabledEvent, 2L)
+
+        timeline.enabled = true
+        timeline.recordEventEnd(disabledEvent, 3L)
+
+        assertEquals(listOf(enabledEvent), sink.writeEventStartCalled)
+        assertEquals(listOf(enabledEvent.id), sink.writeEventEndCalled.map { it.correlationId })
+
+        assertThrows(IllegalStateException::class.java) {
+            timeline.recordEventEnd(disabledEvent, 4L)
+        }
+    }
+
+    @Test
+    fun testInterval_recordsStartAndEndWithAttributes() {
+        val sink = CopyingSink()
+        val timeline = TimelineLogger(sink, EndEventAttributeMode.DELTA)
+
+        val result = timeline.interval("query", { putAttribute("table", "users") }) { scope ->
+            scope.attribute("rows") { "3" }
+            42
+        }
+
+        assertEquals(42, result)
+        assertEquals(2, sink.events.size)
+        assertEquals("users", sink.events[0].attributes["table"])
+        assertEquals("3", sink.events[1].attributes["rows"])
+        assertEquals(sink.events[0].id, sink.events[1].correlationId)
+    }
+
+    @Test
+    fun testInterval_blockThrows_recordsEnd() {
+        val sink = CopyingSink()
+        val timeline = TimelineLogger(sink)
+
+        assertThrows(IllegalArgumentException::class.java) {
+            timeline.interval(EventName.of("failing")) {
+                throw IllegalArgumentException()
+            }
+        }
+
+        assertEquals(2, sink.events.size)
+        assertEquals(sink.events[0].id, sink.events[1].correlationId)
+    }
+
+    @Test
+    fun testInterval_loggerDisabled_runsBlockWithoutAttributes() {
+        val sink = TestSink()
+        val timeline = TimelineLogger(sink)
+        timeline.enabled = false
+
+        var attributesComputed = false
+
+        val result = timeline.interval("disabled", { attributesComputed = true }) { scope ->
+            scope.attribute("key") {
+                attributesComputed = true
+                "value"
+            }
+
+            assertFalse(scope.enabled)
+            "done"
+        }
+
+        timeline.instant("disabled") { attributesComputed = true }
+
+        assertEquals("done", result)
+        assertFalse(attributesComputed)
+        assertTrue(sink.writeEventStartCalled.isEmpty())
+        assertTrue(sink.writeEventCalled.isEmpty())
+    }
+
+    @Test
+    fun testOpenInterval_closedTwice_recordsOneInterval() {
+        val sink = TestSink()
+        val timeline = TimelineLogger(sink)
+
+        val scope = timeline.openInterval("scoped")
+        scope.putAttribute("key", "value")
+        scope.close()
+        scope.close()
+
+        assertEquals(1, sink.writeEventStartCalled.size)
+        assertEquals(1, sink.writeEventEndCalled.size)
+        assertEquals("value", sink.writeEventStartCalled[0].getAttribute("key"))
+    }
+
+    @Test
+    fun testInterval_loggerDisabled_doesNotAllocate() {
+        val threadBean = ManagementFactory.getThreadMXBean()
+        Assumptions.assumeTrue(threadBean is com.sun.management.ThreadMXBean)
+
+        val allocationBean = threadBean as com.sun.management.ThreadMXBean
+        val timeline = TimelineLogger(TestSink())
+        val name = EventName.of("disabled")
+        val key = AttributeKey.of("key")
+        val iterations = 1000
+
+        timeline.enabled = false
+
+        val recordDisabled = {
+            timeline.interval(name, { putAttribute(key, "value") }) { scope ->
+                scope.attribute(key) { "value" }
+            }
+
+            timeline.instant(name) { putAttribute(key, "value") }
+            timeline.openInterval(name).close()
+        }
+
+        // Warm up the code paths
+        repeat(iterations * 10) { recordDisabled() }
+
+        val threadId = Thread.currentThread().id
+        val allocatedBefore = allocationBean.getThreadAllocatedBytes(threadId)
+
+        for (i in 0 until iterations) {
+            recordDisabled()
+        }
+
+        val allocatedBytes = allocationBean.getThreadAllocatedBytes(threadId) - allocatedBefore
+
+        // Allows for a few bytes of measurement noise, an allocation per call would be far more
+        assertTrue(allocatedBytes < iterations, "Allocated $allocatedBytes bytes for $iterations iterations")
+    }
+
+    @Test
+    fun testRecordEventEnd_concurrentCallsOnSameEvent_exactlyOneSucceeds() {
+        val sink = ConcurrentSink()
+        val timeline = TimelineLogger(sink)
+        val threadCount = 16
+        val rounds = 200
+
+        repeat(rounds) {
+            val startEvent = IntervalStartEvent("contended", 0L)
+            timeline.recordEventStart(startEvent)
+
+            val successes = AtomicInteger()
+            val failures = AtomicInteger()
+            val startSignal = CountDownLatch(1)
+
+            val threads = (0 until threadCount).map {
+                Thread {
+                    startSignal.await()
+
+                    try {
+                        timeline.recordEventEnd(startEvent, 1L)
+                        successes.incrementAndGet()
+                    } catch (e: IllegalStateException) {
+                        failures.incrementAndGet()
+                    }
+                }
+            }
+
+            threads.forEach { it.start() }
+            startSignal.countDown()
+            threads.forEach { it.join() }
+
+            assertEquals(1, successes.get())
+            assertEquals(threadCount - 1, failures.get())
+            assertTrue(startEvent.published)
+        }
+
+        assertEquals(rounds, sink.events.count { it is IntervalEndEvent })
+    }
+
+    @Test
+    fun testRecordEvent_eventMonitorHeldByAnotherThread_doesNotBlock() {
+        val timeline = TimelineLogger(ConcurrentSink())
+        val event = InstantEvent("monitor", 0L)
+        val recorded = CountDownLatch(1)
+
+        // Recording must not rely on any monitor, so that it never pins a virtual thread or waits on one
+        synchronized(event) {
+            val recorder = Thread {
+                event.putAttribute("key", "value")
+                timeline.recordEvent(event)
+                recorded.countDown()
+            }
+
+            recorder.start()
+
+            assertTrue(recorded.await(10, TimeUnit.SECONDS))
+        }
+
+        assertThrows(IllegalStateException::class.java) {
+            event.putAttribute("key", "other")
+        }
+    }
+
+    /**
+     * Stores a copy of every published event, as a sink writing events out would.
+     */
+    private class CopyingSink : TimelineLogSink {
+
+        val events: MutableList<PublishedEvent> = ArrayList()
+
+        override val retainsEvents: Boolean
+            get() = false
+
+        override fun publishEvent(event: Event) {
+            events.add(PublishedEvent(event.id, event.correlationId, event.timeMs, HashMap(event.getAttributeData().map)))
+        }
+    }
+
+    private class PublishedEvent(val id: UUID, val correlationId: UUID?, val timeMs: Long, val attributes: Map<String, Any>)
+
+    private class ConcurrentSink : TimelineLogSink {
+
+        val events: MutableCollection<Event> = ConcurrentLinkedQueue()
+
+        override fun publishEvent(event: Event) {
+            events.add(event)
+        }
+    }
+
     private class TestSink : TimelineLogSink {
 
         val writeEventStartCalled: MutableList<IntervalStartEvent> = ArrayList()
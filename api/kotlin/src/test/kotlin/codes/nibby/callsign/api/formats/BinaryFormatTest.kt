@@ -0,0 +1,263 @@
+package codes.nibby.callsign.api.formats
+
+import codes.nibby.callsign.api.Event
+import codes.nibby.callsign.api.InstantEvent
+import codes.nibby.callsign.api.IntervalEndEvent
+import codes.nibby.callsign.api.IntervalStartEvent
+import org.junit.jupiter.api.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.time.Instant
+import java.util.*
+import kotlin.test.assertEquals
+import kotlin.test.assertIs
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+class BinaryFormatTest {
+
+    @Test
+    fun testRoundTrip_instantEvent() {
+        val event = InstantEvent(UUID.randomUUID(), "TestEvent", Instant.now().toEpochMilli())
+        event.putAttribute("testAttribute", "testValue")
+        event.putAttribute("testAttribute2", "testValue2")
+
+        val decodedEvents = roundTrip(listOf(event))
+
+        assertEquals(1, decodedEvents.size)
+        assertIs<InstantEvent>(decodedEvents[0])
+        assertEventEquals(event, decodedEvents[0])
+    }
+
+    @Test
+    fun testRoundTrip_intervalEvents() {
+        val time = Instant.now().toEpochMilli()
+        val startEvent = IntervalStartEvent(UUID.randomUUID(), "TestEvent", time)
+        startEvent.putAttribute("testAttribute", "testValue")
+
+        val endEvent = IntervalEndEvent(UUID.randomUUID(), startEvent.id, "TestEvent", time + 250)
+        endEvent.putAttribute("testAttribute", "testValue")
+
+        val decodedEvents = roundTrip(listOf(startEvent, endEvent))
+
+        assertEquals(2, decodedEvents.size)
+        assertIs<IntervalStartEvent>(decodedEvents[0])
+        assertIs<IntervalEndEvent>(decodedEvents[1])
+        assertEventEquals(startEvent, decodedEvents[0])
+        assertEventEquals(endEvent, decodedEvents[1])
+    }
+
+    @Test
+    fun testRoundTrip_timestampsOutOfOrder_decodedExactly() {
+        val time = Instant.now().toEpochMilli()
+        val events = listOf(
+            InstantEvent("a", time),
+            InstantEvent("b", time - 5000),
+            InstantEvent("c", time + 1),
+            InstantEvent("d", 0)
+        )
+
+        val decodedEvents = roundTrip(events)
+
+        assertEquals(events.map { it.timeMs }, decodedEvents.map { it.timeMs })
+    }
+
+    @Test
+    fun testRoundTrip_nonAsciiStrings_decodedExactly() {
+        val event = InstantEvent("ÉvÉnement 😀", Instant.now().toEpochMilli())
+        event.putAttribute("ключ", "值 🚀 value")
+
+        val decodedEvents = roundTrip(listOf(event))
+
+        assertEventEquals(event, decodedEvents[0])
+    }
+
+    @Test
+    fun testRoundTrip_typedValues_decodedWithType() {
+        val event = InstantEvent(UUID.randomUUID(), "TestEvent", Instant.now().toEpochMilli())
+        event.putAttribute("text", "value")
+        event.putAttribute("count", Long.MIN_VALUE)
+        event.putAttribute("ratio", -0.25)
+        event.putAttribute("hit", true)
+        event.putAttribute("miss", false)
+
+        val decodedEvents = roundTrip(listOf(event, createEvent("Plain", "text")))
+
+        assertEventEquals(event, decodedEvents[0])
+        assertEquals(Long.MIN_VALUE, decodedEvents[0].getAttributeValue("count"))
+        assertEquals(-0.25, decodedEvents[0].getAttributeValue("ratio"))
+        assertEquals("value", decodedEvents[1].getAttributeValue("text"))
+    }
+
+    @Test
+    fun testEncode_onlyStringValues_writesUntypedRecord() {
+        val bytes = encodeAll(listOf(createEvent("TestEvent", "text")))
+
+        // Readers from before typed values existed skip typed records, so they must not be written needlessly
+        assertEquals(listOf(
+            BinaryFormat.RECORD_SESSION_START,
+            BinaryFormat.RECORD_DEFINE_EVENT_NAME,
+            BinaryFormat.RECORD_DEFINE_ATTRIBUTE_NAME,
+            BinaryFormat.RECORD_EVENT
+        ), readRecordTypes(bytes))
+    }
+
+    @Test
+    fun testRoundTrip_multipleSessions_stringTablesReset() {
+        val output = ByteArrayOutputStream()
+
+        val firstSession = BinaryFormat.createEncoder(output)
+        firstSession.writeHeader()
+        firstSession.writeSessionStart()
+        firstSession.writeEvent(createEvent("first", "a1"))
+
+        val secondSession = BinaryFormat.createEncoder(output)
+        secondSession.writeSessionStart()
+        secondSession.writeEvent(createEvent("second", "a2"))
+
+        val decodedEvents = decodeAll(output.toByteArray())
+
+        assertEquals(listOf("first", "second"), decodedEvents.map { it.name })
+        assertEquals("value", decodedEvents[0].getAttribute("a1"))
+        assertEquals("value", decodedEvents[1].getAttribute("a2"))
+    }
+
+    @Test
+    fun testReadAttributeTypes_multipleSessions_allNamesOnce() {
+        val output = ByteArrayOutputStream()
+
+        val firstSession = BinaryFormat.createEncoder(output)
+        firstSession.writeHeader()
+        firstSession.writeSessionStart()
+        firstSession.writeEvent(createEvent("first", "a1"))
+        firstSession.writeEvent(createEvent("first", "a2"))
+
+        val secondSession = BinaryFormat.createEncoder(output)
+        secondSession.writeSessionStart()
+        secondSession.writeEvent(createEvent("second", "a1"))
+        secondSession.writeEvent(createEvent("second", "a3"))
+
+        val decoder = BinaryFormat.createDecoder(ByteArrayInputStream(output.toByteArray()))
+        val expected = decodeAll(output.toByteArray()).flatMap { it.getAllAttributeNames() }.toSet()
+
+        assertEquals(expected, decoder.readAttributeTypes().keys)
+        assertTrue(expected.containsAll(listOf("a1", "a2", "a3")))
+    }
+
+    @Test
+    fun testReadAttributeTypes_typedValues_sameAsDecodedValueClasses() {
+        val event = InstantEvent(UUID.randomUUID(), "TestEvent", 42L)
+        event.putAttribute("text", "value")
+        event.putAttribute("count", 3L)
+        event.putAttribute("ratio", 0.5)
+        event.putAttribute("hit", true)
+
+        val output = ByteArrayOutputStream()
+        val encoder = BinaryFormat.createEncoder(output)
+        encoder.writeHeader()
+        encoder.writeSessionStart()
+        encoder.writeEvent(event)
+        encoder.flush()
+
+        val decodedEvent = decodeAll(output.toByteArray()).single()
+        val expected: Map<String, Class<*>> = decodedEvent.getAllAttributeNames().associateWith { decodedEvent.getAttributeValue(it)!!.javaClass }
+
+        val decoder = BinaryFormat.createDecoder(ByteArrayInputStream(output.toByteArray()))
+
+        assertEquals(expected, decoder.readAttributeTypes())
+        assertEquals<Class<*>?>(java.lang.Boolean::class.java, expected["hit"])
+    }
+
+    @Test
+    fun testDecode_truncatedFinalRecord_ignored() {
+        val output = ByteArrayOutputStream()
+        val encoder = BinaryFormat.createEncoder(output)
+        encoder.writeHeader()
+        encoder.writeSessionStart()
+        encoder.writeEvent(createEvent("first", "a1"))
+        encoder.writeEvent(createEvent("second", "a1"))
+
+        val bytes = output.toByteArray()
+        val decodedEvents = decodeAll(bytes.copyOf(bytes.size - 3))
+
+        assertEquals(listOf("first"), decodedEvents.map { it.name })
+    }
+
+    @Test
+    fun testDecode_emptyInput_returnsNull() {
+        val decoder = BinaryFormat.createDecoder(ByteArrayInputStream(ByteArray(0)))
+
+        assertNull(decoder.readEvent())
+    }
+
+    @Test
+    fun testEncode_smallerThanCsv() {
+        val events = (0 until 100).map { i ->
+            val event = InstantEvent("RequestHandled", 1_700_000_000_000L + i)
+            event.putAttribute("thread", "worker-${i % 4}")
+            event.putAttribute("status", "200")
+            event
+        }
+
+        val binarySize = encodeAll(events).size
+        val csvOutput = java.io.StringWriter()
+        val csvWriter = CsvFormat.createWriter(csvOutput)
+        events.forEach { csvWriter.writeRow(CsvFormat.serialize(it)) }
+
+        assertTrue(binarySize * 2 < csvOutput.toString().toByteArray(CsvFormat.CHARSET).size)
+    }
+
+    private fun createEvent(name: String, attributeName: String): Event {
+        val event = InstantEvent(name, Instant.now().toEpochMilli())
+        event.putAttribute(attributeName, "value")
+        return event
+    }
+
+    private fun roundTrip(events: List<Event>): List<Event> {
+        return decodeAll(encodeAll(events))
+    }
+
+    private fun encodeAll(events: List<Event>): ByteArray {
+        val output = ByteArrayOutputStream()
+        val encoder = BinaryFormat.createEncoder(output)
+
+        encoder.writeHeader()
+        encoder.writeSessionStart()
+        events.forEach { encoder.writeEvent(it) }
+
+        return output.toByteArray()
+    }
+
+    private fun readRecordTypes(bytes: ByteArray): List<Int> {
+        val reader = RecordReader(bytes, BinaryFormat.MAGIC.size + 1, bytes.size)
+        val recordTypes = ArrayList<Int>()
+
+        while (reader.hasRemaining()) {
+            val length = reader.readVarInt()
+            recordTypes.add(bytes[reader.position].toInt())
+            reader.skip(length)
+        }
+
+        return recordTypes
+    }
+
+    private fun decodeAll(bytes: ByteArray): List<Event> {
+        val decoder = BinaryFormat.createDecoder(ByteArrayInputStream(bytes))
+        val events = ArrayList<Event>()
+
+        while (true) {
+            events.add(decoder.readEvent() ?: break)
+        }
+
+        return events
+    }
+
+    private fun assertEventEquals(expected: Event, actual: Event) {
+        assertEquals(expected.id, actual.id)
+        assertEquals(expected.correlationId, actual.correlationId)
+        assertEquals(expected.type, actual.type)
+        assertEquals(expected.name, actual.name)
+        assertEquals(expected.timeMs, actual.timeMs)
+        assertEquals(expected.getAttributeData(), actual.getAttributeData())
+    }
+}
@@ -6,9 +6,12 @@ import codes.nibby.callsign.api.IntervalEndEvent
 import codes.nibby.callsign.api.IntervalStartEvent
 import kotlinx.serialization.json.Json
 import org.junit.jupiter.api.Test
+import java.io.StringReader
+import java.io.StringWriter
 import java.time.Instant
 import java.util.*
 import kotlin.test.assertEquals
+import kotlin.test.assertFails
 import kotlin.test.assertIs
 import kotlin.test.assertNotNull
 import kotlin.test.assertNull
@@ -156,6 +159,166 @@ class CsvFormatTest {
         assertEquals(event.getAttributeData(), deserializedEvent.getAttributeData())
     }
 
+    @Test
+    fun testSerialize_attributesNeedingEscapes_matchesKotlinxJson() {
+        val event = InstantEvent(UUID.randomUUID(), "TestEvent", 0L)
+        event.putAttribute("quote", "a \"quoted\" value")
+        event.putAttribute("backslash", "C:\\path\\file")
+        event.putAttribute("whitespace", "line\nbreak\r\ttab\b\u000C")
+        event.putAttribute("control", "\u0000\u0001\u001F")
+        event.putAttribute("unicode", "\u00e9\u4e2d\uD83D\uDE00\u007F\u2028")
+        event.putAttribute("empty", "")
+
+        val expected = Json.encodeToString(AttributeData.serializer(), event.getAttributeData())
+
+        assertEquals(expected, CsvFormat.serialize(event)[5])
+    }
+
+    @Test
+    fun testWriteRow_matchesCsvWriterOutput() {
+        val event = IntervalEndEvent(UUID.randomUUID(), UUID.randomUUID(), "Name, with \"quotes\"", 123L)
+        event.putAttribute("multiline", "first\r\nsecond, \"third\"")
+
+        val expected = StringWriter()
+        CsvFormat.createWriter(expected).writeRow(CsvFormat.serialize(event))
+
+        val actual = StringBuilder()
+        CsvFormat.writeRow(event, actual)
+
+        assertEquals(expected.toString(), actual.toString())
+    }
+
+    @Test
+    fun testWriteRow_readBackWithCsvReader_roundTrips() {
+        val event = InstantEvent(UUID.randomUUID(), "TestEvent", 42L)
+        event.putAttribute("text", "a,b \"c\"\n\\d")
+
+        val row = StringBuilder()
+        CsvFormat.writeRow(event, row)
+
+        val fields = CsvFormat.createReader(StringReader(row.toString())).first().fields
+        val deserializedEvent = CsvFormat.deserialize(fields)
+
+        assertNotNull(deserializedEvent)
+        assertEquals(event.getAttributeData(), deserializedEvent.getAttributeData())
+    }
+
+    @Test
+    fun testDeserialize_formattedAttributeJson_readsAttributes() {
+        val id = UUID.randomUUID()
+        val attributeData = "{ \"map\" : {\n  \"\$event_name\" : \"TestEvent\",\n  \"key\" : \"caf\\u00E9\\/\" } }"
+
+        val event = CsvFormat.deserialize(listOf(id.toString(), "", InstantEvent.TYPE, "TestEvent", "1", attributeData))
+
+        assertNotNull(event)
+        assertEquals("caf\u00e9/", event.getAttribute("key"))
+        assertEquals("TestEvent", event.name)
+    }
+
+    @Test
+    fun testRoundTripDeserialize_typedValues_keepTypes() {
+        val event = InstantEvent(UUID.randomUUID(), "TestEvent", 42L)
+        event.putAttribute("text", "12")
+        event.putAttribute("count", -12L)
+        event.putAttribute("ratio", 1.0E-9)
+        event.putAttribute("whole", 3.0)
+        event.putAttribute("nan", Double.NaN)
+        event.putAttribute("hit", true)
+
+        val row = StringBuilder()
+        CsvFormat.writeRow(event, row)
+
+        val fields = CsvFormat.createReader(StringReader(row.toString())).first().fields
+        val deserializedEvent = CsvFormat.deserialize(fields)
+
+        assertNotNull(deserializedEvent)
+        assertEquals("12", deserializedEvent.getAttributeValue("text"))
+        assertEquals(-12L, deserializedEvent.getAttributeValue("count"))
+        assertEquals(1.0E-9, deserializedEvent.getAttributeValue("ratio"))
+        assertEquals(3.0, deserializedEvent.getAttributeValue("whole"))
+        assertEquals(Double.NaN, deserializedEvent.getAttributeValue("nan"))
+        assertEquals(true, deserializedEvent.getAttributeValue("hit"))
+    }
+
+    @Test
+    fun testSerialize_typedValues_matchesKotlinxJson() {
+        val event = InstantEvent(UUID.randomUUID(), "TestEvent", 0L)
+        event.putAttribute("count", 7L)
+        event.putAttribute("ratio", 0.5)
+        event.putAttribute("hit", false)
+
+        val expected = Json.encodeToString(AttributeData.serializer(), event.getAttributeData())
+
+        assertEquals(expected, CsvFormat.serialize(event)[5])
+        assertEquals(event.getAttributeData(), Json.decodeFromString(AttributeData.serializer(), expected))
+    }
+
+    @Test
+    fun testDeserializeTrusted_sameAsDeserialize() {
+        val event = IntervalEndEvent(UUID.randomUUID(), UUID.randomUUID(), "TestEvent", 42L)
+        event.putAttribute("text", "a,b \"c\"")
+        event.putAttribute("count", 3L)
+
+        val fields = CsvFormat.serialize(event)
+        val deserializedEvent = CsvFormat.deserialize(fields)
+        val trustedEvent = CsvFormat.deserializeTrusted(fields)
+
+        assertNotNull(deserializedEvent)
+        assertNotNull(trustedEvent)
+        assertIs<IntervalEndEvent>(trustedEvent)
+        assertEquals(deserializedEvent.correlationId, trustedEvent.correlationId)
+        assertEquals(deserializedEvent.getAttributeData(), trustedEvent.getAttributeData())
+    }
+
+    @Test
+    fun testDeserializeTrusted_formattedAttributeJson_readsAttributes() {
+        val id = UUID.randomUUID()
+        val attributeData = "{ \"map\" : { \"\$event_name\" : \"TestEvent\", \"key\" : \"value\" } }"
+
+        val event = CsvFormat.deserializeTrusted(listOf(id.toString(), "", InstantEvent.TYPE, "TestEvent", "1", attributeData))
+
+        assertNotNull(event)
+        assertEquals("value", event.getAttribute("key"))
+        assertEquals("TestEvent", event.name)
+    }
+
+    @Test
+    fun testCollectAttributeTypes_sameAsDeserializedValueClasses() {
+        val event = InstantEvent(UUID.randomUUID(), "TestEvent", 42L)
+        event.putAttribute("text", "a,b \"c\" \\ }")
+        event.putAttribute("count", 3L)
+        event.putAttribute("hit", true)
+        event.putAttribute("ratio", 0.5)
+
+        val fields = CsvFormat.serialize(event)
+        val types = HashMap<String, Class<*>>()
+        CsvFormat.collectAttributeTypes(fields, types)
+
+        val deserialized = CsvFormat.deserialize(fields)!!
+        assertEquals<Map<String, Class<*>>>(deserialized.getAllAttributeNames().associateWith { deserialized.getAttributeValue(it)!!.javaClass }, types)
+    }
+
+    @Test
+    fun testCollectAttributeTypes_formattedAttributeJson_readsTypes() {
+        val id = UUID.randomUUID()
+        val attributeData = "{ \"map\" : { \"\$event_name\" : \"TestEvent\", \"key\" : 1.5 } }"
+
+        val types = HashMap<String, Class<*>>()
+        CsvFormat.collectAttributeTypes(listOf(id.toString(), "", InstantEvent.TYPE, "TestEvent", "1", attributeData), types)
+
+        assertEquals<Map<String, Class<*>>>(mapOf("\$event_name" to String::class.java, "key" to java.lang.Double::class.java), types)
+    }
+
+    @Test
+    fun testDeserialize_truncatedAttributeJson_throws() {
+        val id = UUID.randomUUID()
+        val fields = listOf(id.toString(), "", InstantEvent.TYPE, "TestEvent", "1", "{\"map\":{\"key\":\"val")
+
+        assertFails {
+            CsvFormat.deserialize(fields)
+        }
+    }
+
     @Test
     fun testDeserialize_emptyFields_returnsNull() {
         assertNull(CsvFormat.deserialize(listOf()))
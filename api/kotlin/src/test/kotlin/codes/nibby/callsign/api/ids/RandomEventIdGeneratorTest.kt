@@ -0,0 +1,29 @@
+package codes.nibby.callsign.api.ids
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import java.util.*
+
+class RandomEventIdGeneratorTest {
+
+    @Test
+    fun testGenerateId_isVersion4WithIetfVariant() {
+        for (i in 0 until 1000) {
+            val id = RandomEventIdGenerator.generateId()
+
+            assertEquals(4, id.version())
+            assertEquals(2, id.variant())
+        }
+    }
+
+    @Test
+    fun testGenerateId_unique() {
+        val ids = HashSet<UUID>()
+
+        for (i in 0 until 100_000) {
+            ids.add(RandomEventIdGenerator.generateId())
+        }
+
+        assertEquals(100_000, ids.size)
+    }
+}
@@ -0,0 +1,71 @@
+package codes.nibby.callsign.api.ids
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.function.LongSupplier
+
+class TimeOrderedEventIdGeneratorTest {
+
+    @Test
+    fun testGenerateId_isVersion7WithIetfVariant() {
+        val id = TimeOrderedEventIdGenerator().generateId()
+
+        assertEquals(7, id.version())
+        assertEquals(2, id.variant())
+    }
+
+    @Test
+    fun testGenerateId_embedsClockTime() {
+        val time = 1_700_000_000_123L
+        val id = TimeOrderedEventIdGenerator { time }.generateId()
+
+        assertEquals(time, id.mostSignificantBits ushr 16)
+    }
+
+    @Test
+    fun testGenerateId_sameMillisecond_strictlyIncreasingAsStrings() {
+        val generator = TimeOrderedEventIdGenerator { 1_700_000_000_000L }
+
+        var previous = generator.generateId().toString()
+
+        for (i in 0 until 10_000) {
+            val next = generator.generateId().toString()
+            assertTrue(next > previous, "$next should sort after $previous")
+            previous = next
+        }
+    }
+
+    @Test
+    fun testGenerateId_clockGoesBackwards_stillIncreasing() {
+        var time = 1_700_000_000_000L
+        val generator = TimeOrderedEventIdGenerator(LongSupplier { time })
+
+        val first = generator.generateId()
+        time -= 1000
+        val second = generator.generateId()
+
+        assertTrue(second.toString() > first.toString())
+    }
+
+    @Test
+    fun testGenerateId_manyThreads_allUnique() {
+        val generator = TimeOrderedEventIdGenerator()
+        val ids = ConcurrentHashMap.newKeySet<UUID>()
+        val idsPerThread = 20_000
+
+        val threads = (0 until 8).map {
+            Thread {
+                for (i in 0 until idsPerThread) {
+                    ids.add(generator.generateId())
+                }
+            }
+        }
+
+        threads.forEach { it.start() }
+        threads.forEach { it.join() }
+
+        assertEquals(8 * idsPerThread, ids.size)
+    }
+}
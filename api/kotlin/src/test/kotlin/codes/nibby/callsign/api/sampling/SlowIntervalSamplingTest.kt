@@ -0,0 +1,36 @@
+package codes.nibby.callsign.api.sampling
+
+import codes.nibby.callsign.api.SamplingPolicy
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+
+class SlowIntervalSamplingTest {
+
+    @Test
+    fun testSampleIntervalStart_otherPolicyKeeps_keeps() {
+        val sampling = SlowIntervalSampling(100, SamplingPolicy.ALWAYS)
+
+        assertEquals(SamplingPolicy.Decision.KEEP, sampling.sampleIntervalStart("a"))
+    }
+
+    @Test
+    fun testSampleIntervalStart_otherPolicyDrops_defers() {
+        val sampling = SlowIntervalSampling(100, FixedRateSampling(0.0))
+
+        assertEquals(SamplingPolicy.Decision.DEFER, sampling.sampleIntervalStart("a"))
+    }
+
+    @Test
+    fun testSampleIntervalEnd_keepsOnlyIntervalsReachingThreshold() {
+        val sampling = SlowIntervalSampling(100, FixedRateSampling(0.0))
+
+        assertFalse(sampling.sampleIntervalEnd("a", 99))
+        assertTrue(sampling.sampleIntervalEnd("a", 100))
+    }
+
+    @Test
+    fun testSampleInstant_usesOtherPolicy() {
+        assertFalse(SlowIntervalSampling(100, FixedRateSampling(0.0)).sampleInstant("a"))
+        assertTrue(SlowIntervalSampling(100, FixedRateSampling(1.0)).sampleInstant("a"))
+    }
+}
@@ -0,0 +1,58 @@
+package codes.nibby.callsign.api.sampling
+
+import codes.nibby.callsign.api.SamplingPolicy
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.util.concurrent.TimeUnit
+import java.util.function.LongSupplier
+
+class TokenBucketSamplingTest {
+
+    private var nowNanos = 0L
+    private val clock = LongSupplier { nowNanos }
+
+    @Test
+    fun testSampleInstant_burstUsedUp_dropsUntilRefilled() {
+        val sampling = TokenBucketSampling(10.0, 3, clock)
+
+        assertEquals(listOf(true, true, true, false), (0 until 4).map { sampling.sampleInstant("a") })
+
+        nowNanos += TimeUnit.MILLISECONDS.toNanos(100)
+
+        assertTrue(sampling.sampleInstant("a"))
+        assertFalse(sampling.sampleInstant("a"))
+    }
+
+    @Test
+    fun testSampleInstant_steadyRate_keepsConfiguredRate() {
+        val sampling = TokenBucketSampling(100.0, 1, clock)
+        var kept = 0
+
+        // 10 attempts per millisecond for one second
+        for (i in 0 until 10_000) {
+            if (sampling.sampleInstant("a")) {
+                kept++
+            }
+
+            nowNanos += TimeUnit.MICROSECONDS.toNanos(100)
+        }
+
+        assertEquals(100, kept)
+    }
+
+    @Test
+    fun testSampleIntervalStart_separateBucketPerName() {
+        val sampling = TokenBucketSampling(1.0, 1, clock)
+
+        assertEquals(SamplingPolicy.Decision.KEEP, sampling.sampleIntervalStart("a"))
+        assertEquals(SamplingPolicy.Decision.DROP, sampling.sampleIntervalStart("a"))
+        assertEquals(SamplingPolicy.Decision.KEEP, sampling.sampleIntervalStart("b"))
+    }
+
+    @Test
+    fun testConstructor_invalidRate_fails() {
+        assertThrows(IllegalArgumentException::class.java) {
+            TokenBucketSampling(0.0)
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package codes.nibby.callsign.api.sinks
+
+import codes.nibby.callsign.api.*
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import java.time.Instant
+import java.util.*
+import java.util.concurrent.CountDownLatch
+
+class AsyncBatchingSinkTest {
+
+    @Test
+    fun testPublishEvent_eventIsPublishedToDelegate() {
+        val delegate = CollectingSink()
+        val sink = AsyncBatchingSink(delegate)
+        val event = InstantEvent("Test", Instant.now().toEpochMilli())
+
+        sink.publishEvent(event)
+        sink.close()
+
+        Assertions.assertEquals(listOf(event), delegate.events)
+    }
+
+    @Test
+    fun testPublishEvent_queuedEvents_publishedToDelegateAsBatch() {
+        val delegate = CollectingSink()
+        val sink = AsyncBatchingSink(delegate, maxBatchSize = 16)
+        val events = (0 until 10).map { InstantEvent("Test", it.toLong()) }
+
+        // Queued before the writer gets to them, so that close() drains them in one batch
+        for (event in events) {
+            sink.publishEvent(event)
+        }
+
+        sink.close()
+
+        Assertions.assertEquals(events, delegate.events)
+        Assertions.assertEquals(events.size, delegate.batchSizes.sum())
+        Assertions.assertTrue(delegate.batchSizes.all { it in 1..16 })
+    }
+
+    @Test
+    fun testPublishEvent_manyProducers_allEventsPublishedInOrderPerProducer() {
+        val delegate = CollectingSink()
+        val sink = AsyncBatchingSink(delegate, capacity = 64, maxBatchSize = 16)
+
+        val producerCount = 8
+        val eventsPerProducer = 5_000
+        val startSignal = CountDownLatch(1)
+
+        val producers = (0 until producerCount).map { producer ->
+            Thread {
+                startSignal.await()
+
+                for (i in 0 until eventsPerProducer) {
+                    val event = InstantEvent("producer-$producer", i.toLong())
+                    sink.publishEvent(event)
+                }
+            }
+        }
+
+        producers.forEach { it.start() }
+        startSignal.countDown()
+        producers.forEach { it.join() }
+
+        sink.close()
+
+        Assertions.assertEquals(producerCount * eventsPerProducer, delegate.events.size)
+
+        val lastTimeByProducer = HashMap<String, Long>()
+
+        for (event in delegate.events) {
+            val lastTime = lastTimeByProducer[event.name] ?: -1L
+            Assertions.assertTrue(event.timeMs > lastTime, "Events from ${event.name} published out of order")
+
+            lastTimeByProducer[event.name] = event.timeMs
+        }
+    }
+
+    @Test
+    fun testPublishEvent_intervalStartEventModifiedAfterPublish_publishesAttributesAtPublishTime() {
+        val delegate = CollectingSink()
+        val sink = AsyncBatchingSink(delegate)
+        val event = IntervalStartEvent("Test", Instant.now().toEpochMilli())
+        event.putAttribute("a1", "v1")
+
+        sink.publishEvent(event)
+        event.putAttribute("a1", "modified")
+        sink.close()
+
+        val publishedEvent = delegate.events.single()
+
+        Assertions.assertEquals(event.id, publishedEvent.id)
+        Assertions.assertEquals("v1", publishedEvent.getAttribute("a1"))
+    }
+
+    @Test
+    fun testGetStats_listsOwnStatsBeforeDelegateStats() {
+        val delegate = CollectingSink()
+        val sink = AsyncBatchingSink(delegate)
+
+        sink.publishEvent(InstantEvent("Test", 0L))
+        sink.close()
+
+        val stats = sink.getStats()
+
+        Assertions.assertEquals(1, stats.size)
+        Assertions.assertEquals("AsyncBatchingSink", stats[0].sinkName)
+        Assertions.assertEquals(0L, stats[0].flushCount)
+        Assertions.assertEquals(0L, stats[0].bytesWritten)
+        Assertions.assertEquals(0, stats[0].queueDepth)
+    }
+
+    @Test
+    fun testPublishEvent_delegateFails_eventsCountedAsDroppedAndFailureRecorded() {
+        val failure = IllegalStateException("Delegate failed")
+
+        val sink = AsyncBatchingSink(object : TimelineLogSink {
+            override fun publishEvent(event: Event) {
+                throw failure
+            }
+        })
+
+        sink.publishEvent(InstantEvent("Test", 0L))
+        sink.publishEvent(InstantEvent("Test", 1L))
+        sink.close()
+
+        val stats = sink.getStats().single()
+
+        Assertions.assertEquals(2L, sink.droppedEventCount)
+        Assertions.assertEquals(mapOf("Test" to 2L), sink.droppedEventCounts)
+        Assertions.assertEquals(2L, stats.droppedEventCount)
+        Assertions.assertTrue(stats.failureCount >= 1)
+        Assertions.assertSame(failure, stats.lastFailure)
+    }
+
+    @Test
+    fun testClose_closesDelegate() {
+        val delegate = CollectingSink()
+        val sink = AsyncBatchingSink(delegate)
+
+        sink.close()
+
+        Assertions.assertTrue(delegate.closed)
+    }
+
+    @Test
+    fun testPublishEvent_afterClose_fails() {
+        val sink = AsyncBatchingSink(CollectingSink())
+        sink.close()
+
+        Assertions.assertThrows(IllegalStateException::class.java) {
+            sink.publishEvent(InstantEvent("Test", Instant.now().toEpochMilli()))
+        }
+    }
+
+    @Test
+    fun testClose_producersStillPublishing_everyAcceptedEventPublishedOrCountedAsDropped() {
+        val delegate = CollectingSink()
+        val sink = AsyncBatchingSink(delegate, capacity = 64, maxBatchSize = 16)
+
+        val producerCount = 4
+        val acceptedCounts = LongArray(producerCount)
+        val startSignal = CountDownLatch(producerCount)
+
+        val producers = (0 until producerCount).map { producer ->
+            Thread {
+                startSignal.countDown()
+
+                try {
+                    while (true) {
+                        sink.publishEvent(InstantEvent("producer-$producer", acceptedCounts[producer]))
+                        acceptedCounts[producer]++
+                    }
+                } catch (e: IllegalStateException) {
+                    // Closed
+                }
+            }
+        }
+
+        producers.forEach { it.start() }
+        startSignal.await()
+        Thread.sleep(20)
+
+        sink.close()
+        producers.forEach { it.join() }
+
+        val publishedCount = delegate.events.count { it.name.startsWith("producer-") }
+        Assertions.assertEquals(acceptedCounts.sum(), publishedCount + sink.droppedEventCount)
+    }
+
+    @Test
+    fun testPublishEvent_dropNewestWhileDelegateStalled_countsDropsAndWritesMarker() {
+        val delegate = StallingSink()
+        val sink = AsyncBatchingSink(delegate, capacity = 4, maxBatchSize = 1, overloadPolicy = OverloadPolicy.DROP_NEWEST)
+
+        // Wait for the sender to be stuck on the first event, otherwise it may free up space in between
+        sink.publishEvent(InstantEvent("Test", 0L))
+        delegate.awaitStalled()
+
+        for (i in 1 until 20) {
+            sink.publishEvent(InstantEvent("Test", i.toLong()))
+        }
+
+        val droppedCount = sink.droppedEventCount
+
+        delegate.release()
+        sink.close()
+
+        val publishedEvents = delegate.events.filter { it.name == "Test" }
+        val markers = delegate.events.filter { it.name == OverloadPolicy.DROPPED_EVENTS_EVENT_NAME }
+
+        Assertions.assertTrue(droppedCount > 0)
+        Assertions.assertEquals(20L, publishedEvents.size + droppedCount)
+        Assertions.assertEquals(mapOf("Test" to droppedCount), sink.droppedEventCounts)
+
+        Assertions.assertEquals(droppedCount, markers.sumOf { it.getAttribute(OverloadPolicy.DROPPED_COUNT_ATTRIBUTE)!!.toLong() })
+        Assertions.assertTrue(markers.all { it.getAttribute(OverloadPolicy.DROPPED_EVENT_NAME_ATTRIBUTE) == "Test" })
+
+        // The newest events are the ones dropped, so everything published comes first
+        Assertions.assertEquals((0L until publishedEvents.size).toList(), publishedEvents.map { it.timeMs })
+    }
+
+    @Test
+    fun testPublishEvent_dropOldestWhileDelegateStalled_keepsNewestEvents() {
+        val delegate = StallingSink()
+        val sink = AsyncBatchingSink(delegate, capacity = 4, maxBatchSize = 1, overloadPolicy = OverloadPolicy.DROP_OLDEST)
+
+        for (i in 0 until 20) {
+            sink.publishEvent(InstantEvent("Test", i.toLong()))
+        }
+
+        delegate.release()
+        sink.close()
+
+        val publishedTimes = delegate.events.filter { it.name == "Test" }.map { it.timeMs }
+
+        Assertions.assertEquals(listOf(16L, 17L, 18L, 19L), publishedTimes.takeLast(4))
+        Assertions.assertEquals(20L, publishedTimes.size + sink.droppedEventCount)
+    }
+
+    @Test
+    fun testPublishEvent_blockWithTimeoutWhileDelegateStalled_dropsAfterTimeout() {
+        val delegate = StallingSink()
+        val sink = AsyncBatchingSink(delegate, capacity = 2, maxBatchSize = 1, overloadPolicy = OverloadPolicy.blockWithTimeout(10))
+
+        for (i in 0 until 10) {
+            sink.publishEvent(InstantEvent("Test", i.toLong()))
+        }
+
+        Assertions.assertTrue(sink.droppedEventCount > 0)
+
+        delegate.release()
+        sink.close()
+    }
+
+    @Test
+    fun testPublishEvent_intervalStartDropped_dropsMatchingEndEvent() {
+        val delegate = StallingSink()
+        val sink = AsyncBatchingSink(delegate, capacity = 2, maxBatchSize = 1, overloadPolicy = OverloadPolicy.DROP_NEWEST)
+
+        for (i in 0 until 10) {
+            sink.publishEvent(InstantEvent("Filler", i.toLong()))
+        }
+
+        val startEvent = IntervalStartEvent("Interval", 100L)
+        sink.publishEvent(startEvent)
+
+        delegate.release()
+        Thread.sleep(50)
+
+        sink.publishEvent(IntervalEndEvent(startEvent.id, "Interval", 200L))
+        sink.close()
+
+        Assertions.assertTrue(delegate.events.none { it.name == "Interval" })
+        Assertions.assertEquals(2L, sink.droppedEventCounts["Interval"])
+    }
+
+    @Test
+    fun testPublishEvent_sampleUnderPressure_keepsEndEventsOfKeptIntervals() {
+        val delegate = StallingSink()
+        val sink = AsyncBatchingSink(delegate, capacity = 64, maxBatchSize = 1, overloadPolicy = OverloadPolicy.sample(oneIn = 4, threshold = 0.25))
+
+        val startEvents = (0 until 40).map { IntervalStartEvent("Interval", it.toLong()) }
+        startEvents.forEach { sink.publishEvent(it) }
+        startEvents.forEach { sink.publishEvent(IntervalEndEvent(it.id, "Interval", it.timeMs + 1)) }
+
+        delegate.release()
+        sink.close()
+
+        val published = delegate.events.filter { it.name == "Interval" }
+        val startIds = published.filterIsInstance<IntervalStartEvent>().map { it.id }.toSet()
+        val endIds = published.filterIsInstance<IntervalEndEvent>().map { it.correlationId }.toSet()
+
+        Assertions.assertTrue(sink.droppedEventCount > 0)
+        Assertions.assertEquals(startIds, endIds)
+        Assertions.assertEquals(80L, published.size + sink.droppedEventCount)
+    }
+
+    /**
+     * Blocks the writer thread on the first event until released, like a sink writing to a stalled disk.
+     */
+    private class StallingSink : TimelineLogSink {
+
+        val events: MutableList<Event> = Collections.synchronizedList(ArrayList())
+
+        private val stall = CountDownLatch(1)
+        private val stalled = CountDownLatch(1)
+
+        fun release() {
+            stall.countDown()
+        }
+
+        fun awaitStalled() {
+            stalled.await()
+        }
+
+        override fun publishEvent(event: Event) {
+            stalled.countDown()
+            stall.await()
+            events.add(event)
+        }
+    }
+
+    private class CollectingSink : TimelineLogSink, java.io.Closeable {
+
+        val events: MutableList<Event> = Collections.synchronizedList(ArrayList())
+
+        @Volatile
+        var closed = false
+
+        val batchSizes: MutableList<Int> = Collections.synchronizedList(ArrayList())
+
+        override fun publishEvent(event: Event) {
+            events.add(event)
+        }
+
+        override fun publishEvents(events: List<Event>) {
+            batchSizes.add(events.size)
+            super.publishEvents(events)
+        }
+
+        override fun close() {
+            closed = true
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package codes.nibby.callsign.api.sinks
+
+import codes.nibby.callsign.api.Event
+import codes.nibby.callsign.api.InstantEvent
+import codes.nibby.callsign.api.formats.BinaryFormat
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.time.Instant
+import java.util.*
+
+class BinaryFileSinkTest {
+
+    private val testDataFolder = Paths.get(System.getProperty("user.dir")).resolve("test").resolve(generateRandomTestFolderName())
+
+    private fun generateRandomTestFolderName(): String {
+        return this.javaClass.name + "-" + UUID.randomUUID().toString()
+    }
+
+    @BeforeEach
+    fun setup() {
+        if (!Files.isDirectory(testDataFolder)) {
+            Files.createDirectories(testDataFolder)
+        }
+    }
+
+    @AfterEach
+    fun teardown() {
+        if (Files.isDirectory(testDataFolder)) {
+            deleteFolderRecursive(testDataFolder)
+        }
+    }
+
+    private fun deleteFolderRecursive(folder: Path) {
+        val stream = Files.newDirectoryStream(folder)
+
+        for (path in stream) {
+            if (Files.isDirectory(path)) {
+                deleteFolderRecursive(path)
+            } else {
+                Files.delete(path)
+            }
+        }
+
+        Files.delete(folder)
+    }
+
+    @Test
+    fun testConstructor_outputFileMissing_createsItWithExtension() {
+        val sink = BinaryFileSink(testDataFolder.resolve("testFile"))
+
+        Assertions.assertTrue(Files.exists(sink.outputFile))
+        Assertions.assertTrue(sink.outputFile.fileName.toString().endsWith(".${BinaryFormat.EXTENSION}"))
+
+        sink.close()
+    }
+
+    @Test
+    fun testPublishEvent_appendsDataToFileEveryTime() {
+        val sink = BinaryFileSink(testDataFolder.resolve("testFile"))
+        var lengthBeforeWrite = sink.outputFile.toFile().length()
+
+        for (i in 0..10) {
+            sink.publishEvent(InstantEvent("Test", Instant.now().toEpochMilli()))
+
+            val lengthAfterWrite = sink.outputFile.toFile().length()
+            Assertions.assertTrue(lengthAfterWrite > lengthBeforeWrite, "$lengthBeforeWrite -> $lengthAfterWrite")
+
+            lengthBeforeWrite = lengthAfterWrite
+        }
+
+        sink.close()
+    }
+
+    @Test
+    fun testPublishEvents_batch_writtenWithOneFlush() {
+        val sink = BinaryFileSink(testDataFolder.resolve("testFile"))
+
+        sink.publishEvents((0 until 3).map { InstantEvent("Test", it.toLong()) })
+
+        val flushCount = sink.getStats().single().flushCount
+        sink.close()
+
+        val times = Files.newInputStream(sink.outputFile).use { input ->
+            val decoder = BinaryFormat.createDecoder(input)
+            generateSequence { decoder.readEvent() }.map { it.timeMs }.toList()
+        }
+
+        Assertions.assertEquals(1, flushCount)
+        Assertions.assertEquals(listOf(0L, 1L, 2L), times)
+    }
+
+    @Test
+    fun testPublishEvent_reopenedFile_allSessionsReadable() {
+        val firstSink = BinaryFileSink(testDataFolder.resolve("testFile"))
+        firstSink.publishEvent(InstantEvent("first", Instant.now().toEpochMilli()))
+        firstSink.close()
+
+        val secondSink = BinaryFileSink(testDataFolder.resolve("testFile"))
+        secondSink.publishEvent(InstantEvent("second", Instant.now().toEpochMilli()))
+        secondSink.close()
+
+        val events = ArrayList<Event>()
+
+        Files.newInputStream(secondSink.outputFile).use { input ->
+            val decoder = BinaryFormat.createDecoder(input)
+
+            while (true) {
+                events.add(decoder.readEvent() ?: break)
+            }
+        }
+
+        Assertions.assertEquals(listOf("first", "second"), events.map { it.name })
+    }
+
+    @Test
+    fun testConstructor_lastRecordTruncated_cutsItOffAndAllSessionsReadable() {
+        val firstSink = BinaryFileSink(testDataFolder.resolve("testFile"))
+        firstSink.publishEvent(InstantEvent("first", 1000L))
+        firstSink.publishEvent(InstantEvent("torn", 2000L))
+        firstSink.close()
+
+        // As if the process crashed while writing the last record
+        val file = firstSink.outputFile
+        val bytes = Files.readAllBytes(file)
+        Files.write(file, bytes.copyOf(bytes.size - 3))
+
+        val secondSink = BinaryFileSink(testDataFolder.resolve("testFile"))
+        secondSink.publishEvent(InstantEvent("second", 3000L))
+        secondSink.close()
+
+        val events = ArrayList<Event>()
+
+        Files.newInputStream(file).use { input ->
+            val decoder = BinaryFormat.createDecoder(input)
+
+            while (true) {
+                events.add(decoder.readEvent() ?: break)
+            }
+        }
+
+        Assertions.assertEquals(listOf("first", "second"), events.map { it.name })
+        Assertions.assertEquals(listOf(1000L, 3000L), events.map { it.timeMs })
+    }
+}
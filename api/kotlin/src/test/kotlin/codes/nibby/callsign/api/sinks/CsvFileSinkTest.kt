@@ -1,6 +1,7 @@
 package codes.nibby.callsign.api.sinks
 
 import codes.nibby.callsign.api.InstantEvent
+import codes.nibby.callsign.api.formats.CsvFormat
 import org.junit.jupiter.api.AfterEach
 import org.junit.jupiter.api.Assertions
 import org.junit.jupiter.api.BeforeEach
@@ -10,6 +11,7 @@ import java.nio.file.Path
 import java.nio.file.Paths
 import java.time.Instant
 import java.util.*
+import java.util.concurrent.CountDownLatch
 
 class CsvFileSinkTest {
 
@@ -63,6 +65,37 @@ class CsvFileSinkTest {
         Assertions.assertTrue(Files.exists(sink.outputFile))
     }
 
+    @Test
+    fun testGetStats_countsBytesAndFlushesOfThisSession() {
+        val sink = CsvFileSink(testDataFolder.resolve("testFile"))
+
+        for (i in 0 until 3) {
+            sink.publishEvent(InstantEvent("Test", i.toLong()))
+        }
+
+        sink.close()
+
+        val stats = sink.getStats().single()
+
+        Assertions.assertEquals(Files.size(sink.outputFile), stats.bytesWritten)
+        Assertions.assertEquals(3, stats.flushCount)
+        Assertions.assertEquals(3, stats.flushLatency.count)
+    }
+
+    @Test
+    fun testPublishEvents_batch_writtenWithOneWrite() {
+        val sink = CsvFileSink(testDataFolder.resolve("testFile"))
+
+        sink.publishEvents((0 until 3).map { InstantEvent("Test", it.toLong()) })
+
+        val stats = sink.getStats().single()
+        val rows = Files.readAllLines(sink.outputFile).filter { it.isNotEmpty() }
+        sink.close()
+
+        Assertions.assertEquals(1, stats.flushCount)
+        Assertions.assertEquals(3, rows.size)
+    }
+
     @Test
     fun testConstructor_outputFileExists_preservesExistingContent() {
         val sink = CsvFileSink(testDataFolder.resolve("testFile"))
@@ -86,6 +119,152 @@ class CsvFileSinkTest {
         }
     }
 
+    @Test
+    fun testPublishEvent_flushEveryNEvents_writesDataOnlyOnNthEvent() {
+        val sink = CsvFileSink(testDataFolder.resolve("testFile"), FlushPolicy(maxBufferedEvents = 3, flushOnShutdown = false))
+
+        sink.publishEvent(InstantEvent("Test", Instant.now().toEpochMilli()))
+        sink.publishEvent(InstantEvent("Test", Instant.now().toEpochMilli()))
+
+        Assertions.assertEquals(0, sink.outputFile.toFile().length())
+
+        sink.publishEvent(InstantEvent("Test", Instant.now().toEpochMilli()))
+
+        Assertions.assertTrue(sink.outputFile.toFile().length() > 0)
+
+        sink.close()
+    }
+
+    @Test
+    fun testPublishEvent_flushEveryNBytes_writesDataOnceThresholdReached() {
+        val sink = CsvFileSink(testDataFolder.resolve("testFile"), FlushPolicy(maxBufferedBytes = 4096, flushOnShutdown = false))
+
+        var publishedEvents = 0
+
+        while (sink.outputFile.toFile().length() == 0L) {
+            sink.publishEvent(InstantEvent("Test", Instant.now().toEpochMilli()))
+            publishedEvents++
+
+            Assertions.assertTrue(publishedEvents < 1000, "Data was never flushed")
+        }
+
+        Assertions.assertTrue(publishedEvents > 1, "Data was flushed before byte threshold was reached")
+        Assertions.assertTrue(sink.outputFile.toFile().length() >= 4096)
+
+        sink.close()
+    }
+
+    @Test
+    fun testPublishEvent_flushInterval_writesDataOnTimer() {
+        val sink = CsvFileSink(testDataFolder.resolve("testFile"), FlushPolicy(flushIntervalMs = 10, flushOnShutdown = false))
+
+        sink.publishEvent(InstantEvent("Test", Instant.now().toEpochMilli()))
+
+        val deadline = System.currentTimeMillis() + 5000
+
+        while (sink.outputFile.toFile().length() == 0L && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5)
+        }
+
+        Assertions.assertTrue(sink.outputFile.toFile().length() > 0)
+
+        sink.close()
+    }
+
+    @Test
+    fun testFlush_writesBufferedData() {
+        val sink = CsvFileSink(testDataFolder.resolve("testFile"), FlushPolicy(flushOnShutdown = false))
+        sink.publishEvent(InstantEvent("Test", Instant.now().toEpochMilli()))
+
+        Assertions.assertEquals(0, sink.outputFile.toFile().length())
+
+        sink.flush()
+
+        Assertions.assertTrue(sink.outputFile.toFile().length() > 0)
+
+        sink.close()
+    }
+
+    @Test
+    fun testClose_writesBufferedData() {
+        val sink = CsvFileSink(testDataFolder.resolve("testFile"), FlushPolicy(flushOnShutdown = false))
+        sink.publishEvent(InstantEvent("Test", Instant.now().toEpochMilli()))
+
+        sink.close()
+
+        Assertions.assertTrue(sink.outputFile.toFile().length() > 0)
+    }
+
+    @Test
+    fun testPublishEvent_afterClose_fails() {
+        val sink = CsvFileSink(testDataFolder.resolve("testFile"))
+        sink.close()
+
+        Assertions.assertThrows(IllegalStateException::class.java) {
+            sink.publishEvent(InstantEvent("Test", Instant.now().toEpochMilli()))
+        }
+    }
+
+    @Test
+    fun testPublishEvent_manyThreads_noRowsInterleavedOrLost() {
+        testConcurrentPublishing(FlushPolicy.EVERY_EVENT)
+    }
+
+    @Test
+    fun testPublishEvent_manyThreadsWithGroupCommit_noRowsInterleavedOrLost() {
+        testConcurrentPublishing(FlushPolicy.groupCommit(maxBufferedEvents = 64, maxBufferedBytes = 8192, flushIntervalMs = 5))
+    }
+
+    private fun testConcurrentPublishing(flushPolicy: FlushPolicy) {
+        val sink = CsvFileSink(testDataFolder.resolve("testFile"), flushPolicy)
+
+        val threadCount = 16
+        val eventsPerThread = 2_000
+        val startSignal = CountDownLatch(1)
+
+        val threads = (0 until threadCount).map { threadIndex ->
+            Thread {
+                startSignal.await()
+
+                for (i in 0 until eventsPerThread) {
+                    val event = InstantEvent("thread-$threadIndex", Instant.now().toEpochMilli())
+                    event.putAttribute("sequence", i.toString())
+                    // Values with separators, quotes and line breaks exercise the CSV escaping
+                    event.putAttribute("payload", "a,\"b\"\r\nc ${"x".repeat(i % 100)}")
+                    sink.publishEvent(event)
+                }
+            }
+        }
+
+        threads.forEach { it.start() }
+        startSignal.countDown()
+        threads.forEach { it.join() }
+
+        sink.close()
+
+        val sequencesByThread = HashMap<String, MutableSet<Int>>()
+
+        Files.newBufferedReader(sink.outputFile, CsvFormat.CHARSET).use { reader ->
+            CsvFormat.createReader(reader).forEach { row ->
+                val event = CsvFormat.deserialize(row.fields)
+
+                Assertions.assertNotNull(event, "Row could not be parsed: ${row.fields}")
+
+                val sequence = event!!.getAttribute("sequence")!!.toInt()
+                Assertions.assertEquals("a,\"b\"\r\nc ${"x".repeat(sequence % 100)}", event.getAttribute("payload"))
+
+                val isNewSequence = sequencesByThread.getOrPut(event.name) { HashSet() }.add(sequence)
+                Assertions.assertTrue(isNewSequence, "Duplicate row for ${event.name}: $sequence")
+            }
+        }
+
+        Assertions.assertEquals(threadCount, sequencesByThread.size)
+
+        for ((threadName, sequences) in sequencesByThread) {
+            Assertions.assertEquals(eventsPerThread, sequences.size, "Rows lost for $threadName")
+        }
+    }
+
     private fun testWritesDataEveryCall(sink: CsvFileSink, iteration: Runnable) {
         var lengthBeforeWrite: Long = sink.outputFile.toFile().length()
 
@@ -0,0 +1,227 @@
+package codes.nibby.callsign.api.sinks
+
+import codes.nibby.callsign.api.*
+import codes.nibby.callsign.api.formats.BinaryFormat
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Assumptions
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import java.lang.management.ManagementFactory
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.util.*
+import java.util.stream.Collectors
+
+class FlightRecorderSinkTest {
+
+    private val testDataFolder = Paths.get(System.getProperty("user.dir")).resolve("test").resolve(generateRandomTestFolderName())
+
+    private fun generateRandomTestFolderName(): String {
+        return this.javaClass.name + "-" + UUID.randomUUID().toString()
+    }
+
+    @BeforeEach
+    fun setup() {
+        if (!Files.isDirectory(testDataFolder)) {
+            Files.createDirectories(testDataFolder)
+        }
+    }
+
+    @AfterEach
+    fun teardown() {
+        if (Files.isDirectory(testDataFolder)) {
+            deleteFolderRecursive(testDataFolder)
+        }
+    }
+
+    private fun deleteFolderRecursive(folder: Path) {
+        val stream = Files.newDirectoryStream(folder)
+
+        for (path in stream) {
+            if (Files.isDirectory(path)) {
+                deleteFolderRecursive(path)
+            } else {
+                Files.delete(path)
+            }
+        }
+
+        Files.delete(folder)
+    }
+
+    private fun readEvents(file: Path): List<Event> {
+        return Files.newInputStream(file).use { input ->
+            val decoder = BinaryFormat.createDecoder(input)
+            generateSequence { decoder.readEvent() }.toList()
+        }
+    }
+
+    private fun listDumpFiles(): List<Path> {
+        return Files.list(testDataFolder).use { files ->
+            files.filter { it.fileName.toString().endsWith(".${BinaryFormat.EXTENSION}") }.sorted().collect(Collectors.toList())
+        }
+    }
+
+    @Test
+    fun testDump_writesBufferedEvents() {
+        val sink = FlightRecorderSink(testDataFolder)
+
+        val startEvent = IntervalStartEvent("Interval", 1L)
+        startEvent.putAttribute("key", "välue")
+        val endEvent = IntervalEndEvent(UUID.randomUUID(), startEvent.id, "Interval", 2L)
+        val instantEvent = InstantEvent("Instant", 3L)
+
+        sink.publishEvent(startEvent)
+        sink.publishEvent(endEvent)
+        sink.publishEvent(instantEvent)
+
+        val events = readEvents(sink.dump())
+        sink.close()
+
+        Assertions.assertEquals(listOf(startEvent.id, endEvent.id, instantEvent.id), events.map { it.id })
+        Assertions.assertEquals("välue", events[0].getAttribute("key"))
+        Assertions.assertEquals(startEvent.id, events[1].correlationId)
+        Assertions.assertEquals(listOf(1L, 2L, 3L), events.map { it.timeMs })
+    }
+
+    @Test
+    fun testPublishEvent_ringFull_keepsMostRecentEvents() {
+        val sink = FlightRecorderSink(testDataFolder, maxBytes = 1024)
+
+        for (i in 0 until 200) {
+            sink.publishEvent(InstantEvent("Event", i.toLong()))
+        }
+
+        val times = readEvents(sink.dump()).map { it.timeMs }
+        sink.close()
+
+        Assertions.assertTrue(times.size in 1 until 200)
+        Assertions.assertEquals((200L - times.size until 200L).toList(), times)
+    }
+
+    @Test
+    fun testPublishEvent_maxEventsReached_keepsMostRecentEvents() {
+        val sink = FlightRecorderSink(testDataFolder, maxEvents = 5)
+
+        for (i in 0 until 20) {
+            sink.publishEvent(InstantEvent("Event", i.toLong()))
+        }
+
+        Assertions.assertEquals(5, sink.bufferedEventCount)
+
+        val times = readEvents(sink.dump()).map { it.timeMs }
+        sink.close()
+
+        Assertions.assertEquals(listOf(15L, 16L, 17L, 18L, 19L), times)
+    }
+
+    @Test
+    fun testPublishEvent_eventTooLargeForRing_isSkipped() {
+        val sink = FlightRecorderSink(testDataFolder, maxBytes = 1024)
+        val event = InstantEvent("Event", 0L)
+        event.putAttribute("payload", "x".repeat(2048))
+
+        sink.publishEvent(event)
+        sink.close()
+
+        Assertions.assertEquals(1L, sink.oversizedEventCount)
+        Assertions.assertEquals(0, sink.bufferedEventCount)
+    }
+
+    @Test
+    fun testPublishEvent_matchesTrigger_dumpsIncludingTriggeringEvent() {
+        val trigger = DumpTrigger("Error", "severity", "fatal")
+        val sink = FlightRecorderSink(testDataFolder, triggers = listOf(trigger))
+
+        sink.publishEvent(InstantEvent("Work", 1L))
+
+        val mismatchedEvent = InstantEvent("Error", 2L)
+        mismatchedEvent.putAttribute("severity", "minor")
+        sink.publishEvent(mismatchedEvent)
+
+        val errorEvent = InstantEvent("Error", 3L)
+        errorEvent.putAttribute("severity", "fatal")
+        sink.publishEvent(errorEvent)
+
+        // Waits for the triggered dump to finish
+        sink.close()
+
+        val dumpFiles = listDumpFiles()
+
+        Assertions.assertEquals(1, dumpFiles.size)
+        Assertions.assertEquals(listOf(1L, 2L, 3L), readEvents(dumpFiles[0]).map { it.timeMs })
+    }
+
+    @Test
+    fun testPublishEvent_triggerSeenRepeatedly_dumpsOncePerInterval() {
+        val sink = FlightRecorderSink(testDataFolder, triggers = listOf(DumpTrigger("Error")), minTriggerIntervalMs = 60_000)
+
+        for (i in 0 until 10) {
+            sink.publishEvent(InstantEvent("Error", i.toLong()))
+        }
+
+        sink.close()
+
+        Assertions.assertEquals(1, listDumpFiles().size)
+    }
+
+    @Test
+    fun testPublishEvent_triggeredDumpFails_failureCountedInStats() {
+        // A file where the dump directory should be, so that the dump cannot be written
+        val dumpDirectory = Files.createFile(testDataFolder.resolve("blocked"))
+        val sink = FlightRecorderSink(dumpDirectory, triggers = listOf(DumpTrigger("Error")))
+
+        sink.publishEvent(InstantEvent("Error", 1L))
+
+        // Waits for the triggered dump to finish
+        sink.close()
+
+        val stats = sink.getStats().single()
+
+        Assertions.assertEquals(1L, stats.failureCount)
+        Assertions.assertNotNull(stats.lastFailure)
+    }
+
+    @Test
+    fun testPublishEvent_afterWarmup_doesNotAllocate() {
+        val threadBean = ManagementFactory.getThreadMXBean()
+        Assumptions.assumeTrue(threadBean is com.sun.management.ThreadMXBean)
+
+        val allocationBean = threadBean as com.sun.management.ThreadMXBean
+        val sink = FlightRecorderSink(testDataFolder, maxBytes = 64 * 1024, triggers = listOf(DumpTrigger("Never")))
+
+        val events = (0 until 1000).map { i ->
+            val event = InstantEvent("Event", i.toLong())
+            event.putAttribute("key", "value-$i")
+            event.id
+            event
+        }
+
+        // Warm up the encode buffer and the code paths
+        repeat(20) { events.forEach { sink.publishEvent(it) } }
+
+        val threadId = Thread.currentThread().id
+        val allocatedBefore = allocationBean.getThreadAllocatedBytes(threadId)
+
+        for (event in events) {
+            sink.publishEvent(event)
+        }
+
+        val allocatedBytes = allocationBean.getThreadAllocatedBytes(threadId) - allocatedBefore
+        sink.close()
+
+        // Allows for a few bytes of measurement noise, an allocation per event would be far more
+        Assertions.assertTrue(allocatedBytes < events.size, "Allocated $allocatedBytes bytes for ${events.size} events")
+    }
+
+    @Test
+    fun testPublishEvent_afterClose_fails() {
+        val sink = FlightRecorderSink(testDataFolder)
+        sink.close()
+
+        Assertions.assertThrows(IllegalStateException::class.java) {
+            sink.publishEvent(InstantEvent("Test", 0L))
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package codes.nibby.callsign.api.sinks
+
+import codes.nibby.callsign.api.*
+import codes.nibby.callsign.api.formats.BinaryFormat
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import java.io.BufferedInputStream
+import java.net.InetAddress
+import java.net.ServerSocket
+import java.util.concurrent.TimeUnit
+
+class LoopbackSocketSinkTest {
+
+    @Test
+    fun testPublishEvent_collectorListening_streamsEventsAsBinaryFormat() {
+        ServerSocket(0, 1, InetAddress.getLoopbackAddress()).use { server ->
+            val sink = LoopbackSocketSink(server.localPort)
+            val logger = TimelineLogger(sink)
+
+            val startEvent = IntervalStartEvent("Request", 100L)
+            startEvent.putAttribute("path", "/index")
+
+            logger.recordEventStart(startEvent)
+            logger.recordEvent(InstantEvent("Cache miss", 150L))
+            logger.recordEventEnd(startEvent, 200L)
+
+            server.accept().use { socket ->
+                val decoder = BinaryFormat.createDecoder(BufferedInputStream(socket.getInputStream()))
+
+                val received = (0 until 3).map { decoder.readEvent()!! }
+
+                Assertions.assertEquals(listOf("Request", "Cache miss", "Request"), received.map { it.name })
+                Assertions.assertEquals("/index", received[0].getAttribute("path"))
+                Assertions.assertEquals(startEvent.id, received[2].correlationId)
+
+                sink.close()
+
+                Assertions.assertNull(decoder.readEvent())
+            }
+        }
+    }
+
+    @Test
+    fun testPublishEvent_noCollector_neverBlocksAndCountsDrops() {
+        val port = ServerSocket(0, 1, InetAddress.getLoopbackAddress()).use { it.localPort }
+        val sink = LoopbackSocketSink(port, capacity = 16)
+
+        val startNanos = System.nanoTime()
+
+        for (i in 0 until 1000) {
+            sink.publishEvent(InstantEvent("Test", i.toLong()))
+        }
+
+        val elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)
+
+        Assertions.assertFalse(sink.connected)
+        Assertions.assertEquals(16, sink.queueDepth)
+        Assertions.assertEquals(1000L - 16, sink.droppedEventCount)
+        Assertions.assertTrue(elapsedMs < 1000, "Publishing took $elapsedMs ms")
+
+        sink.close()
+    }
+
+    @Test
+    fun testPublishEvent_collectorStartsLater_sendsBufferedEventsAndDropMarker() {
+        val server = ServerSocket()
+        server.reuseAddress = true
+
+        val port = ServerSocket(0, 1, InetAddress.getLoopbackAddress()).use { it.localPort }
+        val sink = LoopbackSocketSink(port, capacity = 4, reconnectDelayMs = 10)
+
+        for (i in 0 until 6) {
+            sink.publishEvent(InstantEvent("Test", i.toLong()))
+        }
+
+        server.use {
+            server.bind(java.net.InetSocketAddress(InetAddress.getLoopbackAddress(), port))
+
+            server.accept().use { socket ->
+                val decoder = BinaryFormat.createDecoder(BufferedInputStream(socket.getInputStream()))
+                val received = (0 until 5).map { decoder.readEvent()!! }
+
+                Assertions.assertEquals(listOf(0L, 1L, 2L, 3L), received.take(4).map { it.timeMs })
+                Assertions.assertEquals(OverloadPolicy.DROPPED_EVENTS_EVENT_NAME, received[4].name)
+                Assertions.assertEquals("2", received[4].getAttribute(OverloadPolicy.DROPPED_COUNT_ATTRIBUTE))
+
+                sink.close()
+            }
+        }
+    }
+
+    @Test
+    fun testPublishEvent_afterClose_fails() {
+        val port = ServerSocket(0, 1, InetAddress.getLoopbackAddress()).use { it.localPort }
+        val sink = LoopbackSocketSink(port)
+        sink.close()
+
+        Assertions.assertThrows(IllegalStateException::class.java) {
+            sink.publishEvent(InstantEvent("Test", 0L))
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package codes.nibby.callsign.api.sinks
+
+import codes.nibby.callsign.api.*
+import codes.nibby.callsign.api.formats.EventRecordEncoder
+import codes.nibby.callsign.api.formats.MappedFormat
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.nio.file.StandardOpenOption
+import java.util.*
+
+class MappedFileSinkTest {
+
+    private val testDataFolder = Paths.get(System.getProperty("user.dir")).resolve("test").resolve(generateRandomTestFolderName())
+
+    private fun generateRandomTestFolderName(): String {
+        return this.javaClass.name + "-" + UUID.randomUUID().toString()
+    }
+
+    @BeforeEach
+    fun setup() {
+        if (!Files.isDirectory(testDataFolder)) {
+            Files.createDirectories(testDataFolder)
+        }
+    }
+
+    @AfterEach
+    fun teardown() {
+        if (Files.isDirectory(testDataFolder)) {
+            deleteFolderRecursive(testDataFolder)
+        }
+    }
+
+    private fun deleteFolderRecursive(folder: Path) {
+        val stream = Files.newDirectoryStream(folder)
+
+        for (path in stream) {
+            if (Files.isDirectory(path)) {
+                deleteFolderRecursive(path)
+            } else {
+                Files.delete(path)
+            }
+        }
+
+        Files.delete(folder)
+    }
+
+    private fun readEvents(file: Path): List<Event> {
+        return FileChannel.open(file, StandardOpenOption.READ).use { channel ->
+            val reader = MappedFormat.createReader(channel)
+            generateSequence { reader.readEvent() }.toList()
+        }
+    }
+
+    @Test
+    fun testPublishEvent_roundTrip_eventsReadBack() {
+        val sink = MappedFileSink(testDataFolder.resolve("trace"))
+
+        val startEvent = IntervalStartEvent("Interval", 1L)
+        startEvent.putAttribute("key", "välue")
+        val endEvent = IntervalEndEvent(UUID.randomUUID(), startEvent.id, "Interval", 2L)
+        val instantEvent = InstantEvent("Instant", 3L)
+
+        sink.publishEvent(startEvent)
+        sink.publishEvent(endEvent)
+        sink.publishEvent(instantEvent)
+        sink.close()
+
+        val events = readEvents(sink.outputFile)
+
+        Assertions.assertTrue(sink.outputFile.fileName.toString().endsWith(".${MappedFormat.EXTENSION}"))
+        Assertions.assertEquals(listOf(startEvent.id, endEvent.id, instantEvent.id), events.map { it.id })
+        Assertions.assertEquals("välue", events[0].getAttribute("key"))
+        Assertions.assertEquals(startEvent.id, events[1].correlationId)
+        Assertions.assertEquals(listOf(1L, 2L, 3L), events.map { it.timeMs })
+    }
+
+    @Test
+    fun testPublishEvent_typedValues_readBackWithType() {
+        val sink = MappedFileSink(testDataFolder.resolve("trace"))
+
+        val event = InstantEvent("Instant", 1L)
+        event.putAttribute("count", 3L)
+        event.putAttribute("ratio", 0.75)
+        event.putAttribute("hit", true)
+
+        sink.publishEvent(event)
+        sink.close()
+
+        val events = readEvents(sink.outputFile)
+
+        Assertions.assertEquals(3L, events[0].getAttributeValue("count"))
+        Assertions.assertEquals(0.75, events[0].getAttributeValue("ratio"))
+        Assertions.assertEquals(true, events[0].getAttributeValue("hit"))
+    }
+
+    @Test
+    fun testPublishEvent_manyThreads_allEventsWritten() {
+        val sink = MappedFileSink(testDataFolder.resolve("trace"), chunkSize = MappedFormat.MIN_CHUNK_SIZE)
+        val threadCount = 8
+        val eventsPerThread = 2000
+
+        val threads = (0 until threadCount).map { threadIndex ->
+            Thread {
+                for (i in 0 until eventsPerThread) {
+                    val event = InstantEvent("Thread $threadIndex", i.toLong())
+                    event.putAttribute("index", i.toString())
+                    sink.publishEvent(event)
+                }
+            }
+        }
+
+        threads.forEach { it.start() }
+        threads.forEach { it.join() }
+        sink.close()
+
+        val events = readEvents(sink.outputFile)
+
+        Assertions.assertEquals(threadCount * eventsPerThread, events.size)
+
+        for (threadIndex in 0 until threadCount) {
+            val times = events.filter { it.name == "Thread $threadIndex" }.map { it.timeMs }
+            Assertions.assertEquals((0L until eventsPerThread).toList(), times)
+        }
+    }
+
+    @Test
+    fun testPublishEvent_exceedsChunk_continuesInNextChunk() {
+        val chunkSize = MappedFormat.MIN_CHUNK_SIZE
+        val sink = MappedFileSink(testDataFolder.resolve("trace"), chunkSize = chunkSize)
+
+        for (i in 0 until 500) {
+            val event = InstantEvent("Event", i.toLong())
+            event.putAttribute("payload", "x".repeat(i % 50))
+            sink.publishEvent(event)
+        }
+
+        val oversizedEvent = InstantEvent("Oversized", 0L)
+        oversizedEvent.putAttribute("payload", "x".repeat(chunkSize))
+        sink.publishEvent(oversizedEvent)
+
+        sink.close()
+
+        Assertions.assertTrue(Files.size(sink.outputFile) > chunkSize * 2L)
+        Assertions.assertEquals(1L, sink.oversizedEventCount)
+        Assertions.assertEquals((0L until 500L).toList(), readEvents(sink.outputFile).map { it.timeMs })
+    }
+
+    @Test
+    fun testPublishEvents_batchSpanningChunks_allEventsWritten() {
+        val sink = MappedFileSink(testDataFolder.resolve("trace"), chunkSize = MappedFormat.MIN_CHUNK_SIZE)
+
+        val events = (0 until 300).map { i ->
+            val event = InstantEvent("Event", i.toLong())
+            event.putAttribute("payload", "x".repeat(i % 50))
+            event
+        }
+
+        val oversizedEvent = InstantEvent("Oversized", 0L)
+        oversizedEvent.putAttribute("payload", "x".repeat(MappedFormat.MIN_CHUNK_SIZE))
+
+        sink.publishEvents(events.subList(0, 100) + oversizedEvent + events.subList(100, 300))
+        sink.publishEvents(emptyList())
+        sink.close()
+
+        Assertions.assertEquals(1L, sink.oversizedEventCount)
+        Assertions.assertEquals((0L until 300L).toList(), readEvents(sink.outputFile).map { it.timeMs })
+    }
+
+    @Test
+    fun testReadEvent_tornAndUnwrittenRecords_areSkipped() {
+        val sink = MappedFileSink(testDataFolder.resolve("trace"), chunkSize = MappedFormat.MIN_CHUNK_SIZE)
+
+        sink.publishEvent(InstantEvent("Event", 1L))
+        sink.close()
+
+        // Simulates a writer that died after writing a record but before committing it, followed by one
+        // that reserved space but never wrote to it, and then a committed record after both
+        val file = sink.outputFile
+        val end = FileChannel.open(file, StandardOpenOption.READ).use { MappedFormat.createReader(it).skipToEnd() }
+        val record = EventRecordEncoder().encode(InstantEvent("Torn", 2L))
+        val committed = EventRecordEncoder().encode(InstantEvent("Event", 3L))
+
+        FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE).use { channel ->
+            val tornRecord = ByteBuffer.allocate(MappedFormat.alignedRecordSize(record.size))
+            tornRecord.putInt(0, record.size)
+            tornRecord.position(MappedFormat.RECORD_HEADER_SIZE)
+            tornRecord.put(record.bytes, 0, record.size)
+            tornRecord.position(0)
+            channel.write(tornRecord, end)
+
+            val committedPosition = end + tornRecord.capacity() + 32
+            val committedRecord = ByteBuffer.allocate(MappedFormat.alignedRecordSize(committed.size))
+            committedRecord.putInt(0, committed.size)
+            committedRecord.putInt(4, MappedFormat.commitMarker(committed.size))
+            committedRecord.position(MappedFormat.RECORD_HEADER_SIZE)
+            committedRecord.put(committed.bytes, 0, committed.size)
+            committedRecord.position(0)
+            channel.write(committedRecord, committedPosition)
+
+            // Clears the data end, as if the writer had never been closed
+            channel.write(ByteBuffer.allocate(8), MappedFormat.HEADER_DATA_END_OFFSET.toLong())
+        }
+
+        FileChannel.open(file, StandardOpenOption.READ).use { channel ->
+            val reader = MappedFormat.createReader(channel)
+            val events = generateSequence { reader.readEvent() }.toList()
+
+            Assertions.assertEquals(listOf(1L, 3L), events.map { it.timeMs })
+            Assertions.assertEquals(1L, reader.tornRecordCount)
+        }
+    }
+
+    @Test
+    fun testConstructor_existingFile_appendsAfterExistingEvents() {
+        val outputFile = testDataFolder.resolve("trace")
+
+        val firstSink = MappedFileSink(outputFile, chunkSize = MappedFormat.MIN_CHUNK_SIZE)
+        firstSink.publishEvent(InstantEvent("Event", 1L))
+        firstSink.publishEvent(InstantEvent("Event", 2L))
+        firstSink.close()
+
+        val secondSink = MappedFileSink(outputFile, chunkSize = MappedFormat.MIN_CHUNK_SIZE)
+        secondSink.publishEvent(InstantEvent("Event", 3L))
+        secondSink.close()
+
+        Assertions.assertEquals(listOf(1L, 2L, 3L), readEvents(secondSink.outputFile).map { it.timeMs })
+    }
+
+    @Test
+    fun testConstructor_existingFileOfOtherVersion_throws() {
+        val outputFile = testDataFolder.resolve("trace")
+
+        MappedFileSink(outputFile).close()
+
+        FileChannel.open(testDataFolder.resolve("trace.${MappedFormat.EXTENSION}"), StandardOpenOption.WRITE).use { channel ->
+            channel.write(ByteBuffer.wrap(byteArrayOf((MappedFormat.VERSION - 1).toByte())), MappedFormat.MAGIC.size.toLong())
+        }
+
+        Assertions.assertThrows(IOException::class.java) {
+            MappedFileSink(outputFile)
+        }
+    }
+
+    @Test
+    fun testPublishEvent_afterClose_throws() {
+        val sink = MappedFileSink(testDataFolder.resolve("trace"))
+        sink.close()
+
+        Assertions.assertThrows(IllegalStateException::class.java) {
+            sink.publishEvent(InstantEvent("Event", 1L))
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package codes.nibby.callsign.api.sinks
+
+import codes.nibby.callsign.api.Event
+import codes.nibby.callsign.api.InstantEvent
+import codes.nibby.callsign.api.IntervalEndEvent
+import codes.nibby.callsign.api.IntervalStartEvent
+import codes.nibby.callsign.api.TimelineLogger
+import codes.nibby.callsign.api.formats.CsvFormat
+import codes.nibby.callsign.api.formats.SegmentManifest
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.nio.file.StandardOpenOption
+import java.util.*
+import java.util.concurrent.CountDownLatch
+
+class RollingFileSinkTest {
+
+    private val testDataFolder = Paths.get(System.getProperty("user.dir")).resolve("test").resolve(generateRandomTestFolderName())
+
+    private fun generateRandomTestFolderName(): String {
+        return this.javaClass.name + "-" + UUID.randomUUID().toString()
+    }
+
+    @BeforeEach
+    fun setup() {
+        if (!Files.isDirectory(testDataFolder)) {
+            Files.createDirectories(testDataFolder)
+        }
+    }
+
+    @AfterEach
+    fun teardown() {
+        if (Files.isDirectory(testDataFolder)) {
+            deleteFolderRecursive(testDataFolder)
+        }
+    }
+
+    private fun deleteFolderRecursive(folder: Path) {
+        val stream = Files.newDirectoryStream(folder)
+
+        for (path in stream) {
+            if (Files.isDirectory(path)) {
+                deleteFolderRecursive(path)
+            } else {
+                Files.delete(path)
+            }
+        }
+
+        Files.delete(folder)
+    }
+
+    private fun readManifest(): SegmentManifest {
+        return SegmentManifest.read(testDataFolder.resolve("trace.${SegmentManifest.EXTENSION}"))
+    }
+
+    private fun readEventNames(segment: SegmentManifest.Entry): List<String> {
+        return readEvents(segment).map { it.name }
+    }
+
+    private fun readEvents(segment: SegmentManifest.Entry): List<Event> {
+        return Files.newBufferedReader(testDataFolder.resolve(segment.fileName)).use { reader ->
+            CsvFormat.createReader(reader).map { CsvFormat.deserialize(it.fields)!! }
+        }
+    }
+
+    @Test
+    fun testConstructor_writesManifestWithActiveSegment() {
+        val sink = RollingFileSink(testDataFolder, "trace")
+
+        val manifest = readManifest()
+
+        Assertions.assertEquals(1, manifest.entries.size)
+        Assertions.assertTrue(manifest.entries[0].active)
+        Assertions.assertFalse(manifest.entries[0].hasEvents())
+
+        sink.close()
+    }
+
+    @Test
+    fun testPublishEvent_segmentSizeExceeded_rollsOverToNewSegment() {
+        val sink = RollingFileSink(testDataFolder, "trace", RollingPolicy(maxSegmentBytes = 1024))
+
+        for (i in 0 until 100) {
+            sink.publishEvent(InstantEvent("event-$i", i.toLong()))
+        }
+
+        sink.close()
+
+        val manifest = readManifest()
+
+        Assertions.assertTrue(manifest.entries.size > 1)
+        Assertions.assertTrue(manifest.entries.none { it.active })
+
+        val names = manifest.entries.flatMap { readEventNames(it) }
+        Assertions.assertEquals((0 until 100).map { "event-$it" }, names)
+
+        for (entry in manifest.entries) {
+            Assertions.assertEquals(Files.size(testDataFolder.resolve(entry.fileName)), entry.sizeBytes)
+        }
+    }
+
+    @Test
+    fun testRecordEventEnd_intervalSpansSegmentBoundary_endSegmentHoldsAllAttributes() {
+        val sink = RollingFileSink(testDataFolder, "trace", RollingPolicy(maxSegmentBytes = 1024))
+        val logger = TimelineLogger(sink)
+
+        val startEvent = IntervalStartEvent("spanning", 1L)
+        startEvent.putAttribute("unchanged", "v1")
+        logger.recordEventStart(startEvent)
+
+        for (i in 0 until 100) {
+            logger.recordEvent(InstantEvent("filler-$i", 2L + i))
+        }
+
+        startEvent.putAttribute("changed", "v2")
+        logger.recordEventEnd(startEvent, 200L)
+        sink.close()
+
+        // Only the segments overlapping the end of the interval, as a time-range import would select them
+        val manifest = readManifest()
+        val selectedSegments = manifest.selectOverlapping(200L, 200L)
+        Assertions.assertFalse(selectedSegments.contains(manifest.entries[0]))
+
+        val endEvent = selectedSegments.flatMap { readEvents(it) }.filterIsInstance<IntervalEndEvent>().single()
+
+        Assertions.assertFalse(endEvent.isAttributeDelta())
+        Assertions.assertEquals("v1", endEvent.getAttribute("unchanged"))
+        Assertions.assertEquals("v2", endEvent.getAttribute("changed"))
+    }
+
+    @Test
+    fun testPublishEvent_segmentAgeExceeded_rollsOverToNewSegment() {
+        val sink = RollingFileSink(testDataFolder, "trace", RollingPolicy(maxSegmentBytes = 0, maxSegmentAgeMs = 1))
+
+        // The age is checked after each event is written, so the first segment must be due by then
+        Thread.sleep(5)
+        sink.publishEvent(InstantEvent("first", 1L))
+        Thread.sleep(5)
+        sink.publishEvent(InstantEvent("second", 2L))
+        sink.close()
+
+        val manifest = readManifest()
+
+        Assertions.assertEquals(listOf("first"), readEventNames(manifest.entries[0]))
+        Assertions.assertEquals(listOf("second"), readEventNames(manifest.entries[1]))
+    }
+
+    @Test
+    fun testManifest_recordsTimeRangeOfEachSegment() {
+        val sink = RollingFileSink(testDataFolder, "trace", RollingPolicy(maxSegmentBytes = 1))
+
+        sink.publishEvent(InstantEvent("a", 100L))
+        sink.publishEvent(InstantEvent("b", 200L))
+        sink.publishEvent(InstantEvent("c", 300L))
+        sink.close()
+
+        val manifest = readManifest()
+
+        Assertions.assertEquals(listOf(100L, 200L, 300L), manifest.entries.map { it.earliestTimeMs })
+        Assertions.assertEquals(listOf(100L, 200L, 300L), manifest.entries.map { it.latestTimeMs })
+
+        val selected = manifest.selectOverlapping(150L, 250L)
+        Assertions.assertEquals(1, selected.size)
+        Assertions.assertEquals(listOf("b"), readEventNames(selected[0]))
+
+        Assertions.assertEquals(100L, manifest.getEarliestTimeMs())
+        Assertions.assertEquals(300L, manifest.getLatestTimeMs())
+    }
+
+    @Test
+    fun testPublishEvents_batch_writtenToOneSegmentWithTimeRange() {
+        val sink = RollingFileSink(testDataFolder, "trace", RollingPolicy(maxSegmentBytes = 1))
+
+        sink.publishEvents(listOf(InstantEvent("a", 200L), InstantEvent("b", 100L), InstantEvent("c", 300L)))
+        sink.publishEvent(InstantEvent("d", 400L))
+        sink.close()
+
+        val manifest = readManifest()
+
+        Assertions.assertEquals(listOf(100L, 400L), manifest.entries.map { it.earliestTimeMs })
+        Assertions.assertEquals(listOf(300L, 400L), manifest.entries.map { it.latestTimeMs })
+        Assertions.assertEquals(listOf("a", "b", "c"), readEventNames(manifest.entries[0]))
+    }
+
+    @Test
+    fun testPublishEvent_totalSizeExceeded_deletesOldestSegments() {
+        val policy = RollingPolicy(maxSegmentBytes = 1, maxTotalBytes = 1024)
+        val sink = RollingFileSink(testDataFolder, "trace", policy)
+
+        for (i in 0 until 100) {
+            sink.publishEvent(InstantEvent("event-$i", i.toLong()))
+        }
+
+        sink.close()
+
+        val manifest = readManifest()
+        val segmentFiles = Files.list(testDataFolder).use { files ->
+            files.filter { it.fileName.toString().endsWith(".${CsvFormat.EXTENSION}") }.count()
+        }
+
+        Assertions.assertTrue(manifest.entries.size < 100)
+        Assertions.assertEquals(manifest.entries.size.toLong(), segmentFiles)
+        Assertions.assertTrue(manifest.entries.sumOf { it.sizeBytes } <= 1024 + manifest.entries.last().sizeBytes)
+        Assertions.assertEquals(listOf("event-99"), readEventNames(manifest.entries.last()))
+    }
+
+    @Test
+    fun testConstructor_existingSegments_continuesNumbering() {
+        val firstSink = RollingFileSink(testDataFolder, "trace", RollingPolicy(maxSegmentBytes = 1))
+        firstSink.publishEvent(InstantEvent("a", 1L))
+        firstSink.publishEvent(InstantEvent("b", 2L))
+        firstSink.close()
+
+        val secondSink = RollingFileSink(testDataFolder, "trace", RollingPolicy(maxSegmentBytes = 1))
+        secondSink.publishEvent(InstantEvent("c", 3L))
+        secondSink.close()
+
+        val manifest = readManifest()
+        val names = manifest.entries.flatMap { readEventNames(it) }
+
+        Assertions.assertEquals(listOf("a", "b", "c"), names)
+        Assertions.assertEquals(manifest.entries.size, manifest.entries.map { it.fileName }.toSet().size)
+    }
+
+    @Test
+    fun testConstructor_segmentLeftActive_recoversTimeRange() {
+        val crashedSink = RollingFileSink(testDataFolder, "trace")
+        crashedSink.publishEvent(InstantEvent("a", 10L))
+        crashedSink.publishEvent(InstantEvent("b", 20L))
+        // Not closed, so the manifest still lists the segment as active with no events
+
+        RollingFileSink(testDataFolder, "trace").close()
+
+        val recoveredSegment = readManifest().entries[0]
+
+        Assertions.assertFalse(recoveredSegment.active)
+        Assertions.assertEquals(10L, recoveredSegment.earliestTimeMs)
+        Assertions.assertEquals(20L, recoveredSegment.latestTimeMs)
+    }
+
+    @Test
+    fun testConstructor_segmentLeftActiveWithTornFinalRow_recoversTimeRangeOfCompleteRows() {
+        val crashedSink = RollingFileSink(testDataFolder, "trace")
+        crashedSink.publishEvent(InstantEvent("a", 10L))
+        crashedSink.publishEvent(InstantEvent("b", 20L))
+
+        val segmentFile = testDataFolder.resolve(readManifest().entries[0].fileName)
+        Files.write(segmentFile, "${UUID.randomUUID()},,i,c,30,\"{\"\"x".toByteArray(), StandardOpenOption.APPEND)
+
+        RollingFileSink(testDataFolder, "trace").close()
+
+        val recoveredSegment = readManifest().entries[0]
+
+        Assertions.assertFalse(recoveredSegment.damaged)
+        Assertions.assertEquals(10L, recoveredSegment.earliestTimeMs)
+        Assertions.assertEquals(20L, recoveredSegment.latestTimeMs)
+    }
+
+    @Test
+    fun testConstructor_segmentLeftActiveWithUnreadableRows_recordedAsDamaged() {
+        val crashedSink = RollingFileSink(testDataFolder, "trace")
+        crashedSink.publishEvent(InstantEvent("a", 10L))
+
+        val segmentFile = testDataFolder.resolve(readManifest().entries[0].fileName)
+        Files.write(segmentFile, "not-a-uuid,,i,b,5,{}\r\n".toByteArray(), StandardOpenOption.APPEND)
+        crashedSink.publishEvent(InstantEvent("c", 20L))
+
+        RollingFileSink(testDataFolder, "trace").close()
+
+        val recoveredSegment = readManifest().entries[0]
+
+        Assertions.assertTrue(recoveredSegment.damaged)
+        Assertions.assertTrue(recoveredSegment.overlaps(0L, 1L))
+    }
+
+    @Test
+    fun testPublishEvent_concurrentProducersDuringRollover_noEventsLost() {
+        val sink = RollingFileSink(testDataFolder, "trace", RollingPolicy(maxSegmentBytes = 4 * 1024))
+
+        val threadCount = 8
+        val eventsPerThread = 1000
+        val startSignal = CountDownLatch(1)
+
+        val threads = (0 until threadCount).map { thread ->
+            Thread {
+                startSignal.await()
+
+                for (i in 0 until eventsPerThread) {
+                    sink.publishEvent(InstantEvent("thread-$thread", i.toLong()))
+                }
+            }
+        }
+
+        threads.forEach { it.start() }
+        startSignal.countDown()
+        threads.forEach { it.join() }
+
+        sink.close()
+
+        val manifest = readManifest()
+        val names = manifest.entries.flatMap { readEventNames(it) }
+
+        Assertions.assertTrue(manifest.entries.size > 1)
+        Assertions.assertEquals(threadCount * eventsPerThread, names.size)
+    }
+
+    @Test
+    fun testPublishEvent_afterClose_fails() {
+        val sink = RollingFileSink(testDataFolder, "trace")
+        sink.close()
+
+        Assertions.assertThrows(IllegalStateException::class.java) {
+            sink.publishEvent(InstantEvent("Test", 0L))
+        }
+    }
+}
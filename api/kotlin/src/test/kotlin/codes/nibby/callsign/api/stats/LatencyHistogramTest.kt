@@ -0,0 +1,73 @@
+package codes.nibby.callsign.api.stats
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.util.*
+
+class LatencyHistogramTest {
+
+    @Test
+    fun testBucketIndex_valueWithinBucketBounds() {
+        val random = Random(42)
+        val values = (0L until 1000L) + (0 until 10_000).map { random.nextLong() and Long.MAX_VALUE } + Long.MAX_VALUE
+
+        for (value in values) {
+            val index = LatencyHistogram.bucketIndex(value)
+
+            assertTrue(index in 0 until LatencyHistogram.BUCKET_COUNT, "Index out of range for $value")
+            assertTrue(value >= LatencyHistogram.bucketLowerBound(index), "Below lower bound: $value")
+            assertTrue(value <= LatencyHistogram.bucketUpperBound(index), "Above upper bound: $value")
+        }
+    }
+
+    @Test
+    fun testPercentileNanos_withinBucketPrecision() {
+        val histogram = LatencyHistogram()
+
+        for (value in 1L..10_000L) {
+            histogram.record(value * 1000)
+        }
+
+        val snapshot = histogram.snapshot()
+
+        assertEquals(10_000, snapshot.count)
+        assertEquals(5_000_000.0, snapshot.percentileNanos(50.0).toDouble(), 5_000_000 * 0.125)
+        assertEquals(9_900_000.0, snapshot.percentileNanos(99.0).toDouble(), 9_900_000 * 0.125)
+        assertEquals(10_000_000.0, snapshot.maxNanos.toDouble(), 10_000_000 * 0.125)
+        assertEquals(5_000_500.0, snapshot.meanNanos, 5_000_500 * 0.125)
+    }
+
+    @Test
+    fun testPercentileNanos_nothingRecorded_returnsZero() {
+        val snapshot = LatencyHistogram().snapshot()
+
+        assertEquals(0, snapshot.count)
+        assertEquals(0, snapshot.percentileNanos(99.0))
+        assertEquals(0, snapshot.maxNanos)
+    }
+
+    @Test
+    fun testRecord_negativeValue_countedAsZero() {
+        val histogram = LatencyHistogram()
+
+        histogram.record(-5)
+
+        assertEquals(1, histogram.snapshot().count)
+        assertEquals(0, histogram.snapshot().maxNanos)
+    }
+
+    @Test
+    fun testSince_onlyIncludesLaterValues() {
+        val histogram = LatencyHistogram()
+        histogram.record(1_000_000)
+
+        val previous = histogram.snapshot()
+        histogram.record(10)
+        histogram.record(20)
+
+        val since = histogram.snapshot().since(previous)
+
+        assertEquals(2, since.count)
+        assertTrue(since.maxNanos < 1_000_000)
+    }
+}
@@ -0,0 +1,91 @@
+package codes.nibby.callsign.api.stats
+
+import codes.nibby.callsign.api.*
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+class StatsReporterTest {
+
+    @Test
+    fun testReport_recordsLoggerAndSinkStatsEvents() {
+        val sink = ReportingSink()
+        val logger = TimelineLogger(sink)
+
+        for (i in 0 until 10) {
+            logger.recordEvent(InstantEvent("work", i.toLong()))
+        }
+
+        StatsReporter(logger, intervalMs = 10).use {
+            val loggerEvent = sink.awaitEvent(StatsReporter.STATS_EVENT_NAME)
+            val sinkEvent = sink.awaitEvent(StatsReporter.SINK_STATS_EVENT_NAME)
+
+            assertNotNull(loggerEvent.getAttribute(StatsReporter.EVENTS_PER_SECOND_ATTRIBUTE))
+            assertNotNull(loggerEvent.getAttribute(StatsReporter.PUBLISH_LATENCY_ATTRIBUTE_PREFIX + "P99Ns"))
+            assertEquals("0", loggerEvent.getAttribute(StatsReporter.SAMPLED_OUT_COUNT_ATTRIBUTE))
+
+            assertEquals("ReportingSink", sinkEvent.getAttribute(StatsReporter.SINK_NAME_ATTRIBUTE))
+            assertEquals("7", sinkEvent.getAttribute(StatsReporter.QUEUE_DEPTH_ATTRIBUTE))
+        }
+    }
+
+    @Test
+    fun testReport_sinkStatsFail_failurePassedToHandler() {
+        val failure = IllegalStateException("Stats unavailable")
+
+        val logger = TimelineLogger(object : TimelineLogSink {
+            private var statsTaken = false
+
+            override fun publishEvent(event: Event) {
+            }
+
+            // The first stats are taken by the constructor, only the reports fail
+            override fun getStats(): List<SinkStats> {
+                if (statsTaken) {
+                    throw failure
+                }
+
+                statsTaken = true
+                return emptyList()
+            }
+        })
+
+        val failures = LinkedBlockingQueue<Exception>()
+
+        StatsReporter(logger, intervalMs = 10) { failures.add(it) }.use { reporter ->
+            assertSame(failure, failures.poll(5, TimeUnit.SECONDS))
+            assertTrue(reporter.failedReportCount >= 1)
+        }
+    }
+
+    @Test
+    fun testConstructor_invalidInterval_fails() {
+        assertThrows(IllegalArgumentException::class.java) {
+            StatsReporter(TimelineLogger(ReportingSink()), intervalMs = 0)
+        }
+    }
+
+    private class ReportingSink : TimelineLogSink {
+
+        private val events = LinkedBlockingQueue<Event>()
+
+        override fun publishEvent(event: Event) {
+            events.add(event)
+        }
+
+        override fun getStats(): List<SinkStats> {
+            return listOf(SinkStats("ReportingSink", queueDepth = 7))
+        }
+
+        fun awaitEvent(name: String): Event {
+            while (true) {
+                val event = events.poll(5, TimeUnit.SECONDS) ?: fail("No $name event was recorded")
+
+                if (event.name == name) {
+                    return event
+                }
+            }
+        }
+    }
+}
@@ -29,10 +29,13 @@ public final class ViewerApplication extends Application {
             var importTrace = new Button("New Trace Digest");
             importTrace.setOnAction(event -> createDigest(primaryStage));
 
+            var importSegments = new Button("New Trace Digest From Segments");
+            importSegments.setOnAction(event -> createDigestFromSegments(primaryStage));
+
             var openTimelineDigest = new Button("Open Trace Digest");
             openTimelineDigest.setOnAction(event -> openDigest());
 
-            pane.getChildren().addAll(importTrace, openTimelineDigest);
+            pane.getChildren().addAll(importTrace, importSegments, openTimelineDigest);
         }
 
         var scene = new Scene(pane);
@@ -44,6 +47,10 @@ public final class ViewerApplication extends Application {
         TraceDocumentCreateWizard.begin(controller, stage, preferences);
     }
 
+    private void createDigestFromSegments(Stage stage) {
+        TraceDocumentCreateWizard.beginFromSegmentDirectory(controller, stage, preferences);
+    }
+
     private void openDigest() {
 
     }
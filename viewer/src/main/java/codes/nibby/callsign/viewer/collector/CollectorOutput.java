@@ -0,0 +1,21 @@
+package codes.nibby.callsign.viewer.collector;
+
+import codes.nibby.callsign.api.Event;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Destination of the time-ordered events merged by a {@link TraceCollector}. Only ever called from the
+ * collector's writer thread.
+ */
+public interface CollectorOutput extends Closeable {
+
+    void write(Event event) throws IOException;
+
+    /**
+     * Commits all events written so far. Called whenever the collector has no more events ready to write.
+     */
+    void flush() throws IOException;
+
+}
@@ -0,0 +1,40 @@
+package codes.nibby.callsign.viewer.collector;
+
+import codes.nibby.callsign.api.Event;
+import codes.nibby.callsign.api.formats.BinaryFormat;
+import codes.nibby.callsign.api.sinks.BinaryFileSink;
+import codes.nibby.callsign.api.sinks.FlushPolicy;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Writes collected events to a binary raw trace file, which can be imported like any other raw trace file.
+ */
+public final class RawTraceFileCollectorOutput implements CollectorOutput {
+
+    private final BinaryFileSink sink;
+
+    /**
+     * @param outputFileWithoutExtension Path of the output file, the {@link BinaryFormat#EXTENSION} is appended to it
+     */
+    public RawTraceFileCollectorOutput(Path outputFileWithoutExtension) {
+        // Flushed by the collector whenever it catches up
+        this.sink = new BinaryFileSink(outputFileWithoutExtension, new FlushPolicy(0, 0, 0, true));
+    }
+
+    @Override
+    public void write(Event event) {
+        sink.publishEvent(event);
+    }
+
+    @Override
+    public void flush() {
+        sink.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        sink.close();
+    }
+}
@@ -0,0 +1,296 @@
+package codes.nibby.callsign.viewer.collector;
+
+import codes.nibby.callsign.api.Event;
+import codes.nibby.callsign.api.formats.BinaryFormat;
+import codes.nibby.callsign.api.sinks.LoopbackSocketSink;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accepts events from any number of {@link LoopbackSocketSink} producers on the local machine, and writes
+ * them to one {@link CollectorOutput} in time order.
+ * <p>
+ * Each producer connection is read on its own thread. Events are held back for the {@code reorderWindowMs}
+ * so that events from different producers can be put in order before they are written, which happens on
+ * a single writer thread. At most {@code maxPendingEvents} are held back: once that many are waiting,
+ * the oldest are written early, and readers stop reading until there is room again. Producers do not
+ * wait for a slow collector, they drop events instead.
+ * <p>
+ * Failures on the collector's threads are passed to an {@link ErrorHandler}. A failed producer connection
+ * only affects that producer. Once writing to the output fails, no more events are written.
+ * <p>
+ * The collector only listens on the loopback address.
+ */
+public final class TraceCollector implements Closeable {
+
+    /**
+     * Receives failures that happen on the collector's own threads, where there is no caller to throw them to.
+     * Called on those threads.
+     */
+    public interface ErrorHandler {
+
+        ErrorHandler IGNORE = new ErrorHandler() {
+            @Override
+            public void onConnectionFailed(String message, IOException failure) {
+            }
+
+            @Override
+            public void onWriteFailed(IOException failure) {
+            }
+        };
+
+        /**
+         * A producer connection could not be accepted or read. Other producers are not affected.
+         */
+        void onConnectionFailed(String message, IOException failure);
+
+        /**
+         * Events could not be written to the output. No more events are written, and the failure is thrown again
+         * by {@link TraceCollector#close()}.
+         */
+        void onWriteFailed(IOException failure);
+    }
+
+    public static final long DEFAULT_REORDER_WINDOW_MS = 2000;
+    public static final int DEFAULT_MAX_PENDING_EVENTS = 1 << 20;
+
+    private static final int INPUT_BUFFER_SIZE = 64 * 1024;
+    private static final long WRITE_INTERVAL_MS = 50;
+
+    private final CollectorOutput output;
+    private final ErrorHandler errorHandler;
+    private final long reorderWindowMs;
+    private final int maxPendingEvents;
+
+    private final ServerSocket serverSocket;
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private final Set<Thread> readerThreads = ConcurrentHashMap.newKeySet();
+
+    // Guarded by itself. Events of equal time are kept in the order they arrived in.
+    private final PriorityQueue<PendingEvent> pendingEvents = new PriorityQueue<>(
+        Comparator.comparingLong((PendingEvent pending) -> pending.event.getTimeMs()).thenComparingLong(pending -> pending.sequence)
+    );
+    private long nextSequence = 0;
+
+    private final AtomicLong receivedEventCount = new AtomicLong();
+    private final AtomicLong connectionCount = new AtomicLong();
+
+    private final Thread acceptThread;
+    private final Thread writerThread;
+
+    private volatile boolean running = true;
+    private volatile @Nullable IOException writeFailure;
+
+    public TraceCollector(int port, CollectorOutput output) throws IOException {
+        this(port, output, DEFAULT_REORDER_WINDOW_MS, DEFAULT_MAX_PENDING_EVENTS);
+    }
+
+    public TraceCollector(int port, CollectorOutput output, long reorderWindowMs, int maxPendingEvents) throws IOException {
+        this(port, output, reorderWindowMs, maxPendingEvents, ErrorHandler.IGNORE);
+    }
+
+    /**
+     * @param port Port to listen on, or zero to pick a free port (see {@link #getPort()})
+     * @param output Destination of the collected events. Closed when the collector is closed.
+     * @param reorderWindowMs How long events are held back to be put in order with those of other producers
+     * @param maxPendingEvents Maximum number of events held back
+     * @param errorHandler Receives the failures of producer connections and of writing the output
+     */
+    public TraceCollector(int port, CollectorOutput output, long reorderWindowMs, int maxPendingEvents, ErrorHandler errorHandler) throws IOException {
+        if (reorderWindowMs < 0) {
+            throw new IllegalArgumentException("reorderWindowMs must not be negative");
+        }
+
+        if (maxPendingEvents < 1) {
+            throw new IllegalArgumentException("maxPendingEvents must be at least 1");
+        }
+
+        this.output = output;
+        this.errorHandler = errorHandler;
+        this.reorderWindowMs = reorderWindowMs;
+        this.maxPendingEvents = maxPendingEvents;
+
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+
+        this.acceptThread = new Thread(this::runAccept, "callsign-collector-accept");
+        this.writerThread = new Thread(this::runWriter, "callsign-collector-writer");
+
+        this.acceptThread.start();
+        this.writerThread.start();
+    }
+
+    /**
+     * @return The port the collector listens on
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return Total number of events received from all producers
+     */
+    public long getReceivedEventCount() {
+        return receivedEventCount.get();
+    }
+
+    /**
+     * @return Total number of producer connections accepted
+     */
+    public long getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    private void runAccept() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+
+                connections.add(socket);
+                connectionCount.incrementAndGet();
+
+                var readerThread = new Thread(() -> runReader(socket), "callsign-collector-reader-" + socket.getPort());
+                readerThread.setDaemon(true);
+                readerThreads.add(readerThread);
+                readerThread.start();
+            } catch (IOException e) {
+                if (running) {
+                    errorHandler.onConnectionFailed("Failed to accept producer connection", e);
+                }
+            }
+        }
+    }
+
+    private void runReader(Socket socket) {
+        try (socket) {
+            var decoder = BinaryFormat.Companion.createDecoder(new BufferedInputStream(socket.getInputStream(), INPUT_BUFFER_SIZE));
+
+            @Nullable Event event;
+
+            while ((event = decoder.readEvent()) != null) {
+                receivedEventCount.incrementAndGet();
+                addPendingEvent(event);
+            }
+        } catch (SocketException e) {
+            // Producer went away, or the collector is closing
+        } catch (IOException e) {
+            errorHandler.onConnectionFailed("Failed to read events from producer " + socket.getRemoteSocketAddress(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            connections.remove(socket);
+            readerThreads.remove(Thread.currentThread());
+        }
+    }
+
+    private void addPendingEvent(Event event) throws InterruptedException {
+        synchronized (pendingEvents) {
+            while (running && pendingEvents.size() >= maxPendingEvents) {
+                pendingEvents.wait();
+            }
+
+            pendingEvents.add(new PendingEvent(event, nextSequence++));
+        }
+    }
+
+    private void runWriter() {
+        try {
+            while (running) {
+                writeReadyEvents(System.currentTimeMillis() - reorderWindowMs);
+                output.flush();
+
+                Thread.sleep(WRITE_INTERVAL_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            writeFailure = e;
+            errorHandler.onWriteFailed(e);
+        }
+    }
+
+    /**
+     * Writes all pending events up to and including {@code untilTimeMs}, and as many more as needed to get
+     * below the limit of pending events.
+     */
+    private void writeReadyEvents(long untilTimeMs) throws IOException {
+        while (true) {
+            PendingEvent next;
+
+            synchronized (pendingEvents) {
+                next = pendingEvents.peek();
+
+                if (next == null || (next.event.getTimeMs() > untilTimeMs && pendingEvents.size() < maxPendingEvents)) {
+                    return;
+                }
+
+                pendingEvents.poll();
+                pendingEvents.notifyAll();
+            }
+
+            output.write(next.event);
+        }
+    }
+
+    /**
+     * Disconnects all producers, writes all pending events and closes the output. Events that producers have
+     * not sent yet are lost, so close the producers first where possible.
+     *
+     * @throws IOException If events could not be written to the output
+     */
+    @Override
+    public void close() throws IOException {
+        if (!running) {
+            return;
+        }
+
+        running = false;
+
+        serverSocket.close();
+
+        for (Socket socket : connections) {
+            socket.close();
+        }
+
+        synchronized (pendingEvents) {
+            pendingEvents.notifyAll();
+        }
+
+        // Not interrupted, since interrupting file IO closes the file
+        try {
+            acceptThread.join();
+            writerThread.join();
+
+            for (Thread readerThread : readerThreads) {
+                readerThread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try (output) {
+            if (writeFailure != null) {
+                throw writeFailure;
+            }
+
+            writeReadyEvents(Long.MAX_VALUE);
+            output.flush();
+        }
+    }
+
+    private record PendingEvent(Event event, long sequence) {
+    }
+}
@@ -0,0 +1,104 @@
+package codes.nibby.callsign.viewer.collector;
+
+import codes.nibby.callsign.api.formats.BinaryFormat;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs a {@link TraceCollector} as a standalone process until it is terminated.
+ * <p>
+ * Usage: {@code TraceCollectorDaemon <port> <output file>}. If the output file name ends with
+ * {@code .crt2}, events are written to a binary raw trace file. Otherwise, they are written to a trace
+ * document.
+ */
+public final class TraceCollectorDaemon {
+
+    private TraceCollectorDaemon() {
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length != 2) {
+            System.err.println("Usage: TraceCollectorDaemon <port> <output file>");
+            System.exit(1);
+        }
+
+        int port = Integer.parseInt(args[0]);
+        Path outputFile = Paths.get(args[1]).toAbsolutePath();
+
+        var stopped = new CountDownLatch(1);
+        var writeFailed = new AtomicBoolean(false);
+
+        var errorHandler = new TraceCollector.ErrorHandler() {
+            @Override
+            public void onConnectionFailed(String message, IOException failure) {
+                reportError(message, failure);
+            }
+
+            // Nothing more would be written, so the daemon stops rather than keep accepting events
+            @Override
+            public void onWriteFailed(IOException failure) {
+                writeFailed.set(true);
+                stopped.countDown();
+            }
+        };
+
+        var collector = new TraceCollector(
+            port,
+            createOutput(outputFile),
+            TraceCollector.DEFAULT_REORDER_WINDOW_MS,
+            TraceCollector.DEFAULT_MAX_PENDING_EVENTS,
+            errorHandler
+        );
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                // Also throws the failure that stopped writing, if there was one
+                collector.close();
+            } catch (IOException e) {
+                reportError("Failed to write events to " + outputFile, e);
+            } finally {
+                stopped.countDown();
+            }
+        }, "callsign-collector-shutdown"));
+
+        System.out.println("Collecting events on port " + collector.getPort() + " into " + outputFile);
+
+        stopped.await();
+
+        if (writeFailed.get()) {
+            // Runs the shutdown hook, which reports the failure
+            System.exit(1);
+        }
+    }
+
+    /*
+        The daemon has no other output than the console, all failures are reported here. One line per failure,
+        with the chain of causes, so that the log of a long-running daemon stays readable.
+     */
+    private static void reportError(String message, Exception failure) {
+        var line = new StringBuilder(message);
+
+        for (@Nullable Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            line.append(": ").append(cause);
+        }
+
+        System.err.println(line);
+    }
+
+    static CollectorOutput createOutput(Path outputFile) throws IOException {
+        String fileName = outputFile.getFileName().toString();
+        String rawTraceSuffix = "." + BinaryFormat.EXTENSION;
+
+        if (fileName.endsWith(rawTraceSuffix)) {
+            String baseName = fileName.substring(0, fileName.length() - rawTraceSuffix.length());
+            return new RawTraceFileCollectorOutput(outputFile.resolveSibling(baseName));
+        }
+
+        return new TraceDocumentCollectorOutput(outputFile);
+    }
+}
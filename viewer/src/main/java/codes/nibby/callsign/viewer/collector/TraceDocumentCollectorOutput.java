@@ -0,0 +1,89 @@
+package codes.nibby.callsign.viewer.collector;
+
+import codes.nibby.callsign.api.Event;
+import codes.nibby.callsign.api.IntervalEndEvent;
+import codes.nibby.callsign.api.IntervalStartEvent;
+import codes.nibby.callsign.viewer.models.document.TraceDocumentAccessException;
+import codes.nibby.callsign.viewer.models.document.WritableSQLiteTraceDocument;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Writes collected events straight into a trace document, so that no separate import is needed.
+ */
+public final class TraceDocumentCollectorOutput implements CollectorOutput {
+
+    static final int DEFAULT_MAX_OPEN_INTERVALS = 100_000;
+
+    private final WritableSQLiteTraceDocument document;
+
+    // Start events of intervals that have not ended yet, so that delta end events can be completed as the
+    // importer does. The oldest are evicted past the limit, since intervals that never end would otherwise be
+    // kept forever. End events of evicted intervals are stored as deltas and completed when the document is read.
+    private final Map<UUID, IntervalStartEvent> openIntervalStartEvents;
+
+    // Written to the document in one transaction on flush
+    private final List<Event> pendingEvents = new ArrayList<>();
+
+    public TraceDocumentCollectorOutput(Path documentFile) throws IOException {
+        this(documentFile, DEFAULT_MAX_OPEN_INTERVALS);
+    }
+
+    TraceDocumentCollectorOutput(Path documentFile, int maxOpenIntervals) throws IOException {
+        if (maxOpenIntervals < 0) {
+            throw new IllegalArgumentException("maxOpenIntervals must not be negative");
+        }
+
+        this.openIntervalStartEvents = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, IntervalStartEvent> eldest) {
+                return size() > maxOpenIntervals;
+            }
+        };
+
+        this.document = new WritableSQLiteTraceDocument(documentFile);
+        this.document.initialize();
+    }
+
+    @Override
+    public void write(Event event) throws IOException {
+        if (event instanceof IntervalStartEvent startEvent) {
+            openIntervalStartEvents.put(startEvent.getId(), startEvent);
+        } else if (event instanceof IntervalEndEvent endEvent) {
+            IntervalStartEvent startEvent = openIntervalStartEvents.remove(endEvent.getCorrelationId());
+
+            if (startEvent != null) {
+                endEvent.restoreAttributesFrom(startEvent);
+            }
+        }
+
+        pendingEvents.add(event);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (pendingEvents.isEmpty()) {
+            return;
+        }
+
+        document.appendEvents(pendingEvents);
+        pendingEvents.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+
+        try {
+            document.unload();
+        } catch (TraceDocumentAccessException e) {
+            throw new IOException(e);
+        }
+    }
+}
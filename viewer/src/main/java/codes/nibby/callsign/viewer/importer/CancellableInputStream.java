@@ -0,0 +1,47 @@
+package codes.nibby.callsign.viewer.importer;
+
+import codes.nibby.callsign.viewer.misc.CancellationToken;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Checks for cancellation before every read from the wrapped stream. Placed below a buffer, so that the check is
+ * made once per chunk of input rather than once per byte.
+ */
+final class CancellableInputStream extends FilterInputStream {
+
+    private final CancellationToken cancellationToken;
+
+    CancellableInputStream(InputStream inputStream, CancellationToken cancellationToken) {
+        super(inputStream);
+
+        this.cancellationToken = cancellationToken;
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkCancelled();
+        return super.read();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        checkCancelled();
+        return super.read(buffer, offset, length);
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        checkCancelled();
+        return super.skip(count);
+    }
+
+    private void checkCancelled() {
+        if (cancellationToken.isCancelRequested()) {
+            throw new CancellationException("Reading cancelled");
+        }
+    }
+}
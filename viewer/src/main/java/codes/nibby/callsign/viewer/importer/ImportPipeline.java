@@ -0,0 +1,320 @@
+package codes.nibby.callsign.viewer.importer;
+
+import codes.nibby.callsign.api.Event;
+import codes.nibby.callsign.viewer.misc.ProgressReporter;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads raw trace files on several reader threads, one file per thread at a time, and hands the decoded events
+ * to a single writer in batches, through a bounded queue. The writer runs on the thread calling {@link #run}, so
+ * that the document is only ever touched by one thread. Readers wait once the queue is full.
+ * <p>
+ * Events of one file reach the writer in the order they were read, but events of different files are interleaved.
+ * <p>
+ * Before the import, the same reader threads can scan the files for their attribute names and value types, see
+ * {@link #scanAttributeTypes}. A pipeline runs each of these at most once.
+ */
+final class ImportPipeline {
+
+    /**
+     * Receives batches of decoded events on the writer thread.
+     */
+    @FunctionalInterface
+    interface BatchWriter {
+        void write(List<Event> events) throws IOException;
+    }
+
+    private static final long POLL_INTERVAL_MS = 100;
+
+    private final List<RawTraceFile> inputFiles;
+    private final int readerThreadCount;
+    private final int batchSize;
+
+    private final BlockingQueue<Batch> queue;
+    private final ImportStats stats;
+
+    // Readers of the files being read, to sum up the bytes read so far
+    private final Map<RawTraceFileReader, Boolean> activeReaders = new ConcurrentHashMap<>();
+    private final AtomicLong completedFileBytes = new AtomicLong();
+
+    private volatile boolean stopped = false;
+
+    ImportPipeline(List<RawTraceFile> inputFiles, int readerThreadCount, int batchSize, int queueCapacity) {
+        if (readerThreadCount < 1) {
+            throw new IllegalArgumentException("readerThreadCount must be at least 1");
+        }
+
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1");
+        }
+
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queueCapacity must be at least 1");
+        }
+
+        this.inputFiles = inputFiles;
+        this.readerThreadCount = Math.max(1, Math.min(readerThreadCount, inputFiles.size()));
+        this.batchSize = batchSize;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.stats = new ImportStats(this.readerThreadCount, queueCapacity);
+    }
+
+    ImportStats getStats() {
+        return stats;
+    }
+
+    /**
+     * @return Bytes of the input files read so far, by all readers
+     */
+    long getBytesRead() {
+        long bytesRead = completedFileBytes.get();
+
+        for (RawTraceFileReader reader : activeReaders.keySet()) {
+            bytesRead += reader.getBytesRead();
+        }
+
+        return bytesRead;
+    }
+
+    /**
+     * Reads the attribute names and value types of all input files on the reader threads, see
+     * {@link RawTraceFileReader#readAttributeTypes}. Progress is reported in bytes read, as during {@link #run}.
+     *
+     * @return Class of the first value of each attribute of all input files whose format can list them, by
+     *         attribute name, in input file order
+     * @throws IOException If an input file could not be read
+     * @throws CancellationException If cancellation was requested
+     */
+    Map<String, Class<?>> scanAttributeTypes(ProgressReporter progressReporter) throws IOException {
+        ExecutorService readerExecutor = createReaderExecutor("callsign-attribute-scanner-");
+
+        List<ScanTask> tasks = new ArrayList<>(inputFiles.size());
+        long totalBytes = 0;
+
+        try {
+            for (RawTraceFile inputFile : inputFiles) {
+                RawTraceFileReader reader = inputFile.createReader();
+                long fileSize = inputFile.getSize();
+
+                // Readers check the flag before each chunk, so that they stop soon after the scan is abandoned
+                Future<Map<String, Class<?>>> result = readerExecutor.submit(() -> reader.readAttributeTypes(() -> stopped));
+
+                tasks.add(new ScanTask(inputFile, fileSize, reader, result));
+                totalBytes += fileSize;
+            }
+
+            Map<String, Class<?>> attributeTypes = new LinkedHashMap<>();
+
+            for (ScanTask task : tasks) {
+                @Nullable Map<String, Class<?>> fileAttributeTypes = awaitAttributeTypes(task, tasks, totalBytes, progressReporter);
+
+                // The first file with an attribute decides its type, as if the files were appended in order
+                if (fileAttributeTypes != null) {
+                    fileAttributeTypes.forEach(attributeTypes::putIfAbsent);
+                }
+            }
+
+            return attributeTypes;
+        } catch (IOException | RuntimeException e) {
+            stopped = true;
+            throw e;
+        } finally {
+            shutDownReaders(readerExecutor);
+        }
+    }
+
+    private @Nullable Map<String, Class<?>> awaitAttributeTypes(ScanTask task, List<ScanTask> tasks, long totalBytes, ProgressReporter progressReporter) throws IOException {
+        while (true) {
+            if (progressReporter.isCancelRequested()) {
+                throw new CancellationException("Import cancelled while scanning attribute names");
+            }
+
+            try {
+                return task.result.get(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (totalBytes > 0) {
+                    long bytesRead = tasks.stream().mapToLong(ScanTask::getBytesRead).sum();
+                    progressReporter.notifyProgressChanged(Math.min(1.0, bytesRead / (double) totalBytes));
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof CancellationException cancellation) {
+                    throw cancellation;
+                }
+
+                throw new IOException("Failed to read " + task.inputFile.path, e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Import interrupted");
+            }
+        }
+    }
+
+    /**
+     * Reads all input files, and passes their events to {@code writer} on the calling thread. Returns once all
+     * events are written, or as soon as writing fails or {@code progress} reports that the import was cancelled.
+     *
+     * @throws IOException If an input file could not be read, or the writer failed
+     * @throws CancellationException If cancellation was requested
+     */
+    void run(BatchWriter writer, ImportProgress progress) throws IOException {
+        ExecutorService readerExecutor = createReaderExecutor("callsign-import-reader-");
+
+        try {
+            for (RawTraceFile inputFile : inputFiles) {
+                readerExecutor.execute(() -> readFile(inputFile));
+            }
+
+            runWriter(writer, progress);
+        } finally {
+            stopped = true;
+            shutDownReaders(readerExecutor);
+        }
+    }
+
+    private ExecutorService createReaderExecutor(String threadNamePrefix) {
+        var threadIndex = new AtomicInteger();
+
+        return Executors.newFixedThreadPool(readerThreadCount, runnable -> {
+            var thread = new Thread(runnable, threadNamePrefix + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private void shutDownReaders(ExecutorService readerExecutor) {
+        readerExecutor.shutdown();
+
+        try {
+            // Readers notice that the pipeline stopped the next time they hand over a batch or read a chunk
+            readerExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runWriter(BatchWriter writer, ImportProgress progress) throws IOException {
+        int remainingFileCount = inputFiles.size();
+
+        while (remainingFileCount > 0) {
+            progress.checkCancelled();
+
+            long waitStartNanos = System.nanoTime();
+            @Nullable Batch batch = pollBatch();
+            stats.recordTake(System.nanoTime() - waitStartNanos, queue.size());
+
+            if (batch == null) {
+                continue;
+            }
+
+            if (batch.failure != null) {
+                throw batch.failure;
+            }
+
+            if (!batch.events.isEmpty()) {
+                long writeStartNanos = System.nanoTime();
+                writer.write(batch.events);
+                stats.recordWrite(batch.events.size(), System.nanoTime() - writeStartNanos);
+
+                progress.onRowsImported(batch.events.size(), getBytesRead());
+            }
+
+            if (batch.lastOfFile) {
+                remainingFileCount--;
+            }
+        }
+    }
+
+    private @Nullable Batch pollBatch() {
+        try {
+            return queue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Import interrupted");
+        }
+    }
+
+    private void readFile(RawTraceFile inputFile) {
+        if (stopped) {
+            return;
+        }
+
+        RawTraceFileReader reader = inputFile.createReader();
+        var batch = new ArrayList<Event>(batchSize);
+        long[] busyStartNanos = { System.nanoTime() };
+
+        activeReaders.put(reader, Boolean.TRUE);
+
+        try {
+            reader.streamEvents(event -> {
+                batch.add(event);
+
+                if (batch.size() >= batchSize) {
+                    busyStartNanos[0] = handOver(new Batch(new ArrayList<>(batch), false, null), busyStartNanos[0]);
+                    batch.clear();
+                }
+            });
+
+            long fileSize = inputFile.getSize();
+
+            // Removed first, so that the bytes read are never counted twice
+            activeReaders.remove(reader);
+            completedFileBytes.addAndGet(fileSize);
+
+            handOver(new Batch(batch, true, null), busyStartNanos[0]);
+        } catch (CancellationException e) {
+            // The writer stopped, nothing is waiting for the rest of this file
+            activeReaders.remove(reader);
+        } catch (IOException | RuntimeException e) {
+            activeReaders.remove(reader);
+
+            try {
+                handOver(new Batch(List.of(), true, new IOException("Failed to read " + inputFile.path, e)), busyStartNanos[0]);
+            } catch (CancellationException stoppedException) {
+                // The writer stopped for another reason, which it reports itself
+            }
+        }
+    }
+
+    /*
+        Called on reader threads. Gives up once the writer has stopped, which unwinds the reader out of the file it
+        is reading.
+     */
+    private long handOver(Batch batch, long busyStartNanos) {
+        long waitStartNanos = System.nanoTime();
+
+        try {
+            while (!queue.offer(batch, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                if (stopped) {
+                    throw new CancellationException("Import stopped");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Import interrupted");
+        }
+
+        long waitEndNanos = System.nanoTime();
+        stats.recordDecode(batch.events.size(), waitStartNanos - busyStartNanos, waitEndNanos - waitStartNanos);
+
+        return waitEndNanos;
+    }
+
+    private record ScanTask(RawTraceFile inputFile, long fileSize, RawTraceFileReader reader, Future<Map<String, Class<?>>> result) {
+
+        long getBytesRead() {
+            return result.isDone() ? fileSize : reader.getBytesRead();
+        }
+    }
+
+    private record Batch(List<Event> events, boolean lastOfFile, @Nullable IOException failure) {
+    }
+}
@@ -0,0 +1,93 @@
+package codes.nibby.callsign.viewer.importer;
+
+import codes.nibby.callsign.viewer.misc.ProgressReporter;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reports the progress of an import from the number of input bytes read so far, so that the input does not
+ * have to be read in advance to count its events. The import rate and the time remaining are estimated from
+ * the rate so far, and the throughput of each stage of the import is appended, see {@link ImportStats}.
+ * <p>
+ * Not thread safe, rows must be counted on the thread writing the document.
+ */
+final class ImportProgress {
+
+    private static final long REPORT_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+    private final ProgressReporter progressReporter;
+    private final long totalBytes;
+    private final ImportStats stats;
+    private final long startNanos;
+
+    private long rowCount = 0;
+    private long lastReportNanos;
+
+    ImportProgress(ProgressReporter progressReporter, long totalBytes, ImportStats stats) {
+        this.progressReporter = progressReporter;
+        this.totalBytes = totalBytes;
+        this.stats = stats;
+        this.startNanos = System.nanoTime();
+        this.lastReportNanos = startNanos;
+
+        progressReporter.notifyProgressIndeterminate(totalBytes <= 0);
+        progressReporter.notifyProgressChanged(0);
+    }
+
+    /**
+     * Counts imported rows, and reports progress if it has not been reported for a while.
+     *
+     * @param rowCount Number of rows imported since the last call
+     * @param bytesRead Bytes of the input read so far
+     */
+    void onRowsImported(int rowCount, long bytesRead) {
+        this.rowCount += rowCount;
+
+        long nowNanos = System.nanoTime();
+
+        if (nowNanos - lastReportNanos >= REPORT_INTERVAL_NANOS) {
+            lastReportNanos = nowNanos;
+            report(bytesRead, nowNanos);
+        }
+    }
+
+    void onCompleted() {
+        report(totalBytes, System.nanoTime());
+    }
+
+    /**
+     * @throws CancellationException If cancellation was requested
+     */
+    void checkCancelled() {
+        if (progressReporter.isCancelRequested()) {
+            throw new CancellationException("Import cancelled after " + rowCount + " rows");
+        }
+    }
+
+    long getRowCount() {
+        return rowCount;
+    }
+
+    private void report(long bytesRead, long nowNanos) {
+        double elapsedSeconds = (nowNanos - startNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+        long rowsPerSecond = elapsedSeconds > 0 ? (long) (rowCount / elapsedSeconds) : 0;
+
+        var message = new StringBuilder();
+        message.append(String.format("Importing: %,d rows (%,d rows/s)", rowCount, rowsPerSecond));
+
+        if (totalBytes > 0) {
+            double progress = Math.min(1.0, bytesRead / (double) totalBytes);
+            progressReporter.notifyProgressChanged(progress);
+
+            if (progress > 0 && progress < 1) {
+                long remainingSeconds = (long) (elapsedSeconds * (1 - progress) / progress);
+                message.append(String.format(", about %d:%02d remaining", remainingSeconds / 60, remainingSeconds % 60));
+            }
+        }
+
+        message.append("\n").append(stats.snapshot());
+
+        progressReporter.notifyProgressMessageChanged(message.toString());
+    }
+}
@@ -0,0 +1,116 @@
+package codes.nibby.callsign.viewer.importer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the two stages of an import, see {@link ImportPipeline}: the reader threads decoding the input
+ * files, and the writer appending the decoded events to the document. Safe to update from any thread.
+ * <p>
+ * Throughput is measured over the time a stage was busy, not counting the time it spent waiting for the other
+ * stage, so the stage with the lower throughput is the bottleneck. The queue between the stages tells the same
+ * story: it stays full while the writer is the bottleneck, and empty while the readers are.
+ */
+public final class ImportStats {
+
+    private final int readerThreadCount;
+    private final int queueCapacity;
+
+    private final LongAdder decodedRowCount = new LongAdder();
+    private final LongAdder decodeBusyNanos = new LongAdder();
+    private final LongAdder readerWaitNanos = new LongAdder();
+
+    private final AtomicLong writtenRowCount = new AtomicLong();
+    private final AtomicLong writeBusyNanos = new AtomicLong();
+    private final AtomicLong writerWaitNanos = new AtomicLong();
+
+    // Sampled each time the writer takes a batch
+    private final AtomicLong queueSizeTotal = new AtomicLong();
+    private final AtomicLong queueSampleCount = new AtomicLong();
+    private volatile int queueSize = 0;
+
+    ImportStats(int readerThreadCount, int queueCapacity) {
+        this.readerThreadCount = readerThreadCount;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Counts a batch of {@code rowCount} rows decoded by a reader, which was busy for {@code busyNanos} decoding
+     * them and then waited {@code waitNanos} for room in the queue.
+     */
+    void recordDecode(int rowCount, long busyNanos, long waitNanos) {
+        decodedRowCount.add(rowCount);
+        decodeBusyNanos.add(busyNanos);
+        readerWaitNanos.add(waitNanos);
+    }
+
+    /**
+     * Counts {@code waitNanos} the writer spent waiting for a batch, and the number of batches still queued once
+     * it got one.
+     */
+    void recordTake(long waitNanos, int remainingQueueSize) {
+        writerWaitNanos.addAndGet(waitNanos);
+        queueSizeTotal.addAndGet(remainingQueueSize);
+        queueSampleCount.incrementAndGet();
+        queueSize = remainingQueueSize;
+    }
+
+    /**
+     * Counts a batch of {@code rowCount} rows appended to the document in {@code busyNanos}.
+     */
+    void recordWrite(int rowCount, long busyNanos) {
+        writtenRowCount.addAndGet(rowCount);
+        writeBusyNanos.addAndGet(busyNanos);
+    }
+
+    public Snapshot snapshot() {
+        long samples = queueSampleCount.get();
+
+        return new Snapshot(
+            readerThreadCount,
+            decodedRowCount.sum(),
+            rowsPerSecond(decodedRowCount.sum(), decodeBusyNanos.sum()),
+            TimeUnit.NANOSECONDS.toMillis(readerWaitNanos.sum()),
+            writtenRowCount.get(),
+            rowsPerSecond(writtenRowCount.get(), writeBusyNanos.get()),
+            TimeUnit.NANOSECONDS.toMillis(writerWaitNanos.get()),
+            queueSize,
+            queueCapacity,
+            samples > 0 ? queueSizeTotal.get() / (double) samples : 0
+        );
+    }
+
+    private static long rowsPerSecond(long rowCount, long busyNanos) {
+        return busyNanos > 0 ? (long) (rowCount / (busyNanos / (double) TimeUnit.SECONDS.toNanos(1))) : 0;
+    }
+
+    /**
+     * @param decodeRowsPerSecond Rows decoded per second by one reader thread
+     * @param readerWaitMs Total time reader threads waited for room in the queue
+     * @param writerWaitMs Total time the writer waited for a batch to write
+     * @param queueSize Batches waiting in the queue when the writer last took one
+     * @param averageQueueSize Average of the batches waiting in the queue each time the writer took one
+     */
+    public record Snapshot(
+        int readerThreadCount,
+        long decodedRowCount,
+        long decodeRowsPerSecond,
+        long readerWaitMs,
+        long writtenRowCount,
+        long writeRowsPerSecond,
+        long writerWaitMs,
+        int queueSize,
+        int queueCapacity,
+        double averageQueueSize
+    ) {
+
+        @Override
+        public String toString() {
+            return String.format(
+                "read %,d rows/s per thread (%d threads), write %,d rows/s, queue %d/%d",
+                decodeRowsPerSecond, readerThreadCount, writeRowsPerSecond, queueSize, queueCapacity
+            );
+        }
+    }
+}
@@ -1,22 +1,27 @@
 package codes.nibby.callsign.viewer.importer;
 
 import codes.nibby.callsign.api.Event;
+import codes.nibby.callsign.api.formats.BinaryFormat;
 import codes.nibby.callsign.api.formats.CsvFormat;
+import codes.nibby.callsign.api.formats.MappedFormat;
 
 import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.function.Consumer;
 
 public final class RawTraceFile {
 
-    private static final Map<String, Class<? extends RawTraceFileCsvReader>> FILE_EXTENSION_READERS = new HashMap<>();
+    private static final Map<String, Class<? extends RawTraceFileReader>> FILE_EXTENSION_READERS = new HashMap<>();
     private static final List<String> SUPPORTED_FILE_EXTENSIONS;
 
     static {
         FILE_EXTENSION_READERS.put(CsvFormat.EXTENSION, RawTraceFileCsvReader.class);
+        FILE_EXTENSION_READERS.put(BinaryFormat.EXTENSION, RawTraceFileBinaryReader.class);
+        FILE_EXTENSION_READERS.put(MappedFormat.EXTENSION, RawTraceFileMappedReader.class);
 
         SUPPORTED_FILE_EXTENSIONS = new ArrayList<>(FILE_EXTENSION_READERS.keySet());
     }
@@ -46,21 +51,28 @@ public final class RawTraceFile {
         reader.streamEvents(eventConsumer);
     }
 
-    private RawTraceFileReader createReader() {
-        Class<? extends RawTraceFileCsvReader> readerClass = FILE_EXTENSION_READERS.get(this.extension);
+    /**
+     * @return A new reader for the file, which can stream its events once
+     */
+    public RawTraceFileReader createReader() {
+        Class<? extends RawTraceFileReader> readerClass = FILE_EXTENSION_READERS.get(this.extension);
 
         if (readerClass == null) {
             throw new IllegalStateException("No reader class mapped for extension: " + this.extension);
         }
 
         try {
-            Constructor<? extends RawTraceFileCsvReader> constructor = readerClass.getConstructor(Path.class);
+            Constructor<? extends RawTraceFileReader> constructor = readerClass.getConstructor(Path.class);
             return constructor.newInstance(this.path);
         } catch (NoSuchMethodException | InstantiationException | IllegalAccessException | InvocationTargetException e) {
             throw new RuntimeException(e);
         }
     }
 
+    public long getSize() throws IOException {
+        return Files.size(path);
+    }
+
     public static List<String> getSupportedFileExtensions() {
         return Collections.unmodifiableList(SUPPORTED_FILE_EXTENSIONS);
     }
@@ -0,0 +1,62 @@
+package codes.nibby.callsign.viewer.importer;
+
+import codes.nibby.callsign.api.Event;
+import codes.nibby.callsign.api.formats.BinaryFormat;
+import codes.nibby.callsign.viewer.misc.CancellationToken;
+import com.google.common.io.CountingInputStream;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.function.Consumer;
+
+public final class RawTraceFileBinaryReader implements RawTraceFileReader {
+
+    private static final int INPUT_BUFFER_SIZE = 64 * 1024;
+
+    public final Path binaryFile;
+
+    private volatile @Nullable CountingInputStream countingStream;
+
+    public RawTraceFileBinaryReader(Path binaryFile) {
+        this.binaryFile = binaryFile;
+    }
+
+    @Override
+    public void streamEvents(Consumer<Event> eventConsumer) throws IOException {
+        var countingStream = new CountingInputStream(Files.newInputStream(this.binaryFile));
+        this.countingStream = countingStream;
+
+        try (var inputStream = new BufferedInputStream(countingStream, INPUT_BUFFER_SIZE)) {
+            var decoder = BinaryFormat.Companion.createDecoder(inputStream);
+
+            @Nullable Event event;
+
+            while ((event = decoder.readEvent()) != null) {
+                eventConsumer.accept(event);
+            }
+        }
+    }
+
+    /*
+        Only the type tags of the attribute values are read, the values themselves are skipped.
+     */
+    @Override
+    public Map<String, Class<?>> readAttributeTypes(CancellationToken cancellationToken) throws IOException {
+        var countingStream = new CountingInputStream(Files.newInputStream(this.binaryFile));
+        this.countingStream = countingStream;
+
+        try (var inputStream = new BufferedInputStream(new CancellableInputStream(countingStream, cancellationToken), INPUT_BUFFER_SIZE)) {
+            return BinaryFormat.Companion.createDecoder(inputStream).readAttributeTypes();
+        }
+    }
+
+    @Override
+    public long getBytesRead() {
+        @Nullable CountingInputStream stream = countingStream;
+        return stream != null ? stream.getCount() : 0;
+    }
+}
@@ -2,17 +2,25 @@ package codes.nibby.callsign.viewer.importer;
 
 import codes.nibby.callsign.api.Event;
 import codes.nibby.callsign.api.formats.CsvFormat;
+import codes.nibby.callsign.viewer.misc.CancellationToken;
+import com.google.common.io.CountingInputStream;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.function.Consumer;
 
 public final class RawTraceFileCsvReader implements RawTraceFileReader {
 
     public final Path csvFile;
 
+    private volatile @Nullable CountingInputStream countingStream;
+
     public RawTraceFileCsvReader(Path csvFile) {
         this.csvFile = csvFile;
     }
@@ -20,11 +28,14 @@ public final class RawTraceFileCsvReader implements RawTraceFileReader {
     @Override
     public void streamEvents(Consumer<Event> eventConsumer) throws IOException {
         try (
-            var reader = Files.newBufferedReader(this.csvFile);
+            var countingStream = new CountingInputStream(Files.newInputStream(this.csvFile));
+            var reader = new BufferedReader(new InputStreamReader(countingStream, CsvFormat.Companion.getCHARSET()));
             var csvReader = CsvFormat.Companion.createReader(reader)
         ) {
+            this.countingStream = countingStream;
+
             csvReader.stream().forEach(csvRow -> {
-                @Nullable var event = CsvFormat.Companion.deserialize(csvRow.getFields());
+                @Nullable var event = CsvFormat.Companion.deserializeTrusted(csvRow.getFields());
 
                 if (event != null) {
                     eventConsumer.accept(event);
@@ -32,4 +43,31 @@ public final class RawTraceFileCsvReader implements RawTraceFileReader {
             });
         }
     }
+
+    /*
+        Only the attribute names and the kind of each value are parsed out of the attribute data, no events or
+        values are created.
+     */
+    @Override
+    public Map<String, Class<?>> readAttributeTypes(CancellationToken cancellationToken) throws IOException {
+        Map<String, Class<?>> attributeTypes = new LinkedHashMap<>();
+
+        try (
+            var countingStream = new CountingInputStream(Files.newInputStream(this.csvFile));
+            var reader = new BufferedReader(new InputStreamReader(new CancellableInputStream(countingStream, cancellationToken), CsvFormat.Companion.getCHARSET()));
+            var csvReader = CsvFormat.Companion.createReader(reader)
+        ) {
+            this.countingStream = countingStream;
+
+            csvReader.stream().forEach(csvRow -> CsvFormat.Companion.collectAttributeTypes(csvRow.getFields(), attributeTypes));
+        }
+
+        return attributeTypes;
+    }
+
+    @Override
+    public long getBytesRead() {
+        @Nullable CountingInputStream stream = countingStream;
+        return stream != null ? stream.getCount() : 0;
+    }
 }
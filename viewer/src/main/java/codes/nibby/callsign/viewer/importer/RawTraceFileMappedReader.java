@@ -0,0 +1,57 @@
+package codes.nibby.callsign.viewer.importer;
+
+import codes.nibby.callsign.api.Event;
+import codes.nibby.callsign.api.formats.MappedFormat;
+import codes.nibby.callsign.viewer.misc.CancellationToken;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Reads files written by a {@link codes.nibby.callsign.api.sinks.MappedFileSink}, including those of a
+ * process that crashed or is still writing. Records that were never committed are skipped.
+ */
+public final class RawTraceFileMappedReader implements RawTraceFileReader {
+
+    public final Path mappedFile;
+
+    private volatile @Nullable MappedFormat.Reader reader;
+
+    public RawTraceFileMappedReader(Path mappedFile) {
+        this.mappedFile = mappedFile;
+    }
+
+    @Override
+    public void streamEvents(Consumer<Event> eventConsumer) throws IOException {
+        try (var channel = FileChannel.open(this.mappedFile, StandardOpenOption.READ)) {
+            var reader = MappedFormat.Companion.createReader(channel);
+            this.reader = reader;
+
+            @Nullable Event event;
+
+            while ((event = reader.readEvent()) != null) {
+                eventConsumer.accept(event);
+            }
+        }
+    }
+
+    /*
+        Records are self-contained, attribute names are written into every event, so they can only be found by
+        decoding all events.
+     */
+    @Override
+    public @Nullable Map<String, Class<?>> readAttributeTypes(CancellationToken cancellationToken) {
+        return null;
+    }
+
+    @Override
+    public long getBytesRead() {
+        @Nullable MappedFormat.Reader currentReader = reader;
+        return currentReader != null ? currentReader.getPosition() : 0;
+    }
+}
@@ -1,12 +1,34 @@
 package codes.nibby.callsign.viewer.importer;
 
 import codes.nibby.callsign.api.Event;
+import codes.nibby.callsign.viewer.misc.CancellationToken;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.util.Map;
 import java.util.function.Consumer;
 
 public interface RawTraceFileReader {
 
     void streamEvents(Consumer<Event> eventConsumer) throws IOException;
 
+    /**
+     * @return Number of bytes of the file read so far by {@link #streamEvents(Consumer)} or
+     *         {@link #readAttributeTypes(CancellationToken)}. May run ahead of the events passed to the consumer by
+     *         the size of the read buffer. May be called from other threads while the file is read.
+     */
+    long getBytesRead();
+
+    /**
+     * Collects the names and value types of all attributes in the file without decoding its events, so that the
+     * document can be prepared for them before the import. Reads the file independently of
+     * {@link #streamEvents(Consumer)}.
+     *
+     * @param cancellationToken Checked before each chunk of the file is read
+     * @return Class of the first value of each attribute in the file, by attribute name, or null if the format
+     *         offers no faster way to find them than streaming all events
+     * @throws java.util.concurrent.CancellationException If cancellation was requested before the whole file was read
+     */
+    @Nullable Map<String, Class<?>> readAttributeTypes(CancellationToken cancellationToken) throws IOException;
+
 }
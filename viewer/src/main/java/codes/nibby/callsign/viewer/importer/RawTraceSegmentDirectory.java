@@ -0,0 +1,109 @@
+package codes.nibby.callsign.viewer.importer;
+
+import codes.nibby.callsign.api.formats.SegmentManifest;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A folder of raw trace segments written by a rolling sink, described by one or more segment manifests.
+ */
+public final class RawTraceSegmentDirectory {
+
+    public final Path directory;
+    private final List<SegmentManifest> manifests;
+
+    public RawTraceSegmentDirectory(Path directory) throws IOException {
+        this.directory = directory;
+        this.manifests = readManifests(directory);
+
+        if (manifests.isEmpty()) {
+            throw new IOException("No segment manifest (*." + SegmentManifest.EXTENSION + ") found in: " + directory);
+        }
+    }
+
+    private static List<SegmentManifest> readManifests(Path directory) throws IOException {
+        var manifests = new ArrayList<SegmentManifest>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*." + SegmentManifest.EXTENSION)) {
+            for (Path manifestFile : stream) {
+                manifests.add(SegmentManifest.Companion.read(manifestFile));
+            }
+        }
+
+        return manifests;
+    }
+
+    /**
+     * @return Time of the earliest event across all segments, or {@link SegmentManifest#NO_TIME} if there are none
+     */
+    public long getEarliestTimeMs() {
+        long earliestTimeMs = SegmentManifest.NO_TIME;
+
+        for (SegmentManifest manifest : manifests) {
+            long manifestEarliestTimeMs = manifest.getEarliestTimeMs();
+
+            if (earliestTimeMs == SegmentManifest.NO_TIME || (manifestEarliestTimeMs != SegmentManifest.NO_TIME && manifestEarliestTimeMs < earliestTimeMs)) {
+                earliestTimeMs = manifestEarliestTimeMs;
+            }
+        }
+
+        return earliestTimeMs;
+    }
+
+    /**
+     * @return Time of the latest event across all segments, or {@link SegmentManifest#NO_TIME} if there are none
+     */
+    public long getLatestTimeMs() {
+        long latestTimeMs = SegmentManifest.NO_TIME;
+
+        for (SegmentManifest manifest : manifests) {
+            latestTimeMs = Math.max(latestTimeMs, manifest.getLatestTimeMs());
+        }
+
+        return latestTimeMs;
+    }
+
+    /**
+     * @return Every segment in the folder that still exists on disk
+     */
+    public List<RawTraceFile> getAllSegments() {
+        return selectSegments(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Selects the segments that may contain events between the two points in time (inclusive). Segments
+     * entirely outside of the range are not returned, so they are never read during import.
+     */
+    public List<RawTraceFile> selectSegments(long fromTimeMs, long toTimeMs) {
+        var segments = new ArrayList<RawTraceFile>();
+
+        for (SegmentManifest manifest : manifests) {
+            for (SegmentManifest.Entry entry : manifest.getEntries()) {
+                boolean selected = fromTimeMs == Long.MIN_VALUE && toTimeMs == Long.MAX_VALUE
+                    || entry.overlaps(fromTimeMs, toTimeMs);
+
+                Path segmentFile = directory.resolve(entry.getFileName());
+
+                if (selected && Files.exists(segmentFile)) {
+                    segments.add(new RawTraceFile(segmentFile));
+                }
+            }
+        }
+
+        return Collections.unmodifiableList(segments);
+    }
+
+    public static boolean containsManifest(Path directory) {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*." + SegmentManifest.EXTENSION)) {
+            return stream.iterator().hasNext();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -1,25 +1,83 @@
 package codes.nibby.callsign.viewer.importer;
 
 import codes.nibby.callsign.api.Event;
+import codes.nibby.callsign.api.IntervalEndEvent;
+import codes.nibby.callsign.api.IntervalStartEvent;
 import codes.nibby.callsign.viewer.misc.ProgressReporter;
 import codes.nibby.callsign.viewer.models.document.*;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Optional;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.*;
 
 public final class SQLiteTraceDocumentAssembler implements TraceDocumentAssembler {
 
+    // Events appended to the document in one transaction
+    private static final int APPEND_BATCH_SIZE = 10_000;
+
+    // Batches decoded ahead of the writer
+    private static final int QUEUE_CAPACITY = 16;
+
+    static final int DEFAULT_MAX_OPEN_INTERVALS = 100_000;
+
+    private final int readerThreadCount;
+    private final int maxOpenIntervals;
+
+    private volatile @Nullable ImportStats importStats;
+
+    public SQLiteTraceDocumentAssembler() {
+        // The calling thread writes the document
+        this(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    /**
+     * @param readerThreadCount Maximum number of input files read at the same time
+     */
+    public SQLiteTraceDocumentAssembler(int readerThreadCount) {
+        this(readerThreadCount, DEFAULT_MAX_OPEN_INTERVALS);
+    }
+
+    SQLiteTraceDocumentAssembler(int readerThreadCount, int maxOpenIntervals) {
+        if (readerThreadCount < 1) {
+            throw new IllegalArgumentException("readerThreadCount must be at least 1");
+        }
+
+        if (maxOpenIntervals < 0) {
+            throw new IllegalArgumentException("maxOpenIntervals must not be negative");
+        }
+
+        this.readerThreadCount = readerThreadCount;
+        this.maxOpenIntervals = maxOpenIntervals;
+    }
+
+    /**
+     * @return Counters of the import in progress, or of the last one. Null if nothing was imported yet.
+     */
+    public @Nullable ImportStats getImportStats() {
+        return importStats;
+    }
+
     @Override
     public TraceDocument assemble(AssemblyOptions options, ProgressReporter progressReporter) throws IOException {
-        long totalEventCount = performInitialPass(options.inputTraceFiles, progressReporter);
+        WritableSQLiteTraceDocument document = createTraceDocument(options.outputFile);
 
-        WritableTraceDocument document = createTraceDocument(options.outputFile, progressReporter);
+        var pipeline = new ImportPipeline(options.inputTraceFiles, readerThreadCount, APPEND_BATCH_SIZE, QUEUE_CAPACITY);
+        importStats = pipeline.getStats();
 
-        importTraceData(document, options.inputTraceFiles, totalEventCount, progressReporter);
+        try {
+            createAttributes(document, pipeline, progressReporter);
+            importTraceData(document, pipeline, options.inputTraceFiles, progressReporter);
+
+            progressReporter.notifyProgressIndeterminate(true);
+            progressReporter.notifyProgressMessageChanged("Building indices...");
+            document.completeBulkLoad();
+            progressReporter.notifyProgressIndeterminate(false);
+        } catch (IOException | RuntimeException e) {
+            discardTraceDocument(document, options.outputFile, e);
+            throw e;
+        }
 
         try {
             document.unload();
@@ -27,64 +85,108 @@ public final class SQLiteTraceDocumentAssembler implements TraceDocumentAssemble
             throw new IOException(e);
         }
 
+        progressReporter.notifyProgressChanged(1);
+
         return new SQLiteTraceDocument(options.outputFile);
     }
 
-    private long performInitialPass(List<RawTraceFile> inputTraceFiles, ProgressReporter progressReporter) throws IOException {
-        progressReporter.notifyProgressMessageChanged("Pre-processing...");
-        progressReporter.notifyProgressIndeterminate(true);
-
-        // TODO: Handle failures better
-        List<IOException> failures = new ArrayList<>();
-
-        Optional<Long> totalEventCount = inputTraceFiles.parallelStream()
-            .map(traceFile -> {
-                try {
-                    return countEventEntries(traceFile);
-                } catch (IOException e) {
-                    synchronized (failures) {
-                        failures.add(e);
-                    }
-                    return 0L;
-                }
-            })
-            .reduce(Long::sum);
-
-        if (!failures.isEmpty()) {
-            throw new IOException(failures.size() + " exceptions occurred during initial pass! Showing cause of first failure", failures.get(0));
-        }
+    /*
+        Loaded in bulk: if the process ends before the import is complete, the document is left marked as incomplete
+        rather than looking like a valid document with some of the events missing.
+     */
+    private WritableSQLiteTraceDocument createTraceDocument(Path outputFile) throws IOException {
+        var document = new WritableSQLiteTraceDocument(outputFile);
+        document.initializeForBulkLoad();
 
-        return totalEventCount.orElse(0L);
+        return document;
     }
 
-    private long countEventEntries(RawTraceFile inputFile) throws IOException {
-        var counter = new AtomicInteger(0);
+    /*
+        A failed import leaves a document that could only ever be rejected as incomplete, so it is always deleted
+        rather than kept for inspection. Problems cleaning up are added to the failure that caused them, so that
+        it is not hidden.
+     */
+    private void discardTraceDocument(WritableTraceDocument document, Path outputFile, Exception failure) {
+        try {
+            document.unload();
+        } catch (TraceDocumentAccessException | RuntimeException e) {
+            failure.addSuppressed(e);
+        }
 
-        inputFile.streamEventData(event -> counter.incrementAndGet());
+        try {
+            Files.deleteIfExists(outputFile);
 
-        return counter.get();
+            // Normally removed when the connection is closed
+            Files.deleteIfExists(outputFile.resolveSibling(outputFile.getFileName() + "-wal"));
+            Files.deleteIfExists(outputFile.resolveSibling(outputFile.getFileName() + "-shm"));
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+        }
     }
 
-    private WritableTraceDocument createTraceDocument(Path outputFile, ProgressReporter progressReporter) throws IOException {
-        var document = new WritableSQLiteTraceDocument(outputFile);
-        document.initialize();
+    /*
+        Creates the attribute columns of all files before importing, rather than one by one as they appear in the
+        events. The columns get the type of the first value of each attribute, as they would during the import.
+        Formats that cannot list their attributes quickly are left to add them during the import. The files are
+        scanned on the reader threads of the import.
+     */
+    private void createAttributes(WritableTraceDocument document, ImportPipeline pipeline, ProgressReporter progressReporter) throws IOException {
+        progressReporter.notifyProgressMessageChanged("Scanning attribute names...");
+        progressReporter.notifyProgressIndeterminate(false);
+        progressReporter.notifyProgressChanged(0);
 
-        return document;
+        Map<String, Class<?>> attributeTypes = pipeline.scanAttributeTypes(progressReporter);
+
+        document.createAttributes(attributeTypes);
     }
 
-    private void importTraceData(WritableTraceDocument document, List<RawTraceFile> inputTraceFiles, long totalEventCount, ProgressReporter progressReporter) throws IOException {
+    /*
+        Files are read once, progress is measured in bytes read rather than in events so that the events do not
+        have to be counted in advance. Files are decoded on reader threads, this thread only writes the document.
+     */
+    private void importTraceData(WritableTraceDocument document, ImportPipeline pipeline, List<RawTraceFile> inputTraceFiles, ProgressReporter progressReporter) throws IOException {
+        progressReporter.notifyProgressMessageChanged("Importing...");
+
+        long totalBytes = 0;
+
         for (RawTraceFile traceFile : inputTraceFiles) {
-            traceFile.streamEventData(event -> importTraceEvent(event, document, totalEventCount, progressReporter));
+            totalBytes += traceFile.getSize();
         }
+
+        var progress = new ImportProgress(progressReporter, totalBytes, pipeline.getStats());
+
+        // Start events of intervals that have not ended yet, keyed by event ID. End events recorded in delta
+        // mode only hold the attributes that changed since the start, the rest is restored from these. The oldest
+        // are evicted past the limit, since intervals that never end would otherwise be kept for the whole import.
+        Map<UUID, IntervalStartEvent> openIntervalStartEvents = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, IntervalStartEvent> eldest) {
+                return size() > maxOpenIntervals;
+            }
+        };
+
+        pipeline.run(events -> {
+            for (Event event : events) {
+                restoreDeltaAttributes(event, openIntervalStartEvents);
+            }
+
+            document.appendEvents(events);
+        }, progress);
+
+        progress.onCompleted();
     }
 
-    private void importTraceEvent(Event event, WritableTraceDocument document, long totalEventCount, ProgressReporter progressReporter) {
-        try {
-            document.appendEvent(event);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    private void restoreDeltaAttributes(Event event, Map<UUID, IntervalStartEvent> openIntervalStartEvents) {
+        if (event instanceof IntervalStartEvent startEvent) {
+            openIntervalStartEvents.put(startEvent.getId(), startEvent);
+        } else if (event instanceof IntervalEndEvent endEvent) {
+            IntervalStartEvent startEvent = openIntervalStartEvents.remove(endEvent.getCorrelationId());
+
+            // If the start event has not been seen (yet) or was evicted, the end event is stored as a delta and
+            // the attributes are rebuilt when the document is read
+            if (startEvent != null) {
+                endEvent.restoreAttributesFrom(startEvent);
+            }
         }
-
-        // TODO: Progress reporting
     }
 }
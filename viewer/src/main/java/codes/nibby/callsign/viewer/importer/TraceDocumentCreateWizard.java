@@ -1,5 +1,6 @@
 package codes.nibby.callsign.viewer.importer;
 
+import codes.nibby.callsign.api.formats.SegmentManifest;
 import codes.nibby.callsign.viewer.ViewerApplicationController;
 import codes.nibby.callsign.viewer.ViewerPreferences;
 import codes.nibby.callsign.viewer.models.document.TraceDocument;
@@ -7,6 +8,8 @@ import codes.nibby.callsign.viewer.models.document.TraceDocumentFormat;
 import codes.nibby.callsign.viewer.ui.ProgressDialog;
 import javafx.application.Platform;
 import javafx.scene.control.Alert;
+import javafx.scene.control.TextInputDialog;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
@@ -17,6 +20,8 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static codes.nibby.callsign.viewer.importer.TraceDocumentAssembler.AssemblyOptions;
@@ -39,6 +44,89 @@ public final class TraceDocumentCreateWizard {
         beginDigestAssembly(controller, importOptions.get());
     }
 
+    /**
+     * Variant of {@link #begin(ViewerApplicationController, Stage, ViewerPreferences)} that imports the segments
+     * of a rolling raw trace folder, optionally limited to a recent time window.
+     */
+    public static void beginFromSegmentDirectory(ViewerApplicationController controller, Stage stage, ViewerPreferences preferences) {
+        Optional<List<RawTraceFile>> segmentSelection = promptSegmentSelection(stage, preferences);
+
+        if (segmentSelection.isEmpty()) {
+            return;
+        }
+
+        Optional<AssemblyOptions> importOptions = confirmImportOptions(segmentSelection.get(), preferences);
+
+        if (importOptions.isEmpty()) {
+            return;
+        }
+
+        beginDigestAssembly(controller, importOptions.get());
+    }
+
+    private static Optional<List<RawTraceFile>> promptSegmentSelection(Stage stage, ViewerPreferences preferences) {
+        var directoryChooser = new DirectoryChooser();
+        directoryChooser.setTitle("Select raw trace segment folder to import");
+        directoryChooser.setInitialDirectory(preferences.getImportDirectoryForTraceFiles().toFile());
+
+        File selectedDirectory = directoryChooser.showDialog(stage);
+
+        if (selectedDirectory == null) {
+            return Optional.empty();
+        }
+
+        RawTraceSegmentDirectory segmentDirectory;
+
+        try {
+            segmentDirectory = new RawTraceSegmentDirectory(selectedDirectory.toPath());
+        } catch (IOException e) {
+            Alert alert = new Alert(Alert.AlertType.ERROR);
+            alert.setTitle("Cannot read raw trace segments");
+            alert.setContentText(e.toString());
+            alert.show();
+            return Optional.empty();
+        }
+
+        preferences.setLastUsedOpenDirectoryForDigestFile(segmentDirectory.directory);
+
+        // Code is temporary (proof-of-concept)
+        // TODO: UI
+        //       - Pick an absolute time range on a preview of the segment timeline
+        var windowDialog = new TextInputDialog();
+        windowDialog.setTitle("Import raw trace segments");
+        windowDialog.setHeaderText("Import the last N minutes of recorded events. Leave blank to import everything.");
+        windowDialog.setContentText("Minutes:");
+
+        Optional<String> windowInput = windowDialog.showAndWait();
+
+        if (windowInput.isEmpty()) {
+            return Optional.empty();
+        }
+
+        String minutesText = windowInput.get().trim();
+
+        if (minutesText.isEmpty() || segmentDirectory.getLatestTimeMs() == SegmentManifest.NO_TIME) {
+            return Optional.of(segmentDirectory.getAllSegments());
+        }
+
+        long minutes;
+
+        try {
+            minutes = Long.parseLong(minutesText);
+        } catch (NumberFormatException e) {
+            Alert alert = new Alert(Alert.AlertType.ERROR, "Not a number of minutes: " + minutesText);
+            alert.show();
+            return Optional.empty();
+        }
+
+        // The window is relative to the latest recorded event rather than the current time, so that
+        // older recordings can be inspected the same way
+        long toTimeMs = segmentDirectory.getLatestTimeMs();
+        long fromTimeMs = toTimeMs - TimeUnit.MINUTES.toMillis(minutes);
+
+        return Optional.of(segmentDirectory.selectSegments(fromTimeMs, Long.MAX_VALUE));
+    }
+
     private static Optional<List<RawTraceFile>> promptFileSelection(Stage stage, ViewerPreferences preferences) {
         var importDirectory = preferences.getImportDirectoryForTraceFiles().toFile();
 
@@ -123,6 +211,9 @@ public final class TraceDocumentCreateWizard {
 
         try {
             assembledDocument = assembler.assemble(assemblyOptions, progressDialog);
+        } catch (CancellationException e) {
+            // Cancelled from the progress dialog, the partial document has been deleted
+            return;
         } catch (IOException e) {
             Platform.runLater(() -> {
                 Alert alert = new Alert(Alert.AlertType.ERROR);
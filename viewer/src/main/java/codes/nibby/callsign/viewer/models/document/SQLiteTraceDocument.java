@@ -1,5 +1,6 @@
 package codes.nibby.callsign.viewer.models.document;
 
+import codes.nibby.callsign.api.Event;
 import codes.nibby.callsign.api.InstantEvent;
 import codes.nibby.callsign.api.IntervalEndEvent;
 import codes.nibby.callsign.api.IntervalStartEvent;
@@ -45,12 +46,40 @@ public class SQLiteTraceDocument implements TraceDocument {
 
         try {
             openConnection();
+
+            if (isBulkLoadIncomplete()) {
+                closeConnection();
+                throw new TraceDocumentAccessException("Document is incomplete, it was not finished being created: " + path);
+            }
+
             loadMetadata();
         } catch (SQLException e) {
             throw new TraceDocumentAccessException("Failed to load document", e);
         }
     }
 
+    /*
+        A document being bulk loaded has no indices and may be missing events until the load is complete. If the
+        load was aborted, the document stays like that and is useless.
+     */
+    protected final boolean isBulkLoadIncomplete() throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT name FROM sqlite_master WHERE type = 'table' AND name = ?")) {
+            statement.setString(1, Schema.BulkLoadMarkerTable.TABLE_NAME);
+
+            return statement.executeQuery().next();
+        }
+    }
+
+    protected final void closeConnection() throws SQLException {
+        synchronized (stateLock) {
+            try {
+                connection.close();
+            } finally {
+                connection = null;
+            }
+        }
+    }
+
     private void loadMetadata() throws SQLException {
         assertLoaded();
 
@@ -97,12 +126,17 @@ public class SQLiteTraceDocument implements TraceDocument {
                         attributeHeaderData = new AttributeHeaderData();
 
                         ResultSet resultSet = statement.executeQuery("SELECT * FROM " + AttributeHeaderTable.TABLE_NAME);
+                        boolean hasValueTypes = hasColumn(resultSet.getMetaData(), AttributeHeaderTable.COLUMN_VALUE_TYPE);
 
                         while (resultSet.next()) {
                             String columnName = resultSet.getString(AttributeHeaderTable.COLUMN_COLUMN_NAME);
                             String attributeName = resultSet.getString(AttributeHeaderTable.COLUMN_ATTRIBUTE_NAME);
 
                             attributeHeaderData.columnNameToAttributeName.put(columnName, attributeName);
+
+                            if (hasValueTypes && resultSet.getString(AttributeHeaderTable.COLUMN_VALUE_TYPE) != null) {
+                                attributeHeaderData.columnNameToValueType.put(columnName, resultSet.getString(AttributeHeaderTable.COLUMN_VALUE_TYPE));
+                            }
                         }
                     } catch (SQLException e) {
                         throw new TraceDocumentAccessException(e);
@@ -163,7 +197,7 @@ public class SQLiteTraceDocument implements TraceDocument {
         Map<String, String> attributes = new HashMap<>();
 
         for (String columnName : headerData.getAllColumnNames()) {
-            @Nullable String value = resultSet.getString(columnName);
+            @Nullable String value = formatAttributeValue(resultSet.getObject(columnName), headerData.getValueType(columnName));
 
             if (value == null) {
                 continue;
@@ -205,7 +239,7 @@ public class SQLiteTraceDocument implements TraceDocument {
                 throw new IllegalStateException("Column (index=" + readIndex + ") is not valid attribute data");
             }
 
-            String attributeValue = resultSet.getString(readIndex);
+            String attributeValue = formatAttributeValue(resultSet.getObject(readIndex), headerData.getValueType(columnName));
             results.put(attributeName.get(), attributeValue);
         }
 
@@ -324,11 +358,65 @@ public class SQLiteTraceDocument implements TraceDocument {
             endEventAttributes = null;
         }
 
+        if (endEventAttributes != null && endEventAttributes.get(Event.SPECIAL_ATTRIBUTES_DELTA_ATTRIBUTE) != null) {
+            endEventAttributes = restoreDeltaAttributes(startEventAttributes, endEventAttributes);
+        }
+
         Trace entry = new IntervalTrace(startEventAttributes, endEventAttributes, startTimeMs, endTimeMs);
 
         consumer.accept(entry);
     }
 
+    /*
+        The end event only holds the attributes that changed since the start event (see EndEventAttributeMode),
+        every attribute it does not hold has the same value as at the start.
+     */
+    private Map<String, String> restoreDeltaAttributes(
+        @Nullable Map<String, String> startEventAttributes,
+        Map<String, String> endEventAttributes
+    ) {
+        Map<String, String> results = startEventAttributes != null ? new HashMap<>(startEventAttributes) : new HashMap<>();
+
+        for (var entry : endEventAttributes.entrySet()) {
+            if (entry.getValue() != null) {
+                results.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        results.remove(Event.SPECIAL_ATTRIBUTES_DELTA_ATTRIBUTE);
+
+        return results;
+    }
+
+    /*
+        Formats a column value the same way Event.getAttribute() formats the value it was written from. Boolean
+        values are stored as 0 and 1, and would otherwise read back as numbers.
+     */
+    protected static @Nullable String formatAttributeValue(@Nullable Object value, String valueType) {
+        if (value == null) {
+            return null;
+        }
+
+        if (AttributeHeaderTable.VALUE_TYPE_BOOLEAN.equals(valueType) && value instanceof Number number) {
+            return Boolean.toString(number.longValue() != 0);
+        }
+
+        return value.toString();
+    }
+
+    /*
+        Documents written before attribute value types were recorded have no value type column.
+     */
+    protected static boolean hasColumn(ResultSetMetaData metadata, String columnName) throws SQLException {
+        for (int index = 1; index <= metadata.getColumnCount(); index++) {
+            if (columnName.equals(metadata.getColumnName(index))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     private void assertLoaded() {
         synchronized (stateLock) {
             if (connection == null) {
@@ -385,6 +473,13 @@ public class SQLiteTraceDocument implements TraceDocument {
             static final String COLUMN_ID = "id";
             static final String COLUMN_COLUMN_NAME = "column_name";
             static final String COLUMN_ATTRIBUTE_NAME = "attribute_name";
+            static final String COLUMN_VALUE_TYPE = "value_type";
+
+            // Type of the first value seen for an attribute, which decides the type of its column
+            static final String VALUE_TYPE_TEXT = "text";
+            static final String VALUE_TYPE_INTEGER = "integer";
+            static final String VALUE_TYPE_REAL = "real";
+            static final String VALUE_TYPE_BOOLEAN = "boolean";
         }
 
         static final class MetadataTable {
@@ -394,11 +489,17 @@ public class SQLiteTraceDocument implements TraceDocument {
             static final String COLUMN_EARLIEST_EVENT_START_TIME_MS = "earliest_event_start_time_ms";
             static final String COLUMN_LATEST_EVENT_END_TIME_MS = "latest_event_end_time_ms";
         }
+
+        // Only exists while a document is being bulk loaded, see WritableSQLiteTraceDocument.initializeForBulkLoad()
+        static final class BulkLoadMarkerTable {
+            static final String TABLE_NAME = "bulk_load_in_progress";
+        }
     }
 
     protected static final class AttributeHeaderData {
 
         private final BiMap<String, String> columnNameToAttributeName = HashBiMap.create();
+        private final Map<String, String> columnNameToValueType = new HashMap<>();
 
         public Optional<String> getAttributeName(String columnName) {
             @Nullable String attributeName = columnNameToAttributeName.get(columnName);
@@ -410,6 +511,10 @@ public class SQLiteTraceDocument implements TraceDocument {
             return Optional.ofNullable(columnName);
         }
 
+        public String getValueType(String columnName) {
+            return columnNameToValueType.getOrDefault(columnName, AttributeHeaderTable.VALUE_TYPE_TEXT);
+        }
+
         public Set<String> getAllColumnNames() {
             return columnNameToAttributeName.keySet();
         }
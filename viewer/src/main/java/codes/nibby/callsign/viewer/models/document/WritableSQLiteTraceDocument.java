@@ -5,9 +5,11 @@ import codes.nibby.callsign.api.InstantEvent;
 import codes.nibby.callsign.api.IntervalEndEvent;
 import codes.nibby.callsign.api.IntervalStartEvent;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -21,9 +23,29 @@ import static codes.nibby.callsign.viewer.models.document.SQLiteTraceDocument.Sc
 
 public final class WritableSQLiteTraceDocument extends SQLiteTraceDocument implements WritableTraceDocument {
 
+    // Rows added to the insert statement batch before it is executed, within one transaction
+    private static final int MAX_PENDING_INSERTS = 1000;
+
+    // Page cache used while bulk loading, in KiB
+    private static final int BULK_LOAD_CACHE_SIZE_KIB = 256 * 1024;
+
     private final Map<String, String> attributeNameLookup = new ConcurrentHashMap<>();
+    private final Map<String, String> attributeValueTypes = new ConcurrentHashMap<>();
+    private final Set<String> knownAttributeNames = ConcurrentHashMap.newKeySet();
     private final AtomicInteger nextAttributeNameId = new AtomicInteger(0);
 
+    // Reused for every row until an attribute column is added. Guarded by stateLock, like everything below.
+    private @Nullable PreparedStatement insertStatement;
+    private @Nullable String insertQuery;
+    private List<String> insertColumnNames = List.of();
+    private int pendingInsertCount = 0;
+
+    // Metadata is only written once per transaction
+    private boolean metadataChanged = false;
+
+    // Settings to restore once a bulk load is complete, null if there is none in progress
+    private @Nullable DurabilitySettings settingsBeforeBulkLoad;
+
     public WritableSQLiteTraceDocument(Path path) {
         super(path);
     }
@@ -40,9 +62,15 @@ public final class WritableSQLiteTraceDocument extends SQLiteTraceDocument imple
         }
     }
 
-    private void initializeImpl(boolean modifyNotCreate) throws SQLException {
+    private void initializeImpl(boolean modifyNotCreate) throws SQLException, IOException {
         openConnection();
 
+        if (modifyNotCreate && isBulkLoadIncomplete()) {
+            closeConnection();
+
+            throw new IOException("Document is incomplete, it was not finished being created: " + path);
+        }
+
         if (!modifyNotCreate) {
             createInitialTablesAndIndices();
         }
@@ -50,9 +78,123 @@ public final class WritableSQLiteTraceDocument extends SQLiteTraceDocument imple
         loadAttributeHeaderData();
     }
 
+    /**
+     * Creates a new document to append a large number of events to at once, in place of {@link #initialize()}.
+     * <p>
+     * Events are appended without maintaining the indices of the events table, which are only built once all
+     * events are in, by {@link #completeBulkLoad()}. Until then, writes are not synced to disk, so that a crash
+     * may leave the document corrupt. The document is marked as incomplete until the load is completed, and
+     * cannot be loaded if it never is.
+     *
+     * @throws IOException If the document already exists, or could not be created
+     */
+    public void initializeForBulkLoad() throws IOException {
+        if (Files.exists(this.path)) {
+            throw new IOException("Bulk load needs a new document, but it already exists: " + path);
+        }
+
+        try {
+            synchronized (stateLock) {
+                openConnection();
+
+                settingsBeforeBulkLoad = DurabilitySettings.read(connection);
+                applyBulkLoadSettings();
+
+                connection.setAutoCommit(false);
+
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("CREATE TABLE " + BulkLoadMarkerTable.TABLE_NAME + " (id INTEGER PRIMARY KEY)");
+
+                    createEventsTable(statement);
+                    createAttributeHeaderTable(statement);
+                    createMetadataTable(statement);
+                }
+
+                connection.commit();
+                connection.setAutoCommit(true);
+
+                loadAttributeHeaderData();
+            }
+        } catch (SQLException e) {
+            var failure = new IOException("Failed to initialize SQLite database for bulk load", e);
+            closeConnectionAfterFailure(failure);
+
+            throw failure;
+        }
+    }
+
+    /*
+        Initialization failed, so the caller has no loaded document to unload. The connection is closed here instead.
+     */
+    private void closeConnectionAfterFailure(IOException failure) {
+        synchronized (stateLock) {
+            if (connection == null) {
+                return;
+            }
+
+            try {
+                closeConnection();
+            } catch (SQLException e) {
+                failure.addSuppressed(e);
+            }
+        }
+    }
+
+    /*
+        WAL rather than no journal at all, so that a failed append can still be rolled back. Not syncing is what
+        makes the difference, WAL then mostly saves rewriting pages into a rollback journal.
+     */
+    private void applyBulkLoadSettings() throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA journal_mode = WAL");
+            statement.execute("PRAGMA synchronous = OFF");
+            statement.execute("PRAGMA cache_size = -" + BULK_LOAD_CACHE_SIZE_KIB);
+            statement.execute("PRAGMA temp_store = MEMORY");
+        }
+    }
+
+    /**
+     * Completes a load started with {@link #initializeForBulkLoad()}: builds the indices of the events table,
+     * updates the statistics used by the query planner, and restores normal durability. Only then is the document
+     * marked as complete, all of it in one transaction.
+     */
+    public void completeBulkLoad() throws IOException {
+        synchronized (stateLock) {
+            if (settingsBeforeBulkLoad == null) {
+                throw new IllegalStateException("No bulk load in progress");
+            }
+
+            try {
+                connection.setAutoCommit(false);
+
+                try (Statement statement = connection.createStatement()) {
+                    createEventsTableIndices(statement);
+                    statement.execute("ANALYZE");
+                    statement.execute("DROP TABLE " + BulkLoadMarkerTable.TABLE_NAME);
+                }
+
+                connection.commit();
+                connection.setAutoCommit(true);
+
+                settingsBeforeBulkLoad.apply(connection);
+                settingsBeforeBulkLoad = null;
+            } catch (SQLException e) {
+                try {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                } catch (SQLException rollbackException) {
+                    e.addSuppressed(rollbackException);
+                }
+
+                throw new IOException("Failed to complete bulk load", e);
+            }
+        }
+    }
+
     private void createInitialTablesAndIndices() throws SQLException {
         try (Statement statement = connection.createStatement()) {
             createEventsTable(statement);
+            createEventsTableIndices(statement);
             createAttributeHeaderTable(statement);
             createMetadataTable(statement);
         }
@@ -64,7 +206,8 @@ public final class WritableSQLiteTraceDocument extends SQLiteTraceDocument imple
             "(" +
                 AttributeHeaderTable.COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
                 AttributeHeaderTable.COLUMN_COLUMN_NAME + " TEXT NOT NULL," +
-                AttributeHeaderTable.COLUMN_ATTRIBUTE_NAME + " TEXT NOT NULL" +
+                AttributeHeaderTable.COLUMN_ATTRIBUTE_NAME + " TEXT NOT NULL," +
+                AttributeHeaderTable.COLUMN_VALUE_TYPE + " TEXT NULL" +
             ")"
         );
 
@@ -90,7 +233,9 @@ public final class WritableSQLiteTraceDocument extends SQLiteTraceDocument imple
                 EventsTable.COLUMN_TIME_MS + " INTEGER NULL" +
             ")"
         );
+    }
 
+    private void createEventsTableIndices(Statement statement) throws SQLException {
         statement.execute("CREATE INDEX index_event_id ON event_data (" + EventsTable.COLUMN_EVENT_ID + ")");
         statement.execute("CREATE INDEX index_time_ns ON event_data (" + EventsTable.COLUMN_TIME_MS + ")");
         statement.execute("CREATE INDEX correlation_id ON event_data (" + EventsTable.COLUMN_CORRELATION_ID + ")");
@@ -120,64 +265,243 @@ public final class WritableSQLiteTraceDocument extends SQLiteTraceDocument imple
             }
         }
 
+        boolean hasValueTypes;
+
         try (Statement statement = connection.createStatement()) {
             ResultSet resultSet = statement.executeQuery("SELECT * FROM " + AttributeHeaderTable.TABLE_NAME);
+            hasValueTypes = hasColumn(resultSet.getMetaData(), AttributeHeaderTable.COLUMN_VALUE_TYPE);
 
             while (resultSet.next()) {
                 String columnName = resultSet.getString(AttributeHeaderTable.COLUMN_COLUMN_NAME);
                 String attributeName = resultSet.getString(AttributeHeaderTable.COLUMN_ATTRIBUTE_NAME);
+                @Nullable String valueType = hasValueTypes ? resultSet.getString(AttributeHeaderTable.COLUMN_VALUE_TYPE) : null;
 
                 attributeNameLookup.put(columnName, attributeName);
+                attributeValueTypes.put(columnName, valueType != null ? valueType : AttributeHeaderTable.VALUE_TYPE_TEXT);
+                knownAttributeNames.add(attributeName);
+            }
+        }
+
+        if (!hasValueTypes) {
+            // Written before value types were recorded, all existing attribute columns are text
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(
+                    "ALTER TABLE " + AttributeHeaderTable.TABLE_NAME + " ADD COLUMN " + AttributeHeaderTable.COLUMN_VALUE_TYPE + " TEXT NULL"
+                );
             }
         }
     }
 
     @Override
     public void appendEvent(Event event) throws IOException {
+        appendEvents(List.of(event));
+    }
+
+    /**
+     * Appends all events in a single transaction. Either all of them are stored, or none are.
+     */
+    @Override
+    public void appendEvents(Collection<? extends Event> events) throws IOException {
         synchronized (stateLock) {
             if (connection == null) {
                 throw new IllegalStateException("Document not initialized!");
             }
 
-            Set<String> missingAttributeNames = event.getAllAttributeNames().stream()
-                .filter(name -> !attributeNameLookup.containsValue(name))
-                .collect(Collectors.toSet());
+            long previousEarliestEventStartTimeMs = earliestEventStartTimeMs;
+            long previousLatestEventEndTimeMs = latestEventEndTimeMs;
+            boolean previousHasMetadataRow = hasMetadataRow;
+
+            try {
+                connection.setAutoCommit(false);
+
+                for (Event event : events) {
+                    appendEventImpl(event);
+                }
+
+                executePendingInserts();
+                writeMetadataIfChanged();
+
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                earliestEventStartTimeMs = previousEarliestEventStartTimeMs;
+                latestEventEndTimeMs = previousLatestEventEndTimeMs;
+                hasMetadataRow = previousHasMetadataRow;
+
+                rollback(e);
+                restoreAutoCommit(e);
+
+                if (e instanceof RuntimeException runtimeException) {
+                    throw runtimeException;
+                }
+
+                throw new IOException("An error occurred appending events", e);
+            }
+
+            restoreAutoCommit(null);
+        }
+    }
+
+    /*
+        Left in manual commit mode, the connection would silently keep every later change in an open transaction, so
+        a failure here is never just logged. It is added to the exception already being thrown, if there is one.
+     */
+    private void restoreAutoCommit(@Nullable Exception failure) throws IOException {
+        try {
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            if (failure == null) {
+                throw new IOException("Failed to restore auto-commit mode", e);
+            }
+
+            failure.addSuppressed(e);
+        }
+    }
+
+    /*
+        Attribute columns added during the transaction are gone after the rollback, so the attribute header data is
+        loaded again. Each step is attempted even if an earlier one failed: auto-commit is restored after this, which
+        would commit whatever the transaction still holds if the rollback had been skipped.
+     */
+    private void rollback(Exception cause) {
+        pendingInsertCount = 0;
+        metadataChanged = false;
+
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            cause.addSuppressed(e);
+        }
+
+        try {
+            closeInsertStatement();
+        } catch (SQLException e) {
+            cause.addSuppressed(e);
+        }
+
+        try {
+            attributeHeaderData = null;
+            attributeNameLookup.clear();
+            attributeValueTypes.clear();
+            knownAttributeNames.clear();
+            loadAttributeHeaderData();
+        } catch (SQLException e) {
+            cause.addSuppressed(e);
+        }
+    }
+
+    /*
+        The connection is closed even if the insert statement cannot be, closing it releases the statement anyway.
+     */
+    @Override
+    public void unload() throws TraceDocumentAccessException {
+        synchronized (stateLock) {
+            @Nullable SQLException statementFailure = null;
+
+            try {
+                closeInsertStatement();
+            } catch (SQLException e) {
+                statementFailure = e;
+            }
 
             try {
-                // TODO: This can be greatly optimised, do later
+                super.unload();
+            } catch (TraceDocumentAccessException e) {
+                if (statementFailure != null) {
+                    e.addSuppressed(statementFailure);
+                }
+
+                throw e;
+            }
+
+            if (statementFailure != null) {
+                throw new TraceDocumentAccessException("Failed to close insert statement", statementFailure);
+            }
+        }
+    }
+
+    /*
+        Adding a column while events are appended means preparing a wider insert statement, so it is best done
+        once up front for all attributes, for example when the attributes of an import are known in advance. The
+        columns get the same types as if the first value had been appended.
+     */
+    @Override
+    public void createAttributes(Map<String, Class<?>> attributeValueClasses) throws IOException {
+        synchronized (stateLock) {
+            if (connection == null) {
+                throw new IllegalStateException("Document not initialized!");
+            }
 
-                if (!missingAttributeNames.isEmpty()) {
-                    attributeHeaderData = null;
-                    createMissingAttributeNames(missingAttributeNames);
+            Map<String, String> missingAttributeValueTypes = new LinkedHashMap<>();
+
+            for (Map.Entry<String, Class<?>> entry : attributeValueClasses.entrySet()) {
+                if (!knownAttributeNames.contains(entry.getKey())) {
+                    missingAttributeValueTypes.put(entry.getKey(), getValueType(entry.getValue()));
                 }
+            }
+
+            if (missingAttributeValueTypes.isEmpty()) {
+                return;
+            }
+
+            try {
+                connection.setAutoCommit(false);
 
-                appendEventImpl(event);
+                closeInsertStatement();
+                attributeHeaderData = null;
+                createAttributeColumns(missingAttributeValueTypes);
+
+                connection.commit();
             } catch (SQLException e) {
-                throw new IOException("An error occurred appending event", e);
+                rollback(e);
+                restoreAutoCommit(e);
+
+                throw new IOException("An error occurred creating attributes", e);
             }
+
+            restoreAutoCommit(null);
         }
     }
 
-    private void createMissingAttributeNames(Set<String> missingAttributeNames) throws SQLException {
+    /*
+        Each new column takes the type of the value the event has for it. Later values of other types are still
+        stored, SQLite allows any type in any column. The exception are numbers in a boolean column, which read
+        back as booleans.
+     */
+    private void createMissingAttributeNames(Event event, Set<String> missingAttributeNames) throws SQLException {
+        Map<String, String> missingAttributeValueTypes = new LinkedHashMap<>();
+
+        for (String attributeName : missingAttributeNames) {
+            missingAttributeValueTypes.put(attributeName, getValueType(event.getAttributeValue(attributeName)));
+        }
+
+        createAttributeColumns(missingAttributeValueTypes);
+    }
 
-        Set<String> newColumnNames = new HashSet<>();
+    private void createAttributeColumns(Map<String, String> attributeValueTypesToCreate) throws SQLException {
+        Set<String> newColumnNames = new LinkedHashSet<>();
 
         try (PreparedStatement statement = connection.prepareStatement(
             "INSERT INTO " + AttributeHeaderTable.TABLE_NAME + " ("
                 + AttributeHeaderTable.COLUMN_COLUMN_NAME + ", "
-                + AttributeHeaderTable.COLUMN_ATTRIBUTE_NAME
-                + ") VALUES (?, ?)"
+                + AttributeHeaderTable.COLUMN_ATTRIBUTE_NAME + ", "
+                + AttributeHeaderTable.COLUMN_VALUE_TYPE
+                + ") VALUES (?, ?, ?)"
         )) {
-            for (String attributeName : missingAttributeNames) {
+            for (var entry : attributeValueTypesToCreate.entrySet()) {
+                String attributeName = entry.getKey();
+                String valueType = entry.getValue();
                 String columnName = "attribute_" + nextAttributeNameId.get();
 
                 statement.setString(1, columnName);
                 statement.setString(2, attributeName);
+                statement.setString(3, valueType);
 
                 statement.execute();
                 nextAttributeNameId.incrementAndGet();
 
                 attributeNameLookup.put(columnName, attributeName);
+                attributeValueTypes.put(columnName, valueType);
+                knownAttributeNames.add(attributeName);
                 newColumnNames.add(columnName);
             }
         }
@@ -185,30 +509,103 @@ public final class WritableSQLiteTraceDocument extends SQLiteTraceDocument imple
         for (String newColumnName : newColumnNames) {
             try (Statement statement = connection.createStatement()) {
                 statement.execute(
-                    "ALTER TABLE " + EventsTable.TABLE_NAME + " ADD COLUMN " + newColumnName + " TEXT NULL"
+                    "ALTER TABLE " + EventsTable.TABLE_NAME + " ADD COLUMN " + newColumnName + " "
+                        + getSqlType(attributeValueTypes.get(newColumnName)) + " NULL"
                 );
             }
         }
     }
 
+    private static String getValueType(@Nullable Object value) {
+        return getValueType(value != null ? value.getClass() : null);
+    }
+
+    private static String getValueType(@Nullable Class<?> valueClass) {
+        if (valueClass == Long.class) {
+            return AttributeHeaderTable.VALUE_TYPE_INTEGER;
+        } else if (valueClass == Double.class) {
+            return AttributeHeaderTable.VALUE_TYPE_REAL;
+        } else if (valueClass == Boolean.class) {
+            return AttributeHeaderTable.VALUE_TYPE_BOOLEAN;
+        } else {
+            return AttributeHeaderTable.VALUE_TYPE_TEXT;
+        }
+    }
+
+    private static String getSqlType(String valueType) {
+        return switch (valueType) {
+            case AttributeHeaderTable.VALUE_TYPE_INTEGER, AttributeHeaderTable.VALUE_TYPE_BOOLEAN -> "INTEGER";
+            case AttributeHeaderTable.VALUE_TYPE_REAL -> "REAL";
+            default -> "TEXT";
+        };
+    }
+
     private void appendEventImpl(Event event) throws SQLException {
-        StringBuilder additionalAttributeColumns = new StringBuilder();
-        StringBuilder additionalAttributeValues = new StringBuilder();
+        Set<String> attributeNames = event.getAllAttributeNames();
 
-        Map<Integer, String> parameterOffsetToAttributeName = new HashMap<>(attributeNameLookup.size());
+        // Attributes that were not created up front with createAttributes
+        if (!knownAttributeNames.containsAll(attributeNames)) {
+            Set<String> missingAttributeNames = attributeNames.stream()
+                .filter(name -> !knownAttributeNames.contains(name))
+                .collect(Collectors.toSet());
 
-        int offset = 0;
+            // The rows so far were bound for the current columns
+            executePendingInserts();
+            closeInsertStatement();
 
-        for (var entry  : attributeNameLookup.entrySet()) {
-            String columnName = entry.getKey();
-            String attributeName = entry.getValue();
+            attributeHeaderData = null;
+            createMissingAttributeNames(event, missingAttributeNames);
+        }
 
-            additionalAttributeColumns.append(", ").append(columnName);
-            additionalAttributeValues.append(", ?");
+        PreparedStatement statement = getInsertStatement();
+        int index = 1;
+
+        statement.setString(index++, event.getId().toString());
+        statement.setString(index++, event.getCorrelationId() != null ? event.getCorrelationId().toString() : null);
+        statement.setString(index++, event.getType());
+
+        long timeMs = event.getTimeMs();
+        statement.setLong(index++, timeMs);
 
-            parameterOffsetToAttributeName.put(offset, attributeName);
+        if (event instanceof IntervalStartEvent) {
+            updateMetadataIfApplicable(timeMs, null);
+        } else if (event instanceof IntervalEndEvent) {
+            updateMetadataIfApplicable(null, timeMs);
+        } else if (event instanceof InstantEvent instantEvent) {
+            updateMetadataIfApplicable(instantEvent.getTimeMs(), instantEvent.getTimeMs());
+        } else {
+            throw new IllegalArgumentException("Unsupported event type: " + event.getClass().getName());
+        }
 
-            offset++;
+        for (String columnName : insertColumnNames) {
+            setAttributeValue(statement, index++, columnName, event.getAttributeValue(attributeNameLookup.get(columnName)));
+        }
+
+        statement.addBatch();
+        pendingInsertCount++;
+
+        if (pendingInsertCount >= MAX_PENDING_INSERTS) {
+            executePendingInserts();
+        }
+    }
+
+    /*
+        The insert statement lists every attribute column, so it only has to be prepared again once a column is
+        added.
+     */
+    private PreparedStatement getInsertStatement() throws SQLException {
+        if (insertStatement != null) {
+            return insertStatement;
+        }
+
+        List<String> columnNames = new ArrayList<>(attributeNameLookup.keySet());
+
+        StringBuilder additionalAttributeColumns = new StringBuilder();
+        StringBuilder additionalAttributeValues = new StringBuilder();
+
+        for (String columnName : columnNames) {
+            additionalAttributeColumns.append(", ").append(columnName);
+            additionalAttributeValues.append(", ?");
         }
 
         String query =
@@ -222,44 +619,56 @@ public final class WritableSQLiteTraceDocument extends SQLiteTraceDocument imple
             ") " +
             "VALUES (?, ?, ?, ?" + additionalAttributeValues + ")";
 
-        try (PreparedStatement statement = connection.prepareStatement(query)) {
-            int index = 1;
+        insertStatement = connection.prepareStatement(query);
+        insertQuery = query;
+        insertColumnNames = columnNames;
 
-            statement.setString(index++, event.getId().toString());
-            statement.setString(index++, event.getCorrelationId() != null ? event.getCorrelationId().toString() : null);
-            statement.setString(index++, event.getType());
-
-            long timeMs = event.getTimeMs();
-            statement.setLong(index++, timeMs);
+        return insertStatement;
+    }
 
-            if (event instanceof IntervalStartEvent) {
-                updateMetadataIfApplicable(timeMs, null);
-            } else if (event instanceof IntervalEndEvent) {
-                updateMetadataIfApplicable(null, timeMs);
-            } else if (event instanceof InstantEvent instantEvent) {
-                updateMetadataIfApplicable(instantEvent.getTimeMs(), instantEvent.getTimeMs());
-            } else {
-                throw new IllegalArgumentException("Unsupported event type: " + event.getClass().getName());
-            }
+    private void executePendingInserts() throws SQLException {
+        if (insertStatement == null || pendingInsertCount == 0) {
+            return;
+        }
 
-            for (var attributeEntry : parameterOffsetToAttributeName.entrySet()) {
-                int columnOffset = attributeEntry.getKey();
-                String attributeName = attributeEntry.getValue();
+        try {
+            insertStatement.executeBatch();
+        } catch (SQLException e) {
+            throw new SQLException("Failed to execute query:\n" + insertQuery, e);
+        } finally {
+            pendingInsertCount = 0;
+        }
+    }
 
-                statement.setString(index + columnOffset, event.getAttribute(attributeName));
-            }
+    private void closeInsertStatement() throws SQLException {
+        if (insertStatement == null) {
+            return;
+        }
 
-            statement.execute();
-        } catch (SQLException e) {
-            // TODO: Better error logging
-            System.err.println("Failed to execute query:\n" + query);
-            throw e;
+        try {
+            insertStatement.close();
+        } finally {
+            insertStatement = null;
+            insertQuery = null;
+            insertColumnNames = List.of();
+            pendingInsertCount = 0;
         }
     }
 
-    private void updateMetadataIfApplicable(Long startTimeMs, Long endTimeMs) throws SQLException {
-        boolean metadataChanged = false;
+    private void setAttributeValue(PreparedStatement statement, int index, String columnName, @Nullable Object value) throws SQLException {
+        if (value instanceof Long longValue) {
+            statement.setLong(index, longValue);
+        } else if (value instanceof Double doubleValue) {
+            statement.setDouble(index, doubleValue);
+        } else if (value instanceof Boolean booleanValue && AttributeHeaderTable.VALUE_TYPE_BOOLEAN.equals(attributeValueTypes.get(columnName))) {
+            statement.setLong(index, booleanValue ? 1 : 0);
+        } else {
+            // Also booleans in a column created for another type, which would not read back as booleans otherwise
+            statement.setString(index, value != null ? value.toString() : null);
+        }
+    }
 
+    private void updateMetadataIfApplicable(Long startTimeMs, Long endTimeMs) {
         if (startTimeMs != null && !Objects.equals(earliestEventStartTimeMs, startTimeMs)) {
             earliestEventStartTimeMs = earliestEventStartTimeMs == UNDEFINED_START_TIME_MS
                 ? startTimeMs
@@ -275,15 +684,21 @@ public final class WritableSQLiteTraceDocument extends SQLiteTraceDocument imple
 
             metadataChanged = true;
         }
+    }
 
-        if (metadataChanged) {
-            if (hasMetadataRow) {
-                updateMetadataRow();
-            } else {
-                createMetadataRow();
-                hasMetadataRow = true;
-            }
+    private void writeMetadataIfChanged() throws SQLException {
+        if (!metadataChanged) {
+            return;
         }
+
+        if (hasMetadataRow) {
+            updateMetadataRow();
+        } else {
+            createMetadataRow();
+            hasMetadataRow = true;
+        }
+
+        metadataChanged = false;
     }
 
     private void createMetadataRow() throws SQLException {
@@ -327,4 +742,40 @@ public final class WritableSQLiteTraceDocument extends SQLiteTraceDocument imple
             }
         }
     }
+
+    /*
+        The settings changed for a bulk load, as they were before it.
+     */
+    private record DurabilitySettings(String journalMode, String synchronous, String cacheSize, String tempStore) {
+
+        static DurabilitySettings read(Connection connection) throws SQLException {
+            try (Statement statement = connection.createStatement()) {
+                return new DurabilitySettings(
+                    readPragma(statement, "journal_mode"),
+                    readPragma(statement, "synchronous"),
+                    readPragma(statement, "cache_size"),
+                    readPragma(statement, "temp_store")
+                );
+            }
+        }
+
+        private static String readPragma(Statement statement, String name) throws SQLException {
+            ResultSet resultSet = statement.executeQuery("PRAGMA " + name);
+
+            if (!resultSet.next()) {
+                throw new SQLException("No value for PRAGMA " + name);
+            }
+
+            return resultSet.getString(1);
+        }
+
+        void apply(Connection connection) throws SQLException {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("PRAGMA journal_mode = " + journalMode);
+                statement.execute("PRAGMA synchronous = " + synchronous);
+                statement.execute("PRAGMA cache_size = " + cacheSize);
+                statement.execute("PRAGMA temp_store = " + tempStore);
+            }
+        }
+    }
 }
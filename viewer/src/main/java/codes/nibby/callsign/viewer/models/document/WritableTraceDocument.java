@@ -3,6 +3,8 @@ package codes.nibby.callsign.viewer.models.document;
 import codes.nibby.callsign.api.Event;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
 
 public interface WritableTraceDocument extends TraceDocument {
 
@@ -10,4 +12,17 @@ public interface WritableTraceDocument extends TraceDocument {
 
     void appendEvent(Event event) throws IOException;
 
+    /**
+     * Appends many events at once, which is much faster than appending them one by one.
+     */
+    void appendEvents(Collection<? extends Event> events) throws IOException;
+
+    /**
+     * Prepares the document for events with the given attributes, so that it does not have to be changed while
+     * they are appended. Attributes the document already has are ignored.
+     *
+     * @param attributeValueClasses Class of the first value of each attribute, by attribute name
+     */
+    void createAttributes(Map<String, Class<?>> attributeValueClasses) throws IOException;
+
 }
@@ -0,0 +1,240 @@
+package codes.nibby.callsign.viewer.collector;
+
+import codes.nibby.callsign.api.Event;
+import codes.nibby.callsign.api.InstantEvent;
+import codes.nibby.callsign.api.IntervalStartEvent;
+import codes.nibby.callsign.api.TimelineLogger;
+import codes.nibby.callsign.api.sinks.LoopbackSocketSink;
+import codes.nibby.callsign.viewer.TestHelper;
+import codes.nibby.callsign.viewer.importer.RawTraceFileBinaryReader;
+import codes.nibby.callsign.viewer.models.document.SQLiteTraceDocument;
+import codes.nibby.callsign.viewer.models.filters.TraceFilters;
+import codes.nibby.callsign.viewer.models.trace.IntervalTrace;
+import codes.nibby.callsign.viewer.models.trace.Trace;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TraceCollectorTest {
+
+    // Long enough that no recent event is written before the collector is closed, so the order is fully known
+    private static final long REORDER_WINDOW_MS = 60_000;
+
+    private final Path testDir;
+
+    public TraceCollectorTest() throws IOException {
+        testDir = TestHelper.createTestDataDirectory();
+    }
+
+    @AfterEach
+    public void cleanUp() throws IOException {
+        if (Files.exists(testDir)) {
+            TestHelper.deleteRecursive(testDir);
+        }
+    }
+
+    @Test
+    public void testCollect_manyProducers_writesAllEventsInTimeOrder() throws Exception {
+        int producerCount = 3;
+        int eventsPerProducer = 500;
+        long baseTimeMs = System.currentTimeMillis();
+
+        try (var collector = new TraceCollector(0, new RawTraceFileCollectorOutput(testDir.resolve("collected")), REORDER_WINDOW_MS, 1 << 16)) {
+            for (int producer = 0; producer < producerCount; producer++) {
+                try (var sink = new LoopbackSocketSink(collector.getPort())) {
+                    var logger = new TimelineLogger(sink);
+
+                    for (int i = 0; i < eventsPerProducer; i++) {
+                        // Producers take turns in time, but are sent one after the other
+                        var event = new InstantEvent("Producer" + producer, baseTimeMs + (long) i * producerCount + producer);
+                        logger.recordEvent(event);
+                    }
+                }
+            }
+
+            awaitReceived(collector, producerCount * eventsPerProducer);
+            assertEquals(producerCount, collector.getConnectionCount());
+        }
+
+        List<Event> events = readRawTraceFile(testDir.resolve("collected.crt2"));
+
+        assertEquals(producerCount * eventsPerProducer, events.size());
+
+        for (int i = 0; i < events.size(); i++) {
+            assertEquals(baseTimeMs + i, events.get(i).getTimeMs());
+            assertEquals("Producer" + (i % producerCount), events.get(i).getName());
+        }
+    }
+
+    @Test
+    public void testCollect_traceDocumentOutput_restoresDeltaEndEvents() throws Exception {
+        Path documentFile = testDir.resolve("collected.db");
+
+        try (var collector = new TraceCollector(0, new TraceDocumentCollectorOutput(documentFile), REORDER_WINDOW_MS, 1 << 16)) {
+            try (var sink = new LoopbackSocketSink(collector.getPort())) {
+                var logger = new TimelineLogger(sink);
+
+                var startEvent = new IntervalStartEvent("Request", 1000L);
+                startEvent.putAttribute("path", "/index");
+
+                logger.recordEventStart(startEvent);
+                logger.recordEventEnd(startEvent, 2000L);
+            }
+
+            awaitReceived(collector, 2);
+        }
+
+        List<Trace> traces = readTraceDocument(documentFile);
+
+        assertEquals(1, traces.size());
+
+        var trace = assertInstanceOf(IntervalTrace.class, traces.get(0));
+        assertEquals(1000L, trace.getStartTimeMs());
+        assertEquals(2000L, trace.getEndTimeMs());
+        assertEquals("/index", trace.getAttributes().get("path"));
+    }
+
+    @Test
+    public void testCollect_producerStartedBeforeCollector_sendsBufferedEvents() throws Exception {
+        var output = new RawTraceFileCollectorOutput(testDir.resolve("collected"));
+
+        // Find a free port by briefly listening on one
+        int port;
+
+        try (var probe = new TraceCollector(0, new RawTraceFileCollectorOutput(testDir.resolve("probe")))) {
+            port = probe.getPort();
+        }
+
+        try (var sink = new LoopbackSocketSink(port, 1024, 64, 10)) {
+            var logger = new TimelineLogger(sink);
+            logger.recordEvent(new InstantEvent("Early", 1L));
+
+            try (var collector = new TraceCollector(port, output, REORDER_WINDOW_MS, 1 << 16)) {
+                awaitReceived(collector, 1);
+            }
+        }
+
+        List<Event> events = readRawTraceFile(testDir.resolve("collected.crt2"));
+
+        assertEquals(1, events.size());
+        assertEquals("Early", events.get(0).getName());
+    }
+
+    @Test
+    public void testWrite_traceDocumentOutputOpenIntervalsEvicted_deltaEndEventsCompletedOnRead() throws Exception {
+        Path documentFile = testDir.resolve("collected.db");
+
+        List<Event> events = new ArrayList<>();
+        var logger = new TimelineLogger(events::add);
+
+        var firstEvent = new IntervalStartEvent("First", 1000L);
+        firstEvent.putAttribute("path", "/first");
+        logger.recordEventStart(firstEvent);
+
+        var secondEvent = new IntervalStartEvent("Second", 1500L);
+        secondEvent.putAttribute("path", "/second");
+        logger.recordEventStart(secondEvent);
+
+        logger.recordEventEnd(firstEvent, 2000L);
+        logger.recordEventEnd(secondEvent, 3000L);
+
+        // Only room for one open interval, so the first is evicted once the second starts
+        try (var output = new TraceDocumentCollectorOutput(documentFile, 1)) {
+            for (Event event : events) {
+                output.write(event);
+            }
+        }
+
+        List<Trace> traces = readTraceDocument(documentFile);
+        traces.sort(Comparator.comparing(Trace::getName));
+
+        assertEquals(2, traces.size());
+        assertEquals("/first", traces.get(0).getAttributes().get("path"));
+        assertEquals("/second", traces.get(1).getAttributes().get("path"));
+    }
+
+    @Test
+    public void testCollect_outputFails_failurePassedToHandlerAndThrownOnClose() throws Exception {
+        var failure = new IOException("Output failed");
+        var reportedFailures = new LinkedBlockingQueue<IOException>();
+
+        CollectorOutput output = new CollectorOutput() {
+            @Override
+            public void write(Event event) throws IOException {
+                throw failure;
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        var errorHandler = new TraceCollector.ErrorHandler() {
+            @Override
+            public void onConnectionFailed(String message, IOException connectionFailure) {
+            }
+
+            @Override
+            public void onWriteFailed(IOException writeFailure) {
+                reportedFailures.add(writeFailure);
+            }
+        };
+
+        var collector = new TraceCollector(0, output, 0, 1 << 16, errorHandler);
+
+        try (var sink = new LoopbackSocketSink(collector.getPort())) {
+            new TimelineLogger(sink).recordEvent(new InstantEvent("Event", 1000L));
+        }
+
+        assertSame(failure, reportedFailures.poll(10, TimeUnit.SECONDS));
+        assertSame(failure, assertThrows(IOException.class, collector::close));
+    }
+
+    private static List<Trace> readTraceDocument(Path documentFile) throws Exception {
+        var document = new SQLiteTraceDocument(documentFile);
+        document.load();
+
+        List<Trace> traces = new ArrayList<>();
+
+        try {
+            document.streamTraces(new TraceFilters(), traces::add);
+        } finally {
+            document.unload();
+        }
+
+        return traces;
+    }
+
+    private static void awaitReceived(TraceCollector collector, long eventCount) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+
+        while (collector.getReceivedEventCount() < eventCount) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Received only " + collector.getReceivedEventCount() + " of " + eventCount + " events");
+            }
+
+            Thread.sleep(10);
+        }
+    }
+
+    private static List<Event> readRawTraceFile(Path file) throws IOException {
+        List<Event> events = new ArrayList<>();
+        new RawTraceFileBinaryReader(file).streamEvents(events::add);
+
+        return events;
+    }
+}
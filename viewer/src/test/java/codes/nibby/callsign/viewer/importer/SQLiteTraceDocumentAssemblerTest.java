@@ -0,0 +1,322 @@
+package codes.nibby.callsign.viewer.importer;
+
+import codes.nibby.callsign.api.InstantEvent;
+import codes.nibby.callsign.api.IntervalEndEvent;
+import codes.nibby.callsign.api.IntervalStartEvent;
+import codes.nibby.callsign.api.TimelineLogger;
+import codes.nibby.callsign.api.formats.BinaryFormat;
+import codes.nibby.callsign.api.formats.CsvFormat;
+import codes.nibby.callsign.api.sinks.BinaryFileSink;
+import codes.nibby.callsign.api.sinks.CsvFileSink;
+import codes.nibby.callsign.viewer.TestHelper;
+import codes.nibby.callsign.viewer.misc.ProgressReporter;
+import codes.nibby.callsign.viewer.models.document.TraceDocument;
+import codes.nibby.callsign.viewer.models.document.WritableSQLiteTraceDocument;
+import codes.nibby.callsign.viewer.models.filters.TraceFilters;
+import codes.nibby.callsign.viewer.models.trace.IntervalTrace;
+import codes.nibby.callsign.viewer.models.trace.Trace;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SQLiteTraceDocumentAssemblerTest {
+
+    private final Path testDir;
+
+    public SQLiteTraceDocumentAssemblerTest() throws IOException {
+        testDir = TestHelper.createTestDataDirectory();
+    }
+
+    @AfterEach
+    public void cleanUp() throws IOException {
+        if (Files.exists(testDir)) {
+            TestHelper.deleteRecursive(testDir);
+        }
+    }
+
+    @Test
+    public void testAssemble_csvAndBinaryFiles_importsAllEventsAndCompletesProgress() throws Exception {
+        var startEvent = new IntervalStartEvent("Interval", 1000L);
+
+        try (var sink = new CsvFileSink(testDir.resolve("first"))) {
+            sink.publishEvent(startEvent);
+
+            for (int i = 0; i < 5000; i++) {
+                sink.publishEvent(new InstantEvent("Instant", 1000L + i));
+            }
+        }
+
+        try (var sink = new BinaryFileSink(testDir.resolve("second"))) {
+            sink.publishEvent(new IntervalEndEvent(startEvent.getId(), "Interval", 9000L));
+        }
+
+        var inputFiles = List.of(
+            new RawTraceFile(testDir.resolve("first." + CsvFormat.EXTENSION)),
+            new RawTraceFile(testDir.resolve("second." + BinaryFormat.EXTENSION))
+        );
+
+        var progressReporter = new RecordingProgressReporter();
+        var options = new TraceDocumentAssembler.AssemblyOptions(inputFiles, testDir.resolve("document"));
+
+        TraceDocument document = new SQLiteTraceDocumentAssembler().assemble(options, progressReporter);
+        document.load();
+
+        try {
+            List<Trace> traces = new ArrayList<>();
+            document.streamTraces(new TraceFilters(), traces::add);
+
+            assertEquals(5001, traces.size());
+
+            var intervalTrace = (IntervalTrace) traces.stream().filter(trace -> trace instanceof IntervalTrace).findFirst().orElseThrow();
+            assertEquals(9000L, intervalTrace.getEndTimeMs());
+            assertEquals(1000L, intervalTrace.getStartTimeMs());
+        } finally {
+            document.unload();
+        }
+
+        assertEquals(1.0, progressReporter.lastProgress);
+        assertTrue(progressReporter.messages.stream().anyMatch(message -> message.contains("rows/s")));
+    }
+
+    @Test
+    public void testAssemble_filesOnSeveralReaderThreads_importsAllEventsAndRecordsStats() throws Exception {
+        List<RawTraceFile> inputFiles = new ArrayList<>();
+
+        for (int file = 0; file < 6; file++) {
+            try (var sink = new BinaryFileSink(testDir.resolve("input" + file))) {
+                for (int i = 0; i < 3000; i++) {
+                    var event = new InstantEvent("Instant", 1000L + i);
+                    event.putAttribute("File", (long) file);
+                    sink.publishEvent(event);
+                }
+            }
+
+            inputFiles.add(new RawTraceFile(testDir.resolve("input" + file + "." + BinaryFormat.EXTENSION)));
+        }
+
+        var assembler = new SQLiteTraceDocumentAssembler(3);
+        var options = new TraceDocumentAssembler.AssemblyOptions(inputFiles, testDir.resolve("document"));
+
+        TraceDocument document = assembler.assemble(options, new RecordingProgressReporter());
+        document.load();
+
+        try {
+            List<Trace> traces = new ArrayList<>();
+            document.streamTraces(new TraceFilters(), traces::add);
+
+            assertEquals(18000, traces.size());
+
+            for (int file = 0; file < 6; file++) {
+                String fileValue = String.valueOf(file);
+                assertEquals(3000, traces.stream().filter(trace -> fileValue.equals(trace.getAttributes().get("File"))).count());
+            }
+        } finally {
+            document.unload();
+        }
+
+        var stats = assembler.getImportStats().snapshot();
+
+        assertEquals(3, stats.readerThreadCount());
+        assertEquals(18000, stats.decodedRowCount());
+        assertEquals(18000, stats.writtenRowCount());
+        assertTrue(stats.writeRowsPerSecond() > 0);
+    }
+
+    @Test
+    public void testAssemble_openIntervalsEvicted_deltaEndEventsCompletedOnRead() throws Exception {
+        try (var sink = new BinaryFileSink(testDir.resolve("input"))) {
+            var logger = new TimelineLogger(sink);
+
+            var firstEvent = new IntervalStartEvent("First", 1000L);
+            firstEvent.putAttribute("path", "/first");
+            logger.recordEventStart(firstEvent);
+
+            var secondEvent = new IntervalStartEvent("Second", 1500L);
+            secondEvent.putAttribute("path", "/second");
+            logger.recordEventStart(secondEvent);
+
+            logger.recordEventEnd(firstEvent, 2000L);
+            logger.recordEventEnd(secondEvent, 3000L);
+        }
+
+        // Only room for one open interval, so the first is evicted once the second starts
+        var assembler = new SQLiteTraceDocumentAssembler(1, 1);
+        var options = new TraceDocumentAssembler.AssemblyOptions(
+            List.of(new RawTraceFile(testDir.resolve("input." + BinaryFormat.EXTENSION))),
+            testDir.resolve("document")
+        );
+
+        TraceDocument document = assembler.assemble(options, new RecordingProgressReporter());
+        document.load();
+
+        try {
+            List<Trace> traces = new ArrayList<>();
+            document.streamTraces(new TraceFilters(), traces::add);
+            traces.sort(Comparator.comparing(Trace::getName));
+
+            assertEquals(2, traces.size());
+            assertEquals("/first", traces.get(0).getAttributes().get("path"));
+            assertEquals("/second", traces.get(1).getAttributes().get("path"));
+        } finally {
+            document.unload();
+        }
+    }
+
+    @Test
+    public void testAssemble_unreadableFile_throwsIOExceptionAndDeletesDocument() throws Exception {
+        Path inputFile = testDir.resolve("broken." + BinaryFormat.EXTENSION);
+        Files.write(inputFile, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+
+        Path outputFile = testDir.resolve("document");
+        var options = new TraceDocumentAssembler.AssemblyOptions(List.of(new RawTraceFile(inputFile)), outputFile);
+
+        assertThrows(IOException.class, () -> new SQLiteTraceDocumentAssembler().assemble(options, new RecordingProgressReporter()));
+        assertFalse(Files.exists(outputFile));
+        assertFalse(Files.exists(testDir.resolve("document-wal")));
+        assertFalse(Files.exists(testDir.resolve("document-shm")));
+    }
+
+    @Test
+    public void testAssemble_cancelRequested_throwsAndDeletesDocument() throws Exception {
+        try (var sink = new CsvFileSink(testDir.resolve("input"))) {
+            for (int i = 0; i < 5000; i++) {
+                sink.publishEvent(new InstantEvent("Instant", 1000L + i));
+            }
+        }
+
+        var progressReporter = new RecordingProgressReporter();
+        progressReporter.cancelRequested = true;
+
+        Path outputFile = testDir.resolve("document");
+        var options = new TraceDocumentAssembler.AssemblyOptions(
+            List.of(new RawTraceFile(testDir.resolve("input." + CsvFormat.EXTENSION))),
+            outputFile
+        );
+
+        assertThrows(CancellationException.class, () -> new SQLiteTraceDocumentAssembler().assemble(options, progressReporter));
+        assertFalse(Files.exists(outputFile));
+    }
+
+    @Test
+    public void testAssemble_typedAttributes_sameColumnsAndValuesAsAppendedDocument() throws Exception {
+        var event = new InstantEvent("Typed", 1000L);
+        event.putAttribute("Count", 3L);
+        event.putAttribute("Ratio", 0.5);
+        event.putAttribute("Hit", true);
+        event.putAttribute("Text", "007");
+
+        try (var sink = new BinaryFileSink(testDir.resolve("input"))) {
+            sink.publishEvent(event);
+        }
+
+        var options = new TraceDocumentAssembler.AssemblyOptions(
+            List.of(new RawTraceFile(testDir.resolve("input." + BinaryFormat.EXTENSION))),
+            testDir.resolve("imported")
+        );
+
+        TraceDocument importedDocument = new SQLiteTraceDocumentAssembler().assemble(options, new RecordingProgressReporter());
+
+        var appendedDocument = new WritableSQLiteTraceDocument(testDir.resolve("appended"));
+        appendedDocument.initialize();
+        appendedDocument.appendEvent(event);
+        appendedDocument.unload();
+
+        for (String attributeName : List.of("Count", "Ratio", "Hit", "Text")) {
+            assertEquals(
+                describeAttributeColumn(appendedDocument.getPath(), attributeName),
+                describeAttributeColumn(importedDocument.getPath(), attributeName),
+                attributeName
+            );
+        }
+
+        assertEquals("INTEGER integer 1", describeAttributeColumn(importedDocument.getPath(), "Hit"));
+    }
+
+    /*
+        Declared type of the column, and the storage class and text of its first value.
+     */
+    private static String describeAttributeColumn(Path documentFile, String attributeName) throws SQLException {
+        try (var connection = DriverManager.getConnection("jdbc:sqlite:" + documentFile.toAbsolutePath());
+             var statement = connection.prepareStatement("SELECT column_name FROM attribute_name_lookup WHERE attribute_name = ?")) {
+
+            statement.setString(1, attributeName);
+
+            ResultSet columnNames = statement.executeQuery();
+            assertTrue(columnNames.next());
+            String columnName = columnNames.getString(1);
+
+            try (var query = connection.createStatement()) {
+                ResultSet columnTypes = query.executeQuery("SELECT type FROM pragma_table_info('event_data') WHERE name = '" + columnName + "'");
+                assertTrue(columnTypes.next());
+                String columnType = columnTypes.getString(1);
+
+                ResultSet values = query.executeQuery("SELECT typeof(" + columnName + "), " + columnName + " FROM event_data");
+                assertTrue(values.next());
+
+                return columnType + " " + values.getString(1) + " " + values.getString(2);
+            }
+        }
+    }
+
+    @Test
+    public void testReadAttributeTypes_cancelledAfterFirstChunk_stopsBeforeEndOfFile() throws Exception {
+        try (var sink = new CsvFileSink(testDir.resolve("input"))) {
+            for (int i = 0; i < 5000; i++) {
+                var event = new InstantEvent("Instant", 1000L + i);
+                event.putAttribute("Index", (long) i);
+                sink.publishEvent(event);
+            }
+        }
+
+        Path inputFile = testDir.resolve("input." + CsvFormat.EXTENSION);
+        var reader = new RawTraceFileCsvReader(inputFile);
+        var checkCount = new AtomicInteger();
+
+        assertThrows(CancellationException.class, () -> reader.readAttributeTypes(() -> checkCount.incrementAndGet() > 1));
+        assertTrue(reader.getBytesRead() > 0);
+        assertTrue(reader.getBytesRead() < Files.size(inputFile));
+    }
+
+    private static final class RecordingProgressReporter implements ProgressReporter {
+
+        private final List<String> messages = new ArrayList<>();
+        private double lastProgress = -1;
+        private volatile boolean cancelRequested = false;
+
+        @Override
+        public void notifyComplete() {
+        }
+
+        @Override
+        public void notifyProgressChanged(double progress) {
+            lastProgress = progress;
+        }
+
+        @Override
+        public void notifyProgressIndeterminate(boolean isIndeterminate) {
+        }
+
+        @Override
+        public void notifyProgressMessageChanged(String message) {
+            messages.add(message);
+        }
+
+        @Override
+        public boolean isCancelRequested() {
+            return cancelRequested;
+        }
+    }
+}
@@ -1,12 +1,33 @@
 package codes.nibby.callsign.viewer.models;
 
+import codes.nibby.callsign.api.InstantEvent;
 import codes.nibby.callsign.viewer.models.document.SQLiteTraceDocument;
 import codes.nibby.callsign.viewer.models.document.TraceDocument;
 import codes.nibby.callsign.viewer.models.document.TraceDocumentAccessException;
 import codes.nibby.callsign.viewer.models.document.WritableSQLiteTraceDocument;
+import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.UnaryOperator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class WritableSQLiteDocumentTest extends WritableTraceDocumentTest {
 
@@ -29,6 +50,237 @@ public class WritableSQLiteDocumentTest extends WritableTraceDocumentTest {
         return document;
     }
 
+    @Test
+    public void testAppendEvent_typedAttributes_storedAsNumbers() throws Exception {
+        var document = createWritableInstance(testDir);
+
+        var event = new InstantEvent("TypedEvent", 1000L);
+        event.putAttribute("Count", 42L);
+        event.putAttribute("Ratio", 1.5);
+        event.putAttribute("Hit", true);
+        document.appendEvent(event);
+        document.unload();
+
+        try (var connection = DriverManager.getConnection("jdbc:sqlite:" + document.getPath().toAbsolutePath());
+             var statement = connection.createStatement()) {
+
+            for (var entry : Map.of("Count", "integer", "Ratio", "real", "Hit", "integer").entrySet()) {
+                ResultSet columnNames = statement.executeQuery(
+                    "SELECT column_name FROM attribute_name_lookup WHERE attribute_name = '" + entry.getKey() + "'"
+                );
+                assertTrue(columnNames.next());
+
+                String columnName = columnNames.getString(1);
+                ResultSet types = statement.executeQuery("SELECT typeof(" + columnName + ") FROM event_data");
+
+                assertTrue(types.next());
+                assertEquals(entry.getValue(), types.getString(1));
+            }
+        }
+    }
+
+    @Test
+    public void testCreateAttributesThenAppend_noColumnsAddedAndValuesKeepTypes() throws Exception {
+        var document = createWritableInstance(testDir);
+
+        var event = new InstantEvent("TypedEvent", 1000L);
+        event.putAttribute("Count", 42L);
+        event.putAttribute("Ratio", 1.5);
+        event.putAttribute("Text", "007");
+
+        Map<String, Class<?>> attributeTypes = new HashMap<>();
+
+        for (String attributeName : event.getAllAttributeNames()) {
+            attributeTypes.put(attributeName, event.getAttributeValue(attributeName).getClass());
+        }
+
+        document.createAttributes(attributeTypes);
+        int columnCount = countEventColumns(document);
+
+        document.appendEvent(event);
+        document.unload();
+
+        assertEquals(columnCount, countEventColumns(document));
+
+        try (var connection = DriverManager.getConnection("jdbc:sqlite:" + document.getPath().toAbsolutePath());
+             var statement = connection.createStatement()) {
+
+            for (var entry : Map.of("Count", "integer", "Ratio", "real", "Text", "text").entrySet()) {
+                ResultSet columnNames = statement.executeQuery(
+                    "SELECT column_name FROM attribute_name_lookup WHERE attribute_name = '" + entry.getKey() + "'"
+                );
+                assertTrue(columnNames.next());
+
+                String columnName = columnNames.getString(1);
+                ResultSet values = statement.executeQuery("SELECT typeof(" + columnName + "), " + columnName + " FROM event_data");
+
+                assertTrue(values.next());
+                assertEquals(entry.getValue(), values.getString(1));
+                assertEquals(event.getAttribute(entry.getKey()), values.getString(2));
+            }
+        }
+    }
+
+    @Test
+    public void testBulkLoad_completed_indexedAndLoadable() throws Exception {
+        var document = new WritableSQLiteTraceDocument(createTestOutputFile(testDir));
+        document.initializeForBulkLoad();
+
+        assertEquals(0, countEventIndices(document));
+
+        List<InstantEvent> events = new ArrayList<>();
+
+        for (int i = 0; i < 100; i++) {
+            events.add(new InstantEvent("BulkEvent", 1000L + i));
+        }
+
+        document.appendEvents(events);
+        document.completeBulkLoad();
+        document.unload();
+
+        assertEquals(3, countEventIndices(document));
+
+        try (var connection = DriverManager.getConnection("jdbc:sqlite:" + document.getPath().toAbsolutePath());
+             var statement = connection.createStatement()) {
+
+            ResultSet journalMode = statement.executeQuery("PRAGMA journal_mode");
+            assertTrue(journalMode.next());
+            assertEquals("delete", journalMode.getString(1));
+
+            // Written by ANALYZE
+            assertTrue(statement.executeQuery("SELECT name FROM sqlite_master WHERE name = 'sqlite_stat1'").next());
+        }
+
+        var readOnlyDocument = createInstance(document.getPath());
+
+        try {
+            assertEquals(1000L, readOnlyDocument.getEarliestEventStartTimeMs());
+            assertEquals(1099L, readOnlyDocument.getLatestEventEndTimeMs());
+        } finally {
+            readOnlyDocument.unload();
+        }
+    }
+
+    @Test
+    public void testBulkLoad_notCompleted_documentCannotBeLoaded() throws Exception {
+        var document = new WritableSQLiteTraceDocument(createTestOutputFile(testDir));
+        document.initializeForBulkLoad();
+        document.appendEvent(new InstantEvent("BulkEvent", 1000L));
+        document.unload();
+
+        assertThrows(TraceDocumentAccessException.class, () -> createInstance(document.getPath()));
+        assertThrows(IOException.class, () -> new WritableSQLiteTraceDocument(document.getPath()).initialize());
+    }
+
+    @Test
+    public void testInitializeForBulkLoad_existingDocument_throws() throws Exception {
+        var document = createWritableInstance(testDir);
+        document.unload();
+
+        assertThrows(IOException.class, () -> new WritableSQLiteTraceDocument(document.getPath()).initializeForBulkLoad());
+    }
+
+    @Test
+    public void testAppendEvents_insertFailsAndStatementCannotBeClosed_rollsBackBatch() throws Exception {
+        var document = createWritableInstance(testDir);
+
+        var failure = new AtomicBoolean(false);
+        replaceConnection(document, connection -> failInsertStatements(connection, failure));
+
+        document.appendEvent(new InstantEvent("Committed", 1000L));
+        failure.set(true);
+
+        var events = List.of(new InstantEvent("RolledBack", 2000L), new InstantEvent("RolledBack", 3000L));
+        assertThrows(IOException.class, () -> document.appendEvents(events));
+
+        failure.set(false);
+        document.unload();
+
+        assertEquals(1, countEvents(document));
+    }
+
+    /*
+        Wraps the document's connection, so that its statements can be made to fail after the rows have been
+        written into the open transaction.
+     */
+    private static void replaceConnection(WritableSQLiteTraceDocument document, UnaryOperator<Connection> wrapper) throws Exception {
+        Field field = SQLiteTraceDocument.class.getDeclaredField("connection");
+        field.setAccessible(true);
+        field.set(document, wrapper.apply((Connection) field.get(document)));
+    }
+
+    private static Connection failInsertStatements(Connection connection, AtomicBoolean failure) {
+        return delegatingProxy(Connection.class, connection, (method, args, result) -> {
+            if (method.getName().equals("prepareStatement") && ((String) args[0]).startsWith("INSERT INTO event_data")) {
+                return delegatingProxy(PreparedStatement.class, (PreparedStatement) result, (statementMethod, statementArgs, statementResult) -> {
+                    boolean failingMethod = statementMethod.getName().equals("executeBatch") || statementMethod.getName().equals("close");
+
+                    if (failure.get() && failingMethod) {
+                        throw new SQLException("Forced failure of " + statementMethod.getName());
+                    }
+
+                    return statementResult;
+                });
+            }
+
+            return result;
+        });
+    }
+
+    @FunctionalInterface
+    private interface ResultHandler {
+        Object handle(Method method, Object[] args, Object result) throws Throwable;
+    }
+
+    // The delegate is always called first, so that a failing call has still had its effect
+    private static <T> T delegatingProxy(Class<T> type, T delegate, ResultHandler resultHandler) {
+        Object proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (instance, method, args) -> {
+            Object result;
+
+            try {
+                result = method.invoke(delegate, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+
+            return resultHandler.handle(method, args, result);
+        });
+
+        return type.cast(proxy);
+    }
+
+    private static int countEvents(WritableSQLiteTraceDocument document) throws Exception {
+        try (var connection = DriverManager.getConnection("jdbc:sqlite:" + document.getPath().toAbsolutePath());
+             var statement = connection.createStatement()) {
+
+            ResultSet count = statement.executeQuery("SELECT COUNT(*) FROM event_data");
+            count.next();
+
+            return count.getInt(1);
+        }
+    }
+
+    private static int countEventIndices(WritableSQLiteTraceDocument document) throws Exception {
+        try (var connection = DriverManager.getConnection("jdbc:sqlite:" + document.getPath().toAbsolutePath());
+             var statement = connection.createStatement()) {
+
+            ResultSet count = statement.executeQuery(
+                "SELECT COUNT(*) FROM sqlite_master WHERE type = 'index' AND tbl_name = 'event_data' AND sql IS NOT NULL"
+            );
+            count.next();
+
+            return count.getInt(1);
+        }
+    }
+
+    private static int countEventColumns(WritableSQLiteTraceDocument document) throws Exception {
+        try (var connection = DriverManager.getConnection("jdbc:sqlite:" + document.getPath().toAbsolutePath());
+             var statement = connection.createStatement()) {
+
+            return statement.executeQuery("SELECT * FROM event_data").getMetaData().getColumnCount();
+        }
+    }
+
     private static Path createTestOutputFile(Path testDir) {
         return testDir.resolve("testWritableSQLiteTraceDocument");
     }
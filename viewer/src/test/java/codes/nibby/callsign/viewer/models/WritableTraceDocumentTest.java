@@ -1,6 +1,10 @@
 package codes.nibby.callsign.viewer.models;
 
 import codes.nibby.callsign.api.Event;
+import codes.nibby.callsign.api.InstantEvent;
+import codes.nibby.callsign.api.IntervalStartEvent;
+import codes.nibby.callsign.api.TimelineLogSink;
+import codes.nibby.callsign.api.TimelineLogger;
 import codes.nibby.callsign.viewer.TestDataGenerator;
 import codes.nibby.callsign.viewer.TestHelper;
 import codes.nibby.callsign.viewer.models.document.TraceDocument;
@@ -17,6 +21,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -24,7 +29,7 @@ import static org.junit.jupiter.api.Assertions.*;
 
 public abstract class WritableTraceDocumentTest {
 
-    private final Path testDir;
+    protected final Path testDir;
 
     public WritableTraceDocumentTest() throws IOException {
         testDir = TestHelper.createTestDataDirectory();
@@ -156,6 +161,113 @@ public abstract class WritableTraceDocumentTest {
         });
     }
 
+    @Test
+    public void testAppendThenStream_intervalEndEventIsDelta_restoresAttributesFromStartEvent() throws Exception {
+        var writableDocument = createWritableInstance();
+
+        // Append events as they are published, since the logger keeps modifying the start event
+        var logger = new TimelineLogger(new TimelineLogSink() {
+            @Override
+            public void publishEvent(Event event) {
+                try {
+                    writableDocument.appendEvent(event);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+
+        var startEvent = new IntervalStartEvent("TestIntervalEventPair", 1000L);
+        startEvent.putAttribute("Unchanged", "Value0");
+        startEvent.putAttribute("Changed", "Value1");
+
+        logger.recordEventStart(startEvent);
+        startEvent.putAttribute("Changed", "Value2");
+        logger.recordEventEnd(startEvent, 2000L);
+
+        testReadBack(writableDocument, document -> {
+            List<Trace> traces = new ArrayList<>();
+            document.streamTraces(new TraceFilters(), traces::add);
+
+            assertEquals(1, traces.size());
+
+            var trace = traces.get(0);
+
+            assertEquals(3, trace.getAttributes().size());
+            assertEquals("TestIntervalEventPair", trace.getName());
+            assertEquals("Value0", trace.getAttributes().get("Unchanged"));
+            assertEquals("Value2", trace.getAttributes().get("Changed"));
+        });
+    }
+
+    @Test
+    public void testAppendEventsThenStream_attributesAddedWithinBatch_allStored() throws Exception {
+        var writableDocument = createWritableInstance();
+
+        List<Event> events = new ArrayList<>();
+
+        for (int i = 0; i < 2500; i++) {
+            var event = new InstantEvent("BatchEvent", 1000L + i);
+            event.putAttribute("Index", String.valueOf(i));
+
+            // New columns part way through, with rows still waiting in the batch
+            if (i >= 1500) {
+                event.putAttribute("Late", "Value" + i);
+            }
+
+            events.add(event);
+        }
+
+        writableDocument.appendEvents(events.subList(0, 2000));
+        writableDocument.appendEvents(events.subList(2000, events.size()));
+
+        testReadBack(writableDocument, document -> {
+            List<Trace> traces = new ArrayList<>();
+            document.streamTraces(new TraceFilters(), traces::add);
+
+            assertEquals(events.size(), traces.size());
+            assertEquals(1000L, document.getEarliestEventStartTimeMs());
+            assertEquals(1000L + events.size() - 1, document.getLatestEventEndTimeMs());
+
+            traces.sort(Comparator.comparingLong(trace -> ((InstantTrace) trace).getTimeMs()));
+
+            for (int i = 0; i < events.size(); i++) {
+                assertAttributeEquals(events.get(i), traces.get(i));
+            }
+        });
+    }
+
+    @Test
+    public void testAppendThenStream_typedAttributes_readBackAsText() throws Exception {
+        var writableDocument = createWritableInstance();
+
+        var event = new InstantEvent("TypedEvent", 1000L);
+        event.putAttribute("Count", 42L);
+        event.putAttribute("Ratio", 1.5);
+        event.putAttribute("Hit", true);
+        event.putAttribute("Text", "7");
+        writableDocument.appendEvent(event);
+
+        // Same attributes with values of other types than their columns were created for
+        var otherEvent = new InstantEvent("TypedEvent", 2000L);
+        otherEvent.putAttribute("Count", "many");
+        otherEvent.putAttribute("Hit", false);
+        otherEvent.putAttribute("Text", false);
+        writableDocument.appendEvent(otherEvent);
+
+        testReadBack(writableDocument, document -> {
+            List<Trace> traces = new ArrayList<>();
+            document.streamTraces(new TraceFilters(), traces::add);
+
+            assertEquals(2, traces.size());
+
+            traces.sort(Comparator.comparingLong(trace -> ((InstantTrace) trace).getTimeMs()));
+
+            assertAttributeEquals(event, traces.get(0));
+            assertAttributeEquals(otherEvent, traces.get(1));
+        });
+    }
+
     private void assertAttributeEquals(Event event, Trace trace) {
         assertEquals(event.getAllAttributeNames().size(), trace.getAttributes().size());
 